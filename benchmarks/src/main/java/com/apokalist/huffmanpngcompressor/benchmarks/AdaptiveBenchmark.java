@@ -0,0 +1,97 @@
+package com.apokalist.huffmanpngcompressor.benchmarks;
+
+import com.apokalist.huffmanpngcompressor.AdaptiveHuffmanEncoder;
+import com.apokalist.huffmanpngcompressor.AlphaMode;
+import com.apokalist.huffmanpngcompressor.CompressionOptions;
+import com.apokalist.huffmanpngcompressor.Compressor;
+import com.apokalist.huffmanpngcompressor.DecodedImage;
+import com.apokalist.huffmanpngcompressor.HuffmanDecoder;
+import com.apokalist.huffmanpngcompressor.SyntheticImages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-pass adaptive code against the static two-pass one, from pixels to container:
+ * the static side counts the histogram and builds its tree inside every operation.
+ * Both code opaque 24-bit symbols. The container sizes do not change between runs,
+ * so they are printed once per image as bits per pixel instead of being measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AdaptiveBenchmark {
+
+    @Param({"FLAT", "GRADIENT", "NOISE", "PALETTE"})
+    SyntheticImages.Kind kind;
+
+    @Param({"640x480", "1920x1080"})
+    String resolution;
+
+    private DecodedImage image;
+    private CompressionOptions options;
+    private byte[] staticContainer;
+    private byte[] adaptiveContainer;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        image = SyntheticImages.generate(kind, resolution);
+        options = new CompressionOptions().setAlphaMode(AlphaMode.IGNORE);
+        out = new ByteArrayOutputStream();
+        new Compressor(image, options).encode(out);
+        staticContainer = out.toByteArray();
+        out.reset();
+        new AdaptiveHuffmanEncoder(AlphaMode.IGNORE).encode(image, out);
+        adaptiveContainer = out.toByteArray();
+
+        double pixels = image.getPixels().length;
+        System.out.printf(Locale.ROOT, "%n%s %s: static %.3f bits/pixel, adaptive %.3f bits/pixel%n", kind, resolution,
+                staticContainer.length * 8 / pixels, adaptiveContainer.length * 8 / pixels);
+    }
+
+    @Benchmark
+    public int staticTwoPass(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        out.reset();
+        new Compressor(image, options).encode(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int adaptiveOnePass(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        out.reset();
+        new AdaptiveHuffmanEncoder(AlphaMode.IGNORE).encode(image, out);
+        return out.size();
+    }
+
+    @Benchmark
+    public DecodedImage staticDecode(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        return new HuffmanDecoder().decode(new ByteArrayInputStream(staticContainer));
+    }
+
+    @Benchmark
+    public DecodedImage adaptiveDecode(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        return new HuffmanDecoder().decode(new ByteArrayInputStream(adaptiveContainer));
+    }
+}
@@ -0,0 +1,75 @@
+package com.apokalist.huffmanpngcompressor.benchmarks;
+
+import com.apokalist.huffmanpngcompressor.CompressionOptions;
+import com.apokalist.huffmanpngcompressor.Compressor;
+import com.apokalist.huffmanpngcompressor.DecodedImage;
+import com.apokalist.huffmanpngcompressor.HuffmanDecoder;
+import com.apokalist.huffmanpngcompressor.SyntheticImages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Container encode and decode speed, reported as images/s and RGB bytes/s.
+ * Also times the payload size computation the statistics are based on.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"FLAT", "GRADIENT", "NOISE", "PALETTE"})
+    SyntheticImages.Kind kind;
+
+    @Param({"640x480", "1920x1080"})
+    String resolution;
+
+    private DecodedImage image;
+    private Compressor compressor;
+    private byte[] container;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        image = SyntheticImages.generate(kind, resolution);
+        compressor = new Compressor(image, new CompressionOptions());
+        out = new ByteArrayOutputStream((int) compressor.getContainerSize());
+        compressor.encode(out);
+        container = out.toByteArray();
+    }
+
+    @Benchmark
+    public int encode(Counters.RgbBytes counter) throws IOException {
+        counter.rgbBytes += image.getPixels().length * 3L;
+        out.reset();
+        compressor.encode(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public DecodedImage decode(Counters.RgbBytes counter) throws IOException {
+        counter.rgbBytes += image.getPixels().length * 3L;
+        return new HuffmanDecoder().decode(new ByteArrayInputStream(container));
+    }
+
+    @Benchmark
+    public long payloadBits() {
+        return compressor.getCanonicalCode().encodedBits(compressor.getColorFrequency());
+    }
+}
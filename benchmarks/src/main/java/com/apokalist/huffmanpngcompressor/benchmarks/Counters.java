@@ -0,0 +1,44 @@
+package com.apokalist.huffmanpngcompressor.benchmarks;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Secondary JMH results, reported as rates next to the ops/s of a throughput benchmark
+ */
+public final class Counters {
+
+    private Counters() {
+    }
+
+    /**
+     * Pixels processed, shows up as pixels/s
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Pixels {
+        public long pixels;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            pixels = 0;
+        }
+    }
+
+    /**
+     * Raw 24-bit RGB bytes processed, shows up as bytes/s
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class RgbBytes {
+        public long rgbBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            rgbBytes = 0;
+        }
+    }
+}
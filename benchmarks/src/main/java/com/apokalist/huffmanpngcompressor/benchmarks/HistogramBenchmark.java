@@ -0,0 +1,59 @@
+package com.apokalist.huffmanpngcompressor.benchmarks;
+
+import com.apokalist.huffmanpngcompressor.ColorHistogram;
+import com.apokalist.huffmanpngcompressor.DecodedImage;
+import com.apokalist.huffmanpngcompressor.ImageAnalyzer;
+import com.apokalist.huffmanpngcompressor.SyntheticImages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Color counting throughput, reported as images/s and pixels/s
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistogramBenchmark {
+
+    @Param({"FLAT", "GRADIENT", "NOISE", "PALETTE"})
+    SyntheticImages.Kind kind;
+
+    @Param({"640x480", "1920x1080", "3840x2160"})
+    String resolution;
+
+    private DecodedImage image;
+    private final ImageAnalyzer analyzer = new ImageAnalyzer();
+    private final int workers = Runtime.getRuntime().availableProcessors();
+
+    @Setup
+    public void setUp() {
+        image = SyntheticImages.generate(kind, resolution);
+    }
+
+    @Benchmark
+    public ColorHistogram sequential(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        return analyzer.analyzeColors(image);
+    }
+
+    @Benchmark
+    public ColorHistogram parallel(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        return analyzer.analyzeColors(image, workers);
+    }
+}
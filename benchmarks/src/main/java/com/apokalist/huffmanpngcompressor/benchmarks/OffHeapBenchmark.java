@@ -0,0 +1,92 @@
+package com.apokalist.huffmanpngcompressor.benchmarks;
+
+import com.apokalist.huffmanpngcompressor.AlphaMode;
+import com.apokalist.huffmanpngcompressor.ColorHistogram;
+import com.apokalist.huffmanpngcompressor.CompressionOptions;
+import com.apokalist.huffmanpngcompressor.Compressor;
+import com.apokalist.huffmanpngcompressor.DecodedImage;
+import com.apokalist.huffmanpngcompressor.ImageAnalyzer;
+import com.apokalist.huffmanpngcompressor.SegmentPool;
+import com.apokalist.huffmanpngcompressor.SegmentRaster;
+import com.apokalist.huffmanpngcompressor.SyntheticImages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One image of a batch the way {@code BatchPipeline} handles it, raster, dense histogram and
+ * container on the heap against the same in recycled {@link SegmentPool} blocks. Copying the
+ * source raster stands in for the PNG decode. Compare {@code gc.alloc.rate.norm}, {@code gc.count}
+ * and {@code gc.time}: what is left off-heap is the code itself, which grows with the colors.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx1g"})
+public class OffHeapBenchmark {
+
+    @Param({"GRADIENT", "NOISE", "PALETTE"})
+    SyntheticImages.Kind kind;
+
+    /// Above the dense histogram threshold, where the 64MB table is allocated per image
+    @Param({"3840x2160"})
+    String resolution;
+
+    private DecodedImage image;
+    private CompressionOptions options;
+    private ImageAnalyzer analyzer;
+    private SegmentPool pool;
+
+    @Setup
+    public void setUp() {
+        image = SyntheticImages.generate(kind, resolution);
+        options = new CompressionOptions().setAlphaMode(AlphaMode.IGNORE).setLinearTreeBuilder(true);
+        analyzer = new ImageAnalyzer(AlphaMode.IGNORE);
+        pool = new SegmentPool(1);
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Benchmark
+    public int heap(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        DecodedImage raster = DecodedImage.readFully(image);
+        ColorHistogram histogram = analyzer.analyzeColors(raster, new ColorHistogram(image.getPixels().length));
+        Compressor compressor = new Compressor(raster, histogram, options);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) compressor.getContainerSize());
+        compressor.encode(out);
+        return out.toByteArray().length;
+    }
+
+    @Benchmark
+    public long offHeap(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        try (SegmentPool.Block pixels = pool.take(SegmentPool.Kind.RASTER, SegmentRaster.bytes(image));
+             SegmentPool.Block table = pool.take(SegmentPool.Kind.HISTOGRAM, ColorHistogram.DENSE_BYTES)) {
+            SegmentRaster raster = SegmentRaster.read(image, pixels.segment());
+            ColorHistogram histogram = analyzer.analyzeColors(raster, new ColorHistogram(table.segment()));
+            Compressor compressor = new Compressor(raster, histogram, options);
+            try (SegmentPool.Block output = pool.take(SegmentPool.Kind.OUTPUT, compressor.getContainerSize())) {
+                return compressor.encode(output.segment());
+            }
+        }
+    }
+}
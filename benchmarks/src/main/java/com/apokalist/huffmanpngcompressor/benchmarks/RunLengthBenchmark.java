@@ -0,0 +1,103 @@
+package com.apokalist.huffmanpngcompressor.benchmarks;
+
+import com.apokalist.huffmanpngcompressor.CompressionOptions;
+import com.apokalist.huffmanpngcompressor.Compressor;
+import com.apokalist.huffmanpngcompressor.DecodedImage;
+import com.apokalist.huffmanpngcompressor.HuffmanDecoder;
+import com.apokalist.huffmanpngcompressor.SyntheticImages;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run-length rows against plain color codes, encode and decode of the finished code.
+ * {@code analyze} times the whole compressor with runs on, the two run passes included.
+ * Bits per pixel of both containers are printed once per image.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RunLengthBenchmark {
+
+    @Param({"FLAT", "SCREENSHOT", "PALETTE"})
+    SyntheticImages.Kind kind;
+
+    @Param({"1920x1080"})
+    String resolution;
+
+    private DecodedImage image;
+    private Compressor colors;
+    private Compressor runs;
+    private byte[] colorContainer;
+    private byte[] runContainer;
+    private ByteArrayOutputStream out;
+
+    @Setup
+    public void setUp() throws IOException {
+        image = SyntheticImages.generate(kind, resolution);
+        colors = new Compressor(image, new CompressionOptions());
+        runs = new Compressor(image, new CompressionOptions().setRunLength(true));
+        out = new ByteArrayOutputStream();
+        colors.encode(out);
+        colorContainer = out.toByteArray();
+        out.reset();
+        runs.encode(out);
+        runContainer = out.toByteArray();
+
+        double pixels = image.getPixels().length;
+        System.out.printf(Locale.ROOT, "%n%s %s: colors %.3f bits/pixel, runs %.3f bits/pixel (%s)%n", kind, resolution,
+                colorContainer.length * 8 / pixels, runContainer.length * 8 / pixels,
+                runs.isRunLength() ? "used" : "not used");
+    }
+
+    @Benchmark
+    public int encodeColors(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        out.reset();
+        colors.encode(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public int encodeRuns(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        out.reset();
+        runs.encode(out);
+        return out.size();
+    }
+
+    @Benchmark
+    public DecodedImage decodeColors(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        return new HuffmanDecoder().decode(new ByteArrayInputStream(colorContainer));
+    }
+
+    @Benchmark
+    public DecodedImage decodeRuns(Counters.Pixels counter) throws IOException {
+        counter.pixels += image.getPixels().length;
+        return new HuffmanDecoder().decode(new ByteArrayInputStream(runContainer));
+    }
+
+    @Benchmark
+    public long analyze(Counters.Pixels counter) {
+        counter.pixels += image.getPixels().length;
+        return new Compressor(image, new CompressionOptions().setRunLength(true)).getContainerSize();
+    }
+}
@@ -0,0 +1,66 @@
+package com.apokalist.huffmanpngcompressor.benchmarks;
+
+import com.apokalist.huffmanpngcompressor.ColorHistogram;
+import com.apokalist.huffmanpngcompressor.HuffmanTree;
+import com.apokalist.huffmanpngcompressor.LengthLimitedCodeBuilder;
+import com.apokalist.huffmanpngcompressor.TwoQueueCodeBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Priority-queue node tree against the two-queue builder over parallel int arrays,
+ * plus the package-merge cost of limiting the same code to 16 bits
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TreeBuilderBenchmark {
+
+    @Param({"256", "1000", "100000", "500000"})
+    int uniqueColors;
+
+    private ColorHistogram histogram;
+    private int[] frequencies;
+
+    @Setup
+    public void setUp() {
+        // Photo-like skew: a few dominant colors and a long tail of rare ones
+        Random random = new Random(42);
+        histogram = new ColorHistogram();
+        for (int color = 0; color < uniqueColors; color++) {
+            double skew = Math.pow(random.nextDouble(), 8);
+            histogram.add(color * 33, 1 + (int) (skew * 10_000));
+        }
+        frequencies = histogram.counts();
+    }
+
+    @Benchmark
+    public HuffmanTree priorityQueueTree() {
+        return new HuffmanTree(histogram);
+    }
+
+    @Benchmark
+    public int[] twoQueueLengths() {
+        return TwoQueueCodeBuilder.buildLengths(frequencies);
+    }
+
+    @Benchmark
+    public int[] packageMerge16() {
+        return LengthLimitedCodeBuilder.buildLengths(frequencies, 16);
+    }
+}
@@ -0,0 +1,452 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Adaptive Huffman code (FGK) that learns the colors while they are coded, so an image
+ * can be written in one pass without a histogram up front. Encoder and decoder start
+ * from the same empty tree and update it the same way after every symbol.
+ *
+ * The tree starts as a single escape leaf of weight 0. A color seen for the first time
+ * is written as the code of the escape leaf followed by its raw 24 or 32 bit symbol, then
+ * the escape leaf splits into the escape and a leaf for the new color. A known color is
+ * written as the code of its leaf. Either way the weights on the path to the root go up
+ * by one, and nodes are swapped so the tree keeps the sibling property: listed by slot,
+ * weights never increase and siblings are next to each other, which makes it a Huffman
+ * tree of the counts so far.
+ *
+ * Slots are positions in that list, slot 0 is the root and the escape leaf is always in
+ * the last slot. Slots of equal weight form a block, so the highest slot of a weight is
+ * found without a search. When the root reaches {@link #MAX_WEIGHT} all counts are halved
+ * and the tree is rebuilt, which keeps codes shorter than 45 bits and lets old colors fade.
+ */
+public class AdaptiveHuffmanCoder {
+    /// Root weight at which the counts are halved, keeps every code shorter than 45 bits
+    public static final int MAX_WEIGHT = 1 << 30;
+
+    private final int symbolBits;
+
+    /// Per slot: parent slot, first of the two child slots (0 for a leaf) and the color of a leaf
+    private int[] parent;
+    private int[] child;
+    private int[] symbol;
+    private int[] block;
+    private int slots;
+
+    /// Per block: weight of its slots and its first slot, free blocks are chained through blockFirst
+    private int[] blockWeight;
+    private int[] blockFirst;
+    private int blockCount;
+    private int freeBlock = -1;
+
+    /// Open addressing map from color to slot + 1, 0 marks an empty bucket
+    private int[] keys;
+    private int[] values;
+    private int leaves;
+
+    private long symbols;
+    private long escapes;
+    private long escapeBits;
+    private int rescales;
+
+    /**
+     * @param symbolBits raw bits of a new color after an escape, 24 for plain colors or 32 for packed symbols
+     */
+    public AdaptiveHuffmanCoder(int symbolBits) {
+        if (symbolBits != 24 && symbolBits != 32)
+            throw new IllegalArgumentException("Symbols are 24 or 32 bits, got " + symbolBits);
+        this.symbolBits = symbolBits;
+        parent = new int[64];
+        child = new int[64];
+        symbol = new int[64];
+        block = new int[64];
+        blockWeight = new int[16];
+        blockFirst = new int[16];
+        keys = new int[64];
+        values = new int[64];
+        /// Only the escape leaf, as root
+        slots = 1;
+        parent[0] = -1;
+        block[0] = newBlock(0, 0);
+    }
+
+    /**
+     * Writes the code of one symbol and updates the tree
+     *
+     * @param value the symbol, a plain color or a packed symbol, see {@link AlphaMode#symbol(int)}
+     * @param writer destination
+     * @throws IOException if writing fails
+     */
+    public void encode(int value, BitWriter writer) throws IOException {
+        int slot = find(value);
+        if (slot < 0) {
+            long before = writer.getBitsWritten();
+            writeCode(slots - 1, writer);
+            writer.writeBits(value, symbolBits);
+            escapeBits += writer.getBitsWritten() - before;
+            add(value);
+        } else {
+            writeCode(slot, writer);
+            increment(slot);
+        }
+        symbols++;
+        if (weight(0) >= MAX_WEIGHT) rescale();
+    }
+
+    /**
+     * Reads one symbol and updates the tree the same way the encoder did
+     *
+     * @param reader positioned at the code of the symbol
+     * @return the symbol
+     * @throws IOException if the stream is corrupt or ends early
+     */
+    public int decode(BitReader reader) throws IOException {
+        int slot = 0;
+        while (child[slot] != 0) slot = child[slot] + reader.readBit();
+        int value;
+        if (slot == slots - 1) {
+            value = reader.readBits(symbolBits);
+            if (find(value) >= 0) throw new IOException("Corrupt adaptive payload: escape of a known color");
+            add(value);
+        } else {
+            value = symbol[slot];
+            increment(slot);
+        }
+        symbols++;
+        if (weight(0) >= MAX_WEIGHT) rescale();
+        return value;
+    }
+
+    /**
+     * Decodes a run of pixels
+     *
+     * @param reader positioned at the first pixel code
+     * @param pixels destination, opaque unless the symbols are packed
+     * @param offset first pixel to fill
+     * @param count number of pixels to decode
+     * @throws IOException if the stream is corrupt
+     */
+    public void decodePixels(BitReader reader, int[] pixels, int offset, int count) throws IOException {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            pixels[i] = AlphaMode.toArgb(decode(reader));
+        }
+    }
+
+    /**
+     * @return raw bits of a new color after an escape
+     */
+    public int getSymbolBits() {
+        return symbolBits;
+    }
+
+    /**
+     * @return distinct colors seen so far
+     */
+    public int getColorCount() {
+        return leaves;
+    }
+
+    /**
+     * @return symbols coded so far
+     */
+    public long getSymbolCount() {
+        return symbols;
+    }
+
+    /**
+     * @return symbols that were escaped, one per distinct color
+     */
+    public long getEscapeCount() {
+        return escapes;
+    }
+
+    /**
+     * @return bits spent on escape codes and raw colors, the adaptive version of the header
+     */
+    public long getEscapeBits() {
+        return escapeBits;
+    }
+
+    /**
+     * @return times the counts were halved
+     */
+    public int getRescaleCount() {
+        return rescales;
+    }
+
+    /**
+     * @return current code length of a symbol in bits, -1 if it has not been seen
+     */
+    public int codeLength(int value) {
+        int slot = find(value);
+        if (slot < 0) return -1;
+        int length = 0;
+        for (; slot != 0; slot = parent[slot]) length++;
+        return length;
+    }
+
+    /**
+     * @return longest code of the tree as it is now, the escape included
+     */
+    public int getMaxCodeLength() {
+        int longest = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (child[slot] != 0) continue;
+            int length = 0;
+            for (int q = slot; q != 0; q = parent[q]) length++;
+            longest = Math.max(longest, length);
+        }
+        return longest;
+    }
+
+    private int weight(int slot) {
+        return blockWeight[block[slot]];
+    }
+
+    /// Bits are collected from the leaf up, so they come out in root to leaf order in one go.
+    /// {@link #MAX_WEIGHT} keeps codes shorter than 45 bits, so two writes cover those over 32
+    private void writeCode(int slot, BitWriter writer) throws IOException {
+        long code = 0;
+        int length = 0;
+        for (int q = slot; q != 0; q = parent[q]) {
+            code |= (long) (q - child[parent[q]]) << length;
+            length++;
+        }
+        if (length > 32) {
+            writer.writeBits((int) (code >>> 32), length - 32);
+            writer.writeBits((int) code, 32);
+        } else {
+            writer.writeBits((int) code, length);
+        }
+    }
+
+    /**
+     * Splits the escape leaf into an inner node over a leaf for the new color and the escape
+     */
+    private void add(int value) {
+        ensureSlots(slots + 2);
+        int z = slots - 1;
+        int leaf = z + 1;
+        int escape = z + 2;
+        child[z] = leaf;
+        parent[leaf] = z;
+        parent[escape] = z;
+        child[leaf] = 0;
+        child[escape] = 0;
+        symbol[leaf] = value;
+        slots += 2;
+        put(value, leaf);
+        leaves++;
+        escapes++;
+
+        /// The new node and leaf both weigh 1, the escape keeps the old block of weight 0
+        int zero = block[z];
+        if (z > 0 && weight(z - 1) == 1) {
+            block[z] = block[leaf] = block[z - 1];
+            blockFirst[zero] = escape;
+            block[escape] = zero;
+        } else {
+            blockWeight[zero] = 1;
+            block[z] = block[leaf] = zero;
+            block[escape] = newBlock(0, escape);
+        }
+        if (z > 0) increment(parent[z]);
+    }
+
+    /**
+     * Adds one to the weight of a slot and all its ancestors
+     */
+    private void increment(int q) {
+        while (true) {
+            int leader = blockFirst[block[q]];
+            if (leader == parent[q] && leader + 1 == q) {
+                /// Sibling of the escape right below its parent: the parent goes first, then q leads its weight
+                raise(leader);
+                raise(q);
+                q = leader;
+            } else {
+                if (leader == parent[q]) {
+                    /// Sibling of the escape, whose parent leads the weight: move q up next to the parent
+                    /// through another node of that weight, then swap the two
+                    swap(q, leader + 1);
+                    swap(leader, leader + 1);
+                } else if (leader != q) {
+                    swap(q, leader);
+                }
+                q = leader;
+                raise(q);
+            }
+            if (q == 0) return;
+            q = parent[q];
+        }
+    }
+
+    /**
+     * Moves the first slot of a block to the next weight, joining the block above when it has that weight
+     */
+    private void raise(int q) {
+        int b = block[q];
+        int w = blockWeight[b];
+        boolean alone = q + 1 == slots || block[q + 1] != b;
+        if (q > 0 && weight(q - 1) == w + 1) {
+            block[q] = block[q - 1];
+            if (alone) freeBlock(b);
+            else blockFirst[b] = q + 1;
+        } else if (alone) {
+            blockWeight[b] = w + 1;
+        } else {
+            block[q] = newBlock(w + 1, q);
+            blockFirst[b] = q + 1;
+        }
+    }
+
+    /**
+     * Exchanges the subtrees hanging at two slots of the same weight, the slots keep their parents
+     */
+    private void swap(int a, int b) {
+        int childA = child[a];
+        int symbolA = symbol[a];
+        child[a] = child[b];
+        symbol[a] = symbol[b];
+        child[b] = childA;
+        symbol[b] = symbolA;
+        attach(a);
+        attach(b);
+    }
+
+    private void attach(int slot) {
+        int first = child[slot];
+        if (first == 0) {
+            put(symbol[slot], slot);
+        } else {
+            parent[first] = slot;
+            parent[first + 1] = slot;
+        }
+    }
+
+    /**
+     * Halves every count, rounding up so no color drops out, and rebuilds the tree from them
+     */
+    private void rescale() {
+        rescales++;
+        /// Leaves sorted by halved weight, the escape has weight 0 and comes first
+        long[] order = new long[leaves + 1];
+        int count = 0;
+        for (int slot = 0; slot < slots; slot++) {
+            if (child[slot] == 0) order[count++] = (long) ((weight(slot) + 1) >>> 1) << 32 | slot;
+        }
+        Arrays.sort(order);
+
+        /// Two-queue merge: nodes are picked in non-decreasing weight, which reversed is the slot order
+        int nodes = 2 * count - 1;
+        int[] weights = new int[nodes];
+        int[] firstChild = new int[nodes];
+        int[] colors = new int[nodes];
+        int[] sequence = new int[nodes];
+        for (int i = 0; i < count; i++) {
+            weights[i] = (int) (order[i] >>> 32);
+            colors[i] = symbol[(int) order[i]];
+        }
+        int nextLeaf = 0;
+        int nextInner = count;
+        int picked = 0;
+        for (int created = count; created < nodes; created++) {
+            for (int k = 0; k < 2; k++) {
+                sequence[picked++] = nextLeaf < count && (nextInner == created || weights[nextLeaf] <= weights[nextInner])
+                        ? nextLeaf++ : nextInner++;
+            }
+            weights[created] = weights[sequence[picked - 2]] + weights[sequence[picked - 1]];
+            /// The heavier node of the pair was picked last and lands in the lower slot
+            firstChild[created] = nodes - picked;
+        }
+        sequence[picked] = nodes - 1;
+
+        blockCount = 0;
+        freeBlock = -1;
+        for (int slot = 0; slot < nodes; slot++) {
+            int node = sequence[nodes - 1 - slot];
+            if (node >= count) {
+                int first = firstChild[node];
+                child[slot] = first;
+                parent[first] = slot;
+                parent[first + 1] = slot;
+            } else {
+                child[slot] = 0;
+                symbol[slot] = colors[node];
+                /// The escape was picked first and is back in the last slot
+                if (slot != nodes - 1) put(colors[node], slot);
+            }
+            block[slot] = slot > 0 && weight(slot - 1) == weights[node] ? block[slot - 1] : newBlock(weights[node], slot);
+        }
+        parent[0] = -1;
+    }
+
+    private int newBlock(int weight, int first) {
+        int b;
+        if (freeBlock >= 0) {
+            b = freeBlock;
+            freeBlock = blockFirst[b];
+        } else {
+            if (blockCount == blockWeight.length) {
+                blockWeight = Arrays.copyOf(blockWeight, blockCount * 2);
+                blockFirst = Arrays.copyOf(blockFirst, blockCount * 2);
+            }
+            b = blockCount++;
+        }
+        blockWeight[b] = weight;
+        blockFirst[b] = first;
+        return b;
+    }
+
+    private void freeBlock(int b) {
+        blockFirst[b] = freeBlock;
+        freeBlock = b;
+    }
+
+    private void ensureSlots(int size) {
+        if (size <= parent.length) return;
+        int capacity = Math.max(size, parent.length * 2);
+        parent = Arrays.copyOf(parent, capacity);
+        child = Arrays.copyOf(child, capacity);
+        symbol = Arrays.copyOf(symbol, capacity);
+        block = Arrays.copyOf(block, capacity);
+    }
+
+    private int find(int key) {
+        int mask = keys.length - 1;
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            if (values[i] == 0) return -1;
+            if (keys[i] == key) return values[i] - 1;
+        }
+    }
+
+    private void put(int key, int slot) {
+        if ((leaves + 1) * 2 > keys.length) growMap();
+        int mask = keys.length - 1;
+        int i = hash(key) & mask;
+        while (values[i] != 0 && keys[i] != key) i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = slot + 1;
+    }
+
+    private void growMap() {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new int[oldKeys.length * 2];
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldValues[j] == 0) continue;
+            int i = hash(oldKeys[j]) & mask;
+            while (values[i] != 0) i = (i + 1) & mask;
+            keys[i] = oldKeys[j];
+            values[i] = oldValues[j];
+        }
+    }
+
+    private static int hash(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
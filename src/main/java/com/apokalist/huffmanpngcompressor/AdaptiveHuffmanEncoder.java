@@ -0,0 +1,155 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a container in a single pass with an {@link AdaptiveHuffmanCoder}, for streamed
+ * and very large images: no histogram, no tree up front, and nothing held but the code
+ * of the colors seen so far and one row of pixels.
+ *
+ * The header only needs the image size, so it goes out before the first pixel, and the
+ * payload leaves the {@link BitWriter} every time its buffer fills. The output lags the
+ * input by at most one buffer, however large the image is.
+ *
+ * The price is the ratio: early pixels are coded before their colors are common, and
+ * every new color costs an escape and its raw symbol instead of a header entry. Without
+ * a first pass the encoder also cannot know whether any pixel is transparent, so packed
+ * alpha always escapes 32 bit symbols; {@link AlphaMode#IGNORE} escapes 24 bits.
+ */
+public class AdaptiveHuffmanEncoder {
+    private final AlphaMode alphaMode;
+    private AdaptiveHuffmanCoder coder;
+    private CompressionMetrics metrics;
+    private int width;
+    private int height;
+    private long payloadBits;
+    private long containerSize;
+    private long originalSize;
+
+    public AdaptiveHuffmanEncoder() {
+        this(AlphaMode.PACKED);
+    }
+
+    /**
+     * @param alphaMode {@link AlphaMode#PACKED} or {@link AlphaMode#IGNORE}, a separate alpha code needs a histogram
+     */
+    public AdaptiveHuffmanEncoder(AlphaMode alphaMode) {
+        if (alphaMode == AlphaMode.SEPARATE)
+            throw new IllegalArgumentException("The adaptive code packs alpha or ignores it, it has no separate alpha code");
+        this.alphaMode = alphaMode;
+    }
+
+    /**
+     * Encodes the image into a file. The size is unknown until the end, so the file
+     * is written through a channel rather than a pre-sized mapping.
+     *
+     * @param source pixels to encode, read once
+     * @param file destination, replaced if it exists
+     * @return size of the container in bytes
+     * @throws IOException if reading or writing fails
+     */
+    public long encode(PixelSource source, Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            return encode(source, channel);
+        }
+    }
+
+    /**
+     * Encodes the image into a stream, the stream is left open
+     *
+     * @return size of the container in bytes
+     */
+    public long encode(PixelSource source, OutputStream out) throws IOException {
+        long bytes = encode(source, Channels.newChannel(out));
+        out.flush();
+        return bytes;
+    }
+
+    /**
+     * Encodes the image into a channel, the channel is left open
+     *
+     * @return size of the container in bytes
+     */
+    public long encode(PixelSource source, WritableByteChannel channel) throws IOException {
+        width = source.getWidth();
+        height = source.getHeight();
+        metrics = new CompressionMetrics();
+        coder = new AdaptiveHuffmanCoder(alphaMode == AlphaMode.PACKED ? 32 : 24);
+        CompressionMetrics.Timer timer = metrics.start("adaptive");
+
+        BitWriter writer = new BitWriter(channel);
+        HuffmanFormat.writeHeader(writer, new HuffmanFormat.Header(width, height, coder.getSymbolBits()));
+        long payloadStart = writer.getBitsWritten();
+        AdaptiveHuffmanCoder code = coder;
+        source.forEachRow((y, row) -> {
+            for (int pixel : row) code.encode(alphaMode.symbol(pixel), writer);
+        });
+        payloadBits = writer.getBitsWritten() - payloadStart;
+        writer.flush();
+
+        long pixels = (long) width * height;
+        timer.stop(pixels);
+        containerSize = (writer.getBitsWritten() + 7) >>> 3;
+        originalSize = pixels * source.getBitsPerPixel();
+        metrics.finish(pixels, coder.getColorCount(), coder.getMaxCodeLength(), payloadBits, containerSize);
+        return containerSize;
+    }
+
+    public AlphaMode getAlphaMode() {
+        return alphaMode;
+    }
+
+    /**
+     * @return the code as it ended, null before the first encode
+     */
+    public AdaptiveHuffmanCoder getCoder() {
+        return coder;
+    }
+
+    /**
+     * @return timings of the last encode, one "adaptive" stage for the single pass
+     */
+    public CompressionMetrics getMetrics() {
+        return metrics;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return payload size of the last encode, escapes and raw colors included
+     */
+    public long getPayloadBits() {
+        return payloadBits;
+    }
+
+    public long getContainerSize() {
+        return containerSize;
+    }
+
+    /**
+     * @return size of the image in the encoding it came from, in bits
+     */
+    public long getOriginalSize() {
+        return originalSize;
+    }
+
+    /**
+     * @return same definition as {@link Compressor#getCompressionRatio()}
+     */
+    public double getCompressionRatio() {
+        return originalSize == 0 ? 0 : 1.0 - (double) containerSize * 8 / originalSize;
+    }
+}
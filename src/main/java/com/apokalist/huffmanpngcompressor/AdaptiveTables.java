@@ -0,0 +1,189 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.util.Arrays;
+
+/**
+ * Shares a few code tables between the bands of an image.
+ *
+ * The band histograms are clustered k-means style with the code length cost as
+ * distance: every band goes to the table coding it in the fewest bits, then every
+ * table is rebuilt from the bands it got, until no band moves. Tables are added one
+ * at a time, seeded with the band losing the most bits against its own optimal code,
+ * for as long as the payload saved pays for the extra table in the header.
+ */
+public class AdaptiveTables {
+    /// Reassignment rounds per table count, clusters of band histograms settle quickly
+    private static final int MAX_ITERATIONS = 10;
+
+    private final CanonicalCode[] tables;
+    private final byte[] bandTables;
+    private final long payloadBits;
+    private final long headerBits;
+
+    private AdaptiveTables(CanonicalCode[] tables, byte[] bandTables, long payloadBits, long headerBits) {
+        this.tables = tables;
+        this.bandTables = bandTables;
+        this.payloadBits = payloadBits;
+        this.headerBits = headerBits;
+    }
+
+    /**
+     * Picks the tables and the table of every band.
+     * With one table left the result is the global code and is never worse than it.
+     *
+     * @param bands histogram of every band
+     * @param global code built over the whole image, the single table baseline
+     * @param maxTables most tables to use, at most {@link HuffmanFormat#MAX_TABLES}
+     * @param maxCodeLength longest allowed code of any table
+     * @return the cheapest combination found, header included
+     */
+    public static AdaptiveTables build(ColorHistogram[] bands, CanonicalCode global, int maxTables, int maxCodeLength) {
+        int n = bands.length;
+        CanonicalCode[] tables = {global};
+        byte[] assignment = new byte[n];
+        long[] cost = new long[n];
+        for (int b = 0; b < n; b++) cost[b] = cost(bands[b], global);
+        AdaptiveTables best = new AdaptiveTables(tables, assignment, sum(cost),
+                HuffmanFormat.headerBits(tables, n));
+
+        /// What every band would pay with a table of its own, the lower bound for the seeding
+        long[] ownCost = new long[n];
+        for (int b = 0; b < n; b++) ownCost[b] = cost(bands[b], buildCode(bands[b], maxCodeLength));
+
+        int limit = Math.min(Math.min(maxTables, HuffmanFormat.MAX_TABLES), n);
+        while (tables.length < limit) {
+            int seed = -1;
+            long worst = 0;
+            for (int b = 0; b < n; b++) {
+                if (cost[b] - ownCost[b] > worst) {
+                    worst = cost[b] - ownCost[b];
+                    seed = b;
+                }
+            }
+            if (seed < 0) break;
+
+            tables = Arrays.copyOf(tables, tables.length + 1);
+            tables[tables.length - 1] = buildCode(bands[seed], maxCodeLength);
+            assignment = best.bandTables.clone();
+            tables = cluster(bands, tables, assignment, cost, maxCodeLength);
+
+            AdaptiveTables candidate = new AdaptiveTables(tables, assignment, sum(cost),
+                    HuffmanFormat.headerBits(tables, n));
+            if (candidate.getTotalBits() >= best.getTotalBits()) break;
+            best = candidate;
+        }
+        return best;
+    }
+
+    /**
+     * Runs the assign and rebuild rounds, dropping tables that end up without bands
+     *
+     * @param assignment current table of every band, updated in place
+     * @param cost receives the cost of every band under its final table
+     * @return the final tables
+     */
+    private static CanonicalCode[] cluster(ColorHistogram[] bands, CanonicalCode[] tables, byte[] assignment,
+                                           long[] cost, int maxCodeLength) {
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            boolean moved = false;
+            for (int b = 0; b < bands.length; b++) {
+                int bestTable = assignment[b] & 0xFF;
+                long bestCost = cost(bands[b], tables[bestTable]);
+                for (int t = 0; t < tables.length; t++) {
+                    long c = cost(bands[b], tables[t]);
+                    if (c < bestCost) {
+                        bestCost = c;
+                        bestTable = t;
+                    }
+                }
+                moved |= bestTable != (assignment[b] & 0xFF);
+                assignment[b] = (byte) bestTable;
+                cost[b] = bestCost;
+            }
+            if (!moved && iteration > 0) break;
+
+            // Rebuild every used table from its bands, renumbering past the unused ones
+            ColorHistogram[] merged = new ColorHistogram[tables.length];
+            for (int b = 0; b < bands.length; b++) {
+                int t = assignment[b] & 0xFF;
+                if (merged[t] == null) merged[t] = new ColorHistogram();
+                merged[t].merge(bands[b]);
+            }
+            int[] renumber = new int[tables.length];
+            int used = 0;
+            for (int t = 0; t < tables.length; t++) {
+                if (merged[t] == null) continue;
+                renumber[t] = used;
+                tables[used++] = buildCode(merged[t], maxCodeLength);
+            }
+            tables = Arrays.copyOf(tables, used);
+            for (int b = 0; b < bands.length; b++) {
+                assignment[b] = (byte) renumber[assignment[b] & 0xFF];
+                cost[b] = cost(bands[b], tables[assignment[b] & 0xFF]);
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * @return bits the band needs with the table, Long.MAX_VALUE when a color has no code in it
+     */
+    static long cost(ColorHistogram band, CanonicalCode table) {
+        long[] bits = {0};
+        band.forEach((color, count) -> {
+            if (bits[0] == Long.MAX_VALUE) return;
+            int index = table.indexOf(color);
+            bits[0] = index < 0 ? Long.MAX_VALUE : bits[0] + (long) table.getLength(index) * count;
+        });
+        return bits[0];
+    }
+
+    private static CanonicalCode buildCode(ColorHistogram histogram, int maxCodeLength) {
+        int[] colors = histogram.colors();
+        int[] frequencies = histogram.counts();
+        int[] lengths = TwoQueueCodeBuilder.buildLengths(frequencies);
+        int longest = 0;
+        for (int length : lengths) longest = Math.max(longest, length);
+        if (longest > maxCodeLength) lengths = LengthLimitedCodeBuilder.buildLengths(frequencies, maxCodeLength);
+        return new CanonicalCode(colors, lengths);
+    }
+
+    private static long sum(long[] values) {
+        long total = 0;
+        for (long value : values) total += value;
+        return total;
+    }
+
+    public CanonicalCode[] getTables() {
+        return tables;
+    }
+
+    public int getTableCount() {
+        return tables.length;
+    }
+
+    /**
+     * @return table index of every band, one byte each
+     */
+    public byte[] getBandTables() {
+        return bandTables;
+    }
+
+    /**
+     * @return exact payload size with every band coded by its table
+     */
+    public long getPayloadBits() {
+        return payloadBits;
+    }
+
+    /**
+     * @return container header size with all tables and the band index
+     */
+    public long getHeaderBits() {
+        return headerBits;
+    }
+
+    public long getTotalBits() {
+        return headerBits + payloadBits;
+    }
+}
@@ -0,0 +1,57 @@
+package com.apokalist.huffmanpngcompressor;
+
+/**
+ * How the alpha channel of the pixels is coded.
+ *
+ * Packed symbols store the transparency, 255 - alpha, in the top byte, so an opaque
+ * color keeps its plain 24-bit value and an image without transparency codes exactly
+ * like {@link #IGNORE}: same histogram, same dense table, same container.
+ */
+public enum AlphaMode {
+    /** Alpha is dropped, every pixel decodes opaque. The original behavior */
+    IGNORE,
+    /** Color and alpha form one symbol, a color with its transparency gets one code */
+    PACKED,
+    /** Alpha gets its own code, written before the color code of every pixel */
+    SEPARATE;
+
+    /**
+     * @return mode the image histogram is counted with: {@link #SEPARATE} counts packed symbols
+     *         and splits them into colors and alpha values afterwards
+     */
+    public AlphaMode histogramMode() {
+        return this == SEPARATE ? PACKED : this;
+    }
+
+    /**
+     * @param argb pixel as packed ARGB
+     * @return the symbol counted and coded for the color of the pixel
+     */
+    public int symbol(int argb) {
+        return this == PACKED ? toSymbol(argb) : argb & 0xFFFFFF;
+    }
+
+    /**
+     * @param argb pixel as packed ARGB
+     * @return packed symbol, transparency in the top byte
+     */
+    public static int toSymbol(int argb) {
+        return argb ^ 0xFF000000;
+    }
+
+    /**
+     * @param symbol packed symbol or plain 0xRRGGBB color
+     * @return the pixel as packed ARGB, opaque for a plain color
+     */
+    public static int toArgb(int symbol) {
+        return symbol ^ 0xFF000000;
+    }
+
+    /**
+     * @param argb pixel as packed ARGB
+     * @return the alpha byte, the symbol of the separate alpha code
+     */
+    public static int alpha(int argb) {
+        return argb >>> 24;
+    }
+}
@@ -0,0 +1,304 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+/**
+ * Pipelined batch compressor: read, decode, histogram, tree, encode, write.
+ *
+ * The I/O stages (read, write) run on virtual threads, the CPU stages on a
+ * bounded pool of platform threads where at most {@code cpuThreads} of them
+ * compute at once. Stages are connected by bounded queues, so a slow stage
+ * blocks the one before it instead of letting decoded images pile up.
+ *
+ * With a {@link SegmentPool} the rasters, dense histogram tables and encoded containers
+ * live in native memory that is recycled from image to image, see {@link #setSegmentPool}.
+ */
+public class BatchPipeline {
+    private final CompressionOptions options;
+    private final int cpuThreads;
+    private final int ioThreads;
+    private final int queueCapacity;
+    private final Function<Path, Path> outputFor;
+    private SegmentPool segments;
+
+    private final List<StageMetrics> metrics = new ArrayList<>();
+
+    /**
+     * One image travelling through the pipeline, doubles as its result
+     */
+    public static class Job {
+        private final Path file;
+        private byte[] data;
+        private PixelSource image;
+        private ColorHistogram histogram;
+        private SegmentPool.Block raster;
+        private SegmentPool.Block table;
+        private SegmentPool.Block output;
+        private long encodedBytes;
+        private String cacheKey;
+        private CompressionCache.Entry cached;
+        private Compressor compressor;
+        private byte[] encoded;
+        private Throwable error;
+        private final long startNanos = System.nanoTime();
+        private long latencyNanos;
+
+        Job(Path file) {
+            this.file = file;
+        }
+
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * @return the compressor of the image, null if a stage failed
+         */
+        public Compressor getCompressor() {
+            return compressor;
+        }
+
+        /**
+         * @return what made a stage fail, null on success
+         */
+        public Throwable getError() {
+            return error;
+        }
+
+        /**
+         * @return time from entering the pipeline to leaving the write stage
+         */
+        public long getLatencyNanos() {
+            return latencyNanos;
+        }
+
+        long pixels() {
+            return image != null ? (long) image.getWidth() * image.getHeight() : 0;
+        }
+
+        /// Gives back the raster and the histogram table once nothing reads them anymore
+        private void releaseSource() {
+            if (raster != null) raster.close();
+            if (table != null) table.close();
+            raster = null;
+            table = null;
+        }
+
+        private void release() {
+            releaseSource();
+            if (output != null) output.close();
+            output = null;
+        }
+    }
+
+    @FunctionalInterface
+    private interface Step {
+        void process(Job job) throws Exception;
+    }
+
+    /**
+     * @param options compression settings applied to every image
+     * @param cpuThreads platform threads computing at the same time
+     * @param ioThreads virtual threads per I/O stage
+     * @param queueCapacity images allowed to wait in front of each stage
+     * @param outputFor maps an input file to its container, null only computes statistics
+     */
+    public BatchPipeline(CompressionOptions options, int cpuThreads, int ioThreads, int queueCapacity,
+                         Function<Path, Path> outputFor) {
+        if (cpuThreads < 1 || ioThreads < 1 || queueCapacity < 1)
+            throw new IllegalArgumentException("Thread counts and queue capacity must be positive");
+        this.options = options;
+        this.cpuThreads = cpuThreads;
+        this.ioThreads = ioThreads;
+        this.queueCapacity = queueCapacity;
+        this.outputFor = outputFor;
+    }
+
+    /**
+     * Takes rasters, dense histogram tables and encoded containers from the pool instead of the heap.
+     * A job gives its blocks back as it leaves the pipeline, so its compressor keeps the statistics
+     * in {@link Compressor#getMetrics()} but its source and histogram must not be read anymore.
+     * Histograms stay on the heap with a cache, which keeps them.
+     *
+     * @param segments pool shared by the stages, null for heap buffers
+     */
+    public void setSegmentPool(SegmentPool segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Pushes all files through the pipeline and waits for the last one
+     *
+     * @param files PNG files to compress
+     * @return one job per file, in input order
+     * @throws InterruptedException if the caller is interrupted while waiting
+     */
+    public List<Job> run(List<Path> files) throws InterruptedException {
+        metrics.clear();
+        List<Job> jobs = new ArrayList<>();
+        CountDownLatch finished = new CountDownLatch(files.size());
+
+        List<BlockingQueue<Job>> queues = new ArrayList<>();
+        for (int i = 0; i < 6; i++) queues.add(new ArrayBlockingQueue<>(queueCapacity));
+
+        ExecutorService io = Executors.newVirtualThreadPerTaskExecutor();
+        ExecutorService cpu = Executors.newFixedThreadPool(cpuThreads * 4);
+        Semaphore cpuPermits = new Semaphore(cpuThreads);
+        try {
+            startStage("read", queues.get(0), queues.get(1), io, ioThreads, null, job -> {
+                job.data = Files.readAllBytes(job.file);
+            }, finished);
+            startStage("decode", queues.get(1), queues.get(2), cpu, cpuThreads, cpuPermits, job -> {
+                PngStreamReader png = new PngStreamReader(job.data, job.file.getFileName().toString());
+                if (segments != null) {
+                    job.raster = segments.take(SegmentPool.Kind.RASTER, SegmentRaster.bytes(png));
+                    job.image = SegmentRaster.read(png, job.raster.segment());
+                } else {
+                    job.image = DecodedImage.readFully(png);
+                }
+                job.data = null;
+            }, finished);
+            startStage("histogram", queues.get(2), queues.get(3), cpu, cpuThreads, cpuPermits, job -> {
+                CompressionCache cache = options.getCache();
+                if (cache != null) {
+                    job.cacheKey = CompressionCache.key(ContentHash.of(job.image), options);
+                    job.cached = cache.get(job.cacheKey);
+                }
+                if (job.cached != null) {
+                    job.histogram = job.cached.histogram();
+                } else {
+                    if (segments != null && cache == null && job.pixels() >= ColorHistogram.DENSE_THRESHOLD) {
+                        job.table = segments.take(SegmentPool.Kind.HISTOGRAM, ColorHistogram.DENSE_BYTES);
+                        job.histogram = new ColorHistogram(job.table.segment());
+                    } else {
+                        job.histogram = new ColorHistogram(job.pixels());
+                    }
+                    new ImageAnalyzer(options.getAlphaMode().histogramMode()).analyzeColors(job.image, job.histogram);
+                }
+            }, finished);
+            startStage("tree", queues.get(3), queues.get(4), cpu, cpuThreads, cpuPermits, job -> {
+                job.compressor = new Compressor(job.image, job.histogram, job.cached, options);
+                if (job.cacheKey != null && job.cached == null) {
+                    options.getCache().put(job.cacheKey, new CompressionCache.Entry(job.histogram,
+                            job.compressor.getCanonicalCode(), job.compressor.getOptimalPayloadBits()));
+                }
+            }, finished);
+            startStage("encode", queues.get(4), queues.get(5), cpu, cpuThreads, cpuPermits, job -> {
+                if (segments != null) {
+                    job.output = segments.take(SegmentPool.Kind.OUTPUT, job.compressor.getContainerSize());
+                    job.encodedBytes = job.compressor.encode(job.output.segment());
+                } else {
+                    ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8,
+                            job.compressor.getContainerSize()));
+                    job.compressor.encode(out);
+                    job.encoded = out.toByteArray();
+                }
+                job.releaseSource();
+            }, finished);
+            startStage("write", queues.get(5), null, io, ioThreads, null, job -> {
+                if (outputFor != null && job.output != null) write(outputFor.apply(job.file), job.output.segment(job.encodedBytes));
+                else if (outputFor != null) Files.write(outputFor.apply(job.file), job.encoded);
+                job.encoded = null;
+            }, finished);
+
+            for (Path file : files) {
+                Job job = new Job(file);
+                jobs.add(job);
+                queues.get(0).put(job);
+                metrics.get(0).sampleQueueDepth();
+            }
+            finished.await();
+        } finally {
+            io.shutdownNow();
+            cpu.shutdownNow();
+        }
+        return jobs;
+    }
+
+    private void startStage(String name, BlockingQueue<Job> input, BlockingQueue<Job> output, ExecutorService executor,
+                            int workers, Semaphore permits, Step step, CountDownLatch finished) {
+        StageMetrics stageMetrics = new StageMetrics(name, input, workers);
+        metrics.add(stageMetrics);
+        for (int i = 0; i < workers; i++) {
+            executor.execute(() -> {
+                try {
+                    while (true) {
+                        long waitStart = System.nanoTime();
+                        Job job = input.take();
+                        stageMetrics.recordStarved(System.nanoTime() - waitStart);
+
+                        if (job.error == null) {
+                            if (permits != null) permits.acquire();
+                            long start = System.nanoTime();
+                            boolean success = true;
+                            try {
+                                step.process(job);
+                            } catch (Throwable e) {
+                                /// One bad image must not take a worker, and with it the whole pipeline, down;
+                                /// every job has to reach the end for run() to return
+                                job.error = e;
+                                success = false;
+                            } finally {
+                                if (permits != null) permits.release();
+                            }
+                            stageMetrics.recordWork(System.nanoTime() - start, job.pixels(), success);
+                        }
+
+                        if (output == null) {
+                            job.latencyNanos = System.nanoTime() - job.startNanos;
+                            // Drop the raster, only the statistics are kept in the result
+                            job.image = null;
+                            job.release();
+                            finished.countDown();
+                            continue;
+                        }
+                        long putStart = System.nanoTime();
+                        output.put(job);
+                        stageMetrics.recordBlocked(System.nanoTime() - putStart);
+                        metrics.get(metrics.indexOf(stageMetrics) + 1).sampleQueueDepth();
+                    }
+                } catch (InterruptedException e) {
+                    // Pipeline shut down
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes a container from native memory, a direct buffer goes to the file without a heap copy
+     */
+    private static void write(Path file, MemorySegment container) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (long offset = 0; offset < container.byteSize(); offset += Integer.MAX_VALUE) {
+                ByteBuffer buffer = container.asSlice(offset, Math.min(Integer.MAX_VALUE, container.byteSize() - offset))
+                        .asByteBuffer();
+                while (buffer.hasRemaining()) channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return metrics of every stage in pipeline order, live while {@link #run} is going
+     */
+    public List<StageMetrics> getStageMetrics() {
+        return Collections.unmodifiableList(metrics);
+    }
+}
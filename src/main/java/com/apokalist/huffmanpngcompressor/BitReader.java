@@ -0,0 +1,150 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * MSB-first bit reader keeping up to 64 bits in a left-aligned window.
+ * Decoders peek at the window to resolve a whole code at once and then skip its length.
+ */
+public class BitReader implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    protected ByteBuffer buffer;
+    private final ReadableByteChannel channel;
+
+    private long window;        // unread bits, left aligned
+    private int available;      // valid bits in the window
+    private int paddingBits;    // zero bits appended after the end of the input
+    private long bitsRead;
+
+    /**
+     * @param channel source of the bytes, closed together with the reader
+     */
+    public BitReader(ReadableByteChannel channel) {
+        this(channel, (ByteBuffer) ByteBuffer.allocate(BUFFER_SIZE).flip());
+    }
+
+    /**
+     * @param channel source of further bytes, may be null when the buffer holds everything
+     * @param buffer bytes ready to be read, between position and limit
+     */
+    protected BitReader(ReadableByteChannel channel, ByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the next bits without consuming them
+     *
+     * @param length number of bits, 1 to 32
+     * @return the bits right aligned
+     * @throws IOException if reading fails
+     */
+    public int peekBits(int length) throws IOException {
+        if (available < length) refill();
+        return (int) (window >>> (64 - length));
+    }
+
+    /**
+     * Consumes bits previously looked at with {@link #peekBits(int)}
+     *
+     * @param length number of bits to drop
+     * @throws IOException if the input ended before those bits
+     */
+    public void skipBits(int length) throws IOException {
+        if (available < length) refill();
+        if (available - paddingBits < length) throw new EOFException("Bitstream ended early");
+        window <<= length;
+        available -= length;
+        bitsRead += length;
+    }
+
+    public int readBits(int length) throws IOException {
+        if (length == 0) return 0;
+        int value = peekBits(length);
+        skipBits(length);
+        return value;
+    }
+
+    public int readBit() throws IOException {
+        return readBits(1);
+    }
+
+    public int readByte() throws IOException {
+        return readBits(8);
+    }
+
+    public int readInt() throws IOException {
+        return readBits(32);
+    }
+
+    public long readLong() throws IOException {
+        long high = readInt() & 0xFFFFFFFFL;
+        return high << 32 | (readInt() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Drops the bits up to the next byte boundary
+     *
+     * @throws IOException if reading fails
+     */
+    public void alignToByte() throws IOException {
+        skipBits((int) ((8 - (bitsRead & 7)) & 7));
+    }
+
+    public long getBitsRead() {
+        return bitsRead;
+    }
+
+    /**
+     * Tops the window up to at least 57 bits, padding with zeros past the end of input
+     */
+    private void refill() throws IOException {
+        if (buffer.remaining() >= Long.BYTES) {
+            /// Fast path: one big-endian word load instead of up to eight single bytes
+            int bytes = (64 - available) >>> 3;
+            long word = buffer.getLong(buffer.position());
+            window |= (word >>> (64 - 8 * bytes)) << (64 - available - 8 * bytes);
+            buffer.position(buffer.position() + bytes);
+            available += 8 * bytes;
+            return;
+        }
+        while (available <= 56) {
+            if (!buffer.hasRemaining() && !fill()) {
+                // Past the end: shift in zero bytes so peeks near the end still work
+                paddingBits += 8;
+                available += 8;
+                continue;
+            }
+            window |= (long) (buffer.get() & 0xFF) << (56 - available);
+            available += 8;
+        }
+    }
+
+    /**
+     * Loads more bytes into the buffer.
+     * Subclasses reading straight from memory override this to move to the next region.
+     *
+     * @return false when there is no more input
+     * @throws IOException if reading fails
+     */
+    protected boolean fill() throws IOException {
+        if (channel == null) return false;
+        buffer.clear();
+        int read;
+        do {
+            read = channel.read(buffer);
+        } while (read == 0);
+        buffer.flip();
+        return read > 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
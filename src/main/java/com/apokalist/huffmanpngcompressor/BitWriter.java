@@ -0,0 +1,150 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * MSB-first bit writer with a 64-bit accumulator.
+ * Codes are shifted into the accumulator and only full 64-bit words are
+ * stored into the byte buffer, which is drained into the channel when full.
+ */
+public class BitWriter implements Closeable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    protected ByteBuffer buffer;
+    private final WritableByteChannel channel;
+
+    private long accumulator;   // pending bits, left aligned
+    private int pendingBits;
+    private long bitsWritten;
+
+    /**
+     * @param channel destination of the bytes, closed together with the writer
+     */
+    public BitWriter(WritableByteChannel channel) {
+        this(channel, ByteBuffer.allocate(BUFFER_SIZE));
+    }
+
+    protected BitWriter(WritableByteChannel channel, ByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Writes the lowest bits of a code, most significant bit first
+     *
+     * @param code the code bits
+     * @param length number of bits to write, 0 to 32
+     * @throws IOException if draining the buffer fails
+     */
+    public void writeBits(int code, int length) throws IOException {
+        if (length == 0) return;
+        long value = code & (0xFFFFFFFFL >>> (32 - length));
+        int free = 64 - pendingBits;
+        bitsWritten += length;
+        if (length < free) {
+            accumulator |= value << (free - length);
+            pendingBits += length;
+            return;
+        }
+        int spill = length - free;
+        accumulator |= value >>> spill;
+        putWord(accumulator);
+        accumulator = spill == 0 ? 0 : value << (64 - spill);
+        pendingBits = spill;
+    }
+
+    /**
+     * Appends the bitstream of another writer, bits do not have to start on a byte boundary here
+     *
+     * @param data bytes holding the bits, most significant bit first
+     * @param bits number of valid bits at the start of data
+     * @throws IOException if draining the buffer fails
+     */
+    public void writeBits(byte[] data, long bits) throws IOException {
+        int words = (int) (bits >>> 5);
+        for (int i = 0, offset = 0; i < words; i++, offset += 4) {
+            writeBits((data[offset] & 0xFF) << 24 | (data[offset + 1] & 0xFF) << 16
+                    | (data[offset + 2] & 0xFF) << 8 | (data[offset + 3] & 0xFF), 32);
+        }
+        int rest = (int) (bits & 31);
+        if (rest == 0) return;
+        int last = 0;
+        for (int i = 0, offset = words << 2; i < 4; i++, offset++) {
+            last = last << 8 | (offset < data.length ? data[offset] & 0xFF : 0);
+        }
+        writeBits(last >>> (32 - rest), rest);
+    }
+
+    public void writeByte(int value) throws IOException {
+        writeBits(value, 8);
+    }
+
+    public void writeInt(int value) throws IOException {
+        writeBits(value, 32);
+    }
+
+    public void writeLong(long value) throws IOException {
+        writeBits((int) (value >>> 32), 32);
+        writeBits((int) value, 32);
+    }
+
+    /**
+     * Pads with zero bits up to the next byte boundary
+     *
+     * @throws IOException if draining the buffer fails
+     */
+    public void alignToByte() throws IOException {
+        int padding = (8 - (pendingBits & 7)) & 7;
+        writeBits(0, padding);
+    }
+
+    /**
+     * @return number of bits written so far, padding included
+     */
+    public long getBitsWritten() {
+        return bitsWritten;
+    }
+
+    /**
+     * Writes out the pending bits, padded to a whole byte, and drains the buffer
+     *
+     * @throws IOException if writing fails
+     */
+    public void flush() throws IOException {
+        alignToByte();
+        int bytes = pendingBits >>> 3;
+        for (int i = 0; i < bytes; i++) {
+            if (!buffer.hasRemaining()) drain();
+            buffer.put((byte) (accumulator >>> (56 - 8 * i)));
+        }
+        accumulator = 0;
+        pendingBits = 0;
+        drain();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private void putWord(long word) throws IOException {
+        if (buffer.remaining() < Long.BYTES) drain();
+        buffer.putLong(word);
+    }
+
+    /**
+     * Empties the buffer so more words fit.
+     * Subclasses writing straight into memory override this to move to the next region.
+     *
+     * @throws IOException if writing fails
+     */
+    protected void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+}
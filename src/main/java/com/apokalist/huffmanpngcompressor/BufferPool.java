@@ -0,0 +1,144 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Keeps the large buffers of finished requests for the next ones: upload bytes, pixel
+ * rasters and color histograms. A server compressing image after image would otherwise
+ * allocate a raster and, for large images, a 64MB dense histogram per request.
+ *
+ * A buffer is handed out when it is at least as large as asked for, so the pool drifts
+ * towards the largest images it sees. Each kind keeps at most {@code capacity} idle
+ * buffers, when a returned one does not fit the smallest idle one is dropped instead.
+ */
+public class BufferPool {
+    private final int capacity;
+    private final ArrayDeque<byte[]> bytes = new ArrayDeque<>();
+    private final ArrayDeque<int[]> rasters = new ArrayDeque<>();
+    private final ArrayDeque<ColorHistogram> sparseHistograms = new ArrayDeque<>();
+    private final ArrayDeque<ColorHistogram> denseHistograms = new ArrayDeque<>();
+
+    private long reused;
+    private long allocated;
+
+    /**
+     * @param capacity idle buffers kept per kind, about the number of requests expected in flight
+     */
+    public BufferPool(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Negative capacity: " + capacity);
+        this.capacity = capacity;
+    }
+
+    /**
+     * @param size bytes needed
+     * @return a buffer of at least {@code size} bytes, with leftovers of an earlier request
+     */
+    public byte[] takeBytes(int size) {
+        synchronized (this) {
+            for (Iterator<byte[]> it = bytes.iterator(); it.hasNext(); ) {
+                byte[] buffer = it.next();
+                if (buffer.length >= size) {
+                    it.remove();
+                    reused++;
+                    return buffer;
+                }
+            }
+            allocated++;
+        }
+        return new byte[size];
+    }
+
+    public synchronized void give(byte[] buffer) {
+        if (bytes.size() == capacity) {
+            byte[] smallest = null;
+            for (byte[] idle : bytes) if (smallest == null || idle.length < smallest.length) smallest = idle;
+            if (smallest == null || smallest.length >= buffer.length) return;
+            bytes.remove(smallest);
+        }
+        bytes.push(buffer);
+    }
+
+    /**
+     * @param size pixels needed
+     * @return a raster of at least {@code size} pixels, with leftovers of an earlier request
+     */
+    public int[] takeRaster(int size) {
+        synchronized (this) {
+            for (Iterator<int[]> it = rasters.iterator(); it.hasNext(); ) {
+                int[] raster = it.next();
+                if (raster.length >= size) {
+                    it.remove();
+                    reused++;
+                    return raster;
+                }
+            }
+            allocated++;
+        }
+        return new int[size];
+    }
+
+    public synchronized void give(int[] raster) {
+        if (rasters.size() == capacity) {
+            int[] smallest = null;
+            for (int[] idle : rasters) if (smallest == null || idle.length < smallest.length) smallest = idle;
+            if (smallest == null || smallest.length >= raster.length) return;
+            rasters.remove(smallest);
+        }
+        rasters.push(raster);
+    }
+
+    /**
+     * @param expectedPixels pixels that will be counted, decides between a sparse and a dense histogram
+     * @return an empty histogram, see {@link ColorHistogram#ColorHistogram(long)}
+     */
+    public ColorHistogram takeHistogram(long expectedPixels) {
+        boolean dense = expectedPixels >= ColorHistogram.DENSE_THRESHOLD;
+        synchronized (this) {
+            ColorHistogram histogram = (dense ? denseHistograms : sparseHistograms).poll();
+            if (histogram != null) {
+                reused++;
+                return histogram;
+            }
+            allocated++;
+        }
+        return new ColorHistogram(expectedPixels);
+    }
+
+    /**
+     * Clears the histogram and keeps it for the next request, call once nothing reads it anymore
+     */
+    public void give(ColorHistogram histogram) {
+        /// Clearing 64MB is slow enough to keep it out of the lock
+        histogram.clear();
+        synchronized (this) {
+            ArrayDeque<ColorHistogram> idle = histogram.isDense() ? denseHistograms : sparseHistograms;
+            if (idle.size() < capacity) idle.push(histogram);
+        }
+    }
+
+    /**
+     * @return how many takes were served by an idle buffer
+     */
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    /**
+     * @return how many takes had to allocate
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * @return bytes held by idle buffers
+     */
+    public synchronized long getIdleBytes() {
+        long total = 0;
+        for (byte[] buffer : bytes) total += buffer.length;
+        for (int[] raster : rasters) total += 4L * raster.length;
+        total += 4L * ColorHistogram.DENSE_SIZE * denseHistograms.size();
+        return total;
+    }
+}
@@ -0,0 +1,170 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.util.Arrays;
+
+/**
+ * Canonical Huffman code over packed colors.
+ * Only the code length of every color is needed to rebuild it: symbols are
+ * ordered by (length, color) and receive consecutive codes, so the container
+ * header stores the number of codes per length followed by the colors.
+ */
+public class CanonicalCode {
+    /// Codes are kept in ints, longer codes must be avoided when building the lengths
+    public static final int MAX_LENGTH = 32;
+
+    private final int[] symbols;        // colors in canonical order
+    private final int[] lengths;        // code length per canonical index
+    private final int[] codes;          // code bits per canonical index, right aligned
+    private final int[] lengthCounts;   // number of codes per length, index 0 unused
+    private final int maxLength;
+
+    private final int[] lookup;         // color at 2*slot, canonical index + 1 at 2*slot+1
+    private final int lookupMask;
+
+    /**
+     * Builds the code from the length of every color.
+     *
+     * @param colors packed colors, any order
+     * @param codeLengths code length of each color, 1 to {@link #MAX_LENGTH}
+     */
+    public CanonicalCode(int[] colors, int[] codeLengths) {
+        this(sortCanonical(colors, codeLengths));
+    }
+
+    private CanonicalCode(long[] sorted) {
+        int n = sorted.length;
+        symbols = new int[n];
+        lengths = new int[n];
+        int longest = 0;
+        for (int i = 0; i < n; i++) {
+            lengths[i] = (int) (sorted[i] >>> 32);
+            symbols[i] = (int) sorted[i];
+            longest = Math.max(longest, lengths[i]);
+        }
+        maxLength = longest;
+        lengthCounts = new int[maxLength + 1];
+        for (int length : lengths) lengthCounts[length]++;
+
+        codes = new int[n];
+        long code = 0;
+        int index = 0;
+        for (int length = 1; length <= maxLength; length++) {
+            for (int i = 0; i < lengthCounts[length]; i++) codes[index++] = (int) code++;
+            if (code > 1L << length)
+                throw new IllegalArgumentException("Code lengths over-subscribe length " + length);
+            code <<= 1;
+        }
+
+        int capacity = Integer.highestOneBit(Math.max(1, n)) << 2;
+        lookup = new int[capacity << 1];
+        lookupMask = capacity - 1;
+        for (int i = 0; i < n; i++) {
+            int slot = mix(symbols[i]) & lookupMask;
+            while (lookup[(slot << 1) + 1] != 0) slot = (slot + 1) & lookupMask;
+            lookup[slot << 1] = symbols[i];
+            lookup[(slot << 1) + 1] = i + 1;
+        }
+    }
+
+    /**
+     * Rebuilds a code from what the container header stores
+     *
+     * @param lengthCounts number of codes of each length, index 0 unused
+     * @param canonicalSymbols colors already in canonical order
+     * @return the code
+     */
+    public static CanonicalCode fromLengthCounts(int[] lengthCounts, int[] canonicalSymbols) {
+        long[] sorted = new long[canonicalSymbols.length];
+        int index = 0;
+        for (int length = 1; length < lengthCounts.length; length++) {
+            for (int i = 0; i < lengthCounts[length]; i++, index++) {
+                sorted[index] = (long) length << 32 | (canonicalSymbols[index] & 0xFFFFFFFFL);
+            }
+        }
+        if (index != canonicalSymbols.length)
+            throw new IllegalArgumentException("Length counts do not match the symbol count");
+        return new CanonicalCode(sorted);
+    }
+
+    private static long[] sortCanonical(int[] colors, int[] codeLengths) {
+        if (colors.length != codeLengths.length)
+            throw new IllegalArgumentException("One code length per color expected");
+        long[] sorted = new long[colors.length];
+        for (int i = 0; i < colors.length; i++) {
+            if (codeLengths[i] < 1 || codeLengths[i] > MAX_LENGTH)
+                throw new IllegalArgumentException("Code length " + codeLengths[i] + " outside 1.." + MAX_LENGTH);
+            sorted[i] = (long) codeLengths[i] << 32 | (colors[i] & 0xFFFFFFFFL);
+        }
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    /**
+     * @param color packed color
+     * @return canonical index of the color, -1 if it has no code
+     */
+    public int indexOf(int color) {
+        int slot = mix(color) & lookupMask;
+        int value;
+        while ((value = lookup[(slot << 1) + 1]) != 0) {
+            if (lookup[slot << 1] == color) return value - 1;
+            slot = (slot + 1) & lookupMask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param histogram frequencies of the coded colors
+     * @return exact number of payload bits needed to code the histogram
+     */
+    public long encodedBits(ColorHistogram histogram) {
+        long[] bits = {0};
+        histogram.forEach((color, count) -> bits[0] += (long) lengths[indexOf(color)] * count);
+        return bits[0];
+    }
+
+    /**
+     * @param color packed color
+     * @return the code as a string of 0 and 1, for display only
+     */
+    public String codeString(int color) {
+        int index = indexOf(color);
+        if (index < 0) return null;
+        StringBuilder sb = new StringBuilder(lengths[index]);
+        for (int bit = lengths[index] - 1; bit >= 0; bit--) sb.append((codes[index] >>> bit) & 1);
+        return sb.toString();
+    }
+
+    public int size() {
+        return symbols.length;
+    }
+
+    public int getSymbol(int index) {
+        return symbols[index];
+    }
+
+    public int getCode(int index) {
+        return codes[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+    /**
+     * @param length code length
+     * @return number of symbols coded with that many bits
+     */
+    public int getLengthCount(int length) {
+        return length < lengthCounts.length ? lengthCounts[length] : 0;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,330 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+/**
+ * Primitive color histogram keyed by packed RGB ints.
+ * Small images count into an open-addressing int -> int table, large ones
+ * into a dense 16M-entry table indexed directly by the color, a heap array
+ * or native memory the caller provides.
+ * Symbols above 24 bits, the transparent colors of {@link AlphaMode#PACKED},
+ * always go to the open-addressing table, next to the dense one if there is one.
+ * Hex strings are only produced on demand for display via {@link #toHex(int)}.
+ */
+public class ColorHistogram {
+    /// Number of distinct 24-bit RGB values, size of the dense table
+    static final int DENSE_SIZE = 1 << 24;
+
+    /// Bytes of the dense table, for callers providing their own
+    public static final long DENSE_BYTES = (long) DENSE_SIZE * Integer.BYTES;
+
+    private static final ValueLayout.OfInt COUNT = ValueLayout.JAVA_INT;
+
+    /// Above this many pixels the 64MB dense table is cheaper than hashing
+    static final long DENSE_THRESHOLD = 1L << 22;
+
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    /// Largest table reserved up front, bigger ones are reached by growing
+    private static final int MAX_INITIAL_CAPACITY = 1 << 16;
+
+    /// Dense mode on the heap: count per RGB value, null otherwise
+    private int[] dense;
+
+    /// Dense mode in memory the caller owns, null otherwise
+    private MemorySegment denseSegment;
+
+    /// Color at 2*slot, count at 2*slot+1, count 0 marks an empty slot; in dense mode symbols above 24 bits only
+    private int[] table;
+
+    private int mask;
+
+    private int size;
+    private long totalCount;
+
+    /**
+     * Callback used to walk the histogram without boxing
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(int color, int count);
+    }
+
+    /**
+     * Creates an empty sparse histogram
+     */
+    public ColorHistogram() {
+        this(0);
+    }
+
+    /**
+     * Creates an empty histogram sized for the given amount of pixels.
+     * Switches to the dense table when the image is large enough.
+     *
+     * @param expectedPixels number of pixels that will be counted
+     */
+    public ColorHistogram(long expectedPixels) {
+        int capacity = INITIAL_CAPACITY;
+        if (expectedPixels >= DENSE_THRESHOLD) {
+            dense = new int[DENSE_SIZE];
+        } else {
+            while (capacity < MAX_INITIAL_CAPACITY && capacity < expectedPixels) capacity <<= 1;
+        }
+        table = new int[capacity << 1];
+        mask = capacity - 1;
+    }
+
+    /**
+     * Creates an empty dense histogram counting into a table the caller owns, so pools can keep
+     * the 64MB outside the heap and reuse it, see {@link SegmentPool}. The histogram must not be
+     * used after the memory of the table is freed.
+     *
+     * @param denseTable zeroed table of at least {@link #DENSE_BYTES}, int aligned
+     */
+    public ColorHistogram(MemorySegment denseTable) {
+        if (denseTable.byteSize() < DENSE_BYTES)
+            throw new IllegalArgumentException("Dense table of " + denseTable.byteSize() + " bytes, needs " + DENSE_BYTES);
+        denseSegment = denseTable.asSlice(0, DENSE_BYTES);
+        table = new int[INITIAL_CAPACITY << 1];
+        mask = INITIAL_CAPACITY - 1;
+    }
+
+    /**
+     * Counts one occurrence of the color
+     *
+     * @param color packed 0xRRGGBB color
+     */
+    public void add(int color) {
+        add(color, 1);
+    }
+
+    /**
+     * Counts several occurrences of the color
+     *
+     * @param color packed 0xRRGGBB color
+     * @param count number of occurrences, must be positive
+     */
+    public void add(int color, int count) {
+        totalCount += count;
+        if (color >>> 24 == 0) {
+            int[] dense = this.dense;
+            if (dense != null) {
+                if (dense[color] == 0) size++;
+                dense[color] += count;
+                return;
+            }
+            MemorySegment denseSegment = this.denseSegment;
+            if (denseSegment != null) {
+                int old = denseSegment.getAtIndex(COUNT, color);
+                if (old == 0) size++;
+                denseSegment.setAtIndex(COUNT, color, old + count);
+                return;
+            }
+        }
+        int[] table = this.table;
+        int slot = mix(color) & mask;
+        while (table[(slot << 1) + 1] != 0) {
+            if (table[slot << 1] == color) {
+                table[(slot << 1) + 1] += count;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        table[slot << 1] = color;
+        table[(slot << 1) + 1] = count;
+        if (++size > (mask + 1) >> 1) grow();
+    }
+
+    /**
+     * Adds every count of the other histogram into this one
+     *
+     * @param other histogram to merge, left unchanged
+     */
+    public void merge(ColorHistogram other) {
+        if (!isDense()) {
+            /// Pre-size for the worst case so the table is rehashed at most once
+            long needed = (long) size + other.size;
+            int capacity = mask + 1;
+            while (needed > capacity >> 1 && capacity < (1 << 29)) capacity <<= 1;
+            if (capacity > mask + 1) grow(capacity);
+        }
+        other.forEach(this::add);
+    }
+
+    /**
+     * Creates a dense histogram holding the same counts.
+     * Used when merged partial histograms get large enough for the dense table.
+     *
+     * @return a dense copy, or this histogram when it is already dense
+     */
+    public ColorHistogram toDense() {
+        if (isDense()) return this;
+        ColorHistogram result = new ColorHistogram(DENSE_THRESHOLD);
+        result.merge(this);
+        return result;
+    }
+
+    /**
+     * @param color packed 0xRRGGBB color
+     * @return how many times the color was counted, 0 if never
+     */
+    public int get(int color) {
+        if (color >>> 24 == 0) {
+            if (dense != null) return dense[color];
+            if (denseSegment != null) return denseSegment.getAtIndex(COUNT, color);
+        }
+        int slot = mix(color) & mask;
+        while (table[(slot << 1) + 1] != 0) {
+            if (table[slot << 1] == color) return table[(slot << 1) + 1];
+            slot = (slot + 1) & mask;
+        }
+        return 0;
+    }
+
+    /**
+     * Walks every (color, count) pair in unspecified order
+     *
+     * @param consumer receives each entry
+     */
+    public void forEach(EntryConsumer consumer) {
+        if (dense != null) {
+            int[] dense = this.dense;
+            for (int color = 0; color < DENSE_SIZE; color++) {
+                if (dense[color] != 0) consumer.accept(color, dense[color]);
+            }
+        } else if (denseSegment != null) {
+            MemorySegment denseSegment = this.denseSegment;
+            for (int color = 0; color < DENSE_SIZE; color++) {
+                int count = denseSegment.getAtIndex(COUNT, color);
+                if (count != 0) consumer.accept(color, count);
+            }
+        }
+        for (int i = 0; i < table.length; i += 2) {
+            if (table[i + 1] != 0) consumer.accept(table[i], table[i + 1]);
+        }
+    }
+
+    /**
+     * Returns the most frequent colors, most frequent first.
+     * Selection is O(n * limit) so it is meant for small limits like the UI top list.
+     *
+     * @param limit maximum number of colors to return
+     * @return colors sorted by descending count
+     */
+    public int[] topColors(int limit) {
+        int n = Math.min(limit, size);
+        int[] top = new int[n];
+        int[] topCounts = new int[n];
+        int[] filled = {0};
+        forEach((color, count) -> {
+            int i = filled[0];
+            if (i == n && (n == 0 || count <= topCounts[n - 1])) return;
+            if (i < n) filled[0]++;
+            else i = n - 1;
+            while (i > 0 && topCounts[i - 1] < count) {
+                top[i] = top[i - 1];
+                topCounts[i] = topCounts[i - 1];
+                i--;
+            }
+            top[i] = color;
+            topCounts[i] = count;
+        });
+        return top;
+    }
+
+    /**
+     * @return all colors present, in the same order as {@link #counts()}
+     */
+    public int[] colors() {
+        int[] result = new int[size];
+        int[] i = {0};
+        forEach((color, count) -> result[i[0]++] = color);
+        return result;
+    }
+
+    /**
+     * @return all counts, in the same order as {@link #colors()}
+     */
+    public int[] counts() {
+        int[] result = new int[size];
+        int[] i = {0};
+        forEach((color, count) -> result[i[0]++] = count);
+        return result;
+    }
+
+    /**
+     * @return number of distinct colors
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return number of counted pixels
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    public boolean isDense() {
+        return dense != null || denseSegment != null;
+    }
+
+    /**
+     * Forgets every count but keeps the tables, so a pooled histogram can count
+     * the next image without allocating its 64MB dense table again
+     */
+    public void clear() {
+        if (dense != null) Arrays.fill(dense, 0);
+        if (denseSegment != null) denseSegment.fill((byte) 0);
+        Arrays.fill(table, 0);
+        size = 0;
+        totalCount = 0;
+    }
+
+    /**
+     * Formats a symbol the same way the UI always showed it, opaque colors as #RRGGBB
+     * and transparent {@link AlphaMode#PACKED} symbols as #AARRGGBB
+     *
+     * @param color packed 0xRRGGBB color or alpha packed symbol
+     * @return color as #RRGGBB or #AARRGGBB
+     */
+    public static String toHex(int color) {
+        if (color >>> 24 == 0) return String.format("#%06X", color);
+        return String.format("#%08X", AlphaMode.toArgb(color));
+    }
+
+    private void grow() {
+        grow((mask + 1) << 1);
+    }
+
+    /**
+     * @param capacity new slot count, a power of two larger than the current one
+     */
+    private void grow(int capacity) {
+        int[] old = table;
+        table = new int[capacity << 1];
+        mask = capacity - 1;
+        for (int i = 0; i < old.length; i += 2) {
+            if (old[i + 1] == 0) continue;
+            int slot = mix(old[i]) & mask;
+            while (table[(slot << 1) + 1] != 0) slot = (slot + 1) & mask;
+            table[slot << 1] = old[i];
+            table[(slot << 1) + 1] = old[i + 1];
+        }
+    }
+
+    /// Fibonacci hashing spreads neighbouring colors over the table
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    @Override
+    public String toString() {
+        return "ColorHistogram{colors=" + size + ", pixels=" + totalCount
+                + (isDense() ? ", dense" : ", capacity=" + (mask + 1)) + "}";
+    }
+}
@@ -0,0 +1,306 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.util.Arrays;
+import java.util.PriorityQueue;
+
+/**
+ * Median cut palette for the near-lossless mode.
+ *
+ * Works on the packed histogram only: the colors are cut into boxes, the box with the
+ * most pixels times its longest channel range is split at the weighted median of that
+ * channel, until there are as many boxes as palette entries. Every entry is the pixel
+ * weighted mean of its box. Packed symbols with transparency are cut on the transparency
+ * byte as a fourth channel, so the palette bounds the coded symbols in every alpha mode.
+ */
+public class ColorQuantizer {
+    /// Shifts of red, green, blue and the transparency byte of a packed symbol
+    private static final int[] SHIFTS = {16, 8, 0, 24};
+
+    private final int[] palette;
+    private final int channels;        // 3, or 4 when the symbols carry transparency
+    private final int inverseBits;     // bits per channel of the candidate table cells
+    private final int[] lookupKeys;    // open addressing: symbol of the histogram
+    private final int[] lookupValues;  // palette index of the symbol, -1 for an empty slot
+    private final int lookupMask;
+    private final int[][] inverse;     // palette entries that can be nearest per cell, null until first used
+
+    /**
+     * One box of colors, a range of the sorted color arrays
+     */
+    private static class Box {
+        final int from;
+        final int to;
+        final long pixels;
+        final int channel;  // shift of the longest channel
+        final int range;
+
+        Box(int[] colors, int[] counts, int from, int to, int channels) {
+            this.from = from;
+            this.to = to;
+            long pixels = 0;
+            int[] min = {255, 255, 255, 255};
+            int[] max = new int[channels];
+            for (int i = from; i < to; i++) {
+                pixels += counts[i];
+                for (int c = 0; c < channels; c++) {
+                    int value = (colors[i] >>> SHIFTS[c]) & 0xFF;
+                    min[c] = Math.min(min[c], value);
+                    max[c] = Math.max(max[c], value);
+                }
+            }
+            int longest = 0;
+            for (int c = 1; c < channels; c++) if (max[c] - min[c] > max[longest] - min[longest]) longest = c;
+            this.pixels = pixels;
+            this.channel = SHIFTS[longest];
+            this.range = max[longest] - min[longest];
+        }
+
+        long score() {
+            return to - from < 2 ? -1 : pixels * range;
+        }
+    }
+
+    private ColorQuantizer(int[] palette, int channels, int[] colors, int[] entries) {
+        this.palette = palette;
+        this.channels = channels;
+        /// 5-5-5 cells for colors, 4-4-4-4 with transparency keeps the table at 64K cells
+        inverseBits = channels == 3 ? 5 : 4;
+        int capacity = Integer.highestOneBit(Math.max(1, colors.length) * 2) << 1;
+        lookupKeys = new int[capacity];
+        lookupValues = new int[capacity];
+        lookupMask = capacity - 1;
+        Arrays.fill(lookupValues, -1);
+        for (int i = 0; i < colors.length; i++) {
+            int slot = mix(colors[i]) & lookupMask;
+            while (lookupValues[slot] != -1) slot = (slot + 1) & lookupMask;
+            lookupKeys[slot] = colors[i];
+            lookupValues[slot] = entries[i];
+        }
+        inverse = new int[1 << (channels * inverseBits)][];
+    }
+
+    /**
+     * Builds a palette of at most {@code maxColors} entries
+     *
+     * @param histogram counted symbols, plain colors or packed symbols as in {@link AlphaMode#histogramMode()}
+     * @param maxColors palette size to reach
+     * @return the quantizer, mapping every symbol of the histogram to its box
+     */
+    public static ColorQuantizer medianCut(ColorHistogram histogram, int maxColors) {
+        if (maxColors < 1) throw new IllegalArgumentException("Palette needs at least one color: " + maxColors);
+        int[] colors = histogram.colors();
+        int[] counts = histogram.counts();
+        int channels = 3;
+        for (int color : colors) {
+            if (color >>> 24 != 0) {
+                channels = 4;
+                break;
+            }
+        }
+
+        PriorityQueue<Box> boxes = new PriorityQueue<>((a, b) -> Long.compare(b.score(), a.score()));
+        if (colors.length > 0) boxes.add(new Box(colors, counts, 0, colors.length, channels));
+        while (boxes.size() < maxColors && !boxes.isEmpty() && boxes.peek().score() > 0) {
+            Box box = boxes.poll();
+            int split = split(colors, counts, box);
+            boxes.add(new Box(colors, counts, box.from, split, channels));
+            boxes.add(new Box(colors, counts, split, box.to, channels));
+        }
+
+        int[] palette = new int[boxes.size()];
+        int[] entries = new int[colors.length];
+        int index = 0;
+        long[] sums = new long[channels];
+        for (Box box : boxes) {
+            Arrays.fill(sums, 0);
+            for (int i = box.from; i < box.to; i++) {
+                for (int c = 0; c < channels; c++) sums[c] += (long) ((colors[i] >>> SHIFTS[c]) & 0xFF) * counts[i];
+                entries[i] = index;
+            }
+            long half = box.pixels / 2;
+            int entry = 0;
+            for (int c = 0; c < channels; c++) entry |= (int) ((sums[c] + half) / box.pixels) << SHIFTS[c];
+            palette[index++] = entry;
+        }
+        return new ColorQuantizer(palette, channels, colors, entries);
+    }
+
+    /**
+     * Sorts the box by its longest channel and finds the weighted median
+     *
+     * @return first index of the upper half, strictly inside the box
+     */
+    private static int split(int[] colors, int[] counts, Box box) {
+        int n = box.to - box.from;
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = (long) ((colors[box.from + i] >>> box.channel) & 0xFF) << 32 | i;
+        }
+        Arrays.sort(keys);
+        int[] sortedColors = new int[n];
+        int[] sortedCounts = new int[n];
+        for (int i = 0; i < n; i++) {
+            int source = box.from + (int) keys[i];
+            sortedColors[i] = colors[source];
+            sortedCounts[i] = counts[source];
+        }
+        System.arraycopy(sortedColors, 0, colors, box.from, n);
+        System.arraycopy(sortedCounts, 0, counts, box.from, n);
+
+        long seen = 0;
+        for (int i = 0; i < n - 1; i++) {
+            seen += sortedCounts[i];
+            if (seen * 2 >= box.pixels) return box.from + i + 1;
+        }
+        return box.to - 1;
+    }
+
+    /**
+     * @param symbol symbol the palette was built from, only the RGB part without transparency
+     * @return the palette symbol of its box, or the nearest entry for a symbol the histogram did not have
+     */
+    public int map(int symbol) {
+        if (channels == 3) symbol &= 0xFFFFFF;
+        int slot = mix(symbol) & lookupMask;
+        while (lookupValues[slot] != -1) {
+            if (lookupKeys[slot] == symbol) return palette[lookupValues[slot]];
+            slot = (slot + 1) & lookupMask;
+        }
+        return nearest(symbol);
+    }
+
+    /**
+     * Nearest palette symbol by squared distance.
+     * Every 5-5-5 cell (4-4-4-4 with transparency) keeps the few entries that can be nearest
+     * to any symbol inside it, built on first use, so the exact search only scans those.
+     * Used for the dithered colors, which are mostly not in the histogram.
+     *
+     * @param symbol any symbol, only the RGB part without transparency
+     * @return the nearest palette symbol
+     */
+    public int nearest(int symbol) {
+        if (channels == 3) symbol &= 0xFFFFFF;
+        int shift = 8 - inverseBits;
+        int cell = 0;
+        for (int c = 0; c < channels; c++) cell = cell << inverseBits | ((symbol >>> SHIFTS[c]) & 0xFF) >>> shift;
+        int[] candidates = inverse[cell];
+        if (candidates == null) {
+            candidates = candidates(cell, shift);
+            /// Racing threads compute the same list, so no lock is needed
+            inverse[cell] = candidates;
+        }
+        int best = candidates[0];
+        int bestDistance = Integer.MAX_VALUE;
+        for (int index : candidates) {
+            int distance = squaredError(palette[index], symbol);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = index;
+            }
+        }
+        return palette[best];
+    }
+
+    /**
+     * An entry can only be nearest to a color of the cell when it is at most a cell diagonal
+     * farther from the cell center than the entry nearest to the center
+     */
+    private int[] candidates(int cell, int shift) {
+        int half = 1 << (shift - 1);
+        int center = 0;
+        for (int c = 0; c < channels; c++) {
+            int value = (cell >>> (channels - 1 - c) * inverseBits) & ((1 << inverseBits) - 1);
+            center |= ((value << shift) + half) << SHIFTS[c];
+        }
+        double[] distances = new double[palette.length];
+        double nearest = Double.MAX_VALUE;
+        for (int i = 0; i < palette.length; i++) {
+            distances[i] = Math.sqrt(squaredError(palette[i], center));
+            nearest = Math.min(nearest, distances[i]);
+        }
+        double limit = nearest + 2 * Math.sqrt(channels) * half;
+        int count = 0;
+        int[] candidates = new int[palette.length];
+        for (int i = 0; i < palette.length; i++) {
+            if (distances[i] <= limit) candidates[count++] = i;
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    /**
+     * Maps the colors of a histogram without another pass over the pixels, for the undithered mode
+     *
+     * @param histogram counted symbols
+     * @return histogram of the quantized symbols
+     */
+    public ColorHistogram remap(ColorHistogram histogram) {
+        ColorHistogram result = new ColorHistogram(histogram.getTotalCount());
+        histogram.forEach((symbol, count) -> result.add(map(symbol), count));
+        return result;
+    }
+
+    /**
+     * @param histogram counted symbols
+     * @return summed squared error of the undithered mapping over all pixels and channels
+     */
+    public long squaredError(ColorHistogram histogram) {
+        long[] error = {0};
+        histogram.forEach((symbol, count) -> error[0] += (long) squaredError(symbol, map(symbol)) * count);
+        return error[0];
+    }
+
+    /**
+     * @param channel 0 to 2 for red, green and blue, 3 for the transparency byte
+     * @return shift of the channel in a packed symbol
+     */
+    static int shift(int channel) {
+        return SHIFTS[channel];
+    }
+
+    /**
+     * @return squared error of the RGB channels and the transparency byte between two symbols
+     */
+    static int squaredError(int a, int b) {
+        int dr = ((a >>> 16) & 0xFF) - ((b >>> 16) & 0xFF);
+        int dg = ((a >>> 8) & 0xFF) - ((b >>> 8) & 0xFF);
+        int db = (a & 0xFF) - (b & 0xFF);
+        int dt = (a >>> 24) - (b >>> 24);
+        return dr * dr + dg * dg + db * db + dt * dt;
+    }
+
+    /**
+     * @param squaredError summed squared error over the channels
+     * @param pixels number of compared pixels
+     * @param channels channels per pixel, 3 or 4 with transparency
+     * @return peak signal to noise ratio in dB, infinite when nothing changed
+     */
+    public static double psnr(long squaredError, long pixels, int channels) {
+        if (squaredError == 0 || pixels == 0) return Double.POSITIVE_INFINITY;
+        double mse = (double) squaredError / (pixels * channels);
+        return 10 * Math.log10(255.0 * 255.0 / mse);
+    }
+
+    /**
+     * @return palette symbols, 0xRRGGBB or packed with the transparency in the top byte
+     */
+    public int[] getPalette() {
+        return palette.clone();
+    }
+
+    public int size() {
+        return palette.length;
+    }
+
+    /**
+     * @return 4 when the transparency was quantized along with the colors, 3 otherwise
+     */
+    public int getChannels() {
+        return channels;
+    }
+
+    /// Fibonacci hashing, same as the histogram
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
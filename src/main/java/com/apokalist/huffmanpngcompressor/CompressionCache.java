@@ -0,0 +1,312 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Remembers the histogram and the code of images that were compressed before, so repeated
+ * runs over the same assets skip the counting pass and the tree build.
+ *
+ * Entries are keyed by the {@link ContentHash} of the pixels plus every option that changes
+ * the histogram or the code. A bounded LRU keeps them in memory; with a directory, every entry
+ * is also written to a small file there and read back when it fell out of memory or the
+ * process was restarted. Safe to share between threads.
+ */
+public class CompressionCache {
+    public static final String EXTENSION = ".hcache";
+
+    private static final int MAGIC = 0x48434348; // "HCCH"
+    private static final int VERSION = 1;
+
+    /// Default memory budget, enough for a few dozen dense photo histograms
+    public static final long DEFAULT_MEMORY_BYTES = 64L << 20;
+
+    private final long maxMemoryBytes;
+    private final Path directory;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long memoryBytes;
+
+    private final LongAdder memoryHits = new LongAdder();
+    private final LongAdder diskHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder diskErrors = new LongAdder();
+
+    /**
+     * What a compression run needs to skip straight to encoding
+     */
+    public static class Entry {
+        private final int[] colors;
+        private final int[] counts;
+        private final int[] codeSymbols;
+        private final int[] codeLengths;
+        private final long optimalPayloadBits;
+
+        /**
+         * @param histogram colors as counted, before quantization or splitting off alpha
+         * @param code code of the colors that were coded
+         * @param optimalPayloadBits payload bits of the unbounded tree, for the length limit cost
+         */
+        public Entry(ColorHistogram histogram, CanonicalCode code, long optimalPayloadBits) {
+            this(histogram.colors(), histogram.counts(), symbols(code), lengths(code), optimalPayloadBits);
+        }
+
+        private Entry(int[] colors, int[] counts, int[] codeSymbols, int[] codeLengths, long optimalPayloadBits) {
+            this.colors = colors;
+            this.counts = counts;
+            this.codeSymbols = codeSymbols;
+            this.codeLengths = codeLengths;
+            this.optimalPayloadBits = optimalPayloadBits;
+        }
+
+        private static int[] symbols(CanonicalCode code) {
+            int[] symbols = new int[code.size()];
+            for (int i = 0; i < symbols.length; i++) symbols[i] = code.getSymbol(i);
+            return symbols;
+        }
+
+        private static int[] lengths(CanonicalCode code) {
+            int[] lengths = new int[code.size()];
+            for (int i = 0; i < lengths.length; i++) lengths[i] = code.getLength(i);
+            return lengths;
+        }
+
+        /**
+         * @return a fresh copy of the counted histogram
+         */
+        public ColorHistogram histogram() {
+            long total = 0;
+            for (int count : counts) total += count;
+            ColorHistogram histogram = new ColorHistogram(total);
+            for (int i = 0; i < colors.length; i++) histogram.add(colors[i], counts[i]);
+            return histogram;
+        }
+
+        public CanonicalCode code() {
+            return new CanonicalCode(codeSymbols, codeLengths);
+        }
+
+        public int getCodeSize() {
+            return codeSymbols.length;
+        }
+
+        public long getOptimalPayloadBits() {
+            return optimalPayloadBits;
+        }
+
+        /// Arrays plus object headers, close enough for the memory budget
+        long memoryBytes() {
+            return 8L * colors.length + 8L * codeSymbols.length + 128;
+        }
+    }
+
+    /**
+     * Memory-only cache
+     *
+     * @param maxMemoryBytes memory the entries may take, the least recently used ones are dropped beyond it
+     */
+    public CompressionCache(long maxMemoryBytes) {
+        this(maxMemoryBytes, null);
+    }
+
+    /**
+     * @param maxMemoryBytes memory the entries may take, the least recently used ones are dropped beyond it
+     * @param directory where entries are also stored on disk, created if missing; null to keep them in memory only
+     */
+    public CompressionCache(long maxMemoryBytes, Path directory) {
+        if (maxMemoryBytes < 0) throw new IllegalArgumentException("Memory budget must not be negative: " + maxMemoryBytes);
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.directory = directory;
+    }
+
+    /**
+     * @param contentHash hash of the pixels, see {@link ContentHash#of(PixelSource)}
+     * @param options settings of the run, only the ones changing the histogram or the code are part of the key
+     * @return key of the entry, also its file name on disk
+     */
+    public static String key(long contentHash, CompressionOptions options) {
+        int maxCodeLength = options.getMaxCodeLength() > 0 ? options.getMaxCodeLength() : CanonicalCode.MAX_LENGTH;
+        return String.format(Locale.ROOT, "%016x-%s-l%d-%s-q%d%s", contentHash,
+                options.getAlphaMode().name().toLowerCase(Locale.ROOT), maxCodeLength,
+                options.isLinearTreeBuilder() ? "linear" : "tree", options.getPaletteSize(),
+                options.isDither() ? "d" : "");
+    }
+
+    /**
+     * Looks in memory first, then on disk
+     *
+     * @return the entry, null on a miss
+     */
+    public Entry get(String key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                memoryHits.increment();
+                return entry;
+            }
+        }
+        Entry entry = directory == null ? null : read(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        diskHits.increment();
+        remember(key, entry);
+        return entry;
+    }
+
+    /**
+     * Stores the entry in memory and, with a directory, on disk.
+     * A failed disk write only leaves that tier cold, it is counted in {@link #getDiskErrors()}.
+     */
+    public void put(String key, Entry entry) {
+        remember(key, entry);
+        if (directory != null) write(key, entry);
+    }
+
+    private synchronized void remember(String key, Entry entry) {
+        Entry previous = entries.put(key, entry);
+        if (previous != null) memoryBytes -= previous.memoryBytes();
+        memoryBytes += entry.memoryBytes();
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+            memoryBytes -= eldest.next().memoryBytes();
+            eldest.remove();
+            evictions.increment();
+        }
+    }
+
+    private Entry read(String key) {
+        Path file = directory.resolve(key + EXTENSION);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a cache file: " + file);
+            int[] colors = new int[in.readInt()];
+            int[] counts = new int[colors.length];
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = in.readInt();
+                counts[i] = in.readInt();
+            }
+            int[] symbols = new int[in.readInt()];
+            int[] lengths = new int[symbols.length];
+            for (int i = 0; i < symbols.length; i++) {
+                symbols[i] = in.readInt();
+                lengths[i] = in.readUnsignedByte();
+            }
+            return new Entry(colors, counts, symbols, lengths, in.readLong());
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            /// Truncated or foreign file, the next put replaces it
+            diskErrors.increment();
+            return null;
+        }
+    }
+
+    private void write(String key, Entry entry) {
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, key, ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(entry.colors.length);
+                for (int i = 0; i < entry.colors.length; i++) {
+                    out.writeInt(entry.colors[i]);
+                    out.writeInt(entry.counts[i]);
+                }
+                out.writeInt(entry.codeSymbols.length);
+                for (int i = 0; i < entry.codeSymbols.length; i++) {
+                    out.writeInt(entry.codeSymbols[i]);
+                    out.writeByte(entry.codeLengths[i]);
+                }
+                out.writeLong(entry.optimalPayloadBits);
+            }
+            /// Readers in other processes see the old file or the whole new one, never half of it
+            Path file = directory.resolve(key + EXTENSION);
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            diskErrors.increment();
+        }
+    }
+
+    /**
+     * Drops every entry from memory, the files on disk stay
+     */
+    public synchronized void clear() {
+        entries.clear();
+        memoryBytes = 0;
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.sum();
+    }
+
+    public long getDiskHits() {
+        return diskHits.sum();
+    }
+
+    public long getHits() {
+        return memoryHits.sum() + diskHits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return hits per lookup, NaN before the first lookup
+     */
+    public double getHitRate() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? Double.NaN : (double) hits / lookups;
+    }
+
+    /**
+     * @return entries dropped from memory to stay within the budget
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return cache files that could not be read or written
+     */
+    public long getDiskErrors() {
+        return diskErrors.sum();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "cache: %d hits (%d from disk), %d misses, %d evicted, %d entries in %.1f MB",
+                getHits(), getDiskHits(), getMisses(), getEvictions(), size(), getMemoryBytes() / 1e6);
+    }
+}
@@ -0,0 +1,285 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.SplittableRandom;
+
+/**
+ * Estimates how well an image compresses from a sample of its pixels, for triaging assets
+ * before compressing them for real.
+ *
+ * The image is cut into 64x64 tiles and every tile gives the same share of its pixels:
+ * a few random rows per band of tiles and a few random columns per tile in each of those rows.
+ * Sources holding their pixels only touch the sampled rows, see {@link PixelSource#forEachRow(java.util.function.IntPredicate, PixelSource.RowConsumer)}.
+ *
+ * The Huffman code built on the sample gives the bits per pixel. Colors the sample missed
+ * are accounted for with the Good-Turing missing mass and the Chao1 estimate of the
+ * unseen colors. The payload gets the 95% normal bound of the mean code length and the color
+ * count its log-normal interval; the ratio has none, as no sample bounds the colors it missed
+ * (Charikar et al., 2000) and those set the header of images with many colors.
+ */
+public class CompressionEstimator {
+    /// Side of the sampling tiles
+    public static final int TILE = 64;
+
+    /// Two-sided 95% quantile of the normal distribution
+    private static final double Z = 1.96;
+
+    private CompressionEstimator() {
+    }
+
+    /**
+     * Result of one estimate, sizes in bits unless the name says otherwise
+     */
+    public static class Estimate {
+        private final int width;
+        private final int height;
+        private final long sampledPixels;
+        private final int sampledColors;
+        private final long estimatedColors;
+        private final long colorsLow;
+        private final long colorsHigh;
+        private final double entropyBitsPerPixel;
+        private final double bitsPerPixel;
+        private final double marginBitsPerPixel;
+        private final long headerBits;
+        private final long originalBits;
+        private final long nanos;
+
+        Estimate(int width, int height, long sampledPixels, int sampledColors, long estimatedColors,
+                 long colorsLow, long colorsHigh, double entropyBitsPerPixel, double bitsPerPixel,
+                 double marginBitsPerPixel, long headerBits, long originalBits, long nanos) {
+            this.width = width;
+            this.height = height;
+            this.sampledPixels = sampledPixels;
+            this.sampledColors = sampledColors;
+            this.estimatedColors = estimatedColors;
+            this.colorsLow = colorsLow;
+            this.colorsHigh = colorsHigh;
+            this.entropyBitsPerPixel = entropyBitsPerPixel;
+            this.bitsPerPixel = bitsPerPixel;
+            this.marginBitsPerPixel = marginBitsPerPixel;
+            this.headerBits = headerBits;
+            this.originalBits = originalBits;
+            this.nanos = nanos;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getTotalPixels() {
+            return (long) width * height;
+        }
+
+        public long getSampledPixels() {
+            return sampledPixels;
+        }
+
+        /**
+         * @return distinct colors seen in the sample
+         */
+        public int getSampledColors() {
+            return sampledColors;
+        }
+
+        /**
+         * @return Chao1 estimate of the distinct colors of the whole image
+         */
+        public long getEstimatedColors() {
+            return estimatedColors;
+        }
+
+        /**
+         * @return low end of the 95% log-normal interval of {@link #getEstimatedColors()}. It assumes
+         *         independently drawn pixels, which tiles of smooth or noisy images are not, so the
+         *         true count can fall outside by a wide margin
+         */
+        public long getColorsLow() {
+            return colorsLow;
+        }
+
+        /**
+         * @return high end of the 95% log-normal interval of {@link #getEstimatedColors()}
+         */
+        public long getColorsHigh() {
+            return colorsHigh;
+        }
+
+        /**
+         * @return Miller-Madow corrected entropy of the sample, the floor any per-pixel code can reach
+         */
+        public double getEntropyBitsPerPixel() {
+            return entropyBitsPerPixel;
+        }
+
+        /**
+         * @return estimated Huffman code length per pixel
+         */
+        public double getBitsPerPixel() {
+            return bitsPerPixel;
+        }
+
+        /**
+         * @return half width of the 95% sampling interval of {@link #getBitsPerPixel()}, 0 when every
+         *         pixel was sampled. Covers the payload only: the colors the sample missed are
+         *         priced at {@link #getEstimatedColors()}, whose error the interval does not include
+         */
+        public double getMarginBitsPerPixel() {
+            return marginBitsPerPixel;
+        }
+
+        public long getPayloadBits() {
+            return Math.round(bitsPerPixel * getTotalPixels());
+        }
+
+        public long getContainerBytes() {
+            return (headerBits + getPayloadBits() + 7) / 8;
+        }
+
+        /**
+         * @return estimated compression ratio, same definition as {@link Compressor#getCompressionRatio()}.
+         *         A point estimate: the header of images with many colors is as uncertain as
+         *         {@link #getEstimatedColors()} and may move it far more than the payload interval
+         */
+        public double getRatio() {
+            return originalBits == 0 ? 0 : 1.0 - (double) getContainerBytes() * 8 / originalBits;
+        }
+
+        public long getHeaderBits() {
+            return headerBits;
+        }
+
+        public long getOriginalBits() {
+            return originalBits;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+    }
+
+    /**
+     * @param source pixels to sample
+     * @param fraction share of the pixels to look at, 0 &lt; fraction &lt;= 1
+     * @param alphaMode how the pixels are turned into symbols, as in the compressor
+     * @param seed seed of the sample positions, the same seed samples the same pixels
+     * @return the estimate
+     * @throws IOException if the source cannot be read
+     */
+    public static Estimate estimate(PixelSource source, double fraction, AlphaMode alphaMode, long seed)
+            throws IOException {
+        if (!(fraction > 0 && fraction <= 1)) throw new IllegalArgumentException("Fraction outside (0, 1]: " + fraction);
+        long start = System.nanoTime();
+        int width = source.getWidth();
+        int height = source.getHeight();
+        AlphaMode symbols = alphaMode.histogramMode();
+        SplittableRandom random = new SplittableRandom(seed);
+
+        /// sqrt(fraction) of the rows times sqrt(fraction) of the columns of every tile
+        double side = Math.sqrt(fraction);
+        boolean[] sampledRows = new boolean[height];
+        for (int top = 0; top < height; top += TILE) {
+            int rows = Math.min(TILE, height - top);
+            pick(random, rows, Math.max(1, (int) Math.round(side * rows)), top, sampledRows);
+        }
+
+        ColorHistogram histogram = new ColorHistogram();
+        boolean[] columns = new boolean[TILE];
+        source.forEachRow(y -> sampledRows[y], (y, row) -> {
+            for (int left = 0; left < width; left += TILE) {
+                int tileWidth = Math.min(TILE, width - left);
+                Arrays.fill(columns, false);
+                pick(random, tileWidth, Math.max(1, (int) Math.round(side * tileWidth)), 0, columns);
+                for (int x = 0; x < tileWidth; x++) {
+                    if (columns[x]) histogram.add(symbols.symbol(row[left + x]));
+                }
+            }
+        });
+
+        long n = histogram.getTotalCount();
+        int[] colors = histogram.colors();
+        int[] counts = histogram.counts();
+        int[] lengths = TwoQueueCodeBuilder.buildLengths(counts);
+
+        double entropy = 0;
+        double mean = 0;
+        long singletons = 0;
+        long doubletons = 0;
+        int maxLength = 1;
+        int symbolBits = 24;
+        for (int i = 0; i < counts.length; i++) {
+            double p = (double) counts[i] / n;
+            entropy -= p * Math.log(p);
+            mean += p * lengths[i];
+            if (counts[i] == 1) singletons++;
+            if (counts[i] == 2) doubletons++;
+            maxLength = Math.max(maxLength, lengths[i]);
+            if (colors[i] >>> 24 != 0) symbolBits = 32;
+        }
+        double variance = 0;
+        for (int i = 0; i < counts.length; i++) {
+            double d = lengths[i] - mean;
+            variance += counts[i] * d * d;
+        }
+        variance = n > 1 ? variance / (n - 1) : 0;
+        entropy = n == 0 ? 0 : (entropy + (counts.length - 1) / (2.0 * n)) / Math.log(2);
+
+        long total = (long) width * height;
+        long estimatedColors = counts.length;
+        long colorsLow = counts.length;
+        long colorsHigh = counts.length;
+        double bitsPerPixel = mean;
+        double margin = 0;
+        if (n < total && n > 0) {
+            /// Chao1, bias corrected when no color was seen exactly twice, with the variance of Chao (1987)
+            double unseen;
+            double unseenVariance;
+            double f1 = singletons;
+            double f2 = doubletons;
+            if (doubletons > 0) {
+                double r = f1 / f2;
+                unseen = f1 * r / 2;
+                unseenVariance = f2 * (r * r / 2 + r * r * r + r * r * r * r / 4);
+            } else {
+                unseen = f1 * (f1 - 1) / 2;
+                unseenVariance = f1 * (f1 - 1) / 2 + f1 * (2 * f1 - 1) * (2 * f1 - 1) / 4
+                        - f1 * f1 * f1 * f1 / (4 * (counts.length + unseen));
+            }
+            /// Log-normal interval of the unseen count, it never reaches below the colors already seen
+            double k = unseen > 0 ? Math.exp(Z * Math.sqrt(Math.log(1 + Math.max(0, unseenVariance) / (unseen * unseen)))) : 1;
+            long room = total - n;
+            estimatedColors = counts.length + Math.min(room, Math.round(unseen));
+            colorsLow = counts.length + Math.min(room, Math.round(unseen / k));
+            colorsHigh = counts.length + Math.min(room, Math.round(unseen * k));
+            /// Good-Turing: the unseen colors share the mass of the singletons, each at its own code length
+            double missing = (double) singletons / n;
+            if (estimatedColors > counts.length && missing > 0) {
+                bitsPerPixel = (1 - missing) * mean
+                        + missing * Math.log((estimatedColors - counts.length) / missing) / Math.log(2);
+            }
+            margin = Z * Math.sqrt(variance / n * (1 - (double) n / total));
+        }
+        int estimatedMaxLength = Math.min(CanonicalCode.MAX_LENGTH,
+                Math.max(maxLength, 64 - Long.numberOfLeadingZeros(Math.max(1, estimatedColors - 1))));
+        long headerBits = HuffmanFormat.headerBits(estimatedColors, estimatedMaxLength, symbolBits);
+
+        return new Estimate(width, height, n, counts.length, estimatedColors, colorsLow, colorsHigh, entropy,
+                bitsPerPixel, margin, headerBits, total * source.getBitsPerPixel(), System.nanoTime() - start);
+    }
+
+    /**
+     * Marks {@code count} distinct random positions of {@code 0..size-1}, shifted by {@code offset}
+     */
+    private static void pick(SplittableRandom random, int size, int count, int offset, boolean[] marks) {
+        /// Floyd's algorithm, exactly count draws without a shuffle
+        for (int j = size - count; j < size; j++) {
+            int t = random.nextInt(j + 1);
+            marks[offset + (marks[offset + t] ? j : t)] = true;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.apokalist.huffmanpngcompressor;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-stage timings of one {@link Compressor}: wall nanoseconds, pixels handled and bytes allocated
+ * by the calling thread, read from the {@link com.sun.management.ThreadMXBean} allocation counter.
+ * Allocations of worker threads (parallel counting, band encoding) are not seen by that counter.
+ *
+ * Every stage is also committed as a JFR event, so a recording with
+ * {@code -XX:StartFlightRecording} shows the stages next to GC and allocation samples.
+ * When no recording is running an event costs a field check.
+ */
+public class CompressionMetrics {
+    private static final com.sun.management.ThreadMXBean THREADS = allocationCounter();
+
+    private final Map<String, Stage> stages = new LinkedHashMap<>();
+    private final CompressionEvent event = new CompressionEvent();
+    private long pixels;
+    private int uniqueColors;
+    private int maxCodeDepth;
+    private long payloadBits;
+    private long containerBytes;
+
+    /**
+     * Totals of one named stage, a stage run several times (encoding twice) adds up
+     */
+    public static class Stage {
+        private final String name;
+        private int runs;
+        private long nanos;
+        private long pixels;
+        private long allocatedBytes;
+
+        Stage(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getRuns() {
+            return runs;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return pixels read by the stage, 0 for stages working on the histogram only
+         */
+        public long getPixels() {
+            return pixels;
+        }
+
+        /**
+         * @return bytes allocated by the thread running the stage, -1 when the JVM cannot tell
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return pixels per second, 0 for stages that do not read pixels
+         */
+        public double getPixelsPerSecond() {
+            return nanos == 0 ? 0 : pixels / (nanos / 1e9);
+        }
+    }
+
+    /**
+     * A running stage, see {@link #start(String)}
+     */
+    public class Timer {
+        private final String name;
+        private final StageEvent event = new StageEvent();
+        private final long startNanos = System.nanoTime();
+        private final long startAllocated = allocatedBytes();
+
+        private Timer(String name) {
+            this.name = name;
+            event.begin();
+        }
+
+        /**
+         * Ends the stage and records it
+         *
+         * @param pixels pixels the stage read, 0 when it only worked on the histogram
+         * @return nanoseconds the stage took
+         */
+        public long stop(long pixels) {
+            long nanos = System.nanoTime() - startNanos;
+            long allocated = startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+            event.end();
+            if (event.shouldCommit()) {
+                event.stage = name;
+                event.pixels = pixels;
+                event.allocated = allocated;
+                event.commit();
+            }
+            record(name, nanos, pixels, allocated);
+            return nanos;
+        }
+    }
+
+    @Name("com.apokalist.huffmanpngcompressor.Stage")
+    @Label("Compression Stage")
+    @Category({"Huffman PNG Compressor"})
+    @Description("One stage of compressing an image")
+    static class StageEvent extends Event {
+        @Label("Stage")
+        String stage;
+
+        @Label("Pixels")
+        long pixels;
+
+        @Label("Allocated")
+        @DataAmount
+        long allocated;
+    }
+
+    @Name("com.apokalist.huffmanpngcompressor.Compression")
+    @Label("Image Compression")
+    @Category({"Huffman PNG Compressor"})
+    @Description("Code building of one image, from the first pass to the final statistics")
+    static class CompressionEvent extends Event {
+        @Label("Pixels")
+        long pixels;
+
+        @Label("Unique Colors")
+        int uniqueColors;
+
+        @Label("Max Code Depth")
+        int maxCodeDepth;
+
+        @Label("Payload Bits")
+        long payloadBits;
+
+        @Label("Container Size")
+        @DataAmount
+        long containerBytes;
+    }
+
+    /**
+     * Starts measuring the run, the JFR event of the whole run begins here
+     */
+    public CompressionMetrics() {
+        event.begin();
+    }
+
+    /**
+     * @param name stage name, runs with the same name add up
+     * @return timer to stop when the stage is done
+     */
+    public Timer start(String name) {
+        return new Timer(name);
+    }
+
+    private synchronized void record(String name, long nanos, long pixels, long allocated) {
+        Stage stage = stages.computeIfAbsent(name, Stage::new);
+        stage.runs++;
+        stage.nanos += nanos;
+        stage.pixels += pixels;
+        stage.allocatedBytes = allocated < 0 || stage.allocatedBytes < 0 ? -1 : stage.allocatedBytes + allocated;
+    }
+
+    /**
+     * Sets the outcome of the run and commits its JFR event
+     */
+    void finish(long pixels, int uniqueColors, int maxCodeDepth, long payloadBits, long containerBytes) {
+        synchronized (this) {
+            this.pixels = pixels;
+            this.uniqueColors = uniqueColors;
+            this.maxCodeDepth = maxCodeDepth;
+            this.payloadBits = payloadBits;
+            this.containerBytes = containerBytes;
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.pixels = pixels;
+            event.uniqueColors = uniqueColors;
+            event.maxCodeDepth = maxCodeDepth;
+            event.payloadBits = payloadBits;
+            event.containerBytes = containerBytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return every stage in the order it first ran
+     */
+    public synchronized List<Stage> getStages() {
+        return new ArrayList<>(stages.values());
+    }
+
+    /**
+     * @return the stage, null if it never ran
+     */
+    public synchronized Stage getStage(String name) {
+        return stages.get(name);
+    }
+
+    public synchronized long getTotalNanos() {
+        long total = 0;
+        for (Stage stage : stages.values()) total += stage.nanos;
+        return total;
+    }
+
+    /**
+     * @return bytes allocated over all stages, -1 when the JVM cannot tell
+     */
+    public synchronized long getAllocatedBytes() {
+        long total = 0;
+        for (Stage stage : stages.values()) {
+            if (stage.allocatedBytes < 0) return -1;
+            total += stage.allocatedBytes;
+        }
+        return total;
+    }
+
+    /**
+     * @return image pixels over the time of all stages
+     */
+    public synchronized double getPixelsPerSecond() {
+        long nanos = getTotalNanos();
+        return nanos == 0 ? 0 : pixels / (nanos / 1e9);
+    }
+
+    public synchronized long getPixels() {
+        return pixels;
+    }
+
+    public synchronized int getUniqueColors() {
+        return uniqueColors;
+    }
+
+    /**
+     * @return longest code of the color code in bits
+     */
+    public synchronized int getMaxCodeDepth() {
+        return maxCodeDepth;
+    }
+
+    public synchronized long getPayloadBits() {
+        return payloadBits;
+    }
+
+    public synchronized long getContainerBytes() {
+        return containerBytes;
+    }
+
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported()) {
+            if (!threads.isThreadAllocatedMemoryEnabled()) threads.setThreadAllocatedMemoryEnabled(true);
+            return threads;
+        }
+        return null;
+    }
+}
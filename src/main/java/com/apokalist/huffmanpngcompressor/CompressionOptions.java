@@ -0,0 +1,209 @@
+package com.apokalist.huffmanpngcompressor;
+
+/**
+ * Settings for a single {@link Compressor} run.
+ * Setters return this so options can be chained.
+ */
+public class CompressionOptions {
+    private int workers = 1;
+    private boolean measureSpeedup;
+    private int maxCodeLength;
+    private boolean linearTreeBuilder;
+    private ProgressListener progressListener;
+    private int bandRows;
+    private int maxTables = 1;
+    private AlphaMode alphaMode = AlphaMode.PACKED;
+    private Predictor[] predictors = {};
+    private boolean runLength;
+    private int paletteSize;
+    private boolean dither;
+    private CompressionCache cache;
+
+    /**
+     * @param workers number of threads counting colors, 1 keeps the sequential path
+     * @return this options object
+     */
+    public CompressionOptions setWorkers(int workers) {
+        if (workers < 1) throw new IllegalArgumentException("Workers must be at least 1: " + workers);
+        this.workers = workers;
+        return this;
+    }
+
+    /**
+     * @param measureSpeedup when true a parallel run also times the sequential path for comparison
+     * @return this options object
+     */
+    public CompressionOptions setMeasureSpeedup(boolean measureSpeedup) {
+        this.measureSpeedup = measureSpeedup;
+        return this;
+    }
+
+    /**
+     * @param maxCodeLength longest allowed code in bits, 0 only applies the codec limit of
+     *                      {@link CanonicalCode#MAX_LENGTH} bits
+     * @return this options object
+     */
+    public CompressionOptions setMaxCodeLength(int maxCodeLength) {
+        if (maxCodeLength < 0 || maxCodeLength > CanonicalCode.MAX_LENGTH)
+            throw new IllegalArgumentException("Code length limit outside 0.." + CanonicalCode.MAX_LENGTH + ": " + maxCodeLength);
+        this.maxCodeLength = maxCodeLength;
+        return this;
+    }
+
+    /**
+     * @param linearTreeBuilder when true code lengths come from the two-queue builder
+     *                          instead of the node tree, which then is not available for display
+     * @return this options object
+     */
+    public CompressionOptions setLinearTreeBuilder(boolean linearTreeBuilder) {
+        this.linearTreeBuilder = linearTreeBuilder;
+        return this;
+    }
+
+    /**
+     * @param progressListener receives row progress of the analysis and encoding passes, null for none.
+     *                         With a listener set, interrupting the compressing thread also cancels the pass.
+     * @return this options object
+     */
+    public CompressionOptions setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+    /**
+     * @param bandRows rows per independently decodable band of the container, 0 writes one stream.
+     *                 Bands are encoded by the workers in parallel and allow decoding row ranges.
+     * @return this options object
+     */
+    public CompressionOptions setBandRows(int bandRows) {
+        if (bandRows < 0) throw new IllegalArgumentException("Band rows must not be negative: " + bandRows);
+        this.bandRows = bandRows;
+        return this;
+    }
+
+    /**
+     * @param maxTables most code tables the bands may choose from, 1 keeps the single global code.
+     *                  Only applies with bands, see {@link #setBandRows(int)}.
+     * @return this options object
+     */
+    public CompressionOptions setMaxTables(int maxTables) {
+        if (maxTables < 1 || maxTables > HuffmanFormat.MAX_TABLES)
+            throw new IllegalArgumentException("Tables outside 1.." + HuffmanFormat.MAX_TABLES + ": " + maxTables);
+        this.maxTables = maxTables;
+        return this;
+    }
+
+    /**
+     * @param alphaMode how transparency is coded. The default {@link AlphaMode#PACKED} keeps alpha
+     *                  at no cost for opaque images, {@link AlphaMode#IGNORE} drops it
+     * @return this options object
+     */
+    public CompressionOptions setAlphaMode(AlphaMode alphaMode) {
+        if (alphaMode == null) throw new IllegalArgumentException("Alpha mode must not be null");
+        this.alphaMode = alphaMode;
+        return this;
+    }
+
+    /**
+     * @param predictors predictors every row may choose from, by entropy estimate. None keeps raw color coding;
+     *                   with some, residual coding is used when it makes the smaller container
+     * @return this options object
+     */
+    public CompressionOptions setPredictors(Predictor... predictors) {
+        this.predictors = predictors.clone();
+        return this;
+    }
+
+    /**
+     * @param runLength true to cost every row as runs of colors too, coding it as runs when that is smaller.
+     *                  Costs two more passes over the image; ignored with {@link AlphaMode#SEPARATE}
+     * @return this options object
+     */
+    public CompressionOptions setRunLength(boolean runLength) {
+        this.runLength = runLength;
+        return this;
+    }
+
+    /**
+     * @param paletteSize most colors to keep, images with more are median cut down to this many first.
+     *                    0 keeps every color, the lossless default
+     * @return this options object
+     */
+    public CompressionOptions setPaletteSize(int paletteSize) {
+        if (paletteSize < 0) throw new IllegalArgumentException("Palette size must not be negative: " + paletteSize);
+        this.paletteSize = paletteSize;
+        return this;
+    }
+
+    /**
+     * @param dither true to spread the quantization error with Floyd–Steinberg dithering,
+     *               costs one more pass over the image
+     * @return this options object
+     */
+    public CompressionOptions setDither(boolean dither) {
+        this.dither = dither;
+        return this;
+    }
+
+    /**
+     * @param cache where histograms and codes of earlier runs are looked up by content hash and stored, null for none.
+     *              A hit costs one hashing pass instead of the counting pass and the tree build
+     * @return this options object
+     */
+    public CompressionOptions setCache(CompressionCache cache) {
+        this.cache = cache;
+        return this;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public boolean isMeasureSpeedup() {
+        return measureSpeedup;
+    }
+
+    public int getMaxCodeLength() {
+        return maxCodeLength;
+    }
+
+    public boolean isLinearTreeBuilder() {
+        return linearTreeBuilder;
+    }
+
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    public int getBandRows() {
+        return bandRows;
+    }
+
+    public int getMaxTables() {
+        return maxTables;
+    }
+
+    public AlphaMode getAlphaMode() {
+        return alphaMode;
+    }
+
+    public Predictor[] getPredictors() {
+        return predictors.clone();
+    }
+
+    public boolean isRunLength() {
+        return runLength;
+    }
+
+    public int getPaletteSize() {
+        return paletteSize;
+    }
+
+    public boolean isDither() {
+        return dither;
+    }
+
+    public CompressionCache getCache() {
+        return cache;
+    }
+}
@@ -0,0 +1,506 @@
+package com.apokalist.huffmanpngcompressor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntPredicate;
+
+/**
+ * Embedded HTTP server compressing uploaded PNGs, for services that would rather POST an image
+ * than start a JVM per file. Every request runs on a virtual thread of its own.
+ *
+ * <ul>
+ *     <li>{@code POST /compress} answers with the container, its statistics in X- headers</li>
+ *     <li>{@code POST /stats} answers with the statistics of {@link MetricsReport#toJson} and writes nothing</li>
+ *     <li>{@code GET /metrics} answers with counters, throughput and latency percentiles of the server</li>
+ * </ul>
+ *
+ * Requests are admitted by the pixels they bring: the PNG header is read first and the image
+ * is only decoded when the pixels of all requests in flight stay under the limit. Otherwise
+ * the answer is 503 with a Retry-After, so a burst of large images cannot run the heap out.
+ * Upload buffers, rasters and histograms come from a {@link BufferPool}.
+ *
+ * Usage: CompressionServer [--port n] [--bind address] [--max-pixels n] [--max-body MB] [compression options]
+ */
+public class CompressionServer {
+    private static final String USAGE = String.join("\n",
+            "Usage: CompressionServer [options]",
+            "      --port <n>            port to listen on (default: 8080)",
+            "      --bind <address>      address to listen on (default: 127.0.0.1)",
+            "      --max-pixels <n>      pixels of all requests in flight, more wait for a 503 (default: heap / 16)",
+            "      --max-body <MB>       largest upload accepted (default: 64)",
+            "  -l, --max-code-length <n> limit Huffman codes to n bits",
+            "      --linear              build code lengths with the two-queue builder",
+            "  -b, --band-rows <n>       split the payload into bands of n rows",
+            "  -t, --tables <n>          let bands choose from up to n code tables (default band rows: 64)",
+            "  -a, --alpha <mode>        packed (default), separate or ignore",
+            "  -p, --predict <p>         code prediction residuals when smaller: left, up, paeth, med or auto",
+            "  -r, --runs                code rows as runs of colors when smaller",
+            "  -h, --help                show this help");
+
+    public static final int DEFAULT_PORT = 8080;
+
+    /// Band height used when tables are requested without -b, as in the CLI
+    private static final int DEFAULT_TABLE_BAND_ROWS = 64;
+
+    /// Requests the latency percentiles are taken over
+    private static final int LATENCY_WINDOW = 4096;
+
+    /// Throughput is also reported over the requests finished in this many recent seconds
+    private static final int RECENT_SECONDS = 60;
+
+    /// Read size of uploads without a Content-Length
+    private static final int CHUNK = 1 << 16;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final CompressionOptions options;
+    private final long maxInFlightPixels;
+    private final int maxBodyBytes;
+    private final BufferPool pool;
+    private final long startNanos = System.nanoTime();
+
+    private final Object admission = new Object();
+    private long inFlightPixels;
+    private int inFlightRequests;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong tooLarge = new AtomicLong();
+    private final AtomicLong pixels = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final LatencyWindow latencies = new LatencyWindow(LATENCY_WINDOW);
+
+    /**
+     * Latency and pixels of the last finished requests, a ring overwritten oldest first
+     */
+    static class LatencyWindow {
+        private final long[] nanos;
+        private final long[] pixels;
+        private final long[] finished;
+        private int next;
+        private int size;
+
+        LatencyWindow(int capacity) {
+            nanos = new long[capacity];
+            pixels = new long[capacity];
+            finished = new long[capacity];
+        }
+
+        synchronized void add(long latencyNanos, long pixelCount, long finishedNanos) {
+            nanos[next] = latencyNanos;
+            pixels[next] = pixelCount;
+            finished[next] = finishedNanos;
+            next = (next + 1) % nanos.length;
+            size = Math.min(size + 1, nanos.length);
+        }
+
+        synchronized long[] latencies() {
+            long[] values = new long[size];
+            System.arraycopy(nanos, 0, values, 0, size);
+            return values;
+        }
+
+        /**
+         * @return pixels of the requests in the window that finished after the given time
+         */
+        synchronized long pixelsSince(long sinceNanos) {
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                if (finished[i] - sinceNanos > 0) total += pixels[i];
+            }
+            return total;
+        }
+    }
+
+    /**
+     * @param address where to listen, port 0 picks a free one
+     * @param options compression settings of every request
+     * @param maxInFlightPixels pixels of all admitted requests together
+     * @param maxBodyBytes largest upload accepted
+     * @throws IOException if the address cannot be bound
+     */
+    public CompressionServer(InetSocketAddress address, CompressionOptions options, long maxInFlightPixels,
+                             int maxBodyBytes) throws IOException {
+        if (maxInFlightPixels < 1) throw new IllegalArgumentException("Pixel limit must be positive: " + maxInFlightPixels);
+        this.options = options;
+        this.maxInFlightPixels = maxInFlightPixels;
+        this.maxBodyBytes = maxBodyBytes;
+        this.pool = new BufferPool(Runtime.getRuntime().availableProcessors());
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+        server = HttpServer.create(address, 0);
+        server.setExecutor(executor);
+        server.createContext("/compress", exchange -> handleImage(exchange, false));
+        server.createContext("/stats", exchange -> handleImage(exchange, true));
+        server.createContext("/metrics", this::handleMetrics);
+    }
+
+    /**
+     * @return the default pixel limit, rasters of the requests in flight fill at most a quarter of the heap
+     */
+    public static long defaultMaxInFlightPixels() {
+        return Runtime.getRuntime().maxMemory() / 16;
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    /**
+     * Stops accepting requests and waits for the ones in flight
+     *
+     * @param delaySeconds longest wait for running exchanges
+     */
+    public void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.close();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public BufferPool getPool() {
+        return pool;
+    }
+
+    public static void main(String[] args) {
+        String bind = "127.0.0.1";
+        int port = DEFAULT_PORT;
+        long maxPixels = defaultMaxInFlightPixels();
+        int maxBodyMegabytes = 64;
+        CompressionOptions options = new CompressionOptions();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "-h", "--help" -> {
+                        System.out.println(USAGE);
+                        return;
+                    }
+                    case "--port" -> port = port(HuffmanCli.value(args, ++i, arg));
+                    case "--bind" -> bind = HuffmanCli.value(args, ++i, arg);
+                    case "--max-pixels" -> maxPixels = pixelCount(HuffmanCli.value(args, ++i, arg), arg);
+                    case "--max-body" -> maxBodyMegabytes = HuffmanCli.positive(HuffmanCli.value(args, ++i, arg), arg);
+                    case "-l", "--max-code-length" -> options.setMaxCodeLength(HuffmanCli.positive(HuffmanCli.value(args, ++i, arg), arg));
+                    case "--linear" -> options.setLinearTreeBuilder(true);
+                    case "-b", "--band-rows" -> options.setBandRows(HuffmanCli.positive(HuffmanCli.value(args, ++i, arg), arg));
+                    case "-t", "--tables" -> options.setMaxTables(HuffmanCli.positive(HuffmanCli.value(args, ++i, arg), arg));
+                    case "-a", "--alpha" -> options.setAlphaMode(HuffmanCli.alphaMode(HuffmanCli.value(args, ++i, arg)));
+                    case "-p", "--predict" -> options.setPredictors(HuffmanCli.predictors(HuffmanCli.value(args, ++i, arg)));
+                    case "-r", "--runs" -> options.setRunLength(true);
+                    default -> throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            if (maxBodyMegabytes > 2047) throw new IllegalArgumentException("--max-body is at most 2047 MB");
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (options.getMaxTables() > 1 && options.getBandRows() == 0) options.setBandRows(DEFAULT_TABLE_BAND_ROWS);
+
+        try {
+            CompressionServer server = new CompressionServer(new InetSocketAddress(bind, port), options, maxPixels,
+                    maxBodyMegabytes << 20);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> server.stop(1)));
+            InetSocketAddress address = server.getAddress();
+            System.out.printf(Locale.ROOT, "Listening on http://%s:%d, up to %d pixels in flight%n",
+                    address.getHostString(), address.getPort(), maxPixels);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static int port(String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 0 || number > 65535) throw new NumberFormatException();
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--port needs a number from 0 to 65535, got " + value);
+        }
+    }
+
+    private static long pixelCount(String value, String option) {
+        try {
+            long number = Long.parseLong(value);
+            if (number < 1) throw new NumberFormatException();
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a positive number, got " + value);
+        }
+    }
+
+    private void handleImage(HttpExchange exchange, boolean statsOnly) throws IOException {
+        long start = System.nanoTime();
+        requests.incrementAndGet();
+        try (exchange) {
+            try {
+                if (!exchange.getRequestMethod().equals("POST")) {
+                    exchange.getResponseHeaders().set("Allow", "POST");
+                    sendText(exchange, 405, "POST a PNG file\n");
+                    return;
+                }
+                String length = exchange.getRequestHeaders().getFirst("Content-Length");
+                long declared = length == null ? -1 : Long.parseLong(length.trim());
+                if (declared > maxBodyBytes) {
+                    tooLarge.incrementAndGet();
+                    sendText(exchange, 413, "Upload larger than " + maxBodyBytes + " bytes\n");
+                    return;
+                }
+
+                byte[][] body = {pool.takeBytes(declared > 0 ? (int) declared : CHUNK)};
+                try {
+                    int size = readBody(exchange.getRequestBody(), body);
+                    if (size < 0) {
+                        tooLarge.incrementAndGet();
+                        sendText(exchange, 413, "Upload larger than " + maxBodyBytes + " bytes\n");
+                        return;
+                    }
+                    bytesIn.addAndGet(size);
+                    String name = exchange.getRequestHeaders().getFirst("X-File-Name");
+                    compress(exchange, body[0], size, name == null ? "upload" : name, statsOnly, start);
+                } finally {
+                    pool.give(body[0]);
+                }
+            } catch (NumberFormatException e) {
+                failed.incrementAndGet();
+                sendText(exchange, 400, "Invalid Content-Length\n");
+            } catch (IOException | RuntimeException e) {
+                failed.incrementAndGet();
+                /// Once the container is on its way there is no status left to change, the client sees a short body
+                if (exchange.getResponseCode() == -1) {
+                    boolean clientError = e instanceof IOException || e.getCause() instanceof IOException;
+                    sendText(exchange, clientError ? 400 : 500, "Cannot compress: " + HuffmanCli.describe(e) + "\n");
+                }
+            }
+        }
+    }
+
+    private void compress(HttpExchange exchange, byte[] body, int size, String name, boolean statsOnly, long start)
+            throws IOException {
+        PngStreamReader png = new PngStreamReader(body, size, name);
+        long imagePixels = (long) png.getWidth() * png.getHeight();
+        if (imagePixels > maxInFlightPixels || imagePixels > Integer.MAX_VALUE - 8) {
+            tooLarge.incrementAndGet();
+            sendText(exchange, 413, "Image of " + png.getWidth() + "x" + png.getHeight()
+                    + " is above the limit of " + Math.min(maxInFlightPixels, Integer.MAX_VALUE - 8) + " pixels\n");
+            return;
+        }
+        if (!admit(imagePixels)) {
+            rejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            sendText(exchange, 503, "Busy, retry later\n");
+            return;
+        }
+        try {
+            int[] raster = pool.takeRaster((int) imagePixels);
+            ColorHistogram histogram = pool.takeHistogram(imagePixels);
+            try {
+                Raster source = Raster.read(png, raster);
+                new ImageAnalyzer(options.getAlphaMode().histogramMode()).analyzeColors(source, histogram);
+                Compressor compressor = new Compressor(source, histogram, options);
+                long written;
+                if (statsOnly) {
+                    written = sendJson(exchange, 200, MetricsReport.toJson(name, compressor) + "\n");
+                } else {
+                    var headers = exchange.getResponseHeaders();
+                    headers.set("Content-Type", "application/octet-stream");
+                    headers.set("X-Image-Width", Integer.toString(png.getWidth()));
+                    headers.set("X-Image-Height", Integer.toString(png.getHeight()));
+                    headers.set("X-Unique-Colors", Integer.toString(histogram.size()));
+                    headers.set("X-Payload-Bits", Long.toString(compressor.getPayloadBits()));
+                    headers.set("X-Compression-Ratio", String.format(Locale.ROOT, "%.4f", compressor.getCompressionRatio()));
+                    written = compressor.getContainerSize();
+                    exchange.sendResponseHeaders(200, written);
+                    compressor.encode(exchange.getResponseBody());
+                }
+                long end = System.nanoTime();
+                completed.incrementAndGet();
+                pixels.addAndGet(imagePixels);
+                bytesOut.addAndGet(written);
+                latencies.add(end - start, imagePixels, end);
+            } finally {
+                pool.give(raster);
+                pool.give(histogram);
+            }
+        } finally {
+            release(imagePixels);
+        }
+    }
+
+    /**
+     * Reads the whole request body, swapping in a larger pooled buffer when it does not fit
+     *
+     * @return size of the body, -1 when it is larger than the limit
+     */
+    private int readBody(InputStream in, byte[][] body) throws IOException {
+        int size = 0;
+        while (true) {
+            int capacity = Math.min(body[0].length, maxBodyBytes);
+            if (size == capacity) {
+                if (size == maxBodyBytes) return in.read() < 0 ? size : -1;
+                byte[] larger = pool.takeBytes((int) Math.min(maxBodyBytes, 2L * size));
+                System.arraycopy(body[0], 0, larger, 0, size);
+                pool.give(body[0]);
+                body[0] = larger;
+                continue;
+            }
+            int read = in.read(body[0], size, capacity - size);
+            if (read < 0) return size;
+            size += read;
+        }
+    }
+
+    private boolean admit(long imagePixels) {
+        synchronized (admission) {
+            if (inFlightPixels + imagePixels > maxInFlightPixels) return false;
+            inFlightPixels += imagePixels;
+            inFlightRequests++;
+            return true;
+        }
+    }
+
+    private void release(long imagePixels) {
+        synchronized (admission) {
+            inFlightPixels -= imagePixels;
+            inFlightRequests--;
+        }
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                sendText(exchange, 405, "GET the metrics\n");
+                return;
+            }
+            sendJson(exchange, 200, metricsJson());
+        }
+    }
+
+    /**
+     * @return counters since the start, throughput over the uptime and over the last minute,
+     *         latency percentiles over the last {@value #LATENCY_WINDOW} finished requests
+     */
+    public String metricsJson() {
+        long now = System.nanoTime();
+        double uptime = (now - startNanos) / 1e9;
+        double recentSeconds = Math.min(uptime, RECENT_SECONDS);
+        long recentPixels = latencies.pixelsSince(now - RECENT_SECONDS * 1_000_000_000L);
+        long[] window = latencies.latencies();
+        long admittedPixels;
+        int admittedRequests;
+        synchronized (admission) {
+            admittedPixels = inFlightPixels;
+            admittedRequests = inFlightRequests;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.ROOT, "{\"uptimeSeconds\": %s, \"requests\": %d, \"completed\": %d, "
+                        + "\"failed\": %d, \"rejected\": %d, \"tooLarge\": %d,\n", MetricsReport.number(uptime),
+                requests.get(), completed.get(), failed.get(), rejected.get(), tooLarge.get()));
+        sb.append(String.format(Locale.ROOT, " \"inFlightRequests\": %d, \"inFlightPixels\": %d, \"maxInFlightPixels\": %d,\n",
+                admittedRequests, admittedPixels, maxInFlightPixels));
+        sb.append(String.format(Locale.ROOT, " \"pixels\": %d, \"bytesIn\": %d, \"bytesOut\": %d, "
+                        + "\"pixelsPerSecond\": %s, \"requestsPerSecond\": %s, \"recentPixelsPerSecond\": %s,\n",
+                pixels.get(), bytesIn.get(), bytesOut.get(), MetricsReport.number(pixels.get() / uptime),
+                MetricsReport.number(completed.get() / uptime), MetricsReport.number(recentPixels / recentSeconds)));
+        sb.append(" \"latencyNanos\": ");
+        if (window.length == 0) {
+            sb.append("null");
+        } else {
+            sb.append(String.format(Locale.ROOT, "{\"samples\": %d, \"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d}",
+                    window.length, MetricsReport.percentile(window, 50), MetricsReport.percentile(window, 90),
+                    MetricsReport.percentile(window, 99), MetricsReport.percentile(window, 100)));
+        }
+        sb.append(String.format(Locale.ROOT, ",\n \"pool\": {\"reused\": %d, \"allocated\": %d, \"idleBytes\": %d}}\n",
+                pool.getReused(), pool.getAllocated(), pool.getIdleBytes()));
+        return sb.toString();
+    }
+
+    private static long sendJson(HttpExchange exchange, int status, String json) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        return send(exchange, status, json);
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String text) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        send(exchange, status, text);
+    }
+
+    private static long send(HttpExchange exchange, int status, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+        return bytes.length;
+    }
+
+    /**
+     * Decoded pixels in a pooled array, which may be longer than the image
+     */
+    private static class Raster implements PixelSource {
+        private final int width;
+        private final int height;
+        private final int bitsPerPixel;
+        private final int[] pixels;
+
+        private Raster(int width, int height, int bitsPerPixel, int[] pixels) {
+            this.width = width;
+            this.height = height;
+            this.bitsPerPixel = bitsPerPixel;
+            this.pixels = pixels;
+        }
+
+        static Raster read(PixelSource source, int[] pixels) throws IOException {
+            int width = source.getWidth();
+            source.forEachRow((y, row) -> System.arraycopy(row, 0, pixels, y * width, width));
+            return new Raster(width, source.getHeight(), source.getBitsPerPixel(), pixels);
+        }
+
+        @Override
+        public int getWidth() {
+            return width;
+        }
+
+        @Override
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public int getBitsPerPixel() {
+            return bitsPerPixel;
+        }
+
+        @Override
+        public void forEachRow(RowConsumer consumer) throws IOException {
+            forEachRow(y -> true, consumer);
+        }
+
+        @Override
+        public void forEachRow(IntPredicate rows, RowConsumer consumer) throws IOException {
+            int[] row = new int[width];
+            for (int y = 0; y < height; y++) {
+                if (!rows.test(y)) continue;
+                System.arraycopy(pixels, y * width, row, 0, width);
+                consumer.accept(y, row);
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.apokalist.huffmanpngcompressor;
+
+import javafx.concurrent.Service;
+import javafx.concurrent.Task;
+import javafx.scene.image.Image;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Runs the compression of a PNG file on a background thread.
+ * Progress and the current stage are published through the usual {@code progress}
+ * and {@code message} properties, cancelling interrupts the worker which stops
+ * at the next row. Results and state changes arrive on the FX thread.
+ */
+public class CompressionService extends Service<Compressor> {
+    private File file;
+    private int workers = 1;
+
+    /// The UI always lets bands pick their own tables, the statistics then show what that saves
+    private static final int BAND_ROWS = 64;
+    private static final int MAX_TABLES = 8;
+
+    public void setFile(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @param workers histogram threads of the next run
+     */
+    public void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    @Override
+    protected Task<Compressor> createTask() {
+        /// Copied so a restart with another file cannot change a running task
+        File file = this.file;
+        int workers = this.workers;
+        return new Task<>() {
+            @Override
+            protected Compressor call() throws IOException {
+                updateMessage("Opening " + file.getName());
+                PixelSource source = openSource(file);
+                CompressionOptions options = new CompressionOptions()
+                        .setWorkers(workers)
+                        .setBandRows(BAND_ROWS)
+                        .setMaxTables(MAX_TABLES)
+                        .setPredictors(Predictor.values())
+                        .setRunLength(true)
+                        .setProgressListener((stage, done, total) -> {
+                            updateMessage(stage);
+                            updateProgress(done, total);
+                        });
+                return new Compressor(source, options);
+            }
+
+            @Override
+            protected void succeeded() {
+                updateMessage("Compressed " + file.getName());
+            }
+
+            @Override
+            protected void cancelled() {
+                updateMessage("Cancelled");
+            }
+
+            @Override
+            protected void failed() {
+                updateMessage("Failed");
+            }
+        };
+    }
+
+    /**
+     * Streams the PNG straight from disk so the full raster never has to fit in memory.
+     * Interlaced PNGs cannot be streamed and are decoded by JavaFX instead.
+     *
+     * @param file the loaded PNG
+     * @return pixel source for the compressor
+     * @throws IOException if the file is not a PNG or cannot be decoded
+     */
+    static PixelSource openSource(File file) throws IOException {
+        if (!PngStreamReader.isInterlaced(file.toPath())) return new PngStreamReader(file.toPath());
+
+        Image image = new Image(file.toURI().toString());
+        if (image.isError()) throw new IOException("Cannot decode " + file.getName(), image.getException());
+        return new FxPixelSource(image);
+    }
+}
@@ -2,6 +2,15 @@ package com.apokalist.huffmanpngcompressor;
 
 import javafx.scene.image.Image;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -9,67 +18,451 @@ import java.util.Map;
  */
 public class Compressor {
     private HuffmanTree huffmanTree;
-    private Map<String, Integer> colorFrequency;
+    private CanonicalCode canonicalCode;
+    private Map<Integer, String> huffmanCodes;
+    private ColorHistogram colorFrequency;
 
-    private int totalPixels;
+    private long totalPixels;
     private double compressionRatio;
 
-    private int originalSize;
-    private int compressedSize;
+    /// 64-bit: 24 bits per pixel overflow an int past 89 megapixels
+    private long originalSize;
+    private long compressedSize;
+
+    private PixelSource source;
+    private long payloadBits;
+    private long optimalPayloadBits;
+    private final int maxCodeLength;
+    private long containerSize;
+
+    private final int workers;
+    private int bandRows;
+
+    private AlphaMode alphaMode;
+    private CanonicalCode alphaCode;
+    private long alphaPayloadBits;
+
+    private ColorQuantizer quantizer;
+    private long squaredError;
+    private long quantizationTimeNanos;
+
+    private PredictiveCoder predictiveCoder;
+    private boolean predicted;
+    private long unpredictedContainerSize;
+
+    private RunLengthCoder runLengthCoder;
+    private boolean runLength;
+    private long unrunContainerSize;
+
+    private AdaptiveTables adaptiveTables;
+    private long singleTablePayloadBits;
+    private long singleTableContainerSize;
+    private long tableSelectionTimeNanos;
+    private long analysisTimeNanos;
+    private long sequentialAnalysisTimeNanos = -1;
+    private long treeBuildTimeNanos;
+    private ProgressListener progressListener;
+    private CompressionCache.Entry cached;
+    private final CompressionMetrics metrics = new CompressionMetrics();
 
 
 
     public Compressor(Image image) {
-        ImageAnalyzer iAM = new ImageAnalyzer();
-        colorFrequency = iAM.analyzeColors(image);
-        huffmanTree = new HuffmanTree(colorFrequency);
+        this(image, new CompressionOptions());
+    }
+
+    public Compressor(Image image, CompressionOptions options) {
+        this(new FxPixelSource(image), options);
+    }
+
+    /**
+     * Compresses any pixel source. Streamed sources such as {@link PngStreamReader}
+     * are read once for the histogram and once more by {@link #encode(Path)}.
+     * With a {@link CompressionCache} in the options the first pass only hashes the pixels
+     * when the image was seen before.
+     *
+     * @param source pixels to compress
+     * @param options compression settings
+     * @throws UncheckedIOException if the source cannot be read
+     */
+    public Compressor(PixelSource source, CompressionOptions options) {
+        this.source = source;
+        ImageAnalyzer iAM = new ImageAnalyzer(options.getAlphaMode().histogramMode());
+        workers = options.getWorkers();
+        maxCodeLength = options.getMaxCodeLength() > 0 ? options.getMaxCodeLength() : CanonicalCode.MAX_LENGTH;
+        progressListener = options.getProgressListener();
+
+        CompressionCache cache = options.getCache();
+        String cacheKey = null;
+        try {
+            if (cache != null) {
+                CompressionMetrics.Timer timer = metrics.start("hash");
+                cacheKey = CompressionCache.key(ContentHash.of(monitored(source, "Hashing")), options);
+                cached = cache.get(cacheKey);
+                if (cached != null) colorFrequency = cached.histogram();
+                analysisTimeNanos = timer.stop(pixels(source));
+            }
+            if (cached == null) {
+                CompressionMetrics.Timer timer = metrics.start("histogram");
+                colorFrequency = iAM.analyzeColors(monitored(source, "Counting colors"), workers);
+                analysisTimeNanos += timer.stop(pixels(source));
+            }
+
+            if (cached == null && workers > 1 && options.isMeasureSpeedup()) {
+                /// Reference run on the sequential path, only used for the speedup figure
+                long start = System.nanoTime();
+                iAM.analyzeColors(source);
+                sequentialAnalysisTimeNanos = System.nanoTime() - start;
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the image: " + e.getMessage(), e);
+        }
+        ColorHistogram counted = colorFrequency;
+        buildCode(options);
+        if (cache != null && cached == null) {
+            cache.put(cacheKey, new CompressionCache.Entry(counted, canonicalCode, optimalPayloadBits));
+        }
+    }
+
+    /**
+     * Compresses a source whose histogram was already computed, skipping the analysis pass.
+     * Used by pipelines that count colors in a stage of their own.
+     *
+     * @param source pixels to compress
+     * @param colorFrequency histogram of exactly these pixels, counted in the
+     *                       {@link AlphaMode#histogramMode()} of the options
+     * @param options compression settings
+     */
+    public Compressor(PixelSource source, ColorHistogram colorFrequency, CompressionOptions options) {
+        this(source, colorFrequency, null, options);
+    }
+
+    /**
+     * Same, with the code of a cache entry the histogram came from, null to build the code
+     */
+    Compressor(PixelSource source, ColorHistogram colorFrequency, CompressionCache.Entry cached, CompressionOptions options) {
+        this.source = source;
+        this.colorFrequency = colorFrequency;
+        this.cached = cached;
+        workers = options.getWorkers();
+        maxCodeLength = options.getMaxCodeLength() > 0 ? options.getMaxCodeLength() : CanonicalCode.MAX_LENGTH;
+        progressListener = options.getProgressListener();
+        buildCode(options);
+    }
+
+    private void buildCode(CompressionOptions options) {
+        bandRows = options.getBandRows();
+        alphaMode = options.getAlphaMode();
+        if (progressListener != null) {
+            if (Thread.currentThread().isInterrupted())
+                throw new UncheckedIOException(new InterruptedIOException("Cancelled"));
+            progressListener.progress("Building codes", 0, 1);
+        }
+        if (options.getPaletteSize() > 0 && colorFrequency.size() > options.getPaletteSize()) quantize(options);
+        CompressionMetrics.Timer timer = metrics.start("tree");
+        if (alphaMode == AlphaMode.SEPARATE) splitAlpha();
+        if (cached != null && cached.getCodeSize() == colorFrequency.size()) {
+            // The node tree is not rebuilt on a hit, getHuffmanRoot() stays null as with the linear builder
+            canonicalCode = cached.code();
+            optimalPayloadBits = cached.getOptimalPayloadBits();
+        } else if (options.isLinearTreeBuilder()) {
+            // No node tree, so there is nothing to visualize, getHuffmanRoot() stays null
+            int[] colors = colorFrequency.colors();
+            int[] frequencies = colorFrequency.counts();
+            canonicalCode = buildCode(colors, frequencies, TwoQueueCodeBuilder.buildLengths(frequencies));
+        } else {
+            huffmanTree = new HuffmanTree(colorFrequency);
+            int[] colors = huffmanTree.getColors();
+            int[] frequencies = new int[colors.length];
+            for (int i = 0; i < colors.length; i++) frequencies[i] = colorFrequency.get(colors[i]);
+            canonicalCode = buildCode(colors, frequencies, huffmanTree.getCodeLengths());
+        }
+        treeBuildTimeNanos = timer.stop(0);
         calculateStatistics();
+        singleTablePayloadBits = payloadBits;
+        singleTableContainerSize = containerSize;
+        if (options.getMaxTables() > 1 && bandRows > 0) selectTables(options.getMaxTables());
+        if (options.getPredictors().length > 0) selectPrediction(options.getPredictors());
+        if (options.isRunLength() && alphaMode != AlphaMode.SEPARATE) selectRunLength();
+        metrics.finish(colorFrequency.getTotalCount(), colorFrequency.size(), canonicalCode.getMaxLength(),
+                payloadBits, containerSize);
+        if (progressListener != null) progressListener.progress("Building codes", 1, 1);
+    }
+
+    /**
+     * Cuts the colors down to the palette size and continues with the quantized pixels.
+     * Without dithering the quantized histogram and its error come straight from the counted one,
+     * dithered pixels have to be counted again.
+     */
+    private void quantize(CompressionOptions options) {
+        CompressionMetrics.Timer timer = metrics.start("quantize");
+        quantizer = ColorQuantizer.medianCut(colorFrequency, options.getPaletteSize());
+        QuantizedPixelSource quantized = new QuantizedPixelSource(source, quantizer, options.isDither());
+        if (options.isDither()) {
+            try {
+                colorFrequency = new ImageAnalyzer(alphaMode.histogramMode())
+                        .analyzeColors(monitored(quantized, "Dithering"), workers);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Cannot read the image: " + e.getMessage(), e);
+            }
+            squaredError = quantized.getSquaredError();
+        } else {
+            squaredError = quantizer.squaredError(colorFrequency);
+            colorFrequency = quantizer.remap(colorFrequency);
+        }
+        source = quantized;
+        quantizationTimeNanos = timer.stop(options.isDither() ? pixels(source) : 0);
+    }
+
+    /**
+     * Splits the packed histogram into the color histogram and the code of the alpha values
+     */
+    private void splitAlpha() {
+        ColorHistogram colors = new ColorHistogram(colorFrequency.getTotalCount());
+        int[] alphaCounts = new int[256];
+        colorFrequency.forEach((symbol, count) -> {
+            colors.add(symbol & 0xFFFFFF, count);
+            alphaCounts[AlphaMode.alpha(AlphaMode.toArgb(symbol))] += count;
+        });
+        colorFrequency = colors;
+
+        int used = 0;
+        for (int count : alphaCounts) if (count > 0) used++;
+        int[] alphas = new int[used];
+        int[] frequencies = new int[used];
+        for (int alpha = 0, i = 0; alpha < 256; alpha++) {
+            if (alphaCounts[alpha] == 0) continue;
+            alphas[i] = alpha;
+            frequencies[i++] = alphaCounts[alpha];
+        }
+        /// 256 symbols never get past the length limit
+        alphaCode = new CanonicalCode(alphas, TwoQueueCodeBuilder.buildLengths(frequencies));
+        alphaPayloadBits = 0;
+        if (used > 1) {
+            for (int i = 0; i < used; i++) {
+                alphaPayloadBits += (long) alphaCode.getLength(alphaCode.indexOf(alphas[i])) * frequencies[i];
+            }
+        }
+    }
+
+    /**
+     * Counts every band on its own and clusters the band histograms into shared tables.
+     * Costs one more pass over the source; the tables are only kept when they beat the single table.
+     */
+    private void selectTables(int maxTables) {
+        CompressionMetrics.Timer timer = metrics.start("tables");
+        try {
+            ColorHistogram[] bands = new ImageAnalyzer(alphaMode == AlphaMode.SEPARATE ? AlphaMode.IGNORE : alphaMode)
+                    .analyzeBands(monitored(source, "Counting bands"), bandRows);
+            AdaptiveTables tables = AdaptiveTables.build(bands, canonicalCode, maxTables, maxCodeLength);
+            if (tables.getTableCount() > 1) {
+                adaptiveTables = tables;
+                calculateStatistics();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the image: " + e.getMessage(), e);
+        }
+        tableSelectionTimeNanos = timer.stop(pixels(source));
+    }
+
+    /**
+     * Runs the residual analysis pass and switches to residual coding when its container is smaller
+     */
+    private void selectPrediction(Predictor[] predictors) {
+        CompressionMetrics.Timer timer = metrics.start("predict");
+        try {
+            predictiveCoder = PredictiveCoder.analyze(monitored(source, "Predicting"), predictors, hasTransparency(),
+                    bandRows, canonicalCode, alphaMode.histogramMode(), maxCodeLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the image: " + e.getMessage(), e);
+        }
+        unpredictedContainerSize = containerSize;
+        long predictedSize = new HuffmanEncoder(predictiveCoder, bandRows, workers)
+                .containerSize(source, predictiveCoder.getPayloadBits());
+        if (predictedSize < containerSize) {
+            predicted = true;
+            calculateStatistics();
+        }
+        timer.stop(pixels(source));
+    }
+
+    /**
+     * Runs the two run passes and switches to run-length rows when their container is the smallest so far
+     */
+    private void selectRunLength() {
+        CompressionMetrics.Timer timer = metrics.start("runs");
+        try {
+            runLengthCoder = RunLengthCoder.analyze(monitored(source, "Finding runs"), canonicalCode, alphaMode,
+                    maxCodeLength);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the image: " + e.getMessage(), e);
+        }
+        unrunContainerSize = containerSize;
+        long runSize = new HuffmanEncoder(runLengthCoder, bandRows, workers)
+                .containerSize(source, runLengthCoder.getPayloadBits());
+        if (runSize < containerSize) {
+            runLength = true;
+            predicted = false;
+            calculateStatistics();
+        }
+        timer.stop(pixels(source));
+    }
+
+    /**
+     * @return true when alpha is kept and some pixel is not opaque
+     */
+    private boolean hasTransparency() {
+        if (alphaMode == AlphaMode.SEPARATE)
+            return alphaCode.size() > 1 || alphaCode.size() == 1 && alphaCode.getSymbol(0) != 0xFF;
+        if (alphaMode == AlphaMode.IGNORE) return false;
+        boolean[] found = {false};
+        colorFrequency.forEach((symbol, count) -> found[0] |= symbol >>> 24 != 0);
+        return found[0];
+    }
+
+    /**
+     * @return the source reporting to the progress listener, or the source itself when nobody listens
+     */
+    private PixelSource monitored(PixelSource source, String stage) {
+        return progressListener == null ? source : new MonitoredPixelSource(source, stage, progressListener);
+    }
+
+    private static long pixels(PixelSource source) {
+        return (long) source.getWidth() * source.getHeight();
     }
 
     private void calculateStatistics () {
         /// Original Size of the image in bits
-        totalPixels = colorFrequency.values().stream().mapToInt(Integer::intValue).sum();
+        totalPixels = colorFrequency.getTotalCount();
+
+        // Measured against the encoding the pixels came from: palette index, alpha and all
+        originalSize = totalPixels * source.getBitsPerPixel();
+
+        // The ratio counts the whole container, header included, exactly as encode() writes it
+        if (predicted) {
+            payloadBits = predictiveCoder.getPayloadBits();
+        } else if (runLength) {
+            payloadBits = runLengthCoder.getPayloadBits();
+        } else {
+            payloadBits = alphaPayloadBits
+                    + (adaptiveTables != null ? adaptiveTables.getPayloadBits() : canonicalCode.encodedBits(colorFrequency));
+        }
+        compressedSize = payloadBits;
+        containerSize = newEncoder().containerSize(source, payloadBits);
+        compressionRatio = (1.0 - (double) containerSize * 8 / originalSize);
+    }
 
-        // 24 bits (3 bytes per pixel for RGB)
-        originalSize = totalPixels * 24;
 
-        compressedSize = calculateCompressedSize();
-        compressionRatio = (1.0 - (double) compressedSize / originalSize);
 
-        //  ___ Note for Witold: The alpha channel is intentionally excluded
-        //  as it is deemed unnecessary for the compression process ___
+    /**
+     * Uses the optimal lengths when they fit the length limit, otherwise package-merge lengths.
+     * Also records the payload size of the unbounded code to report what the limit costs.
+     *
+     * @param colors coded colors
+     * @param frequencies count of every color
+     * @param optimalLengths unbounded Huffman code length of every color
+     */
+    private CanonicalCode buildCode(int[] colors, int[] frequencies, int[] optimalLengths) {
+        optimalPayloadBits = 0;
+        int maxDepth = 0;
+        for (int i = 0; i < colors.length; i++) {
+            optimalPayloadBits += (long) optimalLengths[i] * frequencies[i];
+            maxDepth = Math.max(maxDepth, optimalLengths[i]);
+        }
+        if (maxDepth <= maxCodeLength) return new CanonicalCode(colors, optimalLengths);
+        return new CanonicalCode(colors, LengthLimitedCodeBuilder.buildLengths(frequencies, maxCodeLength));
     }
 
+    /**
+     * Writes the image into a Huffman container file
+     *
+     * @param file destination, replaced if it exists
+     * @return number of bytes written
+     * @throws IOException if writing fails
+     */
+    public long encode(Path file) throws IOException {
+        CompressionMetrics.Timer timer = metrics.start("encode");
+        long written = newEncoder().encode(monitored(source, "Encoding"), payloadBits, file);
+        timer.stop(pixels(source));
+        return written;
+    }
 
+    /**
+     * Writes the image into native memory, see {@link SegmentPool}
+     *
+     * @param target at least {@link #getContainerSize()} bytes
+     * @return number of bytes written
+     * @throws IOException if the source cannot be read
+     */
+    public long encode(MemorySegment target) throws IOException {
+        CompressionMetrics.Timer timer = metrics.start("encode");
+        long written = newEncoder().encode(monitored(source, "Encoding"), payloadBits, target);
+        timer.stop(pixels(source));
+        return written;
+    }
 
-    private int  calculateCompressedSize() {
-        int totalBits = 0;
+    /**
+     * Writes the image into a Huffman container stream, the stream is left open
+     *
+     * @return number of bytes written
+     * @throws IOException if writing fails
+     */
+    public long encode(OutputStream out) throws IOException {
+        CompressionMetrics.Timer timer = metrics.start("encode");
+        long written = newEncoder().encode(monitored(source, "Encoding"), payloadBits, out);
+        timer.stop(pixels(source));
+        return written;
+    }
 
-        Map<String, String> huffmanCodes = huffmanTree.getCodes();
+    private HuffmanEncoder newEncoder() {
+        if (runLength) return new HuffmanEncoder(runLengthCoder, bandRows, workers);
+        if (predicted) return new HuffmanEncoder(predictiveCoder, bandRows, workers);
+        if (adaptiveTables != null)
+            return new HuffmanEncoder(adaptiveTables.getTables(), adaptiveTables.getBandTables(), alphaMode, alphaCode,
+                    bandRows, workers);
+        return new HuffmanEncoder(new CanonicalCode[]{canonicalCode}, null, alphaMode, alphaCode, bandRows, workers);
+    }
 
-        for (Map.Entry<String, Integer> entry : colorFrequency.entrySet()) {
-            String color = entry.getKey();
-            int frequency = entry.getValue();
+    /**
+     * Encodes into memory, decodes the result and compares it with the source pixels
+     *
+     * @return true when the decoded image matches the original and has the reported size
+     * @throws IOException if the container cannot be decoded
+     */
+    public boolean verifyRoundTrip() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(Integer.MAX_VALUE - 8, containerSize));
+        long written = encode(out);
+        DecodedImage decoded = new HuffmanDecoder().decode(new ByteArrayInputStream(out.toByteArray()));
+        return written == containerSize && decoded.matches(source, alphaMode != AlphaMode.IGNORE);
+    }
 
-            String code = huffmanCodes.get(color);
-            totalBits += code.length() * frequency;
-        }
-        return totalBits;
 
+    /**
+     * @param progressListener receives the rows of later {@link #encode} calls, null for none
+     */
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
     }
 
 
     // GETTERS
-    public Map <String, Integer> getColorFrequency() {
+    public ColorHistogram getColorFrequency() {
         return colorFrequency;
     }
 
-    public Map <String, String> getHuffmanCodes() {
-        return huffmanTree.getCodes();
+    public Map <Integer, String> getHuffmanCodes() {
+        if (huffmanCodes == null) {
+            huffmanCodes = new HashMap<>();
+            for (int i = 0; i < canonicalCode.size(); i++) {
+                int color = canonicalCode.getSymbol(i);
+                huffmanCodes.put(color, canonicalCode.codeString(color));
+            }
+        }
+        return huffmanCodes;
     }
 
 
-    public int getTotalPixels() {
+    public long getTotalPixels() {
         return totalPixels;
     }
 
@@ -77,16 +470,236 @@ public class Compressor {
         return compressionRatio;
     }
 
-    public int getOriginalSize() {
+    public long getOriginalSize() {
         return originalSize;
     }
 
-    public int getCompressedSize() {
+    public long getCompressedSize() {
         return compressedSize;
     }
 
+    /**
+     * @return exact size of the payload bitstream
+     */
+    public long getPayloadBits() {
+        return payloadBits;
+    }
+
+    /**
+     * @return exact size in bytes of the container {@link #encode(Path)} writes
+     */
+    public long getContainerSize() {
+        return containerSize;
+    }
+
+    public CanonicalCode getCanonicalCode() {
+        return canonicalCode;
+    }
+
+    /**
+     * @return payload size the unbounded Huffman tree would need
+     */
+    public long getOptimalPayloadBits() {
+        return optimalPayloadBits;
+    }
+
+    /**
+     * @return extra payload bits paid for limiting the code length, 0 when the tree already fit
+     */
+    public long getLengthLimitCost() {
+        return singleTablePayloadBits - alphaPayloadBits - optimalPayloadBits;
+    }
+
+    public int getMaxCodeLength() {
+        return maxCodeLength;
+    }
+
+    /**
+     * @return the coded pixels, a {@link QuantizedPixelSource} over the original when colors were cut
+     */
+    public PixelSource getSource() {
+        return source;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    public AlphaMode getAlphaMode() {
+        return alphaMode;
+    }
+
+    /**
+     * @return code of the alpha values, null unless alpha is coded on its own
+     */
+    public CanonicalCode getAlphaCode() {
+        return alphaCode;
+    }
+
+    /**
+     * @return payload bits spent on alpha codes, 0 unless alpha is coded on its own and varies
+     */
+    public long getAlphaPayloadBits() {
+        return alphaPayloadBits;
+    }
+
+    /**
+     * @return the palette the colors were cut down to, null when every color was kept
+     */
+    public ColorQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    /**
+     * @return peak signal to noise ratio of the coded pixels against the original in dB, infinite when lossless
+     */
+    public double getPsnr() {
+        return ColorQuantizer.psnr(squaredError, colorFrequency.getTotalCount(),
+                quantizer == null ? 3 : quantizer.getChannels());
+    }
+
+    /**
+     * @return time spent building the palette and mapping or dithering the pixels, 0 when lossless
+     */
+    public long getQuantizationTimeNanos() {
+        return quantizationTimeNanos;
+    }
+
+    /**
+     * @return result of the residual analysis with its per-predictor statistics, null when no predictors were given
+     */
+    public PredictiveCoder getPredictiveCoder() {
+        return predictiveCoder;
+    }
+
+    /**
+     * @return true when the container codes prediction residuals instead of colors
+     */
+    public boolean isPredicted() {
+        return predicted;
+    }
+
+    /**
+     * @return container bits residual coding saved over color coding, negative when it lost and was not used
+     */
+    public long getPredictionSavedBits() {
+        if (predictiveCoder == null) return 0;
+        long predictedSize = new HuffmanEncoder(predictiveCoder, bandRows, workers)
+                .containerSize(source, predictiveCoder.getPayloadBits());
+        return (unpredictedContainerSize - predictedSize) * 8;
+    }
+
+    /**
+     * @return result of the run analysis with its statistics, null when runs were not requested
+     */
+    public RunLengthCoder getRunLengthCoder() {
+        return runLengthCoder;
+    }
+
+    /**
+     * @return true when rows of the container may be runs of colors
+     */
+    public boolean isRunLength() {
+        return runLength;
+    }
+
+    /**
+     * @return container bits run-length rows saved over what was picked before them, negative when they lost and were not used
+     */
+    public long getRunLengthSavedBits() {
+        if (runLengthCoder == null) return 0;
+        long runSize = new HuffmanEncoder(runLengthCoder, bandRows, workers)
+                .containerSize(source, runLengthCoder.getPayloadBits());
+        return (unrunContainerSize - runSize) * 8;
+    }
+
+    /**
+     * @return rows per band of the container, 0 for a single stream
+     */
+    public int getBandRows() {
+        return bandRows;
+    }
+
+    /**
+     * @return number of code tables in the container, more than 1 only when per-band tables paid off
+     */
+    public int getTableCount() {
+        return adaptiveTables == null ? 1 : adaptiveTables.getTableCount();
+    }
+
+    /**
+     * @return per-band tables, null when the container uses the global code only
+     */
+    public AdaptiveTables getAdaptiveTables() {
+        return adaptiveTables;
+    }
+
+    /**
+     * @return container size with the global code only, the baseline of the per-band tables
+     */
+    public long getSingleTableContainerSize() {
+        return singleTableContainerSize;
+    }
+
+    /**
+     * @return container bits the per-band tables saved over the single table, header included
+     */
+    public long getTableSavedBits() {
+        return (singleTableContainerSize - containerSize) * 8;
+    }
+
+    /**
+     * @return time spent counting the bands and clustering the tables, 0 when not requested
+     */
+    public long getTableSelectionTimeNanos() {
+        return tableSelectionTimeNanos;
+    }
+
+    public long getAnalysisTimeNanos() {
+        return analysisTimeNanos;
+    }
+
+    /**
+     * @return time spent building the code lengths and the canonical code
+     */
+    public long getTreeBuildTimeNanos() {
+        return treeBuildTimeNanos;
+    }
+
+    /**
+     * @return time of the sequential reference run, -1 when it was not measured
+     */
+    public long getSequentialAnalysisTimeNanos() {
+        return sequentialAnalysisTimeNanos;
+    }
+
+    /**
+     * @return how many times faster the parallel analysis was than the sequential one, NaN when not measured
+     */
+    public double getAnalysisSpeedup() {
+        if (sequentialAnalysisTimeNanos < 0 || analysisTimeNanos == 0) return Double.NaN;
+        return (double) sequentialAnalysisTimeNanos / analysisTimeNanos;
+    }
+
+    /**
+     * @return per-stage timings, allocations and throughput of this run, encoding included once it ran
+     */
+    public CompressionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return true when the histogram and the code came from the {@link CompressionCache}
+     */
+    public boolean isCacheHit() {
+        return cached != null;
+    }
+
+    /**
+     * @return root of the Huffman tree, null when the linear builder was used or the code came from the cache
+     */
     public HuffmanPNGCompressor.HuffmanNode getHuffmanRoot() {
-        return huffmanTree.getRoot();
+        return huffmanTree == null ? null : huffmanTree.getRoot();
     }
 
 
@@ -0,0 +1,207 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Random access to a container file: the header and the decode table are read once,
+ * then any row range can be decoded. Bands of a banded container are decoded on their
+ * own, in parallel, and only the bands overlapping the range are touched; a single
+ * stream container has to be decoded from the top up to the last requested row, and so
+ * has an adaptive one, whose code is rebuilt pixel by pixel.
+ */
+public class ContainerReader implements Closeable {
+    private final FileChannel channel;
+    private final HuffmanFormat.Header header;
+    private final HuffmanDecodeTable[] tables;
+    private final HuffmanDecodeTable alphaTable;
+    private final int alpha;
+    private final PredictiveCoder predictive;
+    private final RunLengthCoder runLength;
+    private final long payloadStart;
+    private final ForkJoinPool pool;
+
+    public ContainerReader(Path file) throws IOException {
+        this(file, 1);
+    }
+
+    /**
+     * @param file container written by {@link HuffmanEncoder}
+     * @param workers threads decoding bands at the same time
+     * @throws IOException if the header is corrupt or reading fails
+     */
+    public ContainerReader(Path file, int workers) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            BitReader reader = new MappedBitReader(channel, 0, channel.size());
+            header = HuffmanFormat.readHeader(reader);
+            payloadStart = reader.getBitsRead() >>> 3;
+            runLength = header.isRunLength()
+                    ? new RunLengthCoder(header.getCode(), header.getRunColorCode(), header.getRunLengthCode()) : null;
+            /// The run coder has the table of the plain rows already
+            tables = new HuffmanDecodeTable[runLength != null ? 0 : header.getTableCount()];
+            for (int i = 0; i < tables.length; i++) tables[i] = new HuffmanDecodeTable(header.getTable(i));
+            alphaTable = HuffmanDecoder.alphaTable(header);
+            alpha = HuffmanDecoder.constantAlpha(header);
+            predictive = header.isPredicted() ? new PredictiveCoder(header.getChannelCodes(), header.getBandRows()) : null;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        pool = workers > 1 && header.getBandCount() > 1 ? new ForkJoinPool(workers) : null;
+    }
+
+    public HuffmanFormat.Header getHeader() {
+        return header;
+    }
+
+    public int getWidth() {
+        return header.getWidth();
+    }
+
+    public int getHeight() {
+        return header.getHeight();
+    }
+
+    /**
+     * @return the whole image, opaque unless the container kept alpha
+     * @throws IOException if the payload is corrupt
+     */
+    public DecodedImage decode() throws IOException {
+        return decodeRegion(0, getHeight());
+    }
+
+    /**
+     * Decodes the rows y0 (inclusive) to y1 (exclusive) at full width
+     *
+     * @return an image of getWidth() x (y1 - y0) pixels, opaque unless the container kept alpha
+     * @throws IOException if the payload is corrupt
+     */
+    public DecodedImage decodeRegion(int y0, int y1) throws IOException {
+        if (y0 < 0 || y1 > getHeight() || y0 > y1)
+            throw new IllegalArgumentException("Rows " + y0 + ".." + y1 + " outside 0.." + getHeight());
+        int width = getWidth();
+        long pixelCount = (long) width * (y1 - y0);
+        if (pixelCount > Integer.MAX_VALUE - 8)
+            throw new IOException("Region of " + width + "x" + (y1 - y0) + " does not fit in one array");
+        int[] pixels = new int[(int) pixelCount];
+        if (pixelCount == 0) return new DecodedImage(width, y1 - y0, pixels);
+
+        if (header.isAdaptive()) {
+            decodeAdaptive(y0, y1, pixels);
+            return new DecodedImage(width, y1 - y0, pixels);
+        }
+        if (!header.isBanded()) {
+            decodeRows(tables.length == 0 ? null : tables[0], 0, header.getPayloadBits(), 0, y0, y1, y0, pixels);
+            return new DecodedImage(width, y1 - y0, pixels);
+        }
+
+        int bandRows = header.getBandRows();
+        int firstBand = y0 / bandRows;
+        int lastBand = (y1 - 1) / bandRows;
+        if (pool == null || firstBand == lastBand) {
+            for (int band = firstBand; band <= lastBand; band++) decodeBand(band, y0, y1, pixels);
+        } else {
+            List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+            for (int band = firstBand; band <= lastBand; band++) {
+                int index = band;
+                tasks.add(pool.submit(() -> {
+                    decodeBand(index, y0, y1, pixels);
+                    return null;
+                }));
+            }
+            /// Joined in order so the first failing band reports its error
+            for (ForkJoinTask<Void> task : tasks) {
+                try {
+                    task.join();
+                } catch (RuntimeException e) {
+                    if (e.getCause() instanceof IOException io) throw io;
+                    throw e;
+                }
+            }
+        }
+        return new DecodedImage(width, y1 - y0, pixels);
+    }
+
+    /**
+     * Decodes the rows of one band that fall into y0..y1
+     */
+    private void decodeBand(int band, int y0, int y1, int[] pixels) throws IOException {
+        int bandY = band * header.getBandRows();
+        int bandEnd = Math.min(getHeight(), bandY + header.getBandRows());
+        decodeRows(tables.length == 0 ? null : tables[header.getBandTable(band)], header.getBandStart(band), header.getBandEnd(band), bandY,
+                Math.max(y0, bandY), Math.min(y1, bandEnd), y0, pixels);
+    }
+
+    /**
+     * Decodes the payload bits startBit..endBit, which begin with row {@code firstRow}.
+     * Rows above {@code from} are decoded and thrown away, rows from..to land in the region.
+     *
+     * @param regionY0 image row stored in the first row of {@code pixels}
+     */
+    private void decodeRows(HuffmanDecodeTable table, long startBit, long endBit, int firstRow, int from, int to,
+                            int regionY0, int[] pixels) throws IOException {
+        int width = getWidth();
+        long startByte = startBit >>> 3;
+        BitReader reader = new MappedBitReader(channel, payloadStart + startByte, ((endBit + 7) >>> 3) - startByte);
+        reader.skipBits((int) (startBit & 7));
+
+        if (predictive != null) {
+            /// Skipped rows are still needed as the row above of the next one
+            int[] previous = new int[width];
+            int[] current = new int[width];
+            for (int y = firstRow; y < from; y++) {
+                predictive.decodeRow(y, reader, current, 0, previous, 0, width);
+                int[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+            for (int y = from; y < to; y++) {
+                int offset = (y - regionY0) * width;
+                if (y == from) {
+                    predictive.decodeRow(y, reader, pixels, offset, previous, 0, width);
+                } else {
+                    predictive.decodeRow(y, reader, pixels, offset, pixels, offset - width, width);
+                }
+            }
+            return;
+        }
+        if (runLength != null) {
+            int[] skipped = new int[width];
+            for (int y = firstRow; y < from; y++) runLength.decodeRow(reader, skipped, 0, width);
+            for (int y = from; y < to; y++) runLength.decodeRow(reader, pixels, (y - regionY0) * width, width);
+            return;
+        }
+        int[] skipped = new int[width];
+        for (int y = firstRow; y < from; y++) {
+            HuffmanDecoder.decodePixels(table, alphaTable, alpha, reader, skipped, 0, width);
+        }
+        HuffmanDecoder.decodePixels(table, alphaTable, alpha, reader, pixels, (from - regionY0) * width,
+                (to - from) * width);
+    }
+
+    /**
+     * Decodes an adaptive payload from the top, rows above y0 only feed the code
+     */
+    private void decodeAdaptive(int y0, int y1, int[] pixels) throws IOException {
+        int width = getWidth();
+        BitReader reader = new MappedBitReader(channel, payloadStart, channel.size() - payloadStart);
+        AdaptiveHuffmanCoder coder = new AdaptiveHuffmanCoder(header.getAdaptiveSymbolBits());
+        int[] skipped = new int[width];
+        for (int y = 0; y < y0; y++) coder.decodePixels(reader, skipped, 0, width);
+        coder.decodePixels(reader, pixels, 0, (y1 - y0) * width);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (pool != null) pool.shutdown();
+        channel.close();
+    }
+}
@@ -0,0 +1,116 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+
+/**
+ * Streaming XXH64 over packed pixels, used as the key of the {@link CompressionCache}.
+ * Every int is hashed as its 4 little-endian bytes, so the result equals XXH64 with seed 0
+ * over the raw ARGB buffer. Not cryptographic, only fast and well spread.
+ */
+public class ContentHash {
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    /// One stripe is 32 bytes, 8 ints feeding the 4 accumulators
+    private static final int STRIPE_INTS = 8;
+
+    private long v1 = PRIME1 + PRIME2;
+    private long v2 = PRIME2;
+    private long v3 = 0;
+    private long v4 = -PRIME1;
+    private final int[] pending = new int[STRIPE_INTS];
+    private int pendingCount;
+    private long totalInts;
+
+    /**
+     * Hashes every pixel of the source together with its size
+     *
+     * @param source pixels to hash, read once
+     * @return the hash of the size followed by the rows
+     * @throws IOException if the source cannot be read
+     */
+    public static long of(PixelSource source) throws IOException {
+        ContentHash hash = new ContentHash();
+        hash.update(new int[]{source.getWidth(), source.getHeight()}, 0, 2);
+        source.forEachRow((y, row) -> hash.update(row, 0, source.getWidth()));
+        return hash.digest();
+    }
+
+    /**
+     * @param values ints to append
+     * @param offset first one
+     * @param count number of ints
+     */
+    public void update(int[] values, int offset, int count) {
+        totalInts += count;
+        int end = offset + count;
+        if (pendingCount > 0) {
+            while (pendingCount < STRIPE_INTS && offset < end) pending[pendingCount++] = values[offset++];
+            if (pendingCount < STRIPE_INTS) return;
+            stripe(pending, 0);
+            pendingCount = 0;
+        }
+        for (; offset + STRIPE_INTS <= end; offset += STRIPE_INTS) stripe(values, offset);
+        while (offset < end) pending[pendingCount++] = values[offset++];
+    }
+
+    /**
+     * @return hash of everything appended so far, more can still be appended afterwards
+     */
+    public long digest() {
+        long h;
+        if (totalInts >= STRIPE_INTS) {
+            h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            h = merge(h, v1);
+            h = merge(h, v2);
+            h = merge(h, v3);
+            h = merge(h, v4);
+        } else {
+            h = PRIME5;
+        }
+        h += totalInts * 4;
+
+        int i = 0;
+        for (; i + 2 <= pendingCount; i += 2) {
+            h ^= round(0, lane(pending, i));
+            h = Long.rotateLeft(h, 27) * PRIME1 + PRIME4;
+        }
+        if (i < pendingCount) {
+            h ^= (pending[i] & 0xFFFFFFFFL) * PRIME1;
+            h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+        }
+
+        h ^= h >>> 33;
+        h *= PRIME2;
+        h ^= h >>> 29;
+        h *= PRIME3;
+        h ^= h >>> 32;
+        return h;
+    }
+
+    private void stripe(int[] values, int offset) {
+        v1 = round(v1, lane(values, offset));
+        v2 = round(v2, lane(values, offset + 2));
+        v3 = round(v3, lane(values, offset + 4));
+        v4 = round(v4, lane(values, offset + 6));
+    }
+
+    /// Two ints read as one little-endian 8-byte lane
+    private static long lane(int[] values, int offset) {
+        return (values[offset] & 0xFFFFFFFFL) | (long) values[offset + 1] << 32;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME1;
+    }
+
+    private static long merge(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME1 + PRIME4;
+    }
+}
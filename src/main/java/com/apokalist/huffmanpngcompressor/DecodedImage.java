@@ -0,0 +1,131 @@
+package com.apokalist.huffmanpngcompressor;
+
+import javafx.scene.image.WritableImage;
+
+import java.io.IOException;
+import java.util.function.IntPredicate;
+
+/**
+ * Raster rebuilt by the decoder, pixels are packed ARGB ints in row-major order
+ */
+public class DecodedImage implements PixelSource {
+    private final int width;
+    private final int height;
+    private final int[] pixels;
+    private final int bitsPerPixel;
+
+    public DecodedImage(int width, int height, int[] pixels) {
+        this(width, height, pixels, 24);
+    }
+
+    /**
+     * @param bitsPerPixel pixel size of the encoding the pixels came from, see {@link PixelSource#getBitsPerPixel()}
+     */
+    public DecodedImage(int width, int height, int[] pixels, int bitsPerPixel) {
+        if (pixels.length != (long) width * height)
+            throw new IllegalArgumentException("Expected " + (long) width * height + " pixels, got " + pixels.length);
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        this.bitsPerPixel = bitsPerPixel;
+    }
+
+    /**
+     * Reads a whole source into memory
+     *
+     * @param source pixels to copy
+     * @return raster holding every pixel of the source
+     * @throws IOException if the source cannot be read
+     */
+    public static DecodedImage readFully(PixelSource source) throws IOException {
+        int width = source.getWidth();
+        long pixelCount = (long) width * source.getHeight();
+        if (pixelCount > Integer.MAX_VALUE - 8)
+            throw new IOException("Image of " + width + "x" + source.getHeight() + " does not fit in one array");
+        int[] pixels = new int[(int) pixelCount];
+        source.forEachRow((y, row) -> System.arraycopy(row, 0, pixels, y * width, width));
+        return new DecodedImage(width, source.getHeight(), pixels, source.getBitsPerPixel());
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getBitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    @Override
+    public void forEachRow(RowConsumer consumer) throws IOException {
+        forEachRow(y -> true, consumer);
+    }
+
+    @Override
+    public void forEachRow(IntPredicate rows, RowConsumer consumer) throws IOException {
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            if (!rows.test(y)) continue;
+            System.arraycopy(pixels, y * width, row, 0, width);
+            consumer.accept(y, row);
+        }
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    public int getPixel(int x, int y) {
+        return pixels[y * width + x];
+    }
+
+    /**
+     * @return the pixels as a JavaFX image, for showing the round-trip result
+     */
+    public WritableImage toFxImage() {
+        /// Built in FxPixelSource so loading this class never needs the JavaFX jars, the CLI runs without them
+        return FxPixelSource.toImage(width, height, pixels);
+    }
+
+    /**
+     * Compares the RGB part of every pixel with another source, alpha is left out.
+     *
+     * @param source the original pixels
+     * @return true when all pixels match
+     * @throws IOException if the source cannot be read
+     */
+    public boolean matches(PixelSource source) throws IOException {
+        return matches(source, false);
+    }
+
+    /**
+     * Compares every pixel with another source
+     *
+     * @param source the original pixels
+     * @param alpha true to compare alpha as well, for containers that kept it
+     * @return true when all pixels match
+     * @throws IOException if the source cannot be read
+     */
+    public boolean matches(PixelSource source, boolean alpha) throws IOException {
+        int mask = alpha ? 0xFFFFFFFF : 0xFFFFFF;
+        if (source.getWidth() != width || source.getHeight() != height) return false;
+        boolean[] equal = {true};
+        source.forEachRow((y, row) -> {
+            if (!equal[0]) return;
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                if (((row[x] ^ pixels[offset + x]) & mask) != 0) {
+                    equal[0] = false;
+                    return;
+                }
+            }
+        });
+        return equal[0];
+    }
+}
@@ -0,0 +1,70 @@
+package com.apokalist.huffmanpngcompressor;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritableImage;
+import javafx.scene.image.WritablePixelFormat;
+
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.function.IntPredicate;
+
+/**
+ * Pixel source backed by a loaded JavaFX image
+ */
+public class FxPixelSource implements PixelSource {
+    private final Image image;
+
+    public FxPixelSource(Image image) {
+        this.image = image;
+    }
+
+    @Override
+    public int getWidth() {
+        return (int) image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return (int) image.getHeight();
+    }
+
+    @Override
+    public void forEachRow(RowConsumer consumer) throws IOException {
+        forEachRow(y -> true, consumer);
+    }
+
+    @Override
+    public void forEachRow(IntPredicate rows, RowConsumer consumer) throws IOException {
+        PixelReader pixelReader = image.getPixelReader();
+        WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
+        int width = getWidth();
+        int height = getHeight();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            if (!rows.test(y)) continue;
+            pixelReader.getPixels(0, y, width, 1, format, row, 0, width);
+            consumer.accept(y, row);
+        }
+    }
+
+    public Image getImage() {
+        return image;
+    }
+
+    /**
+     * Copies packed ARGB pixels into a new JavaFX image
+     *
+     * @param width image width
+     * @param height image height
+     * @param pixels row-major ARGB pixels
+     * @return the image, at least 1x1 since JavaFX rejects empty images
+     */
+    public static WritableImage toImage(int width, int height, int[] pixels) {
+        WritableImage image = new WritableImage(Math.max(1, width), Math.max(1, height));
+        if (width > 0 && height > 0)
+            image.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+        return image;
+    }
+}
@@ -0,0 +1,618 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.Channels;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+/**
+ * Headless command-line entry point for build servers.
+ * Never touches the JavaFX toolkit: PNGs are streamed with {@link PngStreamReader}.
+ *
+ * Usage: HuffmanCli [options] &lt;file | directory | glob&gt;...
+ */
+public class HuffmanCli {
+    private static final String USAGE = String.join("\n",
+            "Usage: HuffmanCli [options] <file | directory | glob>...",
+            "  -o, --output <dir>        write containers into this directory (default: next to each input)",
+            "  -j, --jobs <n>            files compressed in parallel (default: available processors)",
+            "  -w, --workers <n>         histogram threads per file (default: 1)",
+            "  -l, --max-code-length <n> limit Huffman codes to n bits",
+            "      --linear              build code lengths with the two-queue builder",
+            "  -b, --band-rows <n>       split the payload into bands of n rows, encoded in parallel by the workers",
+            "  -t, --tables <n>          let bands choose from up to n code tables (default band rows: 64)",
+            "  -q, --colors <n>          near-lossless: median cut images with more colors down to n (e.g. 256, 4096)",
+            "      --dither              spread the palette error with Floyd-Steinberg dithering",
+            "  -a, --alpha <mode>        packed: alpha in the color symbol (default), separate: own alpha code,",
+            "                            ignore: drop alpha",
+            "  -p, --predict <p>         code per-channel prediction residuals when smaller: left, up, paeth, med,",
+            "                            or auto to pick one per row (several may be given comma separated)",
+            "  -r, --runs                code rows as runs of colors when smaller, for screenshots and diagrams",
+            "      --adaptive            code in one pass with an adaptive Huffman tree, no histogram up front;",
+            "                            use with -a ignore for opaque images",
+            "      --cache <dir>         reuse histograms and codes of unchanged images, kept in memory and in dir",
+            "      --metrics <file>      write per-stage timings, allocations and batch percentiles as JSON,",
+            "                            or as CSV when the file ends in .csv",
+            "      --pipeline            run the files through a staged pipeline and print stage metrics",
+            "      --io-threads <n>      virtual threads per I/O stage of the pipeline (default: 16)",
+            "      --off-heap            keep rasters, histogram tables and pipeline output in recycled native memory",
+            "  -e, --estimate <f>        only estimate the ratio from a sample of fraction f of the pixels (e.g. 0.01)",
+            "  -n, --dry-run             only print statistics, write nothing",
+            "  -h, --help                show this help");
+
+    /// Band height used when tables are requested without -b
+    private static final int DEFAULT_TABLE_BAND_ROWS = 64;
+
+    private final List<String> inputs = new ArrayList<>();
+    private final CompressionOptions options = new CompressionOptions();
+    private Path outputDir;
+    private int jobs = Runtime.getRuntime().availableProcessors();
+    private boolean dryRun;
+    private boolean pipeline;
+    private boolean adaptive;
+    private boolean offHeap;
+    private SegmentPool segments;
+    private int ioThreads = 16;
+    private Path metricsFile;
+    private double estimateFraction;
+    private final MetricsReport report = new MetricsReport();
+
+    /**
+     * Statistics of one compressed file
+     */
+    static class FileStats {
+        final Path file;
+        final int width;
+        final int height;
+        final int uniqueColors;
+        final long payloadBits;
+        final long containerBytes;
+        final double ratio;
+        final long nanos;
+        final int tables;
+        final long tableSavedBits;
+        final long tableNanos;
+        final long originalBits;
+        final PredictiveCoder predictive;
+        final boolean predicted;
+        final long predictionSavedBits;
+        final RunLengthCoder runLength;
+        final boolean runCoded;
+        final long runSavedBits;
+        final int paletteSize;
+        final double psnr;
+        final long quantizationNanos;
+        final AdaptiveHuffmanCoder adaptive;
+
+        FileStats(Path file, Compressor compressor, long nanos) {
+            this.file = file;
+            this.width = compressor.getSource().getWidth();
+            this.height = compressor.getSource().getHeight();
+            // From the metrics, a pooled histogram may already count the next image
+            this.uniqueColors = compressor.getMetrics().getUniqueColors();
+            this.payloadBits = compressor.getPayloadBits();
+            this.containerBytes = compressor.getContainerSize();
+            this.ratio = compressor.getCompressionRatio();
+            this.nanos = nanos;
+            this.tables = compressor.getTableCount();
+            this.tableSavedBits = compressor.getTableSavedBits();
+            this.tableNanos = compressor.getTableSelectionTimeNanos();
+            this.originalBits = pixels() * compressor.getSource().getBitsPerPixel();
+            this.predictive = compressor.getPredictiveCoder();
+            this.predicted = compressor.isPredicted();
+            this.predictionSavedBits = compressor.getPredictionSavedBits();
+            this.runLength = compressor.getRunLengthCoder();
+            this.runCoded = compressor.isRunLength();
+            this.runSavedBits = compressor.getRunLengthSavedBits();
+            this.paletteSize = compressor.getQuantizer() == null ? 0 : compressor.getQuantizer().size();
+            this.psnr = compressor.getPsnr();
+            this.quantizationNanos = compressor.getQuantizationTimeNanos();
+            this.adaptive = null;
+        }
+
+        FileStats(Path file, AdaptiveHuffmanEncoder encoder, long nanos) {
+            this.file = file;
+            this.width = encoder.getWidth();
+            this.height = encoder.getHeight();
+            this.uniqueColors = encoder.getCoder().getColorCount();
+            this.payloadBits = encoder.getPayloadBits();
+            this.containerBytes = encoder.getContainerSize();
+            this.ratio = encoder.getCompressionRatio();
+            this.nanos = nanos;
+            this.tables = 0;
+            this.tableSavedBits = 0;
+            this.tableNanos = 0;
+            this.originalBits = encoder.getOriginalSize();
+            this.predictive = null;
+            this.predicted = false;
+            this.predictionSavedBits = 0;
+            this.runLength = null;
+            this.runCoded = false;
+            this.runSavedBits = 0;
+            this.paletteSize = 0;
+            this.psnr = 0;
+            this.quantizationNanos = 0;
+            this.adaptive = encoder.getCoder();
+        }
+
+        long pixels() {
+            return (long) width * height;
+        }
+    }
+
+    public static void main(String[] args) {
+        HuffmanCli cli = new HuffmanCli();
+        try {
+            if (!cli.parse(args)) {
+                System.out.println(USAGE);
+                return;
+            }
+            System.exit(cli.run(System.out, System.err));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        } catch (IOException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * @return false when only the help was requested
+     */
+    boolean parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            switch (arg) {
+                case "-h", "--help" -> {
+                    return false;
+                }
+                case "-o", "--output" -> outputDir = Paths.get(value(args, ++i, arg));
+                case "-j", "--jobs" -> jobs = positive(value(args, ++i, arg), arg);
+                case "-w", "--workers" -> options.setWorkers(positive(value(args, ++i, arg), arg));
+                case "-l", "--max-code-length" -> options.setMaxCodeLength(positive(value(args, ++i, arg), arg));
+                case "--linear" -> options.setLinearTreeBuilder(true);
+                case "-b", "--band-rows" -> options.setBandRows(positive(value(args, ++i, arg), arg));
+                case "-t", "--tables" -> options.setMaxTables(positive(value(args, ++i, arg), arg));
+                case "-a", "--alpha" -> options.setAlphaMode(alphaMode(value(args, ++i, arg)));
+                case "-q", "--colors" -> options.setPaletteSize(positive(value(args, ++i, arg), arg));
+                case "--dither" -> options.setDither(true);
+                case "-p", "--predict" -> options.setPredictors(predictors(value(args, ++i, arg)));
+                case "-r", "--runs" -> options.setRunLength(true);
+                case "-e", "--estimate" -> estimateFraction = fraction(value(args, ++i, arg), arg);
+                case "-n", "--dry-run" -> dryRun = true;
+                case "--cache" -> options.setCache(
+                        new CompressionCache(CompressionCache.DEFAULT_MEMORY_BYTES, Paths.get(value(args, ++i, arg))));
+                case "--metrics" -> metricsFile = Paths.get(value(args, ++i, arg));
+                case "--pipeline" -> pipeline = true;
+                case "--adaptive" -> adaptive = true;
+                case "--io-threads" -> ioThreads = positive(value(args, ++i, arg), arg);
+                case "--off-heap" -> offHeap = true;
+                default -> {
+                    if (arg.startsWith("-")) throw new IllegalArgumentException("Unknown option " + arg);
+                    inputs.add(arg);
+                }
+            }
+        }
+        if (inputs.isEmpty()) throw new IllegalArgumentException("No input files");
+        if (adaptive && (options.getBandRows() > 0 || options.getMaxTables() > 1 || options.getPaletteSize() > 0
+                || options.getPredictors().length > 0 || options.isRunLength() || options.getAlphaMode() == AlphaMode.SEPARATE
+                || pipeline))
+            throw new IllegalArgumentException("--adaptive codes colors in one pass, it does not go with bands, tables, "
+                    + "--colors, --predict, --runs, --alpha separate or --pipeline");
+        if (options.isRunLength() && options.getAlphaMode() == AlphaMode.SEPARATE)
+            throw new IllegalArgumentException("--runs codes colors with their alpha, it does not go with --alpha separate");
+        if (adaptive && offHeap) throw new IllegalArgumentException("--adaptive keeps no raster, it does not go with --off-heap");
+        if (options.getMaxTables() > 1 && options.getBandRows() == 0) options.setBandRows(DEFAULT_TABLE_BAND_ROWS);
+        return true;
+    }
+
+    static String value(String[] args, int index, String option) {
+        if (index >= args.length) throw new IllegalArgumentException("Missing value for " + option);
+        return args[index];
+    }
+
+    static AlphaMode alphaMode(String value) {
+        try {
+            return AlphaMode.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("--alpha needs packed, separate or ignore, got " + value);
+        }
+    }
+
+    static Predictor[] predictors(String value) {
+        if (value.equalsIgnoreCase("auto")) return Predictor.values();
+        List<Predictor> predictors = new ArrayList<>();
+        for (String name : value.split(",")) {
+            try {
+                predictors.add(Predictor.valueOf(name.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("--predict needs left, up, paeth, med or auto, got " + name);
+            }
+        }
+        return predictors.toArray(new Predictor[0]);
+    }
+
+    private static double fraction(String value, String option) {
+        try {
+            double number = Double.parseDouble(value);
+            if (!(number > 0 && number <= 1)) throw new NumberFormatException();
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a fraction in (0, 1], got " + value);
+        }
+    }
+
+    static int positive(String value, String option) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number < 1) throw new NumberFormatException();
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + " needs a positive number, got " + value);
+        }
+    }
+
+    /**
+     * Compresses every input and prints the statistics
+     *
+     * @return process exit code, 1 if any file failed
+     */
+    int run(PrintStream out, PrintStream err) throws IOException {
+        List<Path> files = expandInputs(inputs);
+        if (files.isEmpty()) {
+            err.println("No PNG files matched");
+            return 1;
+        }
+        if (estimateFraction > 0) return runEstimate(files, out, err);
+        if (outputDir != null && !dryRun) Files.createDirectories(outputDir);
+
+        out.printf("%-40s %11s %9s %14s %12s %7s %9s %8s%n",
+                "file", "size", "colors", "payload bits", "bytes", "ratio", "time ms", "MB/s");
+        /// Blocks in flight: one per job, or per CPU worker and queued image of the pipeline
+        segments = offHeap ? new SegmentPool(pipeline ? 2 * Math.max(2, jobs) : jobs) : null;
+        try {
+            return pipeline ? runPipeline(files, out, err) : runJobs(files, out, err);
+        } finally {
+            if (segments != null) segments.close();
+        }
+    }
+
+    private int runJobs(List<Path> files, PrintStream out, PrintStream err) throws IOException {
+        long[] gcStart = gcCounters();
+        long start = System.nanoTime();
+        List<FileStats> done = new ArrayList<>();
+        int failed = 0;
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, files.size()));
+        try {
+            List<Future<FileStats>> results = new ArrayList<>();
+            for (Path file : files) results.add(pool.submit(() -> compress(file)));
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    FileStats stats = results.get(i).get();
+                    done.add(stats);
+                    printStats(out, stats);
+                } catch (ExecutionException e) {
+                    failed++;
+                    Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                    err.printf("FAILED %s: %s%n", files.get(i), describe(cause));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        printTotals(out, done, failed, System.nanoTime() - start, gcStart);
+        if (options.getCache() != null) out.println(options.getCache());
+        if (segments != null) out.println(segments);
+        writeMetrics(out);
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * Same as {@link #run} but through a {@link BatchPipeline}, where reading, decoding,
+     * counting, tree building, encoding and writing of different files overlap
+     */
+    private int runPipeline(List<Path> files, PrintStream out, PrintStream err) throws IOException {
+        BatchPipeline batch = new BatchPipeline(options, Math.min(jobs, files.size()), ioThreads,
+                Math.max(2, jobs), dryRun ? null : this::outputFor);
+        batch.setSegmentPool(segments);
+        long[] gcStart = gcCounters();
+        long start = System.nanoTime();
+        List<BatchPipeline.Job> results;
+        try {
+            results = batch.run(files);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+        long wallNanos = System.nanoTime() - start;
+
+        List<FileStats> done = new ArrayList<>();
+        int failed = 0;
+        for (BatchPipeline.Job job : results) {
+            if (job.getError() != null) {
+                failed++;
+                Throwable cause = job.getError() instanceof UncheckedIOException ? job.getError().getCause() : job.getError();
+                err.printf("FAILED %s: %s%n", job.getFile(), describe(cause));
+                continue;
+            }
+            FileStats stats = new FileStats(job.getFile(), job.getCompressor(), job.getLatencyNanos());
+            report.add(job.getFile().toString(), job.getCompressor());
+            done.add(stats);
+            printStats(out, stats);
+        }
+        printTotals(out, done, failed, wallNanos, gcStart);
+        if (options.getCache() != null) out.println(options.getCache());
+        if (segments != null) out.println(segments);
+        out.println();
+        for (StageMetrics stage : batch.getStageMetrics()) out.println(stage);
+        writeMetrics(out);
+        return failed == 0 ? 0 : 1;
+    }
+
+    /**
+     * Prints a sampled estimate of every file instead of compressing it, nothing is written
+     */
+    private int runEstimate(List<Path> files, PrintStream out, PrintStream err) throws IOException {
+        out.printf("%-40s %11s %9s %11s %22s %15s %8s %9s%n",
+                "file", "size", "sampled", "colors~", "colors 95%", "bits/pixel 95%", "ratio~", "time ms");
+        int failed = 0;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(jobs, files.size()));
+        try {
+            List<Future<CompressionEstimator.Estimate>> results = new ArrayList<>();
+            for (Path file : files) {
+                results.add(pool.submit(() -> CompressionEstimator.estimate(new PngStreamReader(file), estimateFraction,
+                        options.getAlphaMode(), file.getFileName().toString().hashCode())));
+            }
+            for (int i = 0; i < files.size(); i++) {
+                try {
+                    CompressionEstimator.Estimate estimate = results.get(i).get();
+                    out.printf("%-40s %11s %9d %11d [%9d, %9d] %7.3f +-%5.3f %7.1f%% %9.1f%n",
+                            shorten(files.get(i).toString(), 40), estimate.getWidth() + "x" + estimate.getHeight(),
+                            estimate.getSampledPixels(), estimate.getEstimatedColors(), estimate.getColorsLow(),
+                            estimate.getColorsHigh(), estimate.getBitsPerPixel(), estimate.getMarginBitsPerPixel(),
+                            estimate.getRatio() * 100, estimate.getNanos() / 1e6);
+                } catch (ExecutionException e) {
+                    failed++;
+                    Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                    err.printf("FAILED %s: %s%n", files.get(i), describe(cause));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted", e);
+                }
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        return failed == 0 ? 0 : 1;
+    }
+
+    private FileStats compress(Path file) throws IOException {
+        long start = System.nanoTime();
+        if (adaptive) {
+            AdaptiveHuffmanEncoder encoder = new AdaptiveHuffmanEncoder(options.getAlphaMode());
+            /// The size is only known after encoding, a dry run encodes into nothing
+            if (dryRun) encoder.encode(new PngStreamReader(file), Channels.newChannel(OutputStream.nullOutputStream()));
+            else encoder.encode(new PngStreamReader(file), outputFor(file));
+            report.add(file.toString(), encoder);
+            return new FileStats(file, encoder, System.nanoTime() - start);
+        }
+        if (segments != null) return compressOffHeap(file, start);
+        Compressor compressor = new Compressor(new PngStreamReader(file), options);
+        if (!dryRun) compressor.encode(outputFor(file));
+        report.add(file.toString(), compressor);
+        return new FileStats(file, compressor, System.nanoTime() - start);
+    }
+
+    /**
+     * Decodes the PNG once into a pooled raster instead of streaming it twice, and counts large
+     * images into a pooled dense table. Containers are written through a file mapping as always.
+     */
+    private FileStats compressOffHeap(Path file, long start) throws IOException {
+        PngStreamReader png = new PngStreamReader(file);
+        long pixels = (long) png.getWidth() * png.getHeight();
+        /// The cache keeps histograms and parallel counting merges its own, both stay on the heap
+        boolean pooledTable = pixels >= ColorHistogram.DENSE_THRESHOLD && options.getCache() == null
+                && options.getWorkers() <= 1;
+        try (SegmentPool.Block raster = segments.take(SegmentPool.Kind.RASTER, SegmentRaster.bytes(png));
+             SegmentPool.Block table = pooledTable ? segments.take(SegmentPool.Kind.HISTOGRAM, ColorHistogram.DENSE_BYTES) : null) {
+            SegmentRaster source = SegmentRaster.read(png, raster.segment());
+            Compressor compressor;
+            if (table != null) {
+                ColorHistogram histogram = new ImageAnalyzer(options.getAlphaMode().histogramMode())
+                        .analyzeColors(source, new ColorHistogram(table.segment()));
+                compressor = new Compressor(source, histogram, options);
+            } else {
+                compressor = new Compressor(source, options);
+            }
+            if (!dryRun) compressor.encode(outputFor(file));
+            report.add(file.toString(), compressor);
+            return new FileStats(file, compressor, System.nanoTime() - start);
+        }
+    }
+
+    private void writeMetrics(PrintStream out) throws IOException {
+        if (metricsFile == null) return;
+        report.write(metricsFile);
+        out.println("Metrics of " + report.size() + " file(s) written to " + metricsFile);
+    }
+
+    private Path outputFor(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        String target = (dot > 0 ? name.substring(0, dot) : name) + HuffmanFormat.EXTENSION;
+        Path dir = outputDir != null ? outputDir : file.toAbsolutePath().getParent();
+        return dir.resolve(target);
+    }
+
+    private static void printStats(PrintStream out, FileStats stats) {
+        out.printf("%-40s %11s %9d %14d %12d %6.1f%% %9.1f %8.1f%n",
+                shorten(stats.file.toString(), 40), stats.width + "x" + stats.height, stats.uniqueColors,
+                stats.payloadBits, stats.containerBytes, stats.ratio * 100, stats.nanos / 1e6,
+                megabytesPerSecond(stats.pixels(), stats.nanos));
+        if (stats.adaptive != null) {
+            out.printf("    adaptive code, %d bits on new colors, longest code %d bits, %d rescale(s)%n",
+                    stats.adaptive.getEscapeBits(), stats.adaptive.getMaxCodeLength(), stats.adaptive.getRescaleCount());
+        }
+        if (stats.paletteSize > 0) {
+            out.printf("    palette of %d colors, PSNR %.2f dB, %.1f ms quantizing%n",
+                    stats.paletteSize, stats.psnr, stats.quantizationNanos / 1e6);
+        }
+        if (stats.tableNanos > 0) {
+            out.printf("    %d table(s), %d bits saved over one table, +%.1f ms choosing them%n",
+                    stats.tables, stats.tableSavedBits, stats.tableNanos / 1e6);
+        }
+        if (stats.predictive != null) {
+            out.printf("    residuals %s, %d bits saved over color codes, %.1f ms analysis%n",
+                    stats.predicted ? "used" : "not used", stats.predictionSavedBits,
+                    stats.predictive.getAnalysisTimeNanos() / 1e6);
+            for (Predictor predictor : Predictor.values()) {
+                long rows = stats.predictive.getRows(predictor);
+                long nanos = stats.predictive.getNanos(predictor);
+                if (rows == 0 && nanos == 0) continue;
+                out.printf("      %-6s %7d rows %12d bits (color codes %12d) %8.1f MB/s%n", predictor, rows,
+                        stats.predictive.getBits(predictor), stats.predictive.getRawBits(predictor),
+                        megabytesPerSecond(stats.pixels(), nanos));
+            }
+        }
+        if (stats.runLength != null) {
+            RunLengthCoder runs = stats.runLength;
+            out.printf("    runs %s, %d bits saved, %.1f ms analysis%n",
+                    stats.runCoded ? (runs.isPerRow() ? "used per row" : "used for every row") : "not used",
+                    stats.runSavedBits, runs.getAnalysisTimeNanos() / 1e6);
+            if (runs.getRunRows() > 0) out.printf("      %7d rows %12d runs of %.1f pixels %12d bits (color codes %12d)%n", runs.getRunRows(),
+                    runs.getRuns(), (double) runs.getRunPixels() / runs.getRuns(),
+                    runs.getRunBits(), runs.getRawBits());
+        }
+    }
+
+    private static void printTotals(PrintStream out, List<FileStats> done, int failed, long wallNanos, long[] gcStart) {
+        long pixels = 0;
+        long bytes = 0;
+        long payloadBits = 0;
+        long originalBits = 0;
+        for (FileStats stats : done) {
+            pixels += stats.pixels();
+            bytes += stats.containerBytes;
+            payloadBits += stats.payloadBits;
+            originalBits += stats.originalBits;
+        }
+        double ratio = originalBits == 0 ? 0 : 1.0 - (double) bytes * 8 / originalBits;
+        out.printf("%nFiles: %d compressed, %d failed%n", done.size(), failed);
+        out.printf("Pixels: %d, payload: %d bits, containers: %d bytes, ratio: %.1f%%%n",
+                pixels, payloadBits, bytes, ratio * 100);
+        out.printf("Wall time: %.1f ms, throughput: %.1f MB/s of RGB input%n",
+                wallNanos / 1e6, megabytesPerSecond(pixels, wallNanos));
+        long[] gc = gcCounters();
+        out.printf("GC: %d collection(s), %d ms collecting, %s allocated on the heap%n", gc[0] - gcStart[0],
+                gc[1] - gcStart[1], gc[2] < 0 ? "unknown" : String.format("%.1f MB", (gc[2] - gcStart[2]) / 1e6));
+    }
+
+    /// Collections and milliseconds spent in them over all collectors, then heap bytes allocated by all threads or -1
+    private static long[] gcCounters() {
+        long collections = 0;
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections += Math.max(0, collector.getCollectionCount());
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        long allocated = ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean threads
+                && threads.isThreadAllocatedMemorySupported() ? threads.getTotalThreadAllocatedBytes() : -1;
+        return new long[]{collections, millis, allocated};
+    }
+
+    /// Throughput over the raw 24-bit pixel data
+    private static double megabytesPerSecond(long pixels, long nanos) {
+        return nanos == 0 ? 0 : pixels * 3 / 1e6 / (nanos / 1e9);
+    }
+
+    /// Some exceptions, EOFException mostly, come without a message
+    static String describe(Throwable error) {
+        return error.getMessage() != null ? error.getMessage() : error.toString();
+    }
+
+    private static String shorten(String text, int width) {
+        return text.length() <= width ? text : "..." + text.substring(text.length() - width + 3);
+    }
+
+    /**
+     * Turns files, directories (searched recursively for *.png) and glob patterns into a file list
+     */
+    static List<Path> expandInputs(List<String> inputs) throws IOException {
+        Set<Path> files = new LinkedHashSet<>();
+        for (String input : inputs) {
+            if (isGlob(input)) {
+                files.addAll(expandGlob(input));
+                continue;
+            }
+            Path path = Paths.get(input);
+            if (Files.isDirectory(path)) {
+                try (Stream<Path> walk = Files.walk(path)) {
+                    walk.filter(Files::isRegularFile).filter(HuffmanCli::isPng).sorted().forEach(files::add);
+                }
+            } else if (Files.isRegularFile(path)) {
+                files.add(path);
+            } else {
+                throw new IOException("No such file or directory: " + input);
+            }
+        }
+        return new ArrayList<>(files);
+    }
+
+    private static boolean isGlob(String input) {
+        return input.indexOf('*') >= 0 || input.indexOf('?') >= 0 || input.indexOf('[') >= 0 || input.indexOf('{') >= 0;
+    }
+
+    /**
+     * Walks from the longest directory prefix without wildcards and matches the rest of the pattern
+     */
+    private static List<Path> expandGlob(String pattern) throws IOException {
+        String normalized = pattern.replace('\\', '/');
+        int firstWildcard = firstWildcard(normalized);
+        int lastSlash = normalized.lastIndexOf('/', firstWildcard);
+        Path base = lastSlash < 0 ? Paths.get(".") : Paths.get(lastSlash == 0 ? "/" : normalized.substring(0, lastSlash));
+        if (!Files.isDirectory(base)) return List.of();
+
+        PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + normalized.substring(lastSlash + 1));
+        try (Stream<Path> walk = Files.walk(base)) {
+            return walk.filter(Files::isRegularFile)
+                    .filter(path -> matcher.matches(base.relativize(path)))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            if ("*?[{".indexOf(pattern.charAt(i)) >= 0) return i;
+        }
+        return pattern.length();
+    }
+
+    private static boolean isPng(Path path) {
+        return path.getFileName().toString().toLowerCase().endsWith(".png");
+    }
+}
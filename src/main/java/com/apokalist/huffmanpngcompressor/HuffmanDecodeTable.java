@@ -0,0 +1,112 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+
+/**
+ * Two-level lookup table resolving a whole canonical code per step.
+ * The primary table is indexed by the next {@link #PRIMARY_BITS} bits of the
+ * stream. Codes up to that length are answered directly, longer codes point
+ * to a secondary table indexed by the bits that follow the primary prefix.
+ *
+ * Entries are packed ints:
+ * leaf    = canonical index << 6 | bits to consume
+ * pointer = 1 << 31 | secondary table offset << 5 | secondary index bits
+ * Entries no code reaches stay 0, a leaf consuming nothing, and are rejected as corrupt input.
+ */
+public class HuffmanDecodeTable {
+    public static final int PRIMARY_BITS = 11;
+
+    private static final int POINTER = 1 << 31;
+    private static final int MAX_SYMBOLS = 1 << 25;
+    private static final int MAX_OFFSET = 1 << 26;
+
+    private final CanonicalCode code;
+    private final int primaryBits;
+    private final int[] table;
+
+    public HuffmanDecodeTable(CanonicalCode code) {
+        if (code.size() > MAX_SYMBOLS)
+            throw new IllegalArgumentException("Too many symbols for the decode table: " + code.size());
+        this.code = code;
+        primaryBits = Math.max(1, Math.min(PRIMARY_BITS, code.getMaxLength()));
+        int primarySize = 1 << primaryBits;
+
+        // First pass: longest code under every primary prefix decides the secondary table size
+        int[] longest = new int[primarySize];
+        for (int i = 0; i < code.size(); i++) {
+            int length = code.getLength(i);
+            if (length > primaryBits) {
+                int prefix = code.getCode(i) >>> (length - primaryBits);
+                longest[prefix] = Math.max(longest[prefix], length);
+            }
+        }
+        int[] offsets = new int[primarySize];
+        int size = primarySize;
+        for (int prefix = 0; prefix < primarySize; prefix++) {
+            if (longest[prefix] == 0) continue;
+            offsets[prefix] = size;
+            size += 1 << (longest[prefix] - primaryBits);
+            if (size > MAX_OFFSET)
+                throw new IllegalArgumentException("Codes too long for a two-level table, limit the code length");
+        }
+        table = new int[size];
+        for (int prefix = 0; prefix < primarySize; prefix++) {
+            if (longest[prefix] != 0)
+                table[prefix] = POINTER | offsets[prefix] << 5 | (longest[prefix] - primaryBits);
+        }
+
+        // Second pass: every code fills the range of indexes that start with it
+        for (int i = 0; i < code.size(); i++) {
+            int length = code.getLength(i);
+            int bits = code.getCode(i);
+            if (length <= primaryBits) {
+                int shift = primaryBits - length;
+                fill(bits << shift, 1 << shift, i << 6 | length);
+            } else {
+                int prefix = bits >>> (length - primaryBits);
+                int subBits = longest[prefix] - primaryBits;
+                int remaining = length - primaryBits;
+                int low = bits & ((1 << remaining) - 1);
+                int shift = subBits - remaining;
+                fill(offsets[prefix] + (low << shift), 1 << shift, i << 6 | remaining);
+            }
+        }
+    }
+
+    private void fill(int from, int count, int entry) {
+        for (int i = from; i < from + count; i++) table[i] = entry;
+    }
+
+    /**
+     * Decodes one symbol with one or two table lookups
+     *
+     * @param reader positioned at the start of a code
+     * @return canonical index of the symbol
+     * @throws IOException if the stream ends early or holds an invalid code
+     */
+    public int decodeIndex(BitReader reader) throws IOException {
+        int entry = table[reader.peekBits(primaryBits)];
+        if (entry < 0) {
+            reader.skipBits(primaryBits);
+            entry = table[((entry & ~POINTER) >>> 5) + reader.peekBits(entry & 31)];
+        }
+        int length = entry & 63;
+        if (length == 0) throw new IOException("Invalid Huffman code in stream");
+        reader.skipBits(length);
+        return entry >>> 6;
+    }
+
+    /**
+     * @return the decoded color
+     */
+    public int decodeSymbol(BitReader reader) throws IOException {
+        return code.getSymbol(decodeIndex(reader));
+    }
+
+    /**
+     * @return number of int entries over both levels
+     */
+    public int getTableSize() {
+        return table.length;
+    }
+}
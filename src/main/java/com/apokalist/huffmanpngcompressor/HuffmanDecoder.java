@@ -0,0 +1,146 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+
+/**
+ * Reads the Huffman container back into an image
+ */
+public class HuffmanDecoder {
+    private final int workers;
+
+    public HuffmanDecoder() {
+        this(1);
+    }
+
+    /**
+     * @param workers threads decoding the bands of a banded container file at the same time
+     */
+    public HuffmanDecoder(int workers) {
+        this.workers = workers;
+    }
+
+    /**
+     * Decodes a container file through a memory mapping, the file is never copied onto the heap.
+     * Bands of a banded container are decoded in parallel.
+     *
+     * @param file container written by {@link HuffmanEncoder}
+     * @return the rebuilt image, opaque unless the container kept alpha
+     * @throws IOException if the container is corrupt or reading fails
+     */
+    public DecodedImage decode(Path file) throws IOException {
+        try (ContainerReader reader = new ContainerReader(file, workers)) {
+            return reader.decode();
+        }
+    }
+
+    public DecodedImage decode(InputStream in) throws IOException {
+        return decode(Channels.newChannel(in));
+    }
+
+    /**
+     * Decodes a whole container, the channel is left open
+     *
+     * @param channel positioned at the container start
+     * @return the rebuilt image, opaque unless the container kept alpha
+     * @throws IOException if the container is corrupt or reading fails
+     */
+    public DecodedImage decode(ReadableByteChannel channel) throws IOException {
+        return decode(new BitReader(channel));
+    }
+
+    private DecodedImage decode(BitReader reader) throws IOException {
+        HuffmanFormat.Header header = HuffmanFormat.readHeader(reader);
+        int width = header.getWidth();
+        int height = header.getHeight();
+        long pixelCount = (long) width * height;
+        if (pixelCount > Integer.MAX_VALUE - 8)
+            throw new IOException("Image of " + width + "x" + height + " does not fit in one array");
+
+        int[] pixels = new int[(int) pixelCount];
+        if (header.isAdaptive()) {
+            new AdaptiveHuffmanCoder(header.getAdaptiveSymbolBits()).decodePixels(reader, pixels, 0, pixels.length);
+            return new DecodedImage(width, height, pixels);
+        }
+        if (header.isPredicted()) {
+            /// Bands are back to back here as well, the coder restarts prediction at their first rows
+            PredictiveCoder coder = new PredictiveCoder(header.getChannelCodes(), header.getBandRows());
+            for (int y = 0; y < height; y++) {
+                coder.decodeRow(y, reader, pixels, y * width, pixels, (y - 1) * width, width);
+            }
+            return new DecodedImage(width, height, pixels);
+        }
+        if (header.isRunLength()) {
+            RunLengthCoder coder = new RunLengthCoder(header.getCode(), header.getRunColorCode(), header.getRunLengthCode());
+            for (int y = 0; y < height; y++) coder.decodeRow(reader, pixels, y * width, width);
+            return new DecodedImage(width, height, pixels);
+        }
+        HuffmanDecodeTable alphaTable = alphaTable(header);
+        int alpha = constantAlpha(header);
+        if (header.getTableCount() == 1) {
+            decodePixels(new HuffmanDecodeTable(header.getCode()), alphaTable, alpha, reader, pixels, 0, pixels.length);
+        } else {
+            /// Bands are back to back in the stream, only the table changes at their boundaries
+            HuffmanDecodeTable[] tables = new HuffmanDecodeTable[header.getTableCount()];
+            for (int i = 0; i < tables.length; i++) tables[i] = new HuffmanDecodeTable(header.getTable(i));
+            int bandPixels = header.getBandRows() * width;
+            for (int band = 0; band < header.getBandCount(); band++) {
+                int offset = band * bandPixels;
+                decodePixels(tables[header.getBandTable(band)], alphaTable, alpha, reader, pixels, offset,
+                        Math.min(bandPixels, pixels.length - offset));
+            }
+        }
+        return new DecodedImage(width, height, pixels);
+    }
+
+    /**
+     * Decodes a run of pixels from the payload
+     *
+     * @param table lookup table built from the header code
+     * @param alphaTable lookup table of the alpha code, null when no alpha codes are in the payload
+     * @param alpha alpha of every pixel when the alpha code has a single value, -1 for packed symbols
+     * @param reader positioned at the first pixel code
+     * @param pixels destination
+     * @param offset first pixel to fill
+     * @param count number of pixels to decode
+     * @throws IOException if the stream is corrupt
+     */
+    static void decodePixels(HuffmanDecodeTable table, HuffmanDecodeTable alphaTable, int alpha, BitReader reader,
+                             int[] pixels, int offset, int count) throws IOException {
+        int end = offset + count;
+        if (alphaTable != null) {
+            for (int i = offset; i < end; i++) {
+                int a = alphaTable.decodeSymbol(reader);
+                pixels[i] = a << 24 | table.decodeSymbol(reader);
+            }
+        } else if (alpha >= 0) {
+            for (int i = offset; i < end; i++) {
+                pixels[i] = alpha << 24 | table.decodeSymbol(reader);
+            }
+        } else {
+            /// Plain colors come out opaque, packed symbols with their alpha
+            for (int i = offset; i < end; i++) {
+                pixels[i] = AlphaMode.toArgb(table.decodeSymbol(reader));
+            }
+        }
+    }
+
+    /**
+     * @return lookup table of the alpha code, null when the payload has no alpha codes
+     */
+    static HuffmanDecodeTable alphaTable(HuffmanFormat.Header header) {
+        CanonicalCode alphaCode = header.getAlphaCode();
+        return alphaCode != null && alphaCode.size() > 1 ? new HuffmanDecodeTable(alphaCode) : null;
+    }
+
+    /**
+     * @return the alpha shared by every pixel when the alpha code has one value, -1 otherwise
+     */
+    static int constantAlpha(HuffmanFormat.Header header) {
+        CanonicalCode alphaCode = header.getAlphaCode();
+        return alphaCode != null && alphaCode.size() == 1 ? alphaCode.getSymbol(0) : -1;
+    }
+}
@@ -0,0 +1,444 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes images into the Huffman container.
+ * Every pixel is looked up in the canonical code and its int code is pushed
+ * straight into the bit writer, no String codes are involved.
+ *
+ * With bands enabled the rows are cut into bands that are encoded in parallel
+ * and indexed in the header, see {@link HuffmanFormat}. The alpha mode decides
+ * whether transparency is part of the color symbol or gets a code of its own.
+ * With a {@link PredictiveCoder} the payload holds per-channel residuals instead of colors,
+ * with a {@link RunLengthCoder} rows may be runs of colors.
+ */
+public class HuffmanEncoder {
+    /// Band offsets as the header stores them
+    private static final ValueLayout.OfLong OFFSET_LAYOUT = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.BIG_ENDIAN);
+
+    private final CanonicalCode code;
+    private final CanonicalCode[] tables;
+    private final byte[] bandTables;
+    private final AlphaMode alphaMode;
+    private final CanonicalCode alphaCode;
+    private final PredictiveCoder predictive;
+    private final RunLengthCoder runLength;
+    private final int bandRows;
+    private final int workers;
+
+    /**
+     * One encoded band, bits packed from the first byte on
+     */
+    private static class Band {
+        final byte[] data;
+        final long bits;
+
+        /**
+         * @param data the bits, null when the band was only counted
+         */
+        Band(byte[] data, long bits) {
+            this.data = data;
+            this.bits = bits;
+        }
+    }
+
+    /**
+     * Receives the encoded bands on the reading thread, top to bottom
+     */
+    @FunctionalInterface
+    private interface BandSink {
+        void accept(int index, Band band) throws IOException;
+    }
+
+    /**
+     * Fills in the band offsets the header left room for, once the payload is written
+     */
+    @FunctionalInterface
+    private interface IndexPatch {
+        void write(long position, long[] offsets) throws IOException;
+    }
+
+    public HuffmanEncoder(CanonicalCode code) {
+        this(code, 0, 1);
+    }
+
+    /**
+     * @param code code of every color
+     * @param bandRows rows per independently decodable band, 0 for a single stream
+     * @param workers threads encoding bands at the same time
+     */
+    public HuffmanEncoder(CanonicalCode code, int bandRows, int workers) {
+        this(new CanonicalCode[]{code}, null, bandRows, workers);
+    }
+
+    /**
+     * @param tables code tables the bands pick from
+     * @param bandTables table of every band, null when there is only one table
+     * @param bandRows rows per band, must not be 0 with several tables
+     * @param workers threads encoding bands at the same time
+     */
+    public HuffmanEncoder(CanonicalCode[] tables, byte[] bandTables, int bandRows, int workers) {
+        this(tables, bandTables, AlphaMode.IGNORE, null, bandRows, workers);
+    }
+
+    /**
+     * @param tables code tables the bands pick from, their symbols follow {@link AlphaMode#symbol}
+     * @param bandTables table of every band, null when there is only one table
+     * @param alphaMode how the alpha of the pixels is coded
+     * @param alphaCode code of the alpha values, needed by {@link AlphaMode#SEPARATE} only
+     * @param bandRows rows per band, must not be 0 with several tables
+     * @param workers threads encoding bands at the same time
+     */
+    public HuffmanEncoder(CanonicalCode[] tables, byte[] bandTables, AlphaMode alphaMode, CanonicalCode alphaCode,
+                          int bandRows, int workers) {
+        if (tables.length > 1 && (bandRows == 0 || bandTables == null))
+            throw new IllegalArgumentException("Several tables need bands and a table per band");
+        if ((alphaMode == AlphaMode.SEPARATE) != (alphaCode != null))
+            throw new IllegalArgumentException("An alpha code goes with the separate alpha mode only");
+        this.code = tables[0];
+        this.tables = tables;
+        this.bandTables = bandTables;
+        this.alphaMode = alphaMode;
+        this.alphaCode = alphaCode;
+        this.predictive = null;
+        this.runLength = null;
+        this.bandRows = bandRows;
+        this.workers = workers;
+    }
+
+    /**
+     * @param predictive analyzed coder of the image, codes residuals instead of colors
+     * @param bandRows rows per band, must match the rows the coder was analyzed with
+     * @param workers threads encoding bands at the same time
+     */
+    public HuffmanEncoder(PredictiveCoder predictive, int bandRows, int workers) {
+        this.code = null;
+        this.tables = new CanonicalCode[0];
+        this.bandTables = null;
+        this.alphaMode = AlphaMode.IGNORE;
+        this.alphaCode = null;
+        this.predictive = predictive;
+        this.runLength = null;
+        this.bandRows = bandRows;
+        this.workers = workers;
+    }
+
+    /**
+     * @param runLength analyzed coder of the image, knows which rows are runs
+     * @param bandRows rows per band
+     * @param workers threads encoding bands at the same time
+     */
+    public HuffmanEncoder(RunLengthCoder runLength, int bandRows, int workers) {
+        this.code = runLength.getPixelCode();
+        this.tables = new CanonicalCode[]{code};
+        this.bandTables = null;
+        this.alphaMode = AlphaMode.IGNORE;
+        this.alphaCode = null;
+        this.predictive = null;
+        this.runLength = runLength;
+        this.bandRows = bandRows;
+        this.workers = workers;
+    }
+
+    /**
+     * @param source image that will be encoded
+     * @param payloadBits exact payload size
+     * @return exact size of the container in bytes
+     */
+    public long containerSize(PixelSource source, long payloadBits) {
+        if (predictive != null) {
+            long headerBits = HuffmanFormat.predictedHeaderBits(predictive.getCodes(),
+                    HuffmanFormat.bandCount(source.getHeight(), bandRows));
+            return (headerBits + payloadBits + 7) >>> 3;
+        }
+        if (runLength != null) {
+            long headerBits = HuffmanFormat.runHeaderBits(code, runLength.getColorCode(), runLength.getLengthCode(),
+                    HuffmanFormat.bandCount(source.getHeight(), bandRows));
+            return (headerBits + payloadBits + 7) >>> 3;
+        }
+        long headerBits = HuffmanFormat.headerBits(tables, HuffmanFormat.bandCount(source.getHeight(), bandRows),
+                alphaCode);
+        return (headerBits + payloadBits + 7) >>> 3;
+    }
+
+    /**
+     * Encodes the image into a file.
+     * The file is pre-sized to the exact container size and written through a memory mapping,
+     * so large containers are limited by the page cache rather than by stream copies.
+     * Bands are written as they are encoded and the index is filled in at the end.
+     *
+     * @param source pixels to encode, every color must have a code
+     * @param payloadBits exact payload size, stored in the header
+     * @param file destination, replaced if it exists
+     * @return size of the container in bytes
+     * @throws IOException if writing fails
+     */
+    public long encode(PixelSource source, long payloadBits, Path file) throws IOException {
+        long containerSize = containerSize(source, payloadBits);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return encode(source, payloadBits, new MappedBitWriter(channel, 0, containerSize), (position, offsets) -> {
+                MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_WRITE, position, (long) Long.BYTES * offsets.length);
+                for (long offset : offsets) index.putLong(offset);
+            });
+        }
+    }
+
+    /**
+     * Encodes the image into native memory, for pipelines that write the container later
+     *
+     * @param target at least {@link #containerSize} bytes, see {@link SegmentPool}
+     * @return size of the container in bytes, the bytes after it are left as they were
+     */
+    public long encode(PixelSource source, long payloadBits, MemorySegment target) throws IOException {
+        long containerSize = containerSize(source, payloadBits);
+        if (target.byteSize() < containerSize)
+            throw new IllegalArgumentException("Segment of " + target.byteSize() + " bytes for a " + containerSize + " byte container");
+        return encode(source, payloadBits, new SegmentBitWriter(target.asSlice(0, containerSize)), (position, offsets) -> {
+            for (int i = 0; i < offsets.length; i++) target.set(OFFSET_LAYOUT, position + (long) Long.BYTES * i, offsets[i]);
+        });
+    }
+
+    /**
+     * Encodes the image into a stream, the stream is left open
+     *
+     * @return size of the container in bytes
+     */
+    public long encode(PixelSource source, long payloadBits, OutputStream out) throws IOException {
+        long bytes = encode(source, payloadBits, Channels.newChannel(out));
+        out.flush();
+        return bytes;
+    }
+
+    /**
+     * Encodes the image into a channel, the channel is left open.
+     * A channel cannot go back to the band index, so banded images are encoded twice:
+     * once to count the bits of every band, once to write them after the header.
+     *
+     * @return size of the container in bytes
+     */
+    public long encode(PixelSource source, long payloadBits, WritableByteChannel channel) throws IOException {
+        return encode(source, payloadBits, new BitWriter(channel), null);
+    }
+
+    /**
+     * @param patch fills in the band index after the payload, null to count the bands up front instead
+     */
+    private long encode(PixelSource source, long payloadBits, BitWriter writer, IndexPatch patch) throws IOException {
+        long payloadStart;
+        long[] offsets = null;
+        long index = -1;
+        if (bandRows == 0) {
+            HuffmanFormat.writeHeader(writer, header(source, payloadBits, null));
+            payloadStart = writer.getBitsWritten();
+            encodePixels(source, writer);
+        } else {
+            long[] bandOffsets = new long[HuffmanFormat.bandCount(source.getHeight(), bandRows)];
+            if (patch == null) {
+                long[] next = {0};
+                encodeBands(source, false, (i, band) -> {
+                    bandOffsets[i] = next[0];
+                    next[0] += band.bits;
+                });
+            }
+            index = HuffmanFormat.writeHeader(writer, header(source, payloadBits, bandOffsets));
+            long start = writer.getBitsWritten();
+            /// Bands are written as soon as the ones above them are, only the bands in flight are held
+            encodeBands(source, true, (i, band) -> {
+                bandOffsets[i] = writer.getBitsWritten() - start;
+                writer.writeBits(band.data, band.bits);
+            });
+            payloadStart = start;
+            offsets = bandOffsets;
+        }
+        long written = writer.getBitsWritten() - payloadStart;
+        if (written != payloadBits)
+            throw new IllegalStateException("Payload is " + written + " bits, header promised " + payloadBits);
+        writer.flush();
+        if (patch != null && offsets != null) patch.write(index >>> 3, offsets);
+        return (writer.getBitsWritten() + 7) >>> 3;
+    }
+
+    /**
+     * @param offsets bit offset of every band, null for a single stream
+     */
+    private HuffmanFormat.Header header(PixelSource source, long payloadBits, long[] offsets) {
+        int rows = offsets == null ? 0 : bandRows;
+        if (predictive != null) {
+            return new HuffmanFormat.Header(source.getWidth(), source.getHeight(), predictive.getCodes(), payloadBits,
+                    rows, offsets);
+        }
+        if (runLength != null) {
+            return new HuffmanFormat.Header(source.getWidth(), source.getHeight(), code, runLength.getColorCode(),
+                    runLength.getLengthCode(), payloadBits, rows, offsets);
+        }
+        return new HuffmanFormat.Header(source.getWidth(), source.getHeight(), tables,
+                tables.length > 1 ? bandTables : null, alphaCode, payloadBits, rows, offsets);
+    }
+
+    /**
+     * Pushes the code of every pixel into the writer
+     *
+     * @param source pixels to encode
+     * @param writer destination
+     * @throws IOException if writing fails
+     */
+    public void encodePixels(PixelSource source, BitWriter writer) throws IOException {
+        if (predictive != null) {
+            int[] above = new int[source.getWidth()];
+            source.forEachRow((y, row) -> {
+                predictive.encodeRow(y, row, 0, above, 0, row.length, writer);
+                System.arraycopy(row, 0, above, 0, row.length);
+            });
+            return;
+        }
+        if (runLength != null) {
+            source.forEachRow((y, row) -> runLength.encodeRow(y, row, 0, row.length, writer));
+            return;
+        }
+        source.forEachRow((y, row) -> encodePixels(code, row, row.length, writer));
+    }
+
+    private void encodePixels(CanonicalCode code, int[] pixels, int count, BitWriter writer) throws IOException {
+        /// A single alpha value is implied by the header and costs nothing per pixel
+        boolean alpha = alphaCode != null && alphaCode.size() > 1;
+        for (int i = 0; i < count; i++) {
+            if (alpha) {
+                int index = alphaCode.indexOf(AlphaMode.alpha(pixels[i]));
+                if (index < 0)
+                    throw new IllegalArgumentException("No code for alpha " + AlphaMode.alpha(pixels[i]));
+                writer.writeBits(alphaCode.getCode(index), alphaCode.getLength(index));
+            } else if (alphaCode != null && AlphaMode.alpha(pixels[i]) != alphaCode.getSymbol(0)) {
+                throw new IllegalArgumentException("No code for alpha " + AlphaMode.alpha(pixels[i]));
+            }
+            int index = code.indexOf(alphaMode.symbol(pixels[i]));
+            if (index < 0)
+                throw new IllegalArgumentException("No code for color " + ColorHistogram.toHex(alphaMode.symbol(pixels[i])));
+            writer.writeBits(code.getCode(index), code.getLength(index));
+        }
+    }
+
+    /**
+     * Reads the source once, copying its rows into bands that the workers encode on their own.
+     * A fixed set of band buffers bounds the raw pixels in flight, like the parallel analyzer,
+     * and the encoded bands are handed on in order as soon as they and the bands above them are done.
+     *
+     * @param keep whether the bands keep their bits, or are only counted
+     * @param sink receives every band, top to bottom
+     */
+    private void encodeBands(PixelSource source, boolean keep, BandSink sink) throws IOException {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        int buffers = workers * 2;
+        BlockingQueue<int[]> freeBands = new ArrayBlockingQueue<>(buffers);
+        for (int i = 0; i < buffers; i++) freeBands.add(new int[Math.multiplyExact(bandRows, width)]);
+
+        ExecutorService pool = workers > 1 ? Executors.newFixedThreadPool(workers) : null;
+        Deque<Future<Band>> pending = new ArrayDeque<>();
+        int[][] band = {null};
+        int[] filled = {0};
+        int[] index = {0};
+        int[] done = {0};
+        try {
+            source.forEachRow((y, row) -> {
+                if (band[0] == null) band[0] = takeBand(freeBands);
+                System.arraycopy(row, 0, band[0], filled[0] * width, width);
+                if (++filled[0] == bandRows || y == height - 1) {
+                    int[] pixels = band[0];
+                    int rows = filled[0];
+                    int firstRow = y + 1 - rows;
+                    CanonicalCode bandCode = tables.length > 1 ? tables[bandTables[index[0]] & 0xFF] : code;
+                    index[0]++;
+                    if (pool == null) {
+                        sink.accept(done[0]++, encodeBand(bandCode, pixels, firstRow, rows, width, freeBands, keep));
+                    } else {
+                        pending.add(pool.submit(() -> encodeBand(bandCode, pixels, firstRow, rows, width, freeBands, keep)));
+                        /// Waits for the top band once as many are in flight as there are buffers
+                        while (!pending.isEmpty() && (pending.size() >= buffers || pending.peek().isDone())) {
+                            sink.accept(done[0]++, await(pending.poll()));
+                        }
+                    }
+                    band[0] = null;
+                    filled[0] = 0;
+                }
+            });
+            while (!pending.isEmpty()) sink.accept(done[0]++, await(pending.poll()));
+        } finally {
+            if (pool != null) pool.shutdownNow();
+        }
+    }
+
+    private static Band await(Future<Band> part) throws IOException {
+        try {
+            return part.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding bands");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) throw io;
+            if (e.getCause() instanceof RuntimeException runtime) throw runtime;
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private Band encodeBand(CanonicalCode code, int[] pixels, int firstRow, int rows, int width,
+                            BlockingQueue<int[]> freeBands, boolean keep) throws IOException {
+        ByteArrayOutputStream out = keep ? new ByteArrayOutputStream() : null;
+        BitWriter writer = new BitWriter(Channels.newChannel(keep ? out : OutputStream.nullOutputStream()));
+        try {
+            if (predictive != null) {
+                /// The first row of a band never looks above, so the band buffer holds all it needs
+                for (int r = 0; r < rows; r++) {
+                    predictive.encodeRow(firstRow + r, pixels, r * width, pixels, (r - 1) * width, width, writer);
+                }
+            } else if (runLength != null) {
+                for (int r = 0; r < rows; r++) runLength.encodeRow(firstRow + r, pixels, r * width, width, writer);
+            } else {
+                encodePixels(code, pixels, rows * width, writer);
+            }
+        } finally {
+            freeBands.add(pixels);
+        }
+        long bits = writer.getBitsWritten();
+        writer.flush();
+        return new Band(keep ? out.toByteArray() : null, bits);
+    }
+
+    private static int[] takeBand(BlockingQueue<int[]> freeBands) throws IOException {
+        try {
+            return freeBands.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free band");
+        }
+    }
+
+    public CanonicalCode getCode() {
+        return code;
+    }
+
+    public AlphaMode getAlphaMode() {
+        return alphaMode;
+    }
+}
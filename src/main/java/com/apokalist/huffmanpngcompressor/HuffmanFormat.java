@@ -0,0 +1,571 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+
+/**
+ * Layout of the compressed container.
+ *
+ * <pre>
+ * int    magic "HPNG"
+ * byte   version
+ * byte   flags, bit 0: the payload is split into row bands, bit 1: bands pick one of several tables,
+ *               bit 2: symbols carry alpha, bit 3: alpha has its own code, bit 4: predicted residuals,
+ *               bit 5: adaptive code, bit 6: run-length rows
+ * int    width
+ * int    height
+ * if adaptive:
+ *   nothing more, the payload follows and runs until every pixel is decoded
+ * else if predicted:
+ *   byte    channel count C, 3 for RGB or 4 with alpha
+ *   C times the code layout below with 8 bit residuals as symbols
+ * else:
+ * int    symbol count
+ * byte   longest code length L
+ * int[L] number of codes of every length 1..L
+ * 24 bit color per symbol, in canonical order; 32 bit with alpha, transparency on top
+ * long   payload length in bits
+ * if banded:
+ *   int     rows per band, the last band may be shorter
+ *   int     band count
+ *   long[n] bit offset of every band from the payload start
+ * if several tables:
+ *   byte    number of extra tables E
+ *   E times the code layout above: symbol count, L, counts per length, colors
+ *   byte[n] table of every band, 0 is the first table
+ * if alpha has its own code:
+ *   the code layout above with 8 bit alpha values as symbols
+ * if run-length rows:
+ *   the code layout above for the run colors, then with 8 bit length buckets as symbols
+ * ...    payload, byte aligned, codes packed MSB first
+ * </pre>
+ *
+ * Bands follow each other without padding, so a banded payload is still one
+ * bitstream for sequential readers, who only switch tables at band boundaries;
+ * the index adds random access. With an alpha code every pixel is its alpha code
+ * followed by its color code, unless the alpha code has a single symbol: then all
+ * pixels have that alpha and only colors are written.
+ *
+ * A predicted payload starts every row with a 2 bit {@link Predictor} id, then
+ * every pixel is its red, green, blue and maybe alpha residual code; channels
+ * whose code has a single residual are left out. See {@link PredictiveCoder}.
+ *
+ * An adaptive payload carries its code in itself: the tree is built while decoding,
+ * new colors come as an escape code and their raw 24 or 32 bit symbol. The encoder
+ * writes it in one pass, so no length or table can be known up front.
+ * See {@link AdaptiveHuffmanCoder}.
+ *
+ * A run-length payload starts every row with a 1 bit flag, 1 for a row of runs, unless
+ * the first code is empty: then every row is made of runs and has no flag. Plain rows
+ * are color codes as usual, a run is its color code, its length bucket code and as many
+ * low bits of the length as the bucket says. See {@link RunLengthCoder}.
+ */
+public final class HuffmanFormat {
+    public static final int MAGIC = 0x48504E47; // "HPNG"
+    public static final int VERSION = 1;
+    public static final String EXTENSION = ".hpng";
+
+    /// The payload is split into independently decodable row bands
+    public static final int FLAG_BANDS = 1;
+
+    /// Every band names the table its pixels are coded with, needs FLAG_BANDS
+    public static final int FLAG_TABLES = 2;
+
+    /// Color symbols are 32 bits, the top byte is the transparency, see {@link AlphaMode#PACKED}
+    public static final int FLAG_ALPHA = 4;
+
+    /// An alpha code follows the tables, see {@link AlphaMode#SEPARATE}
+    public static final int FLAG_ALPHA_CODE = 8;
+
+    /// The payload codes prediction residuals per channel instead of colors, see {@link PredictiveCoder}
+    public static final int FLAG_PREDICTED = 16;
+
+    /// The payload is coded with an {@link AdaptiveHuffmanCoder}, only FLAG_ALPHA may go with it
+    public static final int FLAG_ADAPTIVE = 32;
+
+    /// Rows may be coded as runs, see {@link RunLengthCoder}; goes with FLAG_BANDS and FLAG_ALPHA only
+    public static final int FLAG_RUNS = 64;
+
+    /// Table ids are stored in one byte
+    public static final int MAX_TABLES = 256;
+
+    private HuffmanFormat() {
+    }
+
+    /**
+     * Everything the header describes
+     */
+    public static class Header {
+        final int width;
+        final int height;
+        final CanonicalCode code;
+        final long payloadBits;
+        final int bandRows;
+        final long[] bandOffsets;
+        final CanonicalCode[] tables;
+        final byte[] bandTables;
+        final CanonicalCode alphaCode;
+        final CanonicalCode[] channelCodes;
+        final int adaptiveSymbolBits;
+        final CanonicalCode runColorCode;
+        final CanonicalCode runLengthCode;
+
+        Header(int width, int height, CanonicalCode code, long payloadBits) {
+            this(width, height, code, payloadBits, 0, null);
+        }
+
+        /**
+         * @param bandRows rows per band, 0 for a single stream
+         * @param bandOffsets bit offset of every band from the payload start, null for a single stream
+         */
+        Header(int width, int height, CanonicalCode code, long payloadBits, int bandRows, long[] bandOffsets) {
+            this(width, height, new CanonicalCode[]{code}, null, payloadBits, bandRows, bandOffsets);
+        }
+
+        /**
+         * @param tables every code table, the first one doubles as {@link #getCode()}
+         * @param bandTables table of every band, null when there is only one table
+         */
+        Header(int width, int height, CanonicalCode[] tables, byte[] bandTables, long payloadBits,
+               int bandRows, long[] bandOffsets) {
+            this(width, height, tables, bandTables, null, payloadBits, bandRows, bandOffsets);
+        }
+
+        /**
+         * @param alphaCode code of the alpha values, null when alpha is not coded on its own
+         */
+        Header(int width, int height, CanonicalCode[] tables, byte[] bandTables, CanonicalCode alphaCode,
+               long payloadBits, int bandRows, long[] bandOffsets) {
+            this(width, height, tables, bandTables, alphaCode, null, 0, payloadBits, bandRows, bandOffsets);
+        }
+
+        /**
+         * Header of a predicted payload, which has channel codes instead of color tables
+         *
+         * @param channelCodes residual code of every channel
+         */
+        Header(int width, int height, CanonicalCode[] channelCodes, long payloadBits, int bandRows, long[] bandOffsets) {
+            this(width, height, new CanonicalCode[0], null, null, channelCodes, 0, payloadBits, bandRows, bandOffsets);
+        }
+
+        /**
+         * Header of an adaptive payload, which has neither tables nor a known length
+         *
+         * @param symbolBits raw bits of a new color, 24 or 32 with alpha
+         */
+        Header(int width, int height, int symbolBits) {
+            this(width, height, new CanonicalCode[0], null, null, null, symbolBits, -1, 0, null);
+        }
+
+        /**
+         * Header of a run-length payload
+         *
+         * @param code code of the plain rows, empty when every row is made of runs
+         * @param runColorCode code of the run colors
+         * @param runLengthCode code of the run length buckets
+         */
+        Header(int width, int height, CanonicalCode code, CanonicalCode runColorCode, CanonicalCode runLengthCode,
+               long payloadBits, int bandRows, long[] bandOffsets) {
+            this(width, height, new CanonicalCode[]{code}, null, null, null, 0, payloadBits, bandRows, bandOffsets,
+                    runColorCode, runLengthCode);
+        }
+
+        private Header(int width, int height, CanonicalCode[] tables, byte[] bandTables, CanonicalCode alphaCode,
+                       CanonicalCode[] channelCodes, int adaptiveSymbolBits, long payloadBits, int bandRows,
+                       long[] bandOffsets) {
+            this(width, height, tables, bandTables, alphaCode, channelCodes, adaptiveSymbolBits, payloadBits, bandRows,
+                    bandOffsets, null, null);
+        }
+
+        private Header(int width, int height, CanonicalCode[] tables, byte[] bandTables, CanonicalCode alphaCode,
+                       CanonicalCode[] channelCodes, int adaptiveSymbolBits, long payloadBits, int bandRows,
+                       long[] bandOffsets, CanonicalCode runColorCode, CanonicalCode runLengthCode) {
+            this.width = width;
+            this.height = height;
+            this.code = tables.length == 0 ? null : tables[0];
+            this.channelCodes = channelCodes;
+            this.adaptiveSymbolBits = adaptiveSymbolBits;
+            this.runColorCode = runColorCode;
+            this.runLengthCode = runLengthCode;
+            this.tables = tables;
+            this.bandTables = bandTables;
+            this.alphaCode = alphaCode;
+            this.payloadBits = payloadBits;
+            this.bandRows = bandRows;
+            this.bandOffsets = bandOffsets;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        /**
+         * @return the first color table, null for a predicted or adaptive payload
+         */
+        public CanonicalCode getCode() {
+            return code;
+        }
+
+        public boolean isPredicted() {
+            return channelCodes != null;
+        }
+
+        /**
+         * @return residual code of every channel, null unless the payload is predicted
+         */
+        public CanonicalCode[] getChannelCodes() {
+            return channelCodes;
+        }
+
+        public boolean isAdaptive() {
+            return adaptiveSymbolBits != 0;
+        }
+
+        /**
+         * @return raw bits of a new color in an adaptive payload, 0 for other payloads
+         */
+        public int getAdaptiveSymbolBits() {
+            return adaptiveSymbolBits;
+        }
+
+        public boolean isRunLength() {
+            return runColorCode != null;
+        }
+
+        /**
+         * @return code of the run colors, null unless rows may be coded as runs
+         */
+        public CanonicalCode getRunColorCode() {
+            return runColorCode;
+        }
+
+        /**
+         * @return code of the run length buckets, null unless rows may be coded as runs
+         */
+        public CanonicalCode getRunLengthCode() {
+            return runLengthCode;
+        }
+
+        /**
+         * @return payload size, -1 for an adaptive payload whose size only the encoder knew at the end
+         */
+        public long getPayloadBits() {
+            return payloadBits;
+        }
+
+        public int getTableCount() {
+            return tables.length;
+        }
+
+        public CanonicalCode getTable(int table) {
+            return tables[table];
+        }
+
+        /**
+         * @return index of the table the band is coded with
+         */
+        public int getBandTable(int band) {
+            return bandTables == null ? 0 : bandTables[band] & 0xFF;
+        }
+
+        /**
+         * @return code of the alpha values, null when alpha is not coded on its own
+         */
+        public CanonicalCode getAlphaCode() {
+            return alphaCode;
+        }
+
+        public boolean isBanded() {
+            return bandOffsets != null;
+        }
+
+        /**
+         * @return rows per band, 0 for a single stream
+         */
+        public int getBandRows() {
+            return bandRows;
+        }
+
+        public int getBandCount() {
+            return bandOffsets == null ? 0 : bandOffsets.length;
+        }
+
+        /**
+         * @return first payload bit of the band
+         */
+        public long getBandStart(int band) {
+            return bandOffsets[band];
+        }
+
+        /**
+         * @return payload bit right after the band
+         */
+        public long getBandEnd(int band) {
+            return band + 1 < bandOffsets.length ? bandOffsets[band + 1] : payloadBits;
+        }
+    }
+
+    /**
+     * @param height image height
+     * @param bandRows rows per band, 0 for a single stream
+     * @return number of bands the image is split into, 0 for a single stream
+     */
+    public static int bandCount(int height, int bandRows) {
+        return bandRows == 0 ? 0 : (height + bandRows - 1) / bandRows;
+    }
+
+    /**
+     * @param code the code stored in the header
+     * @return size of a single stream header in bits, always a whole number of bytes
+     */
+    public static long headerBits(CanonicalCode code) {
+        return headerBits(code, 0);
+    }
+
+    /**
+     * @param code the code stored in the header
+     * @param bandCount number of bands in the index, 0 for a single stream
+     * @return size of the header in bits, always a whole number of bytes
+     */
+    public static long headerBits(CanonicalCode code, int bandCount) {
+        return headerBits(new CanonicalCode[]{code}, bandCount);
+    }
+
+    /**
+     * @param tables the code tables stored in the header, several only for a banded container
+     * @param bandCount number of bands in the index, 0 for a single stream
+     * @return size of the header in bits, always a whole number of bytes
+     */
+    public static long headerBits(CanonicalCode[] tables, int bandCount) {
+        return headerBits(tables, bandCount, null);
+    }
+
+    /**
+     * @param tables the code tables stored in the header, several only for a banded container
+     * @param bandCount number of bands in the index, 0 for a single stream
+     * @param alphaCode code of the alpha values, null when alpha is not coded on its own
+     * @return size of the header in bits, always a whole number of bytes
+     */
+    public static long headerBits(CanonicalCode[] tables, int bandCount, CanonicalCode alphaCode) {
+        int symbolBits = symbolBits(tables);
+        long bits = headerBits(tables[0].size(), tables[0].getMaxLength(), symbolBits);
+        for (int i = 1; i < tables.length; i++) bits += codeBits(tables[i], symbolBits);
+        if (bandCount > 0) bits += 32 + 32 + 64L * bandCount;
+        if (tables.length > 1) bits += 8 + 8L * bandCount;
+        if (alphaCode != null) bits += codeBits(alphaCode, 8);
+        return bits;
+    }
+
+    /**
+     * @param channelCodes residual code of every channel
+     * @param bandCount number of bands in the index, 0 for a single stream
+     * @return size of a predicted header in bits, always a whole number of bytes
+     */
+    public static long predictedHeaderBits(CanonicalCode[] channelCodes, int bandCount) {
+        long bits = 32 + 8 + 8 + 32 + 32 + 8 + 64;
+        for (CanonicalCode code : channelCodes) bits += codeBits(code, 8);
+        return bandCount == 0 ? bits : bits + 32 + 32 + 64L * bandCount;
+    }
+
+    /**
+     * @param code code of the plain rows, empty when every row is made of runs
+     * @param runColorCode code of the run colors
+     * @param runLengthCode code of the run length buckets
+     * @param bandCount number of bands in the index, 0 for a single stream
+     * @return size of a run-length header in bits, always a whole number of bytes
+     */
+    public static long runHeaderBits(CanonicalCode code, CanonicalCode runColorCode, CanonicalCode runLengthCode,
+                                     int bandCount) {
+        int symbolBits = symbolBits(new CanonicalCode[]{code, runColorCode});
+        long bits = headerBits(code.size(), code.getMaxLength(), symbolBits) + codeBits(runColorCode, symbolBits)
+                + codeBits(runLengthCode, 8);
+        return bandCount == 0 ? bits : bits + 32 + 32 + 64L * bandCount;
+    }
+
+    /**
+     * Size of a single stream header from the shape of its code, for estimates made before the code exists
+     *
+     * @param symbols number of symbols in the code
+     * @param maxLength longest code length
+     * @param symbolBits stored size of every symbol
+     * @return size of the header in bits, always a whole number of bytes
+     */
+    public static long headerBits(long symbols, int maxLength, int symbolBits) {
+        return 32 + 8 + 8 + 32 + 32 + 64 + codeBits(symbols, maxLength, symbolBits);
+    }
+
+    /**
+     * @param symbolBits stored size of every symbol
+     * @return bits one code table takes in the header
+     */
+    public static long codeBits(CanonicalCode code, int symbolBits) {
+        return codeBits(code.size(), code.getMaxLength(), symbolBits);
+    }
+
+    private static long codeBits(long symbols, int maxLength, int symbolBits) {
+        return 32 + 8 + 32L * maxLength + symbolBits * symbols;
+    }
+
+    /**
+     * @return 32 when a symbol of any table carries transparency, 24 otherwise
+     */
+    static int symbolBits(CanonicalCode[] tables) {
+        for (CanonicalCode table : tables) {
+            for (int i = 0; i < table.size(); i++) {
+                if (table.getSymbol(i) >>> 24 != 0) return 32;
+            }
+        }
+        return 24;
+    }
+
+    /**
+     * @return bit position of the band offsets in the writer, for writers that fill them in later; -1 without bands
+     */
+    public static long writeHeader(BitWriter writer, Header header) throws IOException {
+        if (header.isAdaptive()) {
+            writer.writeInt(MAGIC);
+            writer.writeByte(VERSION);
+            writer.writeByte(FLAG_ADAPTIVE | (header.adaptiveSymbolBits == 32 ? FLAG_ALPHA : 0));
+            writer.writeInt(header.width);
+            writer.writeInt(header.height);
+            return -1;
+        }
+        boolean tables = header.tables.length > 1;
+        int symbolBits = symbolBits(header.isRunLength()
+                ? new CanonicalCode[]{header.code, header.runColorCode} : header.tables);
+        writer.writeInt(MAGIC);
+        writer.writeByte(VERSION);
+        writer.writeByte((header.isBanded() ? FLAG_BANDS : 0) | (tables ? FLAG_TABLES : 0)
+                | (symbolBits == 32 ? FLAG_ALPHA : 0) | (header.alphaCode != null ? FLAG_ALPHA_CODE : 0)
+                | (header.isPredicted() ? FLAG_PREDICTED : 0) | (header.isRunLength() ? FLAG_RUNS : 0));
+        writer.writeInt(header.width);
+        writer.writeInt(header.height);
+        if (header.isPredicted()) {
+            writer.writeByte(header.channelCodes.length);
+            for (CanonicalCode code : header.channelCodes) writeCode(writer, code, 8);
+        } else {
+            writeCode(writer, header.code, symbolBits);
+        }
+        writer.writeLong(header.payloadBits);
+        long index = -1;
+        if (header.isBanded()) {
+            writer.writeInt(header.bandRows);
+            writer.writeInt(header.bandOffsets.length);
+            index = writer.getBitsWritten();
+            for (long offset : header.bandOffsets) writer.writeLong(offset);
+        }
+        if (tables) {
+            writer.writeByte(header.tables.length - 1);
+            for (int i = 1; i < header.tables.length; i++) writeCode(writer, header.tables[i], symbolBits);
+            for (byte table : header.bandTables) writer.writeByte(table);
+        }
+        if (header.alphaCode != null) writeCode(writer, header.alphaCode, 8);
+        if (header.isRunLength()) {
+            writeCode(writer, header.runColorCode, symbolBits);
+            writeCode(writer, header.runLengthCode, 8);
+        }
+        return index;
+    }
+
+    private static void writeCode(BitWriter writer, CanonicalCode code, int symbolBits) throws IOException {
+        writer.writeInt(code.size());
+        writer.writeByte(code.getMaxLength());
+        for (int length = 1; length <= code.getMaxLength(); length++) {
+            writer.writeInt(code.getLengthCount(length));
+        }
+        for (int i = 0; i < code.size(); i++) {
+            writer.writeBits(code.getSymbol(i), symbolBits);
+        }
+    }
+
+    public static Header readHeader(BitReader reader) throws IOException {
+        if (reader.readInt() != MAGIC) throw new IOException("Not a Huffman PNG container");
+        int version = reader.readByte();
+        if (version != VERSION) throw new IOException("Unsupported container version " + version);
+        int flags = reader.readByte();
+        if ((flags & ~(FLAG_BANDS | FLAG_TABLES | FLAG_ALPHA | FLAG_ALPHA_CODE | FLAG_PREDICTED | FLAG_ADAPTIVE
+                | FLAG_RUNS)) != 0
+                || (flags & FLAG_ADAPTIVE) != 0 && (flags & ~(FLAG_ADAPTIVE | FLAG_ALPHA)) != 0
+                || (flags & (FLAG_BANDS | FLAG_TABLES)) == FLAG_TABLES
+                || (flags & (FLAG_ALPHA | FLAG_ALPHA_CODE)) == (FLAG_ALPHA | FLAG_ALPHA_CODE)
+                || (flags & FLAG_PREDICTED) != 0 && (flags & (FLAG_TABLES | FLAG_ALPHA | FLAG_ALPHA_CODE)) != 0
+                || (flags & FLAG_RUNS) != 0 && (flags & (FLAG_TABLES | FLAG_ALPHA_CODE | FLAG_PREDICTED)) != 0)
+            throw new IOException("Unsupported container flags " + flags);
+        int symbolBits = (flags & FLAG_ALPHA) != 0 ? 32 : 24;
+        int width = reader.readInt();
+        int height = reader.readInt();
+        if (width < 0 || height < 0) throw new IOException("Corrupt container header");
+        if ((flags & FLAG_ADAPTIVE) != 0) return new Header(width, height, symbolBits);
+        CanonicalCode code = null;
+        CanonicalCode[] channelCodes = null;
+        if ((flags & FLAG_PREDICTED) != 0) {
+            channelCodes = new CanonicalCode[reader.readByte()];
+            if (channelCodes.length != 3 && channelCodes.length != 4) throw new IOException("Corrupt channel count");
+            for (int i = 0; i < channelCodes.length; i++) channelCodes[i] = readCode(reader, 8);
+        } else {
+            code = readCode(reader, symbolBits);
+        }
+        long payloadBits = reader.readLong();
+        int bandRows = 0;
+        long[] bandOffsets = null;
+        if ((flags & FLAG_BANDS) != 0) {
+            bandRows = reader.readInt();
+            int bandCount = reader.readInt();
+            if (bandRows <= 0 || bandCount != bandCount(height, bandRows))
+                throw new IOException("Corrupt band index");
+            bandOffsets = new long[bandCount];
+            for (int i = 0; i < bandCount; i++) {
+                bandOffsets[i] = reader.readLong();
+                if (bandOffsets[i] < (i == 0 ? 0 : bandOffsets[i - 1]) || bandOffsets[i] > payloadBits)
+                    throw new IOException("Corrupt band index");
+            }
+        }
+        CanonicalCode[] tables = {code};
+        byte[] bandTables = null;
+        if ((flags & FLAG_TABLES) != 0) {
+            tables = new CanonicalCode[1 + reader.readByte()];
+            tables[0] = code;
+            for (int i = 1; i < tables.length; i++) tables[i] = readCode(reader, symbolBits);
+            bandTables = new byte[bandOffsets.length];
+            for (int i = 0; i < bandTables.length; i++) {
+                bandTables[i] = (byte) reader.readByte();
+                if ((bandTables[i] & 0xFF) >= tables.length) throw new IOException("Corrupt band table");
+            }
+        }
+        CanonicalCode alphaCode = null;
+        if ((flags & FLAG_ALPHA_CODE) != 0) alphaCode = readCode(reader, 8);
+        if (channelCodes != null) return new Header(width, height, channelCodes, payloadBits, bandRows, bandOffsets);
+        if ((flags & FLAG_RUNS) != 0) {
+            CanonicalCode runColorCode = readCode(reader, symbolBits);
+            CanonicalCode runLengthCode = readCode(reader, 8);
+            for (int i = 0; i < runLengthCode.size(); i++) {
+                if (runLengthCode.getSymbol(i) >= RunLengthCoder.BUCKETS) throw new IOException("Corrupt run length code");
+            }
+            return new Header(width, height, code, runColorCode, runLengthCode, payloadBits, bandRows, bandOffsets);
+        }
+        return new Header(width, height, tables, bandTables, alphaCode, payloadBits, bandRows, bandOffsets);
+    }
+
+    private static CanonicalCode readCode(BitReader reader, int symbolBits) throws IOException {
+        int symbolCount = reader.readInt();
+        int maxLength = reader.readByte();
+        if (symbolCount < 0 || maxLength > CanonicalCode.MAX_LENGTH) throw new IOException("Corrupt container header");
+
+        int[] lengthCounts = new int[maxLength + 1];
+        for (int length = 1; length <= maxLength; length++) {
+            lengthCounts[length] = reader.readInt();
+        }
+        int[] symbols = new int[symbolCount];
+        for (int i = 0; i < symbolCount; i++) {
+            symbols[i] = reader.readBits(symbolBits);
+        }
+        try {
+            return CanonicalCode.fromLengthCounts(lengthCounts, symbols);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt code table: " + e.getMessage(), e);
+        }
+    }
+}
@@ -2,6 +2,8 @@ package com.apokalist.huffmanpngcompressor;
 
 
 import javafx.application.Application;
+import javafx.concurrent.Task;
+import javafx.concurrent.Worker;
 import javafx.geometry.Insets;
 import javafx.geometry.Pos;
 import javafx.scene.Scene;
@@ -17,19 +19,27 @@ import javafx.scene.control.*;
 import javafx.scene.image.Image;
 import javafx.stage.FileChooser;
 import java.io.File;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Map;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.Objects;
 
 
 public class HuffmanPNGCompressor extends Application {
     private ImageView originalImage;
     private TextArea resultTextArea;
-    private TextArea huffmanTreeArea;
+    private TreeView<HuffmanNode> huffmanTreeView;
     private Label compressionLabel;
     private Label pixelCountLabel;
     private Compressor compressor;
+    private File imageFile;
+    private ProgressBar progressBar;
+    private Label statusLabel;
+    private Button cancelButton;
+    private final CompressionService compressionService = new CompressionService();
+    private Task<Long> saveTask;
+
+    /// Preview is decoded at this size, compression streams the file itself
+    private static final int PREVIEW_SIZE = 500;
 
 
     /**
@@ -38,15 +48,15 @@ public class HuffmanPNGCompressor extends Application {
      *
      */
     static class HuffmanNode implements  Comparable<HuffmanNode> {
-        String color;
-        int frequency;
+        int color;
+        long frequency;
         HuffmanNode left, right;
 
         /*
          * Constructor for HuffmanNode
          *
          */
-        HuffmanNode(String color, int frequency) {
+        HuffmanNode(int color, long frequency) {
             this.color = color;
             this.frequency = frequency;
         }
@@ -59,7 +69,7 @@ public class HuffmanPNGCompressor extends Application {
          * @param left
          * @param right
          */
-        HuffmanNode(int frequency, HuffmanNode left, HuffmanNode right) {
+        HuffmanNode(long frequency, HuffmanNode left, HuffmanNode right) {
             this.frequency = frequency;
             this.left = left;
             this.right = right;
@@ -73,7 +83,7 @@ public class HuffmanPNGCompressor extends Application {
          */
         @Override
         public int compareTo (HuffmanNode other) {
-            return Integer.compare(this.frequency, other.frequency);
+            return Long.compare(this.frequency, other.frequency);
         }
 
         boolean isLeaf() {
@@ -107,6 +117,19 @@ public class HuffmanPNGCompressor extends Application {
         scene.getStylesheets().add(Objects.requireNonNull(getClass().getResource("/style.css")).toExternalForm());
         primaryStage.setScene(scene);
 
+        compressionService.setWorkers(Runtime.getRuntime().availableProcessors());
+        compressionService.setOnSucceeded(e -> {
+            compressor = compressionService.getValue();
+            displayResults();
+            displayHuffmanTree();
+        });
+        compressionService.setOnFailed(e -> {
+            Throwable error = compressionService.getException();
+            Utils.showAlert("Error", "Issue in compression: " + error.getMessage());
+            error.printStackTrace();
+        });
+        showProgress(compressionService);
+
         primaryStage.show();
     }
 
@@ -146,12 +169,11 @@ public class HuffmanPNGCompressor extends Application {
         treeLabel.setFont(Font.font("System", FontWeight.BOLD, 12));
         treeLabel.getStyleClass().add("label");
 
-        huffmanTreeArea = new TextArea();
-        huffmanTreeArea.setPrefHeight(220);
-        huffmanTreeArea.setEditable(false);
-        huffmanTreeArea.getStyleClass().addAll("text-area", "huffman-tree");
+        huffmanTreeView = new TreeView<>();
+        huffmanTreeView.setPrefHeight(220);
+        huffmanTreeView.getStyleClass().add("huffman-tree");
 
-        resultsPanel.getChildren().addAll(resultsLabel, resultTextArea, treeLabel, huffmanTreeArea);
+        resultsPanel.getChildren().addAll(resultsLabel, resultTextArea, treeLabel, huffmanTreeView);
 
         centerPanel.getChildren().addAll(imagePanel, resultsPanel);
         return centerPanel;
@@ -174,10 +196,13 @@ public class HuffmanPNGCompressor extends Application {
         Button compressButton = createNiceButton("Compress", "button-info");
         compressButton.setOnAction(e-> compressImage());
 
+        Button saveButton = createNiceButton("Save", "button-info");
+        saveButton.setOnAction(e-> saveCompressed());
+
         Button clearButton = createNiceButton("Clear", "button-clear");
         clearButton.setOnAction(e -> clearAll());
 
-        topPanel.getChildren().addAll(loadButton, compressButton, clearButton);
+        topPanel.getChildren().addAll(loadButton, compressButton, saveButton, clearButton);
         return topPanel;
     }
 
@@ -200,7 +225,18 @@ public class HuffmanPNGCompressor extends Application {
         compressionLabel.setFont(Font.font("System", FontWeight.BOLD, 12));
         compressionLabel.getStyleClass().add("label");
 
-        bottomPanel.getChildren().addAll(pixelCountLabel, compressionLabel);
+        progressBar = new ProgressBar(0);
+        progressBar.setPrefWidth(160);
+
+        statusLabel = new Label("Idle");
+        statusLabel.setFont(Font.font("System", FontWeight.BOLD, 12));
+        statusLabel.getStyleClass().add("label");
+
+        cancelButton = createNiceButton("Cancel", "button-clear");
+        cancelButton.setDisable(true);
+        cancelButton.setOnAction(e -> cancelWork());
+
+        bottomPanel.getChildren().addAll(pixelCountLabel, compressionLabel, progressBar, statusLabel, cancelButton);
         return bottomPanel;
     }
 
@@ -230,8 +266,10 @@ public class HuffmanPNGCompressor extends Application {
         File file = fileChooser.showOpenDialog(null);
         if (file != null) {
             try {
-                Image image = new Image(file.toURI().toString());
+                Image image = new Image(file.toURI().toString(), PREVIEW_SIZE, PREVIEW_SIZE, true, true);
+                if (image.isError()) throw image.getException();
                 originalImage.setImage(image);
+                imageFile = file;
                 clearResults();
             } catch (Exception e) {
                 Utils.showAlert("Error", "I cant load it))) : " + e.getMessage());
@@ -245,18 +283,32 @@ public class HuffmanPNGCompressor extends Application {
      * If compression is successful, the results are displayed in the text areas.
      */
     private void compressImage() {
-        Image image = originalImage.getImage();
-        if (image == null) {
+        if (imageFile == null) {
             Utils.showAlert("Error", "Load an image, witek!");
             return;
         }
-        try {
-            compressor = new Compressor(image);
-            displayResults();
-            displayHuffmanTree();
-        } catch (Exception e) {
-            Utils.showAlert("Error", "Issue in compression: " + e.getMessage());
-            e.printStackTrace();
+        /// Runs in the background, a compression still going on is cancelled and replaced
+        clearResults();
+        compressionService.setFile(imageFile);
+        compressionService.restart();
+    }
+
+    /**
+     * Binds the progress bar, the status label and the cancel button to a running job
+     *
+     * @param worker the compression service or a save task
+     */
+    private void showProgress(Worker<?> worker) {
+        progressBar.progressProperty().bind(worker.progressProperty());
+        statusLabel.textProperty().bind(worker.messageProperty());
+        cancelButton.disableProperty().bind(worker.runningProperty().not());
+    }
+
+    private void cancelWork() {
+        if (saveTask != null && saveTask.isRunning()) {
+            saveTask.cancel();
+        } else if (compressionService.isRunning()) {
+            compressionService.cancel();
         }
     }
 
@@ -264,11 +316,11 @@ public class HuffmanPNGCompressor extends Application {
      * Displays the results of the compression, including color frequency, Huffman codes, and compression stats
      */
     private void displayResults() {
-        Map<String, Integer> colorFrequency = compressor.getColorFrequency();
-        Map<String, String> huffmanCodes = compressor.getHuffmanCodes();
-        int totalPixels = compressor.getTotalPixels();
-        int originalSize = compressor.getOriginalSize();
-        int compressedSize = compressor.getCompressedSize();
+        ColorHistogram colorFrequency = compressor.getColorFrequency();
+        CanonicalCode huffmanCodes = compressor.getCanonicalCode();
+        long totalPixels = compressor.getTotalPixels();
+        long originalSize = compressor.getOriginalSize();
+        long compressedSize = compressor.getCompressedSize();
         double compressionRatio = compressor.getCompressionRatio();
 
         StringBuilder sb = new StringBuilder();
@@ -277,83 +329,158 @@ public class HuffmanPNGCompressor extends Application {
         sb.append(String.format("Total pixels: %d\n\n", totalPixels));
 
         sb.append("=== TOP COLORS |===\n");
-        List<Map.Entry<String, Integer>> sortedColors = new ArrayList<>(colorFrequency.entrySet());
-        sortedColors.sort((a, b) -> b.getValue().compareTo(a.getValue()));
-
-        int count = 0;
-
-        for (Map.Entry<String, Integer> entry : sortedColors) {
-            if (count++ >= 8) break;
+        int[] topColors = colorFrequency.topColors(8);
 
-            String color = entry.getKey();
-            int freq = entry.getValue();
+        for (int color : topColors) {
+            int freq = colorFrequency.get(color);
             double percentage = (double) freq / totalPixels * 100;
-            sb.append(String.format("%s: %d times (%.1f%%)\n", color, freq, percentage));
+            sb.append(String.format("%s: %d times (%.1f%%)\n", ColorHistogram.toHex(color), freq, percentage));
         }
 
         sb.append("\n=== HUFFMAN CODES ===\n");
-        count = 0;
-        for (Map.Entry<String, Integer> entry : sortedColors) {
-            if (count++ >= 8) break;
-            String color = entry.getKey();
-            String code = huffmanCodes.get(color);
-            sb.append(String.format("%s → %s\n", color, code));
+        for (int color : topColors) {
+            String code = huffmanCodes.codeString(color);
+            sb.append(String.format("%s → %s\n", ColorHistogram.toHex(color), code));
         }
 
         sb.append(String.format("\n=== COMPRESSION STATS ===\n"));
-        sb.append(String.format("Original size: %d bits\n", originalSize));
+        sb.append(String.format("Original size: %d bits (%d bits per pixel)\n", originalSize,
+                compressor.getSource().getBitsPerPixel()));
         sb.append(String.format("Compressed size: %d bits\n", compressedSize));
         sb.append(String.format("Saved: %d bits\n", originalSize - compressedSize));
+        sb.append(String.format("Container size: %d bytes (header included)\n", compressor.getContainerSize()));
+        if (compressor.getQuantizer() != null) {
+            sb.append(String.format("Palette: %d colors, PSNR %.2f dB\n",
+                    compressor.getQuantizer().size(), compressor.getPsnr()));
+        }
+        if (compressor.getAlphaCode() != null) {
+            sb.append(String.format("Alpha code: %d value(s), %d bits\n",
+                    compressor.getAlphaCode().size(), compressor.getAlphaPayloadBits()));
+        }
+        if (compressor.getLengthLimitCost() > 0) {
+            sb.append(String.format("Codes limited to %d bits: +%d bits over optimal\n",
+                    compressor.getMaxCodeLength(), compressor.getLengthLimitCost()));
+        }
+        if (compressor.getTableSelectionTimeNanos() > 0) {
+            sb.append(String.format("Band tables: %d, saved %d bits over one table in %.1f ms\n",
+                    compressor.getTableCount(), compressor.getTableSavedBits(),
+                    compressor.getTableSelectionTimeNanos() / 1e6));
+        }
+        PredictiveCoder predictive = compressor.getPredictiveCoder();
+        if (predictive != null) {
+            sb.append(String.format("Residuals: %s, saved %d bits over color codes\n",
+                    compressor.isPredicted() ? "used" : "not used", compressor.getPredictionSavedBits()));
+            for (Predictor predictor : Predictor.values()) {
+                long nanos = predictive.getNanos(predictor);
+                if (predictive.getRows(predictor) == 0 && nanos == 0) continue;
+                sb.append(String.format("  %s: %d rows, %d bits (color codes %d), %.1f MB/s\n", predictor,
+                        predictive.getRows(predictor), predictive.getBits(predictor), predictive.getRawBits(predictor),
+                        nanos == 0 ? 0 : totalPixels * 3 / 1e6 / (nanos / 1e9)));
+            }
+        }
+        RunLengthCoder runs = compressor.getRunLengthCoder();
+        if (runs != null) {
+            sb.append(String.format("Runs: %s, saved %d bits, %d rows with %d runs of %.1f pixels\n",
+                    compressor.isRunLength() ? "used" : "not used", compressor.getRunLengthSavedBits(),
+                    runs.getRunRows(), runs.getRuns(), runs.getRuns() == 0 ? 0 : (double) runs.getRunPixels() / runs.getRuns()));
+        }
+        sb.append(String.format("Analysis: %.1f ms on %d worker(s)\n",
+                compressor.getAnalysisTimeNanos() / 1e6, compressor.getWorkers()));
+        if (!Double.isNaN(compressor.getAnalysisSpeedup())) {
+            sb.append(String.format("Speedup over sequential: %.2fx\n", compressor.getAnalysisSpeedup()));
+        }
+        for (CompressionMetrics.Stage stage : compressor.getMetrics().getStages()) {
+            sb.append(String.format("  %s: %.1f ms", stage.getName(), stage.getNanos() / 1e6));
+            if (stage.getPixels() > 0) sb.append(String.format(", %.1f Mpixels/s", stage.getPixelsPerSecond() / 1e6));
+            if (stage.getAllocatedBytes() >= 0) sb.append(String.format(", %.1f MB allocated", stage.getAllocatedBytes() / 1e6));
+            sb.append('\n');
+        }
 
         resultTextArea.setText(sb.toString());
 
         pixelCountLabel.setText(String.format("Pixels: %d | Colors: %d", totalPixels, colorFrequency.size()));
-        compressionLabel.setText(String.format("Compression: %.1f%%", compressionRatio));
+        compressionLabel.setText(String.format("Compression: %.1f%%", compressionRatio * 100));
     }
 
+    /**
+     * Shows the tree lazily, children are only created when a node is expanded
+     */
     private void displayHuffmanTree() {
-        HuffmanNode root = compressor.getHuffmanRoot();
-        StringBuilder sb = new StringBuilder();
-        buildTreeVisualization(root, "", true, sb);
-        huffmanTreeArea.setText(sb.toString());
+        HuffmanTreeItem.show(huffmanTreeView, compressor.getHuffmanRoot());
     }
 
-
     /**
-     * Recursively builds a string representation of the Huffman tree for visualization
-     * StackOverflow logic source
-     *
-     * @param node the current node in the Huffman tree
-     * @param prefix the prefix string to use for indentation
-     * @param isLast whether this node is the last child of its parent
-     * @param sb the StringBuilder to append the visualization to
+     * Writes the compressed image into a container file chosen with a FileChooser dialog
      */
-    private void buildTreeVisualization(HuffmanNode node, String prefix, boolean isLast, StringBuilder sb) {
-        if (node != null) {
-            sb.append(prefix);
-            sb.append(isLast ? "└── " : "├── ");
-            if (node.isLeaf()) {
-                sb.append(String.format("%s (%d)", node.color, node.frequency));
-            } else {
-                sb.append(String.format("* (%d)", node.frequency));
+    private void saveCompressed() {
+        if (compressor == null) {
+            Utils.showAlert("Error", "Compress an image first, witek!");
+            return;
+        }
+        FileChooser fileChooser = new FileChooser();
+        fileChooser.setTitle("Save compressed image");
+        fileChooser.getExtensionFilters().add(
+                new FileChooser.ExtensionFilter("Huffman PNG", "*" + HuffmanFormat.EXTENSION));
+        File file = fileChooser.showSaveDialog(null);
+        if (file == null) return;
+        if (saveTask != null && saveTask.isRunning()) {
+            Utils.showAlert("Error", "Still saving, witek!");
+            return;
+        }
+
+        Compressor toSave = compressor;
+        saveTask = new Task<>() {
+            @Override
+            protected Long call() throws IOException {
+                updateMessage("Encoding");
+                toSave.setProgressListener((stage, done, total) -> updateProgress(done, total));
+                try {
+                    return toSave.encode(file.toPath());
+                } catch (IOException e) {
+                    /// A cancelled or failed save must not leave half a container behind
+                    Files.deleteIfExists(file.toPath());
+                    throw e;
+                }
             }
-            sb.append("\n");
-            if (!node.isLeaf()) {
-                String newPrefix = prefix + (isLast ? "    " : "│   ");
-                buildTreeVisualization(node.left, newPrefix, false, sb);
-                buildTreeVisualization(node.right, newPrefix, true, sb);
+
+            @Override
+            protected void succeeded() {
+                updateMessage("Saved " + file.getName());
             }
-        }
+
+            @Override
+            protected void cancelled() {
+                updateMessage("Save cancelled");
+            }
+        };
+        saveTask.setOnSucceeded(e -> {
+            resultTextArea.appendText(String.format("\nWritten %d bytes to %s\n", saveTask.getValue(), file.getName()));
+            showProgress(compressionService);
+        });
+        saveTask.setOnFailed(e -> {
+            Utils.showAlert("Error", "Issue in saving: " + saveTask.getException().getMessage());
+            showProgress(compressionService);
+        });
+        saveTask.setOnCancelled(e -> showProgress(compressionService));
+        showProgress(saveTask);
+
+        Thread thread = new Thread(saveTask, "hpng-save");
+        thread.setDaemon(true);
+        thread.start();
     }
 
     private void clearAll() {
         originalImage.setImage(null);
+        imageFile = null;
         clearResults();
     }
 
     private void clearResults() {
+        /// Results of a compression still running would belong to the old image
+        compressionService.cancel();
+        compressor = null;
         resultTextArea.clear();
-        huffmanTreeArea.clear();
+        huffmanTreeView.setRoot(null);
         pixelCountLabel.setText("Pixels: 0");
         compressionLabel.setText("Compression: 0%");
     }
@@ -1,25 +1,36 @@
 package com.apokalist.huffmanpngcompressor;
 
+import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.PriorityQueue;
 
+/**
+ * Builds the Huffman tree of an image and derives its canonical code.
+ * Only code lengths are taken from the tree, the actual bits are assigned
+ * canonically so the codec can work with int codes and lookup tables.
+ */
 public class HuffmanTree {
     private HuffmanPNGCompressor.HuffmanNode root;
-    private Map <String, String> huffmanCodes;
+    private final int[] colors;
+    private final int[] codeLengths;
+    private int maxDepth;
+    private CanonicalCode canonicalCode;
+    private Map <Integer, String> huffmanCodes;
 
-    public HuffmanTree(Map <String, Integer> colorFrequency) {
+    public HuffmanTree(ColorHistogram colorFrequency) {
+        colors = new int[colorFrequency.size()];
+        codeLengths = new int[colorFrequency.size()];
         buildTree(colorFrequency);
-        huffmanCodes = new HashMap<>();
-        generateCodes(root, "");
+        collectCodeLengths();
     }
 
-    public void buildTree(Map<String, Integer> colorFrequency) {
-        PriorityQueue <HuffmanPNGCompressor.HuffmanNode> pq= new PriorityQueue<>();
+    public void buildTree(ColorHistogram colorFrequency) {
+        PriorityQueue <HuffmanPNGCompressor.HuffmanNode> pq= new PriorityQueue<>(Math.max(1, colorFrequency.size()));
 
         // Create a priority queue to hold the nodes based on their frequency
-        for (Map.Entry<String, Integer> entry : colorFrequency.entrySet())
-            pq.offer(new HuffmanPNGCompressor.HuffmanNode(entry.getKey(), entry.getValue()));
+        colorFrequency.forEach((color, frequency) ->
+                pq.offer(new HuffmanPNGCompressor.HuffmanNode(color, frequency)));
 
         while (pq.size() > 1) {
             HuffmanPNGCompressor.HuffmanNode left = pq.poll();
@@ -31,20 +42,89 @@ public class HuffmanTree {
         root = pq.poll();
     }
 
-    private void generateCodes (HuffmanPNGCompressor.HuffmanNode node, String code) {
-        if (node.isLeaf()) {
-            huffmanCodes.put(node.color, code.isEmpty() ? "0" : code);
-            return;
+    /**
+     * Takes the depth of every leaf as its code length.
+     * Walks the tree with an explicit stack so deep trees cannot overflow the call stack.
+     */
+    private void collectCodeLengths() {
+        int index = 0;
+
+        ArrayDeque<HuffmanPNGCompressor.HuffmanNode> nodes = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        if (root != null) {
+            nodes.push(root);
+            depths.push(0);
+        }
+        while (!nodes.isEmpty()) {
+            HuffmanPNGCompressor.HuffmanNode node = nodes.pop();
+            int depth = depths.pop();
+            if (node.isLeaf()) {
+                colors[index] = node.color;
+                // A single color still needs one bit per pixel
+                codeLengths[index++] = Math.max(1, depth);
+                maxDepth = Math.max(maxDepth, codeLengths[index - 1]);
+                continue;
+            }
+            if (node.right != null) {
+                nodes.push(node.right);
+                depths.push(depth + 1);
+            }
+            if (node.left != null) {
+                nodes.push(node.left);
+                depths.push(depth + 1);
+            }
+        }
+    }
+
+    /**
+     * @return canonical code with the same lengths as this tree
+     * @throws IllegalStateException if the tree is deeper than {@link CanonicalCode#MAX_LENGTH}
+     */
+    public CanonicalCode getCanonicalCode() {
+        if (canonicalCode == null) {
+            if (maxDepth > CanonicalCode.MAX_LENGTH)
+                throw new IllegalStateException("Huffman tree is " + maxDepth + " levels deep, codes are limited to "
+                        + CanonicalCode.MAX_LENGTH + " bits");
+            canonicalCode = new CanonicalCode(colors, codeLengths);
         }
+        return canonicalCode;
+    }
 
-        if (node.left != null)
-            generateCodes(node.left, code + "0");
+    /**
+     * Code lengths of the unbounded tree, package-merge needs them for the cost comparison
+     *
+     * @return colors in leaf order, aligned with {@link #getCodeLengths()}
+     */
+    public int[] getColors() {
+        return colors;
+    }
 
-        if (node.right != null)
-            generateCodes(node.right, code + "1");
+    public int[] getCodeLengths() {
+        return codeLengths;
     }
 
-    public Map <String, String > getCodes() {
+    /**
+     * @return length of the longest code, the depth of the deepest leaf
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Codes of all colors as strings of 0 and 1.
+     * Built on first use since only display code needs them.
+     *
+     * @return map from packed color to its canonical code
+     */
+    public Map <Integer, String > getCodes() {
+        if (huffmanCodes == null) {
+            huffmanCodes = new HashMap<>();
+            CanonicalCode code = getCanonicalCode();
+            for (int i = 0; i < code.size(); i++) {
+                int color = code.getSymbol(i);
+                huffmanCodes.put(color, code.codeString(color));
+            }
+        }
         return huffmanCodes;
     }
 
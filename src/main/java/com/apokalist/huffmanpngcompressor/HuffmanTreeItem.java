@@ -0,0 +1,114 @@
+package com.apokalist.huffmanpngcompressor;
+
+import javafx.collections.ObservableList;
+import javafx.scene.control.TreeCell;
+import javafx.scene.control.TreeItem;
+import javafx.scene.control.TreeView;
+import javafx.scene.paint.Color;
+import javafx.scene.shape.Rectangle;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tree item that creates its two children only when it is first expanded.
+ * The view then only ever holds the nodes the user opened, and the TreeView cells
+ * are virtualized, so showing a tree of 100k colors costs the same as one of 10.
+ */
+public class HuffmanTreeItem extends TreeItem<HuffmanPNGCompressor.HuffmanNode> {
+    /// Levels opened when a tree is shown, at most 2^3 - 1 items
+    private static final int INITIAL_DEPTH = 3;
+
+    private final String code;
+    private boolean childrenLoaded;
+
+    /**
+     * @param node the node shown by this item
+     * @param code bits from the root to the node, empty for the root
+     */
+    public HuffmanTreeItem(HuffmanPNGCompressor.HuffmanNode node, String code) {
+        super(node);
+        this.code = code;
+    }
+
+    /**
+     * Shows the tree of the root in the view, with the first levels opened
+     *
+     * @param view view to fill
+     * @param root root of the Huffman tree, null to show nothing
+     */
+    public static void show(TreeView<HuffmanPNGCompressor.HuffmanNode> view, HuffmanPNGCompressor.HuffmanNode root) {
+        if (root == null) {
+            view.setRoot(null);
+            return;
+        }
+        HuffmanTreeItem item = new HuffmanTreeItem(root, "");
+        view.setCellFactory(tree -> new Cell(root.frequency));
+        view.setRoot(item);
+        /// Opened level by level, no recursion
+        List<TreeItem<HuffmanPNGCompressor.HuffmanNode>> level = List.of(item);
+        for (int depth = 0; depth < INITIAL_DEPTH && !level.isEmpty(); depth++) {
+            List<TreeItem<HuffmanPNGCompressor.HuffmanNode>> next = new ArrayList<>();
+            for (TreeItem<HuffmanPNGCompressor.HuffmanNode> open : level) {
+                open.setExpanded(true);
+                next.addAll(open.getChildren());
+            }
+            level = next;
+        }
+    }
+
+    @Override
+    public boolean isLeaf() {
+        return getValue().isLeaf();
+    }
+
+    @Override
+    public ObservableList<TreeItem<HuffmanPNGCompressor.HuffmanNode>> getChildren() {
+        if (!childrenLoaded) {
+            childrenLoaded = true;
+            HuffmanPNGCompressor.HuffmanNode node = getValue();
+            if (!node.isLeaf()) {
+                super.getChildren().setAll(List.of(new HuffmanTreeItem(node.left, code + "0"),
+                        new HuffmanTreeItem(node.right, code + "1")));
+            }
+        }
+        return super.getChildren();
+    }
+
+    public String getCode() {
+        return code;
+    }
+
+    /**
+     * Shows the code bits, the frequency with its share of all pixels and, for a leaf, the color
+     */
+    private static class Cell extends TreeCell<HuffmanPNGCompressor.HuffmanNode> {
+        private final long total;
+        private final Rectangle swatch = new Rectangle(10, 10);
+
+        Cell(long total) {
+            this.total = total;
+        }
+
+        @Override
+        protected void updateItem(HuffmanPNGCompressor.HuffmanNode node, boolean empty) {
+            super.updateItem(node, empty);
+            if (empty || node == null) {
+                setText(null);
+                setGraphic(null);
+                return;
+            }
+            String code = ((HuffmanTreeItem) getTreeItem()).getCode();
+            double share = total == 0 ? 0 : 100.0 * node.frequency / total;
+            if (node.isLeaf()) {
+                swatch.setFill(Color.rgb((node.color >>> 16) & 0xFF, (node.color >>> 8) & 0xFF, node.color & 0xFF,
+                        (255 - (node.color >>> 24)) / 255.0));
+                setText(String.format("%s  %s (%d, %.2f%%)", code, ColorHistogram.toHex(node.color), node.frequency, share));
+                setGraphic(swatch);
+            } else {
+                setText(String.format("%s  * (%d, %.2f%%)", code.isEmpty() ? "root" : code, node.frequency, share));
+                setGraphic(null);
+            }
+        }
+    }
+}
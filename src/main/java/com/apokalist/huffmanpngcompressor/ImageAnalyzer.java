@@ -2,52 +2,277 @@ package com.apokalist.huffmanpngcompressor;
 
 import javafx.scene.image.Image;
 import javafx.scene.image.PixelReader;
-import javafx.scene.paint.Color;
+import javafx.scene.image.WritablePixelFormat;
 
-import java.util.Map;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.TimeUnit;
 
 /*
  * This class analyzes an image to count the frequency of each color
  */
 public class ImageAnalyzer {
+    /// How many pixels are pulled from the PixelReader in one bulk call
+    static final int CHUNK_PIXELS = 1 << 16;
+
+    /// Bands per worker, a few more than one so uneven bands still balance out
+    private static final int BANDS_PER_WORKER = 4;
+
+    /// Smallest band worth handing to another thread
+    private static final int MIN_BAND_PIXELS = 1 << 14;
+
+    private final AlphaMode alphaMode;
+
+    /**
+     * Creates an analyzer counting plain RGB colors, alpha dropped
+     */
+    public ImageAnalyzer() {
+        this(AlphaMode.IGNORE);
+    }
+
+    /**
+     * @param alphaMode {@link AlphaMode#PACKED} counts colors with their transparency,
+     *                  anything else counts plain RGB colors
+     */
+    public ImageAnalyzer(AlphaMode alphaMode) {
+        this.alphaMode = alphaMode;
+    }
 
     /**
-     * Analyzes the colors in the given image and returns a map of color hex codes to their frequency.
+     * Analyzes the colors in the given image and returns a histogram of packed RGB colors.
+     * Pixels are read in bulk as packed ARGB ints, so no Color or String is created per pixel.
      *
      * @param image The image to analyze.
-     * @return A map where keys are color hex codes and values are their frequency in the image.
+     * @return A histogram where keys are the {@link AlphaMode#symbol} of the colors and values are their frequency in the image.
      */
-    public Map <String, Integer> analyzeColors(Image image ) {
-
-        Map<String, Integer> colorFrequency = new HashMap<>();
+    public ColorHistogram analyzeColors(Image image) {
         PixelReader pixelReader = image.getPixelReader();
+        WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
         int width = (int) image.getWidth();
         int height = (int) image.getHeight();
 
-        for (int y = 0; y < height; y++) {
-            for (int x = 0; x < width; x++) {
-                Color color = pixelReader.getColor(x, y);
-                String hexCode = colorToHex(color);
-                // ColorFrequency.put(hexCode, colorFrequency.getOrDefault(hexCode, 0) + 1);
-                colorFrequency.merge(hexCode, 1, Integer::sum);
+        ColorHistogram colorFrequency = new ColorHistogram((long) width * height);
+        int rowsPerChunk = Math.max(1, CHUNK_PIXELS / Math.max(1, width));
+        int[] buffer = new int[rowsPerChunk * width];
+
+        for (int y = 0; y < height; y += rowsPerChunk) {
+            int rows = Math.min(rowsPerChunk, height - y);
+            pixelReader.getPixels(0, y, width, rows, format, buffer, 0, width);
+            int count = rows * width;
+            for (int i = 0; i < count; i++) {
+                colorFrequency.add(alphaMode.symbol(buffer[i]));
             }
         }
         return colorFrequency;
     }
 
     /**
-     * Converts a Color object to its hexadecimal representation.
+     * Analyzes the colors using a fork-join pool of the given size.
+     * The image is split into row bands, each worker counts into its own local
+     * histogram and the partial histograms are merged pairwise.
      *
-     * @param color The Color object to convert.
-     * @return A string representing the color in hexadecimal format.
+     * @param image The image to analyze.
+     * @param workers Number of worker threads, 1 falls back to the sequential path.
+     * @return A histogram where keys are the {@link AlphaMode#symbol} of the colors and values are their frequency in the image.
      */
-    private String colorToHex(Color color) {
-        int r = (int) (color.getRed() * 255);
-        int g = (int) (color.getGreen() * 255);
-        int b = (int) (color.getBlue() * 255);
+    public ColorHistogram analyzeColors(Image image, int workers) {
+        if (workers <= 1) return analyzeColors(image);
+
+        int width = (int) image.getWidth();
+        int height = (int) image.getHeight();
+        if (width == 0 || height == 0) return new ColorHistogram();
+
+        int bandRows = Math.max(
+                (height + workers * BANDS_PER_WORKER - 1) / (workers * BANDS_PER_WORKER),
+                Math.max(1, MIN_BAND_PIXELS / width));
 
-        /// Ensuring that rgb in range 0-255
-        return String.format("#%02X%02X%02X", r, g, b);
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        try {
+            return pool.invoke(new ParallelHistogramTask(image.getPixelReader(), alphaMode, width, 0, height, bandRows, height));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Analyzes the colors of any pixel source in a single streaming pass.
+     * Memory stays proportional to the image width.
+     *
+     * @param source The pixels to analyze.
+     * @return A histogram where keys are the {@link AlphaMode#symbol} of the colors and values are their frequency in the image.
+     * @throws IOException if the source cannot be read
+     */
+    public ColorHistogram analyzeColors(PixelSource source) throws IOException {
+        if (source instanceof FxPixelSource fx) return analyzeColors(fx.getImage());
+
+        return analyzeColors(source, new ColorHistogram((long) source.getWidth() * source.getHeight()));
+    }
+
+    /**
+     * Counts the colors of a pixel source into a histogram the caller provides,
+     * for servers that reuse their histograms from one image to the next.
+     *
+     * @param source The pixels to analyze.
+     * @param colorFrequency Histogram to count into, normally empty.
+     * @return The histogram that was passed in.
+     * @throws IOException if the source cannot be read
+     */
+    public ColorHistogram analyzeColors(PixelSource source, ColorHistogram colorFrequency) throws IOException {
+        source.forEachRow((y, row) -> {
+            for (int pixel : row) {
+                colorFrequency.add(alphaMode.symbol(pixel));
+            }
+        });
+        return colorFrequency;
+    }
+
+    /**
+     * Analyzes a streamed source with a fork-join pool of the given size.
+     * The reading thread copies rows into bands and queues them for the workers.
+     * Each worker counts every band it takes into its own histogram, and the
+     * worker histograms are merged once the source is read, so memory is bounded
+     * by the worker histograms and a fixed set of band buffers whatever the image height.
+     *
+     * @param source The pixels to analyze.
+     * @param workers Number of worker threads, 1 falls back to the sequential path.
+     * @return A histogram where keys are the {@link AlphaMode#symbol} of the colors and values are their frequency in the image.
+     * @throws IOException if the source cannot be read
+     */
+    public ColorHistogram analyzeColors(PixelSource source, int workers) throws IOException {
+        if (source instanceof FxPixelSource fx) return analyzeColors(fx.getImage(), workers);
+        if (workers <= 1) return analyzeColors(source);
+
+        int width = source.getWidth();
+        int bandRows = Math.max(1, CHUNK_PIXELS / Math.max(1, width));
+        BlockingQueue<Band> freeBands = new ArrayBlockingQueue<>(workers * 2);
+        for (int i = 0; i < workers * 2; i++) freeBands.add(new Band(bandRows * width));
+        /// Room for every band plus one end marker per worker, so putting never blocks
+        BlockingQueue<Band> fullBands = new ArrayBlockingQueue<>(workers * 3);
+        /// Capped below the dense threshold like the band tasks, only the root merge builds the dense table
+        long workerPixels = Math.min((long) width * source.getHeight() / workers + 1, ColorHistogram.DENSE_THRESHOLD - 1);
+
+        ForkJoinPool pool = new ForkJoinPool(workers);
+        List<ForkJoinTask<ColorHistogram>> parts = new ArrayList<>(workers);
+        try {
+            for (int i = 0; i < workers; i++) {
+                parts.add(pool.submit(() -> {
+                    ColorHistogram histogram = new ColorHistogram(workerPixels);
+                    for (Band band = fullBands.take(); band != Band.END; band = fullBands.take()) {
+                        for (int j = 0; j < band.count; j++) histogram.add(alphaMode.symbol(band.pixels[j]));
+                        freeBands.add(band);
+                    }
+                    return histogram;
+                }));
+            }
+
+            Band[] band = {null};
+            source.forEachRow((y, row) -> {
+                if (band[0] == null) {
+                    band[0] = takeBand(freeBands, parts);
+                    band[0].count = 0;
+                }
+                System.arraycopy(row, 0, band[0].pixels, band[0].count, width);
+                band[0].count += width;
+                if (band[0].count == band[0].pixels.length || y == source.getHeight() - 1) {
+                    fullBands.add(band[0]);
+                    band[0] = null;
+                }
+            });
+            for (int i = 0; i < workers; i++) fullBands.add(Band.END);
+            return pool.invoke(new MergeTask(parts, 0, parts.size()));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Counts the colors of every row band separately, for choosing a code table per band.
+     * Band histograms never switch to the dense table, there can be many of them.
+     *
+     * @param source The pixels to analyze.
+     * @param bandRows Rows per band, the last band may be shorter.
+     * @return One histogram per band, top to bottom.
+     * @throws IOException if the source cannot be read
+     */
+    public ColorHistogram[] analyzeBands(PixelSource source, int bandRows) throws IOException {
+        int width = source.getWidth();
+        ColorHistogram[] bands = new ColorHistogram[HuffmanFormat.bandCount(source.getHeight(), bandRows)];
+        long bandPixels = Math.min((long) width * bandRows, ColorHistogram.DENSE_THRESHOLD - 1);
+        source.forEachRow((y, row) -> {
+            int band = y / bandRows;
+            if (bands[band] == null) bands[band] = new ColorHistogram(bandPixels);
+            ColorHistogram histogram = bands[band];
+            for (int pixel : row) {
+                histogram.add(alphaMode.symbol(pixel));
+            }
+        });
+        return bands;
+    }
+
+    /**
+     * Waits for a band buffer to come back from the workers.
+     * A worker that failed never returns its buffer, so its error is rethrown here instead of waiting forever.
+     */
+    private static Band takeBand(BlockingQueue<Band> freeBands, List<ForkJoinTask<ColorHistogram>> parts) throws IOException {
+        try {
+            while (true) {
+                Band band = freeBands.poll(100, TimeUnit.MILLISECONDS);
+                if (band != null) return band;
+                for (ForkJoinTask<ColorHistogram> part : parts) {
+                    if (part.isCompletedAbnormally()) part.join();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a free band");
+        }
+    }
+
+    /**
+     * A reusable buffer of whole rows handed from the reading thread to the workers
+     */
+    private static class Band {
+        /// Tells a worker that the source is read
+        static final Band END = new Band(0);
+
+        final int[] pixels;
+        int count;
+
+        Band(int size) {
+            pixels = new int[size];
+        }
+    }
+
+    /**
+     * Merges the worker histograms pairwise as a tree
+     */
+    private static class MergeTask extends RecursiveTask<ColorHistogram> {
+        private final List<ForkJoinTask<ColorHistogram>> parts;
+        private final int from;
+        private final int to;
+
+        MergeTask(List<ForkJoinTask<ColorHistogram>> parts, int from, int to) {
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected ColorHistogram compute() {
+            if (to - from == 1) return parts.get(from).join();
+            int middle = (from + to) >>> 1;
+            MergeTask left = new MergeTask(parts, from, middle);
+            left.fork();
+            ColorHistogram right = new MergeTask(parts, middle, to).compute();
+            return ParallelHistogramTask.combine(left.join(), right, from == 0 && to == parts.size());
+        }
     }
-}
\ No newline at end of file
+}
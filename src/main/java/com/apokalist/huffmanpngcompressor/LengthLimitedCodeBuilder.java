@@ -0,0 +1,85 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.util.Arrays;
+
+/**
+ * Computes optimal code lengths that never exceed a given maximum, using package-merge.
+ *
+ * Every level keeps the leaves merged with packages made of pairs from the
+ * level below, truncated to the 2n-2 items that can ever be selected. Since a
+ * selected prefix of a level always contains the lightest leaves, only the
+ * package flags of each level are kept and the lengths are counted by walking
+ * the selection back down: each leaf gets one bit for every level it is selected in.
+ */
+public class LengthLimitedCodeBuilder {
+
+    private LengthLimitedCodeBuilder() {
+    }
+
+    /**
+     * @param frequencies weight of every symbol, all positive
+     * @param maxLength longest code allowed, up to {@link CanonicalCode#MAX_LENGTH}
+     * @return code length of every symbol, in the same order as the frequencies
+     */
+    public static int[] buildLengths(int[] frequencies, int maxLength) {
+        int n = frequencies.length;
+        int[] lengths = new int[n];
+        if (n == 0) return lengths;
+        if (maxLength < 1 || maxLength > CanonicalCode.MAX_LENGTH || (n > 1L << maxLength))
+            throw new IllegalArgumentException(n + " symbols do not fit in codes of at most " + maxLength + " bits");
+        if (n <= 2) {
+            Arrays.fill(lengths, 1);
+            return lengths;
+        }
+
+        // Sort symbols by weight, keeping the original index in the low half
+        long[] sorted = new long[n];
+        for (int i = 0; i < n; i++) sorted[i] = (long) frequencies[i] << 32 | i;
+        Arrays.sort(sorted);
+        long[] leaves = new long[n];
+        for (int i = 0; i < n; i++) leaves[i] = sorted[i] >>> 32;
+
+        /// 64-bit, 2n - 2 overflows an int past 2^30 symbols
+        long limit = 2L * n - 2;
+        boolean[][] isPackage = new boolean[maxLength][];
+        long[] previous = leaves.clone();
+        isPackage[0] = new boolean[n];
+
+        for (int level = 1; level < maxLength; level++) {
+            int packages = previous.length / 2;
+            int size = (int) Math.min(limit, (long) n + packages);
+            long[] current = new long[size];
+            boolean[] flags = new boolean[size];
+            int leaf = 0;
+            int pack = 0;
+            for (int i = 0; i < size; i++) {
+                long packageWeight = pack < packages ? previous[2 * pack] + previous[2 * pack + 1] : Long.MAX_VALUE;
+                if (leaf < n && leaves[leaf] <= packageWeight) {
+                    current[i] = leaves[leaf++];
+                } else {
+                    current[i] = packageWeight;
+                    flags[i] = true;
+                    pack++;
+                }
+            }
+            isPackage[level] = flags;
+            previous = current;
+        }
+
+        // Walk the selection from the shallowest level back down
+        int[] sortedLengths = new int[n];
+        long selected = limit;
+        for (int level = maxLength - 1; level >= 0 && selected > 0; level--) {
+            boolean[] flags = isPackage[level];
+            long leavesSelected = 0;
+            for (int i = 0; i < selected; i++) {
+                if (!flags[i]) leavesSelected++;
+            }
+            for (int i = 0; i < leavesSelected; i++) sortedLengths[i]++;
+            selected = 2 * (selected - leavesSelected);
+        }
+
+        for (int i = 0; i < n; i++) lengths[(int) sorted[i]] = sortedLengths[i];
+        return lengths;
+    }
+}
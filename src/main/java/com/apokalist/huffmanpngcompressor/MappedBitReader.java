@@ -0,0 +1,57 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bit reader over a memory-mapped file region.
+ * The bytes are read from the page cache in place, never copied onto the heap,
+ * and the region is mapped window by window so files above 2GB work.
+ */
+public class MappedBitReader extends BitReader {
+    private final FileChannel channel;
+    private final long end;
+    private final int windowSize;
+    private long windowStart;
+
+    /**
+     * @param channel file opened for reading, closed together with the reader
+     * @param position file offset of the first byte
+     * @param size number of bytes to read
+     * @throws IOException if the region cannot be mapped
+     */
+    public MappedBitReader(FileChannel channel, long position, long size) throws IOException {
+        this(channel, position, size, MappedBitWriter.WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize bytes mapped at a time, at least one 64-bit word
+     */
+    public MappedBitReader(FileChannel channel, long position, long size, int windowSize) throws IOException {
+        super(channel, null);
+        if (windowSize < Long.BYTES) throw new IllegalArgumentException("Window smaller than a word: " + windowSize);
+        this.channel = channel;
+        this.end = position + size;
+        this.windowSize = windowSize;
+        this.windowStart = position;
+        buffer = map(position);
+    }
+
+    /**
+     * Maps the window following the current one
+     */
+    @Override
+    protected boolean fill() throws IOException {
+        windowStart += buffer.limit();
+        if (windowStart >= end) return false;
+        buffer = map(windowStart);
+        return true;
+    }
+
+    private ByteBuffer map(long start) throws IOException {
+        long length = Math.min(windowSize, end - start);
+        if (length <= 0) return ByteBuffer.allocate(0);
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, length);
+    }
+}
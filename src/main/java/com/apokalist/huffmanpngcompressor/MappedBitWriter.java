@@ -0,0 +1,62 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bit writer storing its words straight into a memory-mapped file region.
+ * The region is mapped in windows, so containers larger than one mapping
+ * (2GB) work; nothing is staged in a heap buffer or copied through the channel.
+ */
+public class MappedBitWriter extends BitWriter {
+    /// Bytes mapped at a time, reserves address space, not memory
+    static final int WINDOW_SIZE = 1 << 28;
+
+    private final FileChannel channel;
+    private final long end;
+    private final int windowSize;
+    private long windowStart;
+
+    /**
+     * Maps {@code size} bytes from {@code position} on, growing the file when needed.
+     * Writing more than that many bytes fails.
+     *
+     * @param channel file opened for reading and writing, closed together with the writer
+     * @param position file offset of the first byte
+     * @param size exact number of bytes that will be written
+     * @throws IOException if the region cannot be mapped
+     */
+    public MappedBitWriter(FileChannel channel, long position, long size) throws IOException {
+        this(channel, position, size, WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize bytes mapped at a time, at least one 64-bit word
+     */
+    public MappedBitWriter(FileChannel channel, long position, long size, int windowSize) throws IOException {
+        super(channel, null);
+        if (windowSize < Long.BYTES) throw new IllegalArgumentException("Window smaller than a word: " + windowSize);
+        this.channel = channel;
+        this.end = position + size;
+        this.windowSize = windowSize;
+        this.windowStart = position;
+        buffer = map(position);
+    }
+
+    /**
+     * Moves on to the window starting right after the last byte written
+     */
+    @Override
+    protected void drain() throws IOException {
+        windowStart += buffer.position();
+        buffer = map(windowStart);
+    }
+
+    private ByteBuffer map(long start) throws IOException {
+        long length = Math.min(windowSize, end - start);
+        // Once the region is used up an empty buffer makes any further write overflow
+        if (length <= 0) return ByteBuffer.allocate(0);
+        return channel.map(FileChannel.MapMode.READ_WRITE, start, length);
+    }
+}
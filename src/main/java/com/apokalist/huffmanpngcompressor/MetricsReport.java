@@ -0,0 +1,247 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Collects the {@link CompressionMetrics} of a batch and writes them as JSON or CSV,
+ * so the throughput of builds can be compared by a script.
+ *
+ * The JSON report has one object per file and a summary with p50/p90/p99/max of every
+ * stage over the batch. The CSV report has one row per file and stage, the raw numbers
+ * the percentiles come from.
+ */
+public class MetricsReport {
+    private static final double[] PERCENTILES = {50, 90, 99, 100};
+
+    private final List<FileMetrics> files = new ArrayList<>();
+
+    /**
+     * Metrics of one file of the batch
+     */
+    private static class FileMetrics {
+        final String name;
+        final int width;
+        final int height;
+        final double ratio;
+        final CompressionMetrics metrics;
+
+        FileMetrics(String name, int width, int height, double ratio, CompressionMetrics metrics) {
+            this.name = name;
+            this.width = width;
+            this.height = height;
+            this.ratio = ratio;
+            this.metrics = metrics;
+        }
+    }
+
+    /**
+     * Adds a finished file, call after encoding so the encode stage is included
+     *
+     * @param name file name in the report
+     * @param compressor the compressor of the file
+     */
+    public synchronized void add(String name, Compressor compressor) {
+        files.add(new FileMetrics(name, compressor.getSource().getWidth(), compressor.getSource().getHeight(),
+                compressor.getCompressionRatio(), compressor.getMetrics()));
+    }
+
+    /**
+     * Adds a file written in one pass, its single stage is "adaptive"
+     *
+     * @param name file name in the report
+     * @param encoder the encoder after encoding the file
+     */
+    public synchronized void add(String name, AdaptiveHuffmanEncoder encoder) {
+        files.add(new FileMetrics(name, encoder.getWidth(), encoder.getHeight(), encoder.getCompressionRatio(),
+                encoder.getMetrics()));
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    /**
+     * @param stage stage name, see {@link CompressionMetrics.Stage#getName()}
+     * @param percentile 0..100, nearest rank
+     * @return nanoseconds of the stage at that percentile over the files that ran it, -1 if none did
+     */
+    public synchronized long percentile(String stage, double percentile) {
+        long[] nanos = stageValues(stage);
+        return nanos.length == 0 ? -1 : percentile(nanos, percentile);
+    }
+
+    /**
+     * Writes the report, as CSV when the file name ends with .csv and as JSON otherwise
+     *
+     * @param file destination, replaced if it exists
+     * @throws IOException if writing fails
+     */
+    public void write(Path file) throws IOException {
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            if (file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".csv")) writeCsv(out);
+            else writeJson(out);
+        }
+    }
+
+    public synchronized void writeCsv(Appendable out) throws IOException {
+        out.append("file,width,height,stage,runs,nanos,pixels,pixels_per_second,allocated_bytes,"
+                + "unique_colors,max_code_depth,payload_bits,container_bytes\n");
+        for (FileMetrics file : files) {
+            for (CompressionMetrics.Stage stage : file.metrics.getStages()) {
+                out.append(String.format(Locale.ROOT, "%s,%d,%d,%s,%d,%d,%d,%.0f,%d,%d,%d,%d,%d%n",
+                        csv(file.name), file.width, file.height, stage.getName(), stage.getRuns(), stage.getNanos(),
+                        stage.getPixels(), stage.getPixelsPerSecond(), stage.getAllocatedBytes(),
+                        file.metrics.getUniqueColors(), file.metrics.getMaxCodeDepth(),
+                        file.metrics.getPayloadBits(), file.metrics.getContainerBytes()));
+            }
+        }
+    }
+
+    public synchronized void writeJson(Appendable out) throws IOException {
+        out.append("{\n  \"files\": [");
+        for (int i = 0; i < files.size(); i++) {
+            out.append(i == 0 ? "\n    " : ",\n    ");
+            writeFile(out, files.get(i));
+        }
+        out.append(files.isEmpty() ? "],\n" : "\n  ],\n");
+
+        long pixels = 0;
+        long nanos = 0;
+        long[] fileNanos = new long[files.size()];
+        for (int i = 0; i < files.size(); i++) {
+            pixels += files.get(i).metrics.getPixels();
+            fileNanos[i] = files.get(i).metrics.getTotalNanos();
+            nanos += fileNanos[i];
+        }
+        out.append(String.format(Locale.ROOT, "  \"summary\": {\"files\": %d, \"pixels\": %d, \"nanos\": %d, "
+                        + "\"pixelsPerSecond\": %s, \"fileNanos\": %s, \"stages\": {",
+                files.size(), pixels, nanos, number(nanos == 0 ? 0 : pixels / (nanos / 1e9)), percentiles(fileNanos)));
+        int s = 0;
+        for (Map.Entry<String, long[]> stage : stageNames().entrySet()) {
+            long[] values = stage.getValue();
+            long total = 0;
+            for (long value : values) total += value;
+            out.append(String.format(Locale.ROOT, "%s\n    %s: {\"files\": %d, \"nanos\": %d, \"percentileNanos\": %s}",
+                    s++ == 0 ? "" : ",", json(stage.getKey()), values.length, total, percentiles(values)));
+        }
+        out.append(s == 0 ? "}}\n}\n" : "\n  }}\n}\n");
+    }
+
+    /**
+     * Formats the statistics of a single compressor as one JSON object, the same object
+     * a file gets in {@link #writeJson(Appendable)}
+     *
+     * @param name file name in the object
+     * @param compressor the compressor of the file
+     * @return the JSON object on one line
+     */
+    public static String toJson(String name, Compressor compressor) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            writeFile(sb, new FileMetrics(name, compressor.getSource().getWidth(), compressor.getSource().getHeight(),
+                    compressor.getCompressionRatio(), compressor.getMetrics()));
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return sb.toString();
+    }
+
+    private static void writeFile(Appendable out, FileMetrics file) throws IOException {
+        CompressionMetrics metrics = file.metrics;
+        out.append(String.format(Locale.ROOT, "{\"file\": %s, \"width\": %d, \"height\": %d, \"pixels\": %d, "
+                        + "\"uniqueColors\": %d, \"maxCodeDepth\": %d, \"payloadBits\": %d, \"containerBytes\": %d, "
+                        + "\"ratio\": %s, \"nanos\": %d, \"pixelsPerSecond\": %s, \"allocatedBytes\": %d, \"stages\": {",
+                json(file.name), file.width, file.height, metrics.getPixels(), metrics.getUniqueColors(),
+                metrics.getMaxCodeDepth(), metrics.getPayloadBits(), metrics.getContainerBytes(), number(file.ratio),
+                metrics.getTotalNanos(), number(metrics.getPixelsPerSecond()), metrics.getAllocatedBytes()));
+        List<CompressionMetrics.Stage> stages = metrics.getStages();
+        for (int s = 0; s < stages.size(); s++) {
+            CompressionMetrics.Stage stage = stages.get(s);
+            out.append(String.format(Locale.ROOT, "%s%s: {\"runs\": %d, \"nanos\": %d, \"pixels\": %d, "
+                            + "\"pixelsPerSecond\": %s, \"allocatedBytes\": %d}",
+                    s == 0 ? "" : ", ", json(stage.getName()), stage.getRuns(), stage.getNanos(), stage.getPixels(),
+                    number(stage.getPixelsPerSecond()), stage.getAllocatedBytes()));
+        }
+        out.append("}}");
+    }
+
+    /**
+     * @return nanoseconds of every stage name over the files that ran it, in order of first appearance
+     */
+    private Map<String, long[]> stageNames() {
+        Map<String, long[]> stages = new LinkedHashMap<>();
+        for (FileMetrics file : files) {
+            for (CompressionMetrics.Stage stage : file.metrics.getStages()) {
+                stages.computeIfAbsent(stage.getName(), this::stageValues);
+            }
+        }
+        return stages;
+    }
+
+    private long[] stageValues(String name) {
+        long[] values = new long[files.size()];
+        int count = 0;
+        for (FileMetrics file : files) {
+            CompressionMetrics.Stage stage = file.metrics.getStage(name);
+            if (stage != null) values[count++] = stage.getNanos();
+        }
+        return Arrays.copyOf(values, count);
+    }
+
+    private static String percentiles(long[] values) {
+        if (values.length == 0) return "null";
+        StringBuilder sb = new StringBuilder("{");
+        for (double percentile : PERCENTILES) {
+            if (sb.length() > 1) sb.append(", ");
+            sb.append(percentile == 100 ? "\"max\"" : "\"p" + (int) percentile + "\"").append(": ")
+                    .append(percentile(values, percentile));
+        }
+        return sb.append('}').toString();
+    }
+
+    /// Nearest rank on a sorted copy, batches are small enough to sort
+    static long percentile(long[] values, double percentile) {
+        long[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.clamp(rank - 1, 0, sorted.length - 1)];
+    }
+
+    static String number(double value) {
+        return Double.isFinite(value) ? String.format(Locale.ROOT, "%.4f", value) : "null";
+    }
+
+    static String json(String text) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                    else sb.append(c);
+                }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    private static String csv(String text) {
+        if (text.indexOf(',') < 0 && text.indexOf('"') < 0 && text.indexOf('\n') < 0) return text;
+        return '"' + text.replace("\"", "\"\"") + '"';
+    }
+}
@@ -0,0 +1,56 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.function.IntPredicate;
+
+/**
+ * Wraps a source to report rows as they pass and to stop when the reading thread is interrupted.
+ * This is how a cancelled UI task gets the analyzer and the encoder to give up mid image.
+ */
+class MonitoredPixelSource implements PixelSource {
+    /// Roughly how many progress calls one pass makes
+    private static final int UPDATES_PER_PASS = 200;
+
+    private final PixelSource source;
+    private final String stage;
+    private final ProgressListener listener;
+
+    MonitoredPixelSource(PixelSource source, String stage, ProgressListener listener) {
+        this.source = source;
+        this.stage = stage;
+        this.listener = listener;
+    }
+
+    @Override
+    public int getWidth() {
+        return source.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return source.getHeight();
+    }
+
+    @Override
+    public int getBitsPerPixel() {
+        return source.getBitsPerPixel();
+    }
+
+    @Override
+    public void forEachRow(RowConsumer consumer) throws IOException {
+        forEachRow(y -> true, consumer);
+    }
+
+    @Override
+    public void forEachRow(IntPredicate rows, RowConsumer consumer) throws IOException {
+        int height = getHeight();
+        int step = Math.max(1, height / UPDATES_PER_PASS);
+        listener.progress(stage, 0, height);
+        source.forEachRow(rows, (y, row) -> {
+            if (Thread.currentThread().isInterrupted()) throw new InterruptedIOException("Cancelled");
+            consumer.accept(y, row);
+            if ((y + 1) % step == 0 || y == height - 1) listener.progress(stage, y + 1, height);
+        });
+    }
+}
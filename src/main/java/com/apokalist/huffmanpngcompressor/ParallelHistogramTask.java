@@ -0,0 +1,99 @@
+package com.apokalist.huffmanpngcompressor;
+
+import javafx.scene.image.PixelReader;
+import javafx.scene.image.WritablePixelFormat;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Fork-join task counting the colors of a band of image rows.
+ * Bands bigger than the split size are halved, each half counts into its own
+ * local histogram and the results are merged back up the task tree.
+ */
+class ParallelHistogramTask extends RecursiveTask<ColorHistogram> {
+    private final PixelReader pixelReader;
+    private final AlphaMode alphaMode;
+    private final int width;
+    private final int fromRow;
+    private final int toRow;
+    private final int bandRows;
+    private final int totalRows;
+
+    /**
+     * @param pixelReader reader of the analyzed image
+     * @param alphaMode decides the symbol counted for every pixel
+     * @param width image width in pixels
+     * @param fromRow first row of the band, inclusive
+     * @param toRow last row of the band, exclusive
+     * @param bandRows bands with at most this many rows are counted directly
+     * @param totalRows image height, used to recognize the root task
+     */
+    ParallelHistogramTask(PixelReader pixelReader, AlphaMode alphaMode, int width, int fromRow, int toRow, int bandRows, int totalRows) {
+        this.pixelReader = pixelReader;
+        this.alphaMode = alphaMode;
+        this.width = width;
+        this.fromRow = fromRow;
+        this.toRow = toRow;
+        this.bandRows = bandRows;
+        this.totalRows = totalRows;
+    }
+
+    @Override
+    protected ColorHistogram compute() {
+        if (toRow - fromRow <= bandRows) {
+            return countBand();
+        }
+        int middle = (fromRow + toRow) >>> 1;
+        ParallelHistogramTask top = new ParallelHistogramTask(pixelReader, alphaMode, width, fromRow, middle, bandRows, totalRows);
+        ParallelHistogramTask bottom = new ParallelHistogramTask(pixelReader, alphaMode, width, middle, toRow, bandRows, totalRows);
+        top.fork();
+        ColorHistogram bottomResult = bottom.compute();
+        ColorHistogram topResult = top.join();
+
+        return combine(topResult, bottomResult, fromRow == 0 && toRow == totalRows);
+    }
+
+    /**
+     * Merges two partial histograms into one of them
+     *
+     * @param a partial histogram
+     * @param b partial histogram
+     * @param root true for the final merge, which for a large image goes into the dense table
+     * @return the merged histogram
+     */
+    static ColorHistogram combine(ColorHistogram a, ColorHistogram b, boolean root) {
+        if (root && a.getTotalCount() + b.getTotalCount() >= ColorHistogram.DENSE_THRESHOLD) {
+            ColorHistogram result = a.isDense() ? a : b.toDense();
+            result.merge(result == a ? b : a);
+            return result;
+        }
+
+        // Fold the smaller table into the bigger one to touch fewer entries
+        if (a.size() < b.size()) {
+            b.merge(a);
+            return b;
+        }
+        a.merge(b);
+        return a;
+    }
+
+    private ColorHistogram countBand() {
+        WritablePixelFormat<IntBuffer> format = WritablePixelFormat.getIntArgbInstance();
+        /// Capped below the dense threshold, so workers never allocate the dense table however large the band
+        ColorHistogram histogram = new ColorHistogram(
+                Math.min((long) (toRow - fromRow) * width, ColorHistogram.DENSE_THRESHOLD - 1));
+        /// Pulled in chunks like the sequential path, the band itself is never copied whole
+        int rowsPerChunk = Math.max(1, ImageAnalyzer.CHUNK_PIXELS / Math.max(1, width));
+        int[] buffer = new int[Math.min(rowsPerChunk, toRow - fromRow) * width];
+        for (int y = fromRow; y < toRow; y += rowsPerChunk) {
+            int rows = Math.min(rowsPerChunk, toRow - y);
+            pixelReader.getPixels(0, y, width, rows, format, buffer, 0, width);
+            int count = rows * width;
+            for (int i = 0; i < count; i++) {
+                histogram.add(alphaMode.symbol(buffer[i]));
+            }
+        }
+        return histogram;
+    }
+}
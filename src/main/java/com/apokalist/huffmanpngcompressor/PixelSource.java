@@ -0,0 +1,56 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.util.function.IntPredicate;
+
+/**
+ * Something that can hand out image pixels as packed ARGB ints, one row at a time, top to bottom.
+ * The encoder only needs sequential passes, so sources are free to stream their rows.
+ */
+public interface PixelSource {
+
+    /**
+     * Receives one row of packed ARGB pixels.
+     * The row array is reused between calls and must not be kept.
+     */
+    @FunctionalInterface
+    interface RowConsumer {
+        void accept(int y, int[] row) throws IOException;
+    }
+
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Size of one pixel in the encoding the image came from, the baseline the compression is measured against.
+     * A palette PNG counts its index bits, a 16-bit RGBA PNG 32 bits, as only the high bytes are kept.
+     *
+     * @return bits per pixel of the original encoding, 24 when the source cannot tell
+     */
+    default int getBitsPerPixel() {
+        return 24;
+    }
+
+    /**
+     * Streams every row of the image, top to bottom
+     *
+     * @param consumer receives the rows
+     * @throws IOException if the pixels cannot be read or the consumer fails
+     */
+    void forEachRow(RowConsumer consumer) throws IOException;
+
+    /**
+     * Streams only the rows the filter accepts, top to bottom.
+     * Sources holding their pixels skip the other rows for free, streamed ones still decode them.
+     *
+     * @param rows accepts the y of every wanted row
+     * @param consumer receives the wanted rows
+     * @throws IOException if the pixels cannot be read or the consumer fails
+     */
+    default void forEachRow(IntPredicate rows, RowConsumer consumer) throws IOException {
+        forEachRow((y, row) -> {
+            if (rows.test(y)) consumer.accept(y, row);
+        });
+    }
+}
@@ -0,0 +1,525 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.IntPredicate;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming PNG decoder.
+ * IDAT data is inflated incrementally and scanline filters are undone one row
+ * at a time, so only the previous and the current scanline are kept in memory.
+ * Every pass re-reads the file, which lets the histogram and encoder passes run
+ * on images far bigger than the heap. Each pass still inflates to the end of the
+ * zlib stream and checks the CRC of every IDAT chunk.
+ *
+ * Handles all color types and bit depths of the PNG spec, including tRNS
+ * transparency. 16-bit samples are reduced to their high byte, so those images are
+ * coded lossy and measured against their 8-bit decoding. Interlaced
+ * (Adam7) images cannot be streamed row by row and are rejected.
+ */
+public class PngStreamReader implements PixelSource {
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+    private static final int IHDR = 0x49484452;
+    private static final int PLTE = 0x504C5445;
+    private static final int TRNS = 0x74524E53;
+    private static final int IDAT = 0x49444154;
+    private static final int IEND = 0x49454E44;
+
+    public static final int COLOR_GRAY = 0;
+    public static final int COLOR_RGB = 2;
+    public static final int COLOR_PALETTE = 3;
+    public static final int COLOR_GRAY_ALPHA = 4;
+    public static final int COLOR_RGBA = 6;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path file;
+    private final byte[] data;
+    private final int dataLength;
+    private final String name;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final int colorType;
+
+    /**
+     * Reads the IHDR chunk, pixel data is only touched by {@link #forEachRow}
+     *
+     * @param file PNG file
+     * @throws IOException if the file is not a PNG this reader can stream
+     */
+    public PngStreamReader(Path file) throws IOException {
+        this(file, null, 0, file.getFileName().toString());
+    }
+
+    /**
+     * Streams a PNG that was already read into memory, for pipelines that do their I/O separately
+     *
+     * @param data the whole PNG file
+     * @param name name used in error messages
+     * @throws IOException if the data is not a PNG this reader can stream
+     */
+    public PngStreamReader(byte[] data, String name) throws IOException {
+        this(null, data, data.length, name);
+    }
+
+    /**
+     * Streams the first {@code length} bytes of a buffer, for reused upload buffers
+     * that are larger than the PNG they hold
+     *
+     * @param data buffer starting with the PNG file
+     * @param length size of the PNG in bytes
+     * @param name name used in error messages
+     * @throws IOException if the data is not a PNG this reader can stream
+     */
+    public PngStreamReader(byte[] data, int length, String name) throws IOException {
+        this(null, data, length, name);
+    }
+
+    private PngStreamReader(Path file, byte[] data, int dataLength, String name) throws IOException {
+        this.file = file;
+        this.data = data;
+        this.dataLength = dataLength;
+        this.name = name;
+        try (DataInputStream in = open()) {
+            int length = in.readInt();
+            int type = in.readInt();
+            if (type != IHDR || length != 13) throw new IOException("PNG does not start with IHDR");
+            width = in.readInt();
+            height = in.readInt();
+            bitDepth = in.readUnsignedByte();
+            colorType = in.readUnsignedByte();
+            int compression = in.readUnsignedByte();
+            int filter = in.readUnsignedByte();
+            int interlace = in.readUnsignedByte();
+            if (width <= 0 || height <= 0) throw new IOException("Invalid PNG size " + width + "x" + height);
+            if (compression != 0 || filter != 0) throw new IOException("Unknown PNG compression or filter method");
+            if (interlace != 0) throw new IOException("Interlaced PNG cannot be streamed row by row");
+            if (channels(colorType) == 0 || !validDepth(colorType, bitDepth))
+                throw new IOException("Invalid PNG color type " + colorType + " with bit depth " + bitDepth);
+        }
+    }
+
+    /**
+     * Reads only the IHDR chunk, so callers can pick another decoder for the PNGs this reader rejects
+     *
+     * @param file PNG file
+     * @return whether the PNG is interlaced
+     * @throws IOException if the file is not a PNG
+     */
+    public static boolean isInterlaced(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readLong() != SIGNATURE) throw new IOException("Not a PNG file: " + file.getFileName());
+            if (in.readInt() != 13 || in.readInt() != IHDR) throw new IOException("PNG does not start with IHDR");
+            /// Width, height, bit depth, color type, compression and filter method come first
+            in.skipNBytes(12);
+            return in.readUnsignedByte() != 0;
+        }
+    }
+
+    private DataInputStream open() throws IOException {
+        DataInputStream in = data != null
+                ? new DataInputStream(new ByteArrayInputStream(data, 0, dataLength))
+                : new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+        try {
+            if (in.readLong() != SIGNATURE) throw new IOException("Not a PNG file: " + name);
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    private static int channels(int colorType) {
+        switch (colorType) {
+            case COLOR_GRAY:
+            case COLOR_PALETTE:
+                return 1;
+            case COLOR_GRAY_ALPHA:
+                return 2;
+            case COLOR_RGB:
+                return 3;
+            case COLOR_RGBA:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean validDepth(int colorType, int bitDepth) {
+        switch (colorType) {
+            case COLOR_GRAY:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+            case COLOR_PALETTE:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+            default:
+                return bitDepth == 8 || bitDepth == 16;
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    public int getColorType() {
+        return colorType;
+    }
+
+    /**
+     * @return bits one decoded pixel takes in the source PNG before compression, the palette index for
+     *         palette images. 16-bit channels count 8 bits, the high byte the pixels keep
+     */
+    @Override
+    public int getBitsPerPixel() {
+        return channels(colorType) * Math.min(8, bitDepth);
+    }
+
+    /**
+     * @return the PNG file, null when reading from memory
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public void forEachRow(RowConsumer consumer) throws IOException {
+        forEachRow(y -> true, consumer);
+    }
+
+    /**
+     * Every row is still inflated and unfiltered, the next one may depend on it; skipped rows are not converted
+     */
+    @Override
+    public void forEachRow(IntPredicate rows, RowConsumer consumer) throws IOException {
+        try (DataInputStream in = open()) {
+            new Pass(in).run(rows, consumer);
+        }
+    }
+
+    /**
+     * State of one sequential decoding pass over the file
+     */
+    private class Pass {
+        private final DataInputStream in;
+        private final CRC32 crc = new CRC32();
+        private final Inflater inflater = new Inflater();
+        private final byte[] input = new byte[BUFFER_SIZE];
+
+        private int[] palette;
+        private int transparentGray = -1;
+        private int[] transparentSamples;   // raw RGB samples of the tRNS color key
+        private int idatRemaining;
+        private boolean idatDone;
+
+        Pass(DataInputStream in) {
+            this.in = in;
+        }
+
+        void run(IntPredicate rows, RowConsumer consumer) throws IOException {
+            try {
+                readUntilImageData();
+                int bitsPerPixel = channels(colorType) * bitDepth;
+                int bytesPerPixel = Math.max(1, bitsPerPixel / 8);
+                int rowBytes = (int) (((long) width * bitsPerPixel + 7) / 8);
+                byte[] previous = new byte[rowBytes];
+                byte[] current = new byte[rowBytes];
+                int[] row = new int[width];
+
+                for (int y = 0; y < height; y++) {
+                    int filter = inflateFully(current, 0, 1) & 0xFF;
+                    inflateFully(current, 0, rowBytes);
+                    unfilter(filter, current, previous, bytesPerPixel);
+                    if (rows.test(y)) {
+                        convert(current, row);
+                        consumer.accept(y, row);
+                    }
+                    byte[] swap = previous;
+                    previous = current;
+                    current = swap;
+                }
+                finishImageData();
+            } finally {
+                inflater.end();
+            }
+        }
+
+        /**
+         * Reads chunks up to the first IDAT, picking up palette and transparency on the way
+         */
+        private void readUntilImageData() throws IOException {
+            int headerLength = in.readInt();
+            in.readInt();
+            skipChunk(headerLength);
+            while (true) {
+                int length = in.readInt();
+                int type = in.readInt();
+                if (type == IDAT) {
+                    if (colorType == COLOR_PALETTE && palette == null) throw new IOException("Palette PNG without PLTE");
+                    crc.reset();
+                    updateCrc(type);
+                    idatRemaining = length;
+                    return;
+                }
+                if (type == IEND) throw new IOException("PNG has no image data");
+                if (type == PLTE || type == TRNS) {
+                    byte[] data = readChunkData(length, type);
+                    if (type == PLTE) readPalette(data);
+                    else readTransparency(data);
+                } else {
+                    skipChunk(length);
+                }
+            }
+        }
+
+        private void readPalette(byte[] data) throws IOException {
+            if (data.length % 3 != 0 || data.length / 3 > 256) throw new IOException("Invalid PLTE chunk");
+            palette = new int[256];
+            for (int i = 0; i < data.length / 3; i++) {
+                palette[i] = 0xFF000000 | (data[3 * i] & 0xFF) << 16 | (data[3 * i + 1] & 0xFF) << 8 | (data[3 * i + 2] & 0xFF);
+            }
+        }
+
+        private void readTransparency(byte[] data) throws IOException {
+            if (colorType == COLOR_PALETTE) {
+                if (palette == null) throw new IOException("tRNS before PLTE");
+                for (int i = 0; i < Math.min(256, data.length); i++) {
+                    palette[i] = (palette[i] & 0xFFFFFF) | (data[i] & 0xFF) << 24;
+                }
+            } else if (colorType == COLOR_GRAY && data.length >= 2) {
+                transparentGray = (data[0] & 0xFF) << 8 | (data[1] & 0xFF);
+            } else if (colorType == COLOR_RGB && data.length >= 6) {
+                transparentSamples = new int[3];
+                for (int c = 0; c < 3; c++) {
+                    transparentSamples[c] = (data[2 * c] & 0xFF) << 8 | (data[2 * c + 1] & 0xFF);
+                }
+            }
+        }
+
+        private byte[] readChunkData(int length, int type) throws IOException {
+            if (length < 0) throw new IOException("Invalid chunk length");
+            byte[] data = new byte[length];
+            in.readFully(data);
+            crc.reset();
+            updateCrc(type);
+            crc.update(data);
+            checkCrc();
+            return data;
+        }
+
+        private void skipChunk(int length) throws IOException {
+            if (length < 0) throw new IOException("Invalid chunk length");
+            long toSkip = length + 4L;
+            while (toSkip > 0) {
+                long skipped = in.skip(toSkip);
+                if (skipped <= 0) {
+                    if (in.read() < 0) throw new EOFException("PNG ended inside a chunk");
+                    skipped = 1;
+                }
+                toSkip -= skipped;
+            }
+        }
+
+        private void updateCrc(int type) {
+            crc.update(type >>> 24);
+            crc.update(type >>> 16);
+            crc.update(type >>> 8);
+            crc.update(type);
+        }
+
+        private void checkCrc() throws IOException {
+            if ((int) crc.getValue() != in.readInt()) throw new IOException("PNG chunk CRC mismatch");
+        }
+
+        /**
+         * Inflates exactly the requested amount of bytes, pulling IDAT data as needed
+         *
+         * @return the first inflated byte, for reading the filter type
+         */
+        private byte inflateFully(byte[] out, int offset, int length) throws IOException {
+            int done = 0;
+            try {
+                while (done < length) {
+                    int n = inflater.inflate(out, offset + done, length - done);
+                    done += n;
+                    if (n > 0) continue;
+                    if (inflater.finished()) throw new EOFException("Image data ended early");
+                    if (inflater.needsDictionary()) throw new IOException("Preset dictionary in PNG data");
+                    if (inflater.needsInput()) feedInflater();
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt PNG image data: " + e.getMessage(), e);
+            }
+            return out[offset];
+        }
+
+        /**
+         * Inflates past the last row to the end of the zlib stream, which checks its
+         * Adler-32, then reads the rest of the current IDAT chunk and checks its CRC
+         */
+        private void finishImageData() throws IOException {
+            byte[] rest = new byte[256];
+            try {
+                while (!inflater.finished()) {
+                    if (inflater.inflate(rest) > 0) continue;
+                    if (inflater.needsDictionary()) throw new IOException("Preset dictionary in PNG data");
+                    if (inflater.needsInput()) feedInflater();
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt PNG image data: " + e.getMessage(), e);
+            }
+            while (idatRemaining > 0) {
+                int n = in.read(input, 0, Math.min(input.length, idatRemaining));
+                if (n < 0) throw new EOFException("PNG ended inside IDAT");
+                crc.update(input, 0, n);
+                idatRemaining -= n;
+            }
+            checkCrc();
+        }
+
+        private void feedInflater() throws IOException {
+            while (idatRemaining == 0) {
+                if (idatDone) throw new EOFException("Image data ended early");
+                checkCrc();
+                int length = in.readInt();
+                int type = in.readInt();
+                if (type != IDAT) {
+                    idatDone = true;
+                    throw new EOFException("Image data ended early");
+                }
+                crc.reset();
+                updateCrc(type);
+                idatRemaining = length;
+            }
+            int n = in.read(input, 0, Math.min(input.length, idatRemaining));
+            if (n < 0) throw new EOFException("PNG ended inside IDAT");
+            crc.update(input, 0, n);
+            idatRemaining -= n;
+            inflater.setInput(input, 0, n);
+        }
+
+        private void unfilter(int filter, byte[] current, byte[] previous, int bpp) throws IOException {
+            int length = current.length;
+            switch (filter) {
+                case 0:
+                    break;
+                case 1:
+                    for (int i = bpp; i < length; i++) current[i] += current[i - bpp];
+                    break;
+                case 2:
+                    for (int i = 0; i < length; i++) current[i] += previous[i];
+                    break;
+                case 3:
+                    for (int i = 0; i < bpp; i++) current[i] += (previous[i] & 0xFF) >>> 1;
+                    for (int i = bpp; i < length; i++)
+                        current[i] += ((current[i - bpp] & 0xFF) + (previous[i] & 0xFF)) >>> 1;
+                    break;
+                case 4:
+                    for (int i = 0; i < bpp; i++) current[i] += previous[i];
+                    for (int i = bpp; i < length; i++)
+                        current[i] += paeth(current[i - bpp] & 0xFF, previous[i] & 0xFF, previous[i - bpp] & 0xFF);
+                    break;
+                default:
+                    throw new IOException("Unknown PNG filter type " + filter);
+            }
+        }
+
+        private void convert(byte[] raw, int[] row) {
+            switch (colorType) {
+                case COLOR_RGBA:
+                    if (bitDepth == 8) {
+                        for (int x = 0, i = 0; x < width; x++, i += 4) {
+                            row[x] = (raw[i + 3] & 0xFF) << 24 | (raw[i] & 0xFF) << 16 | (raw[i + 1] & 0xFF) << 8 | (raw[i + 2] & 0xFF);
+                        }
+                    } else {
+                        for (int x = 0, i = 0; x < width; x++, i += 8) {
+                            row[x] = (raw[i + 6] & 0xFF) << 24 | (raw[i] & 0xFF) << 16 | (raw[i + 2] & 0xFF) << 8 | (raw[i + 4] & 0xFF);
+                        }
+                    }
+                    break;
+                case COLOR_RGB: {
+                    int step = bitDepth / 8 * 3;
+                    int sample = bitDepth / 8;
+                    for (int x = 0, i = 0; x < width; x++, i += step) {
+                        int rgb = (raw[i] & 0xFF) << 16 | (raw[i + sample] & 0xFF) << 8 | (raw[i + 2 * sample] & 0xFF);
+                        row[x] = isTransparentRgb(raw, i, sample) ? rgb : 0xFF000000 | rgb;
+                    }
+                    break;
+                }
+                case COLOR_GRAY_ALPHA: {
+                    int step = bitDepth / 8 * 2;
+                    for (int x = 0, i = 0; x < width; x++, i += step) {
+                        int gray = raw[i] & 0xFF;
+                        int alpha = raw[i + bitDepth / 8] & 0xFF;
+                        row[x] = alpha << 24 | gray << 16 | gray << 8 | gray;
+                    }
+                    break;
+                }
+                case COLOR_PALETTE:
+                    for (int x = 0; x < width; x++) row[x] = palette[sample(raw, x)];
+                    break;
+                default: {
+                    int max = (1 << bitDepth) - 1;
+                    for (int x = 0; x < width; x++) {
+                        int value = sample(raw, x);
+                        int gray = bitDepth == 16 ? value >>> 8 : value * 255 / max;
+                        int alpha = value == transparentGray ? 0 : 0xFF000000;
+                        row[x] = alpha | gray << 16 | gray << 8 | gray;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the raw sample of a single-channel pixel, any bit depth
+         */
+        private int sample(byte[] raw, int x) {
+            switch (bitDepth) {
+                case 16:
+                    return (raw[2 * x] & 0xFF) << 8 | (raw[2 * x + 1] & 0xFF);
+                case 8:
+                    return raw[x] & 0xFF;
+                default:
+                    int bitOffset = x * bitDepth;
+                    int shift = 8 - bitDepth - (bitOffset & 7);
+                    return (raw[bitOffset >>> 3] >>> shift) & ((1 << bitDepth) - 1);
+            }
+        }
+
+        private boolean isTransparentRgb(byte[] raw, int i, int sample) {
+            if (transparentSamples == null) return false;
+            for (int c = 0; c < 3; c++) {
+                int offset = i + c * sample;
+                int value = sample == 2 ? (raw[offset] & 0xFF) << 8 | (raw[offset + 1] & 0xFF) : raw[offset] & 0xFF;
+                if (value != transparentSamples[c]) return false;
+            }
+            return true;
+        }
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+}
@@ -0,0 +1,323 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Codes per-channel prediction residuals instead of raw colors.
+ *
+ * Every row picks the {@link Predictor} whose residuals have the lowest entropy
+ * estimate, the id of that predictor starts the row in the payload. Red, green,
+ * blue and, when kept, alpha residuals each get a small Huffman code of at most
+ * 256 symbols; a channel with a single residual value costs no bits at all.
+ * The first row of every band is predicted without the row above, so bands stay
+ * independently decodable.
+ */
+public class PredictiveCoder {
+    /// Channel shifts in coding order: red, green, blue, then alpha when it is kept
+    private static final int[] SHIFTS = {16, 8, 0, 24};
+
+    private static final Predictor[] PREDICTORS = Predictor.values();
+
+    private final CanonicalCode[] codes;
+    private final int channels;
+    private final int bandRows;
+
+    /// Per channel: code and length of every residual, length 0 for a constant channel
+    private final int[][] codeBits;
+    private final int[][] codeLengths;
+
+    /// Per channel: decode table, null for a constant channel, and the constant residual
+    private final HuffmanDecodeTable[] decodeTables;
+    private final int[] constants;
+
+    private byte[] rowPredictors;
+    private long payloadBits;
+    private final long[] rows = new long[PREDICTORS.length];
+    private final long[] bits = new long[PREDICTORS.length];
+    private final long[] rawBits = new long[PREDICTORS.length];
+    private final long[] nanos = new long[PREDICTORS.length];
+    private long analysisTimeNanos;
+
+    /**
+     * Coder for decoding a container
+     *
+     * @param codes residual code of every channel, 3 for RGB or 4 with alpha
+     * @param bandRows rows per band, 0 for a single stream
+     */
+    public PredictiveCoder(CanonicalCode[] codes, int bandRows) {
+        if (codes.length != 3 && codes.length != 4)
+            throw new IllegalArgumentException("Expected 3 or 4 channel codes, got " + codes.length);
+        this.codes = codes;
+        this.channels = codes.length;
+        this.bandRows = bandRows;
+        codeBits = new int[channels][256];
+        codeLengths = new int[channels][256];
+        decodeTables = new HuffmanDecodeTable[channels];
+        constants = new int[channels];
+        for (int ch = 0; ch < channels; ch++) {
+            CanonicalCode code = codes[ch];
+            if (code.size() > 1) {
+                for (int i = 0; i < code.size(); i++) {
+                    codeBits[ch][code.getSymbol(i)] = code.getCode(i);
+                    codeLengths[ch][code.getSymbol(i)] = code.getLength(i);
+                }
+                decodeTables[ch] = new HuffmanDecodeTable(code);
+            } else if (code.size() == 1) {
+                constants[ch] = code.getSymbol(0);
+            }
+        }
+    }
+
+    /**
+     * Reads the source once, picks the predictor of every row and builds the channel codes
+     *
+     * @param source pixels to code
+     * @param candidates predictors to choose from, a single one is used for every row
+     * @param keepAlpha true to code an alpha channel, otherwise pixels decode opaque
+     * @param bandRows rows per band, 0 for a single stream
+     * @param rawCode color code the residuals are compared with in the statistics, null to skip that
+     * @param alphaMode symbol mapping of the raw code
+     * @param maxCodeLength longest allowed residual code
+     * @return coder ready to encode the source
+     * @throws IOException if the source cannot be read
+     */
+    public static PredictiveCoder analyze(PixelSource source, Predictor[] candidates, boolean keepAlpha, int bandRows,
+                                          CanonicalCode rawCode, AlphaMode alphaMode, int maxCodeLength)
+            throws IOException {
+        if (candidates.length == 0) throw new IllegalArgumentException("No predictors to choose from");
+        long start = System.nanoTime();
+        int width = source.getWidth();
+        int channels = keepAlpha ? 4 : 3;
+        byte[] rowPredictors = new byte[source.getHeight()];
+        int[][][] counts = new int[PREDICTORS.length][channels][256];
+        int[][][] rowCounts = new int[candidates.length][channels][256];
+        long[] rows = new long[PREDICTORS.length];
+        long[] rawBits = new long[PREDICTORS.length];
+        long[] nanos = new long[PREDICTORS.length];
+        int[] above = new int[width];
+
+        source.forEachRow((y, row) -> {
+            boolean top = isBandTop(y, bandRows);
+            int best = 0;
+            double bestBits = Double.MAX_VALUE;
+            for (int k = 0; k < candidates.length; k++) {
+                long t = System.nanoTime();
+                int[][] rc = rowCounts[k];
+                for (int[] channel : rc) Arrays.fill(channel, 0);
+                countResiduals(candidates[k], row, top ? null : above, width, rc);
+                /// Nothing to compare with a single candidate
+                double estimate = candidates.length == 1 ? 0 : entropyBits(rc, width);
+                nanos[candidates[k].ordinal()] += System.nanoTime() - t;
+                if (estimate < bestBits) {
+                    bestBits = estimate;
+                    best = k;
+                }
+            }
+            int id = candidates[best].ordinal();
+            rowPredictors[y] = (byte) id;
+            rows[id]++;
+            for (int ch = 0; ch < channels; ch++) {
+                int[] total = counts[id][ch];
+                int[] add = rowCounts[best][ch];
+                for (int s = 0; s < 256; s++) total[s] += add[s];
+            }
+            if (rawCode != null) {
+                long rowBits = 0;
+                for (int pixel : row) {
+                    int index = rawCode.indexOf(alphaMode.symbol(pixel));
+                    if (index >= 0) rowBits += rawCode.getLength(index);
+                }
+                rawBits[id] += rowBits;
+            }
+            System.arraycopy(row, 0, above, 0, width);
+        });
+
+        CanonicalCode[] codes = new CanonicalCode[channels];
+        for (int ch = 0; ch < channels; ch++) {
+            ColorHistogram histogram = new ColorHistogram();
+            for (int s = 0; s < 256; s++) {
+                int count = 0;
+                for (int[][] predictorCounts : counts) count += predictorCounts[ch][s];
+                if (count > 0) histogram.add(s, count);
+            }
+            codes[ch] = buildCode(histogram, maxCodeLength);
+        }
+
+        PredictiveCoder coder = new PredictiveCoder(codes, bandRows);
+        coder.rowPredictors = rowPredictors;
+        for (int id = 0; id < PREDICTORS.length; id++) {
+            long predictorBits = Predictor.ID_BITS * rows[id];
+            for (int ch = 0; ch < channels; ch++) {
+                for (int s = 0; s < 256; s++) predictorBits += (long) counts[id][ch][s] * coder.codeLengths[ch][s];
+            }
+            coder.rows[id] = rows[id];
+            coder.bits[id] = predictorBits;
+            coder.rawBits[id] = rawBits[id];
+            coder.nanos[id] = nanos[id];
+            coder.payloadBits += predictorBits;
+        }
+        coder.analysisTimeNanos = System.nanoTime() - start;
+        return coder;
+    }
+
+    /**
+     * Counts the residuals of one row per channel
+     *
+     * @param above previous row, null at the top of a band
+     */
+    private static void countResiduals(Predictor predictor, int[] row, int[] above, int width, int[][] counts) {
+        for (int ch = 0; ch < counts.length; ch++) {
+            int shift = SHIFTS[ch];
+            int[] channelCounts = counts[ch];
+            int a = 0;
+            int c = 0;
+            for (int x = 0; x < width; x++) {
+                int b = above == null ? 0 : (above[x] >>> shift) & 0xFF;
+                int value = (row[x] >>> shift) & 0xFF;
+                channelCounts[(value - predictor.predict(a, b, c)) & 0xFF]++;
+                a = value;
+                c = b;
+            }
+        }
+    }
+
+    /**
+     * @return bits an ideal entropy coder would need for the row, the sum over the channels
+     */
+    private static double entropyBits(int[][] counts, int width) {
+        double bits = 0;
+        double logWidth = Math.log(width);
+        for (int[] channel : counts) {
+            for (int count : channel) {
+                if (count > 0) bits += count * (logWidth - Math.log(count));
+            }
+        }
+        return bits / Math.log(2);
+    }
+
+    private static CanonicalCode buildCode(ColorHistogram histogram, int maxCodeLength) {
+        HuffmanTree tree = new HuffmanTree(histogram);
+        int[] lengths = tree.getCodeLengths();
+        if (tree.getMaxDepth() > maxCodeLength) {
+            int[] frequencies = new int[lengths.length];
+            for (int i = 0; i < lengths.length; i++) frequencies[i] = histogram.get(tree.getColors()[i]);
+            lengths = LengthLimitedCodeBuilder.buildLengths(frequencies, maxCodeLength);
+        }
+        return new CanonicalCode(tree.getColors(), lengths);
+    }
+
+    private static boolean isBandTop(int y, int bandRows) {
+        return bandRows == 0 ? y == 0 : y % bandRows == 0;
+    }
+
+    /**
+     * Writes the predictor id and the residual codes of one row
+     *
+     * @param y image row, decides the predictor and whether the row above is used
+     * @param row pixels of the row, from {@code rowOffset}
+     * @param above pixels of the previous row, from {@code aboveOffset}; ignored at the top of a band
+     * @throws IOException if writing fails
+     */
+    public void encodeRow(int y, int[] row, int rowOffset, int[] above, int aboveOffset, int width,
+                          BitWriter writer) throws IOException {
+        Predictor predictor = PREDICTORS[rowPredictors[y]];
+        boolean top = isBandTop(y, bandRows);
+        writer.writeBits(predictor.ordinal(), Predictor.ID_BITS);
+        for (int x = 0; x < width; x++) {
+            int pixel = row[rowOffset + x];
+            int left = x == 0 ? 0 : row[rowOffset + x - 1];
+            int up = top ? 0 : above[aboveOffset + x];
+            int upLeft = top || x == 0 ? 0 : above[aboveOffset + x - 1];
+            for (int ch = 0; ch < channels; ch++) {
+                int shift = SHIFTS[ch];
+                int residual = (((pixel >>> shift) & 0xFF) - predictor.predict((left >>> shift) & 0xFF,
+                        (up >>> shift) & 0xFF, (upLeft >>> shift) & 0xFF)) & 0xFF;
+                int length = codeLengths[ch][residual];
+                if (length > 0) writer.writeBits(codeBits[ch][residual], length);
+            }
+        }
+    }
+
+    /**
+     * Decodes one row written by {@link #encodeRow}
+     *
+     * @param y image row, decides whether the row above is used
+     * @param row destination, filled from {@code rowOffset}
+     * @param above the decoded previous row, from {@code aboveOffset}; ignored at the top of a band
+     * @throws IOException if the stream is corrupt
+     */
+    public void decodeRow(int y, BitReader reader, int[] row, int rowOffset, int[] above, int aboveOffset, int width)
+            throws IOException {
+        Predictor predictor = PREDICTORS[reader.readBits(Predictor.ID_BITS)];
+        boolean top = isBandTop(y, bandRows);
+        int opaque = channels == 3 ? 0xFF000000 : 0;
+        for (int x = 0; x < width; x++) {
+            int left = x == 0 ? 0 : row[rowOffset + x - 1];
+            int up = top ? 0 : above[aboveOffset + x];
+            int upLeft = top || x == 0 ? 0 : above[aboveOffset + x - 1];
+            int pixel = opaque;
+            for (int ch = 0; ch < channels; ch++) {
+                int shift = SHIFTS[ch];
+                int residual = decodeTables[ch] == null ? constants[ch] : decodeTables[ch].decodeSymbol(reader);
+                int value = (residual + predictor.predict((left >>> shift) & 0xFF,
+                        (up >>> shift) & 0xFF, (upLeft >>> shift) & 0xFF)) & 0xFF;
+                pixel |= value << shift;
+            }
+            row[rowOffset + x] = pixel;
+        }
+    }
+
+    /**
+     * @return residual code of every channel, red, green, blue and maybe alpha
+     */
+    public CanonicalCode[] getCodes() {
+        return codes;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    /**
+     * @return exact payload size, predictor ids included
+     */
+    public long getPayloadBits() {
+        return payloadBits;
+    }
+
+    /**
+     * @return rows that picked the predictor
+     */
+    public long getRows(Predictor predictor) {
+        return rows[predictor.ordinal()];
+    }
+
+    /**
+     * @return payload bits of the rows that picked the predictor
+     */
+    public long getBits(Predictor predictor) {
+        return bits[predictor.ordinal()];
+    }
+
+    /**
+     * @return bits the raw color code needs for the same rows, header excluded
+     */
+    public long getRawBits(Predictor predictor) {
+        return rawBits[predictor.ordinal()];
+    }
+
+    /**
+     * @return time spent computing residuals and estimates with the predictor over all rows
+     */
+    public long getNanos(Predictor predictor) {
+        return nanos[predictor.ordinal()];
+    }
+
+    /**
+     * @return time of the whole analysis pass, code building included
+     */
+    public long getAnalysisTimeNanos() {
+        return analysisTimeNanos;
+    }
+}
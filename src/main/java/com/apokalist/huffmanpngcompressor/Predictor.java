@@ -0,0 +1,55 @@
+package com.apokalist.huffmanpngcompressor;
+
+/**
+ * Guesses a channel value from its already coded neighbours, so only the residual
+ * (value - guess, mod 256) has to be coded. Smooth areas leave residuals near 0,
+ * which a small per-channel Huffman code packs far better than raw colors.
+ *
+ * Neighbours are a (left), b (above) and c (above left); outside the image or
+ * above the first row of a band they count as 0, as in PNG filtering.
+ */
+public enum Predictor {
+    /** The left neighbour, PNG Sub */
+    LEFT,
+    /** The neighbour above, PNG Up */
+    UP,
+    /** Whichever of a, b, c is closest to a + b - c, PNG Paeth */
+    PAETH,
+    /** Median edge detector of LOCO-I / JPEG-LS: min or max of a and b at an edge, a + b - c otherwise */
+    MED;
+
+    /// Predictor ids are stored in 2 bits per row
+    static final int ID_BITS = 2;
+
+    /**
+     * @param a left neighbour
+     * @param b neighbour above
+     * @param c neighbour above left
+     * @return the predicted value, 0..255
+     */
+    public int predict(int a, int b, int c) {
+        return switch (this) {
+            case LEFT -> a;
+            case UP -> b;
+            case PAETH -> paeth(a, b, c);
+            case MED -> med(a, b, c);
+        };
+    }
+
+    private static int paeth(int a, int b, int c) {
+        int p = a + b - c;
+        int pa = Math.abs(p - a);
+        int pb = Math.abs(p - b);
+        int pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc) return a;
+        return pb <= pc ? b : c;
+    }
+
+    private static int med(int a, int b, int c) {
+        int max = Math.max(a, b);
+        int min = Math.min(a, b);
+        if (c >= max) return min;
+        if (c <= min) return max;
+        return a + b - c;
+    }
+}
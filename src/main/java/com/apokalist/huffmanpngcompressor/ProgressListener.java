@@ -0,0 +1,15 @@
+package com.apokalist.huffmanpngcompressor;
+
+/**
+ * Receives progress of the long running parts of a compression, rows done out of rows total.
+ * Called from the compressing thread, implementations hand the numbers over to the UI themselves.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+    /**
+     * @param stage what is running right now, e.g. "Counting colors"
+     * @param done rows finished in this stage
+     * @param total rows of the stage
+     */
+    void progress(String stage, long done, long total);
+}
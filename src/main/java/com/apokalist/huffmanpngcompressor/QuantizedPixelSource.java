@@ -0,0 +1,108 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streams a source through a palette, optionally with Floyd–Steinberg dithering.
+ * Dithering only carries the error of the row being read into the next one, so memory
+ * stays proportional to the width and every pass yields exactly the same pixels.
+ * Alpha passes through unchanged, unless the palette was cut on packed symbols with
+ * transparency: then it is mapped and dithered as a fourth channel.
+ */
+public class QuantizedPixelSource implements PixelSource {
+    private final PixelSource source;
+    private final ColorQuantizer quantizer;
+    private final boolean dither;
+    private volatile long squaredError = -1;
+
+    /**
+     * @param source original pixels
+     * @param quantizer palette built from the histogram of the source
+     * @param dither true to diffuse the error of every pixel onto its unvisited neighbours
+     */
+    public QuantizedPixelSource(PixelSource source, ColorQuantizer quantizer, boolean dither) {
+        this.source = source;
+        this.quantizer = quantizer;
+        this.dither = dither;
+    }
+
+    @Override
+    public int getWidth() {
+        return source.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return source.getHeight();
+    }
+
+    @Override
+    public int getBitsPerPixel() {
+        return source.getBitsPerPixel();
+    }
+
+    @Override
+    public void forEachRow(RowConsumer consumer) throws IOException {
+        int width = getWidth();
+        int[] out = new int[width];
+        int channels = quantizer.getChannels();
+        /// Error per channel in 1/16 units, index x + 1 so the neighbours never need a bounds check
+        int[][] current = new int[channels][width + 2];
+        int[][] next = new int[channels][width + 2];
+        long[] error = {0};
+        source.forEachRow((y, row) -> {
+            for (int x = 0; x < width; x++) {
+                int pixel = row[x];
+                int symbol = channels == 4 ? AlphaMode.toSymbol(pixel) : pixel & 0xFFFFFF;
+                int mapped;
+                if (!dither) {
+                    mapped = quantizer.map(symbol);
+                } else {
+                    int wanted = 0;
+                    for (int c = 0; c < channels; c++) {
+                        int shift = ColorQuantizer.shift(c);
+                        int value = ((symbol >>> shift) & 0xFF) + (current[c][x + 1] + 8 >> 4);
+                        wanted |= Math.clamp(value, 0, 255) << shift;
+                    }
+                    mapped = quantizer.nearest(wanted);
+                    for (int c = 0; c < channels; c++) {
+                        int shift = ColorQuantizer.shift(c);
+                        int diff = ((wanted >>> shift) & 0xFF) - ((mapped >>> shift) & 0xFF);
+                        current[c][x + 2] += diff * 7;
+                        next[c][x] += diff * 3;
+                        next[c][x + 1] += diff * 5;
+                        next[c][x + 2] += diff;
+                    }
+                }
+                error[0] += ColorQuantizer.squaredError(symbol, mapped);
+                out[x] = channels == 4 ? AlphaMode.toArgb(mapped) : pixel & 0xFF000000 | mapped;
+            }
+            if (dither) {
+                for (int c = 0; c < channels; c++) {
+                    int[] swap = current[c];
+                    current[c] = next[c];
+                    next[c] = swap;
+                    Arrays.fill(next[c], 0);
+                }
+            }
+            consumer.accept(y, out);
+        });
+        squaredError = error[0];
+    }
+
+    /**
+     * @return summed squared error over the quantized channels against the source over the last full pass, -1 before the first one
+     */
+    public long getSquaredError() {
+        return squaredError;
+    }
+
+    public ColorQuantizer getQuantizer() {
+        return quantizer;
+    }
+
+    public PixelSource getSource() {
+        return source;
+    }
+}
@@ -0,0 +1,380 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Codes rows as (color, run length) pairs instead of one code per pixel.
+ *
+ * Flat content such as screenshots and diagrams pays at least one bit per pixel with
+ * color codes; a run pays one color code and one length code however long it is.
+ * Run colors and run lengths have Huffman codes of their own. A length is coded as its
+ * bucket, floor(log2(length)), followed by that many low bits, so the length alphabet
+ * stays at 31 symbols for any width. Runs end at the row end, which keeps bands intact.
+ *
+ * Runs are not found while the histogram is counted: one pass of their own splits the
+ * rows and counts run colors and length buckets, a second one costs every row both ways
+ * and each row takes the cheaper one, a 1 bit flag per row tells which. When every row is run
+ * coded the color code of plain rows is left empty and the flags are dropped. A code
+ * with a single symbol costs no bits in run rows.
+ */
+public class RunLengthCoder {
+    /// Buckets of run lengths 1 .. 2^31 - 1
+    public static final int BUCKETS = 31;
+
+    private static final CanonicalCode EMPTY = new CanonicalCode(new int[0], new int[0]);
+
+    /// Code of the colors of plain rows, empty when every row is run coded
+    private final CanonicalCode pixelCode;
+    private final CanonicalCode colorCode;
+    private final CanonicalCode lengthCode;
+    private final AlphaMode alphaMode;
+
+    /// Run coded rows, null when every row is run coded
+    private boolean[] runRows;
+
+    private final HuffmanDecodeTable pixelTable;
+    private final HuffmanDecodeTable colorTable;
+    private final HuffmanDecodeTable lengthTable;
+
+    private long payloadBits;
+    private long runRowCount;
+    private long runs;
+    private long runPixels;
+    private long runBits;
+    private long rawBits;
+    private long analysisTimeNanos;
+
+    /**
+     * Coder for decoding a container
+     *
+     * @param pixelCode code of the colors of plain rows, empty when every row is run coded
+     * @param colorCode code of the run colors
+     * @param lengthCode code of the run length buckets
+     */
+    public RunLengthCoder(CanonicalCode pixelCode, CanonicalCode colorCode, CanonicalCode lengthCode) {
+        this.pixelCode = pixelCode;
+        this.colorCode = colorCode;
+        this.lengthCode = lengthCode;
+        this.alphaMode = AlphaMode.PACKED;
+        pixelTable = pixelCode.size() > 0 ? new HuffmanDecodeTable(pixelCode) : null;
+        colorTable = colorCode.size() > 1 ? new HuffmanDecodeTable(colorCode) : null;
+        lengthTable = lengthCode.size() > 1 ? new HuffmanDecodeTable(lengthCode) : null;
+    }
+
+    private RunLengthCoder(CanonicalCode pixelCode, CanonicalCode colorCode, CanonicalCode lengthCode,
+                           AlphaMode alphaMode, boolean[] runRows) {
+        this.pixelCode = pixelCode;
+        this.colorCode = colorCode;
+        this.lengthCode = lengthCode;
+        this.alphaMode = alphaMode;
+        this.runRows = runRows;
+        pixelTable = null;
+        colorTable = null;
+        lengthTable = null;
+    }
+
+    /**
+     * Run statistics of a set of rows
+     */
+    private static class Counts {
+        final ColorHistogram colors = new ColorHistogram();
+        final int[] buckets = new int[BUCKETS];
+        long extraBits;
+        long runs;
+        long pixels;
+
+        void add(int symbol, int length) {
+            int bucket = bucket(length);
+            colors.add(symbol, 1);
+            buckets[bucket]++;
+            extraBits += bucket;
+            runs++;
+            pixels += length;
+        }
+    }
+
+    /**
+     * Reads the source twice: the first pass counts the runs of every row and what its
+     * color codes cost, the second costs every row with the run codes and picks its mode.
+     * The run codes are then rebuilt from the run coded rows alone.
+     *
+     * @param source pixels to code
+     * @param pixelCode color code of the image, plain rows use it
+     * @param alphaMode symbol mapping of the color code, {@link AlphaMode#PACKED} or {@link AlphaMode#IGNORE}
+     * @param maxCodeLength longest allowed run color code
+     * @return coder ready to encode the source
+     * @throws IOException if the source cannot be read
+     */
+    public static RunLengthCoder analyze(PixelSource source, CanonicalCode pixelCode, AlphaMode alphaMode,
+                                         int maxCodeLength) throws IOException {
+        if (alphaMode == AlphaMode.SEPARATE) throw new IllegalArgumentException("Runs need packed or ignored alpha");
+        long start = System.nanoTime();
+        long[] plainBits = new long[source.getHeight()];
+        Counts all = new Counts();
+        source.forEachRow((y, row) -> {
+            long bits = 0;
+            for (int x = 0; x < row.length; ) {
+                int end = runEnd(row, x);
+                int symbol = alphaMode.symbol(row[x]);
+                int index = pixelCode.indexOf(symbol);
+                if (index < 0) throw new IllegalArgumentException("No code for color " + ColorHistogram.toHex(symbol));
+                bits += (long) pixelCode.getLength(index) * (end - x);
+                all.add(symbol, end - x);
+                x = end;
+            }
+            plainBits[y] = bits;
+        });
+        CanonicalCode colorCode = buildCode(all.colors.colors(), all.colors.counts(), maxCodeLength);
+        CanonicalCode lengthCode = buildLengthCode(all.buckets);
+
+        boolean[] runRows = new boolean[source.getHeight()];
+        Counts chosen = new Counts();
+        long[] plain = {0};
+        long[] raw = {0};
+        source.forEachRow((y, row) -> {
+            long bits = 0;
+            for (int x = 0; x < row.length; ) {
+                int end = runEnd(row, x);
+                bits += symbolBits(colorCode, alphaMode.symbol(row[x])) + symbolBits(lengthCode, bucket(end - x))
+                        + bucket(end - x);
+                x = end;
+            }
+            if (bits >= plainBits[y]) {
+                plain[0] += plainBits[y];
+                return;
+            }
+            runRows[y] = true;
+            raw[0] += plainBits[y];
+            for (int x = 0; x < row.length; ) {
+                int end = runEnd(row, x);
+                chosen.add(alphaMode.symbol(row[x]), end - x);
+                x = end;
+            }
+        });
+
+        /// Every row run coded with the first pass codes against the row flags, the plain code and the chosen rows
+        long allRunBits = payloadBits(colorCode, lengthCode, all);
+        CanonicalCode chosenColors = buildCode(chosen.colors.colors(), chosen.colors.counts(), maxCodeLength);
+        CanonicalCode chosenLengths = buildLengthCode(chosen.buckets);
+        long chosenRunBits = payloadBits(chosenColors, chosenLengths, chosen);
+        int symbolBits = HuffmanFormat.symbolBits(new CanonicalCode[]{pixelCode, colorCode});
+        long mixedBits = plain[0] + runRows.length + chosenRunBits
+                + HuffmanFormat.codeBits(pixelCode, symbolBits) + HuffmanFormat.codeBits(chosenColors, symbolBits)
+                + HuffmanFormat.codeBits(chosenLengths, 8);
+        long allBits = allRunBits + HuffmanFormat.codeBits(colorCode, symbolBits) + HuffmanFormat.codeBits(lengthCode, 8)
+                + HuffmanFormat.codeBits(EMPTY, symbolBits);
+
+        RunLengthCoder coder;
+        if (allBits <= mixedBits) {
+            coder = new RunLengthCoder(EMPTY, colorCode, lengthCode, alphaMode, null);
+            coder.payloadBits = allRunBits;
+            coder.runRowCount = runRows.length;
+            coder.runs = all.runs;
+            coder.runPixels = all.pixels;
+            coder.runBits = allRunBits;
+            coder.rawBits = plain[0] + raw[0];
+        } else {
+            coder = new RunLengthCoder(pixelCode, chosenColors, chosenLengths, alphaMode, runRows);
+            coder.payloadBits = plain[0] + runRows.length + chosenRunBits;
+            for (boolean run : runRows) if (run) coder.runRowCount++;
+            coder.runs = chosen.runs;
+            coder.runPixels = chosen.pixels;
+            coder.runBits = chosenRunBits;
+            coder.rawBits = raw[0];
+        }
+        coder.analysisTimeNanos = System.nanoTime() - start;
+        return coder;
+    }
+
+    /**
+     * @return index right after the run starting at {@code x}
+     */
+    private static int runEnd(int[] row, int x) {
+        int pixel = row[x];
+        int end = x + 1;
+        while (end < row.length && row[end] == pixel) end++;
+        return end;
+    }
+
+    /**
+     * @param length run length, at least 1
+     * @return the bucket, which is also the number of low bits following it
+     */
+    static int bucket(int length) {
+        return 31 - Integer.numberOfLeadingZeros(length);
+    }
+
+    /**
+     * @return bits of the symbol in a run row, 0 for a single symbol code
+     */
+    private static int symbolBits(CanonicalCode code, int symbol) {
+        return code.size() > 1 ? code.getLength(code.indexOf(symbol)) : 0;
+    }
+
+    private static long payloadBits(CanonicalCode colorCode, CanonicalCode lengthCode, Counts counts) {
+        long bits = counts.extraBits;
+        if (colorCode.size() > 1) bits += colorCode.encodedBits(counts.colors);
+        if (lengthCode.size() > 1) {
+            for (int bucket = 0; bucket < BUCKETS; bucket++) {
+                if (counts.buckets[bucket] > 0) bits += (long) counts.buckets[bucket] * symbolBits(lengthCode, bucket);
+            }
+        }
+        return bits;
+    }
+
+    private static CanonicalCode buildLengthCode(int[] buckets) {
+        int used = 0;
+        for (int count : buckets) if (count > 0) used++;
+        int[] symbols = new int[used];
+        int[] frequencies = new int[used];
+        for (int bucket = 0, i = 0; bucket < BUCKETS; bucket++) {
+            if (buckets[bucket] == 0) continue;
+            symbols[i] = bucket;
+            frequencies[i++] = buckets[bucket];
+        }
+        /// 31 symbols never get past the length limit
+        return new CanonicalCode(symbols, TwoQueueCodeBuilder.buildLengths(frequencies));
+    }
+
+    private static CanonicalCode buildCode(int[] colors, int[] frequencies, int maxCodeLength) {
+        int[] lengths = TwoQueueCodeBuilder.buildLengths(frequencies);
+        for (int length : lengths) {
+            if (length > maxCodeLength) return new CanonicalCode(colors, LengthLimitedCodeBuilder.buildLengths(frequencies, maxCodeLength));
+        }
+        return new CanonicalCode(colors, lengths);
+    }
+
+    /**
+     * Writes the row flag, when rows have one, and the runs or the color codes of one row
+     *
+     * @param y image row, decides the mode
+     * @param row pixels of the row, from {@code rowOffset}
+     * @throws IOException if writing fails
+     */
+    public void encodeRow(int y, int[] row, int rowOffset, int width, BitWriter writer) throws IOException {
+        boolean run = runRows == null || runRows[y];
+        if (runRows != null) writer.writeBits(run ? 1 : 0, 1);
+        int end = rowOffset + width;
+        if (!run) {
+            for (int i = rowOffset; i < end; i++) {
+                int index = pixelCode.indexOf(alphaMode.symbol(row[i]));
+                writer.writeBits(pixelCode.getCode(index), pixelCode.getLength(index));
+            }
+            return;
+        }
+        for (int x = rowOffset; x < end; ) {
+            int pixel = row[x];
+            int next = x + 1;
+            while (next < end && row[next] == pixel) next++;
+            int length = next - x;
+            int bucket = bucket(length);
+            if (colorCode.size() > 1) {
+                int index = colorCode.indexOf(alphaMode.symbol(pixel));
+                if (index < 0) throw new IllegalArgumentException("No run code for color " + ColorHistogram.toHex(alphaMode.symbol(pixel)));
+                writer.writeBits(colorCode.getCode(index), colorCode.getLength(index));
+            }
+            if (lengthCode.size() > 1) {
+                int index = lengthCode.indexOf(bucket);
+                writer.writeBits(lengthCode.getCode(index), lengthCode.getLength(index));
+            }
+            writer.writeBits(length, bucket);
+            x = next;
+        }
+    }
+
+    /**
+     * Decodes one row written by {@link #encodeRow}
+     *
+     * @param row destination, filled from {@code rowOffset}
+     * @throws IOException if the stream is corrupt
+     */
+    public void decodeRow(BitReader reader, int[] row, int rowOffset, int width) throws IOException {
+        boolean run = pixelTable == null || reader.readBit() == 1;
+        if (!run) {
+            HuffmanDecoder.decodePixels(pixelTable, null, -1, reader, row, rowOffset, width);
+            return;
+        }
+        int end = rowOffset + width;
+        if (width > 0 && (colorCode.size() == 0 || lengthCode.size() == 0)) throw new IOException("Run row without run codes");
+        for (int x = rowOffset; x < end; ) {
+            int symbol = colorTable == null ? colorCode.getSymbol(0) : colorTable.decodeSymbol(reader);
+            int bucket = lengthTable == null ? lengthCode.getSymbol(0) : lengthTable.decodeSymbol(reader);
+            int length = 1 << bucket | reader.readBits(bucket);
+            if (length > end - x) throw new IOException("Corrupt run of " + length + " pixels");
+            Arrays.fill(row, x, x + length, AlphaMode.toArgb(symbol));
+            x += length;
+        }
+    }
+
+    /**
+     * @return code of the colors of plain rows, empty when every row is run coded
+     */
+    public CanonicalCode getPixelCode() {
+        return pixelCode;
+    }
+
+    public CanonicalCode getColorCode() {
+        return colorCode;
+    }
+
+    /**
+     * @return code of the run length buckets, see {@link #bucket(int)}
+     */
+    public CanonicalCode getLengthCode() {
+        return lengthCode;
+    }
+
+    /**
+     * @return true when rows choose their mode, false when every row is run coded
+     */
+    public boolean isPerRow() {
+        return runRows != null;
+    }
+
+    /**
+     * @return exact payload size, row flags included
+     */
+    public long getPayloadBits() {
+        return payloadBits;
+    }
+
+    public long getRunRows() {
+        return runRowCount;
+    }
+
+    /**
+     * @return runs in the run coded rows
+     */
+    public long getRuns() {
+        return runs;
+    }
+
+    /**
+     * @return pixels in the run coded rows
+     */
+    public long getRunPixels() {
+        return runPixels;
+    }
+
+    /**
+     * @return payload bits of the run coded rows
+     */
+    public long getRunBits() {
+        return runBits;
+    }
+
+    /**
+     * @return bits the color code needs for the same rows
+     */
+    public long getRawBits() {
+        return rawBits;
+    }
+
+    /**
+     * @return time of both passes, code building included
+     */
+    public long getAnalysisTimeNanos() {
+        return analysisTimeNanos;
+    }
+}
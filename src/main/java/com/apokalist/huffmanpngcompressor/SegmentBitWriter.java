@@ -0,0 +1,48 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.ByteBuffer;
+
+/**
+ * Bit writer storing its words straight into a memory segment, the in-memory sibling of
+ * {@link MappedBitWriter}. Segments larger than one window (1GB) are written in windows.
+ * Nothing is staged in a heap buffer, and the segment is not closed with the writer.
+ */
+public class SegmentBitWriter extends BitWriter {
+    /// Largest window viewed as one buffer
+    private static final int WINDOW_SIZE = 1 << 30;
+
+    private final MemorySegment target;
+    private long windowStart;
+
+    /**
+     * @param target memory receiving the bytes, writing more than it holds fails
+     */
+    public SegmentBitWriter(MemorySegment target) {
+        super(null, null);
+        this.target = target;
+        buffer = window(0);
+    }
+
+    /**
+     * Moves on to the window starting right after the last byte written
+     */
+    @Override
+    protected void drain() {
+        windowStart += buffer.position();
+        buffer = window(windowStart);
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    private ByteBuffer window(long start) {
+        long length = Math.min(WINDOW_SIZE, target.byteSize() - start);
+        /// Once the segment is used up an empty buffer makes any further write overflow
+        if (length <= 0) return ByteBuffer.allocate(0);
+        return target.asSlice(start, length).asByteBuffer();
+    }
+}
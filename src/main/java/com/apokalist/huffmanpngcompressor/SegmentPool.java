@@ -0,0 +1,217 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Native memory for batch runs: pixel rasters, dense histogram tables and output buffers
+ * allocated outside the heap with the Foreign Function &amp; Memory API and recycled from
+ * image to image. A batch that used to allocate a raster, a 64MB histogram and a copy of
+ * the container per image leaves next to nothing for the garbage collector.
+ *
+ * Every block owns a shared {@link Arena}. A block asked for more than it holds frees its
+ * memory and allocates the new size, so blocks grow to the largest image seen and stay
+ * there. At most {@code capacity} idle blocks are kept per kind, the memory of the others
+ * is freed right away. Closing the pool frees the idle blocks and every block given back
+ * afterwards.
+ */
+public class SegmentPool implements AutoCloseable {
+    /// Rasters and tables are read as ints and longs, output words are stored as longs
+    private static final long ALIGNMENT = Long.BYTES;
+
+    public enum Kind {
+        /// Decoded pixels, 4 bytes each, see {@link SegmentRaster}
+        RASTER,
+        /// Dense color histogram tables, zeroed when given back, see {@link ColorHistogram#ColorHistogram(MemorySegment)}
+        HISTOGRAM,
+        /// Encoded containers, see {@link SegmentBitWriter}
+        OUTPUT
+    }
+
+    /**
+     * Memory handed out by the pool, closing it gives it back
+     */
+    public final class Block implements AutoCloseable {
+        private final Kind kind;
+        private Arena arena;
+        private MemorySegment segment;
+        private boolean taken;
+
+        private Block(Kind kind) {
+            this.kind = kind;
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        /**
+         * @return the whole memory of the block, at least as large as asked for, not valid after {@link #close()}
+         */
+        public MemorySegment segment() {
+            return segment;
+        }
+
+        /**
+         * @return the first {@code bytes} of the block
+         */
+        public MemorySegment segment(long bytes) {
+            return segment.asSlice(0, bytes);
+        }
+
+        @Override
+        public void close() {
+            give(this);
+        }
+
+        private void ensure(long bytes) {
+            if (segment != null && segment.byteSize() >= bytes) return;
+            free();
+            arena = Arena.ofShared();
+            segment = arena.allocate(Math.max(bytes, ALIGNMENT), ALIGNMENT);
+        }
+
+        private void free() {
+            if (arena != null) arena.close();
+            arena = null;
+            segment = null;
+        }
+    }
+
+    private final int capacity;
+    private final Map<Kind, ArrayDeque<Block>> idle = new EnumMap<>(Kind.class);
+    private boolean closed;
+
+    private long reused;
+    private long allocated;
+    private long grown;
+    private long reservedBytes;
+
+    /**
+     * @param capacity idle blocks kept per kind, about the number of images in flight
+     */
+    public SegmentPool(int capacity) {
+        if (capacity < 0) throw new IllegalArgumentException("Negative capacity: " + capacity);
+        this.capacity = capacity;
+        for (Kind kind : Kind.values()) idle.put(kind, new ArrayDeque<>());
+    }
+
+    /**
+     * Takes a block of at least {@code bytes}. An idle block that is large enough is preferred,
+     * otherwise the largest idle block grows, and only without idle blocks a new one is made.
+     * {@link Kind#HISTOGRAM} blocks come zeroed.
+     *
+     * @param kind what the block is for, each kind is pooled on its own
+     * @param bytes size needed
+     * @return the block, give it back with {@link Block#close()}
+     */
+    public Block take(Kind kind, long bytes) {
+        Block block;
+        synchronized (this) {
+            if (closed) throw new IllegalStateException("Pool is closed");
+            block = pick(idle.get(kind), bytes);
+            if (block == null) {
+                block = new Block(kind);
+                allocated++;
+            } else if (block.segment.byteSize() >= bytes) {
+                reused++;
+            } else {
+                grown++;
+            }
+            block.taken = true;
+        }
+        long before = block.segment == null ? 0 : block.segment.byteSize();
+        block.ensure(bytes);
+        synchronized (this) {
+            reservedBytes += block.segment.byteSize() - before;
+        }
+        return block;
+    }
+
+    private static Block pick(ArrayDeque<Block> blocks, long bytes) {
+        Block largest = null;
+        for (Iterator<Block> it = blocks.iterator(); it.hasNext(); ) {
+            Block block = it.next();
+            if (block.segment.byteSize() >= bytes) {
+                it.remove();
+                return block;
+            }
+            if (largest == null || block.segment.byteSize() > largest.segment.byteSize()) largest = block;
+        }
+        if (largest != null) blocks.remove(largest);
+        return largest;
+    }
+
+    private void give(Block block) {
+        /// Zeroing 64MB is slow enough to keep it out of the lock
+        if (block.kind == Kind.HISTOGRAM && block.segment != null) block.segment.fill((byte) 0);
+        Block freed = null;
+        synchronized (this) {
+            if (!block.taken) throw new IllegalStateException("Block given back twice");
+            block.taken = false;
+            ArrayDeque<Block> blocks = idle.get(block.kind);
+            if (!closed && blocks.size() < capacity) {
+                blocks.push(block);
+            } else {
+                freed = block;
+                reservedBytes -= block.segment.byteSize();
+            }
+        }
+        if (freed != null) freed.free();
+    }
+
+    /**
+     * @return how many takes were served by an idle block of the right size
+     */
+    public synchronized long getReused() {
+        return reused;
+    }
+
+    /**
+     * @return how many takes had to make a new block
+     */
+    public synchronized long getAllocated() {
+        return allocated;
+    }
+
+    /**
+     * @return how many takes had to grow an idle block
+     */
+    public synchronized long getGrown() {
+        return grown;
+    }
+
+    /**
+     * @return native bytes held by the pool, idle and taken blocks
+     */
+    public synchronized long getReservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Frees the idle blocks, blocks still taken are freed when they are given back
+     */
+    @Override
+    public void close() {
+        ArrayDeque<Block> freed = new ArrayDeque<>();
+        synchronized (this) {
+            closed = true;
+            for (ArrayDeque<Block> blocks : idle.values()) {
+                for (Block block : blocks) reservedBytes -= block.segment.byteSize();
+                freed.addAll(blocks);
+                blocks.clear();
+            }
+        }
+        for (Block block : freed) block.free();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("Off-heap pool: %d reused, %d grown, %d allocated, %.1f MB reserved",
+                reused, grown, allocated, reservedBytes / 1e6);
+    }
+}
@@ -0,0 +1,89 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.function.IntPredicate;
+
+/**
+ * Decoded pixels held in native memory, usually a {@link SegmentPool} block.
+ * Same as a {@link DecodedImage} for the compressor, rows are copied out into one reused
+ * row array per pass, but the raster itself never touches the heap.
+ */
+public class SegmentRaster implements PixelSource {
+    private static final ValueLayout.OfInt PIXEL = ValueLayout.JAVA_INT;
+
+    private final int width;
+    private final int height;
+    private final int bitsPerPixel;
+    private final MemorySegment pixels;
+
+    /**
+     * @param pixels packed ARGB pixels row by row, at least width * height of them
+     */
+    public SegmentRaster(int width, int height, int bitsPerPixel, MemorySegment pixels) {
+        if (pixels.byteSize() < (long) width * height * Integer.BYTES)
+            throw new IllegalArgumentException("Segment of " + pixels.byteSize() + " bytes for " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        this.bitsPerPixel = bitsPerPixel;
+        this.pixels = pixels;
+    }
+
+    /**
+     * @return bytes a raster of the source needs
+     */
+    public static long bytes(PixelSource source) {
+        return (long) source.getWidth() * source.getHeight() * Integer.BYTES;
+    }
+
+    /**
+     * Reads every row of the source into the segment
+     *
+     * @param source pixels to copy, read once
+     * @param target at least {@link #bytes(PixelSource)} bytes
+     * @return the raster over the segment
+     * @throws IOException if the source cannot be read
+     */
+    public static SegmentRaster read(PixelSource source, MemorySegment target) throws IOException {
+        SegmentRaster raster = new SegmentRaster(source.getWidth(), source.getHeight(), source.getBitsPerPixel(), target);
+        long rowBytes = (long) raster.width * Integer.BYTES;
+        source.forEachRow((y, row) -> MemorySegment.copy(row, 0, target, PIXEL, y * rowBytes, raster.width));
+        return raster;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getBitsPerPixel() {
+        return bitsPerPixel;
+    }
+
+    @Override
+    public void forEachRow(RowConsumer consumer) throws IOException {
+        forEachRow(y -> true, consumer);
+    }
+
+    @Override
+    public void forEachRow(IntPredicate rows, RowConsumer consumer) throws IOException {
+        int[] row = new int[width];
+        long rowBytes = (long) width * Integer.BYTES;
+        for (int y = 0; y < height; y++) {
+            if (!rows.test(y)) continue;
+            MemorySegment.copy(pixels, PIXEL, y * rowBytes, row, 0, width);
+            consumer.accept(y, row);
+        }
+    }
+
+    public MemorySegment getSegment() {
+        return pixels;
+    }
+}
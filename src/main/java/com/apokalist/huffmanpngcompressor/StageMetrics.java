@@ -0,0 +1,113 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one pipeline stage.
+ * Busy time is spent working, starved time waiting for input and blocked time
+ * waiting for room in the next queue, so a stage with high blocked time is
+ * held back by the stage after it and one with high starved time by the stage before.
+ */
+public class StageMetrics {
+    private final String name;
+    private final BlockingQueue<?> inputQueue;
+    private final LongAdder processed = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder pixels = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final LongAdder starvedNanos = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final int workers;
+
+    StageMetrics(String name, BlockingQueue<?> inputQueue, int workers) {
+        this.name = name;
+        this.inputQueue = inputQueue;
+        this.workers = workers;
+    }
+
+    void recordWork(long nanos, long pixelCount, boolean success) {
+        busyNanos.add(nanos);
+        pixels.add(pixelCount);
+        processed.increment();
+        if (!success) failed.increment();
+    }
+
+    void recordStarved(long nanos) {
+        starvedNanos.add(nanos);
+    }
+
+    void recordBlocked(long nanos) {
+        blockedNanos.add(nanos);
+    }
+
+    void sampleQueueDepth() {
+        maxQueueDepth.accumulateAndGet(inputQueue.size(), Math::max);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getProcessed() {
+        return processed.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public long getBusyNanos() {
+        return busyNanos.sum();
+    }
+
+    public long getStarvedNanos() {
+        return starvedNanos.sum();
+    }
+
+    public long getBlockedNanos() {
+        return blockedNanos.sum();
+    }
+
+    /**
+     * @return items waiting in front of this stage right now
+     */
+    public int getQueueDepth() {
+        return inputQueue.size();
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth.get();
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * @return images per second of busy time of a single worker
+     */
+    public double getItemsPerSecond() {
+        long busy = getBusyNanos();
+        return busy == 0 ? 0 : getProcessed() / (busy / 1e9);
+    }
+
+    /**
+     * @return pixels per second of busy time of a single worker
+     */
+    public double getPixelsPerSecond() {
+        long busy = getBusyNanos();
+        return busy == 0 ? 0 : pixels.sum() / (busy / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%-10s %3d workers %6d items %4d failed %9.1f items/s %8.1f Mpx/s  busy %8.1f ms"
+                        + "  starved %8.1f ms  blocked %8.1f ms  queue %d (max %d)",
+                name, workers, getProcessed(), getFailed(), getItemsPerSecond(), getPixelsPerSecond() / 1e6,
+                getBusyNanos() / 1e6, getStarvedNanos() / 1e6, getBlockedNanos() / 1e6,
+                getQueueDepth(), getMaxQueueDepth());
+    }
+}
@@ -0,0 +1,99 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.util.Arrays;
+
+/**
+ * Linear-time Huffman code lengths over sorted frequencies.
+ *
+ * Frequencies are radix sorted once, then the two-queue method merges them:
+ * leaves are consumed in sorted order and internal nodes are created in
+ * non-decreasing weight order, so the two smallest weights are always at the
+ * head of one of the two queues. Nodes live in parallel weight/parent arrays,
+ * no node objects are created.
+ */
+public class TwoQueueCodeBuilder {
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX = 1 << RADIX_BITS;
+
+    private TwoQueueCodeBuilder() {
+    }
+
+    /**
+     * @param frequencies weight of every symbol, all positive
+     * @return Huffman code length of every symbol, in the same order as the frequencies
+     */
+    public static int[] buildLengths(int[] frequencies) {
+        int n = frequencies.length;
+        int[] lengths = new int[n];
+        if (n == 0) return lengths;
+        if (n == 1) {
+            lengths[0] = 1;
+            return lengths;
+        }
+
+        int[] order = radixSort(frequencies);
+
+        // Leaves take slots 0..n-1 in sorted order, internal nodes n..2n-2 in creation order
+        int nodes = 2 * n - 1;
+        long[] weight = new long[nodes];
+        int[] parent = new int[nodes];
+        for (int i = 0; i < n; i++) weight[i] = frequencies[order[i]];
+
+        int leaf = 0;
+        int internal = n;
+        for (int next = n; next < nodes; next++) {
+            int first = (internal >= next || (leaf < n && weight[leaf] <= weight[internal])) ? leaf++ : internal++;
+            int second = (internal >= next || (leaf < n && weight[leaf] <= weight[internal])) ? leaf++ : internal++;
+            weight[next] = weight[first] + weight[second];
+            parent[first] = next;
+            parent[second] = next;
+        }
+
+        // Depths from the root down: parents always come after their children
+        int[] depth = new int[nodes];
+        for (int node = nodes - 2; node >= 0; node--) depth[node] = depth[parent[node]] + 1;
+        for (int i = 0; i < n; i++) lengths[order[i]] = depth[i];
+        return lengths;
+    }
+
+    /**
+     * LSD radix sort of the symbol indexes by frequency, 8 bits per pass.
+     * Passes where every frequency has the same digit are skipped.
+     *
+     * @return symbol indexes in ascending frequency order
+     */
+    static int[] radixSort(int[] frequencies) {
+        int n = frequencies.length;
+        int[] order = new int[n];
+        int[] keys = frequencies.clone();
+        for (int i = 0; i < n; i++) order[i] = i;
+        int[] nextOrder = new int[n];
+        int[] nextKeys = new int[n];
+        int[] buckets = new int[RADIX];
+
+        for (int shift = 0; shift < Integer.SIZE; shift += RADIX_BITS) {
+            Arrays.fill(buckets, 0);
+            for (int key : keys) buckets[(key >>> shift) & (RADIX - 1)]++;
+            if (buckets[(keys[0] >>> shift) & (RADIX - 1)] == n) continue;
+
+            int sum = 0;
+            for (int b = 0; b < RADIX; b++) {
+                int count = buckets[b];
+                buckets[b] = sum;
+                sum += count;
+            }
+            for (int i = 0; i < n; i++) {
+                int slot = buckets[(keys[i] >>> shift) & (RADIX - 1)]++;
+                nextOrder[slot] = order[i];
+                nextKeys[slot] = keys[i];
+            }
+            int[] swap = order;
+            order = nextOrder;
+            nextOrder = swap;
+            swap = keys;
+            keys = nextKeys;
+            nextKeys = swap;
+        }
+        return order;
+    }
+}
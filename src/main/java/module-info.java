@@ -3,6 +3,9 @@ module com.apokalist.huffmanpngcompressor {
     requires javafx.fxml;
     requires javafx.graphics;
     requires java.desktop;
+    requires jdk.jfr;
+    requires jdk.management;
+    requires jdk.httpserver;
 
 
     opens com.apokalist.huffmanpngcompressor to javafx.fxml;
@@ -0,0 +1,64 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The adaptive code decodes what it encoded, codes longer than 32 bits included
+ */
+class AdaptiveHuffmanCoderTest {
+    /// Enough Fibonacci weighted symbols to push the rarest ones past 32 bits
+    private static final int SYMBOLS = 36;
+
+    @Test
+    void adaptive() throws IOException {
+        for (AlphaMode alphaMode : new AlphaMode[]{AlphaMode.IGNORE, AlphaMode.PACKED}) {
+            for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+                DecodedImage image = SyntheticImages.withAlpha(SyntheticImages.generate(kind, 480, 160));
+                AdaptiveHuffmanEncoder encoder = new AdaptiveHuffmanEncoder(alphaMode);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                long written = encoder.encode(image, out);
+                assertEquals(written, out.size());
+                DecodedImage decoded = new HuffmanDecoder().decode(new ByteArrayInputStream(out.toByteArray()));
+                assertTrue(decoded.matches(image, alphaMode != AlphaMode.IGNORE), kind + " with " + alphaMode);
+            }
+        }
+    }
+
+    @Test
+    void codesOver32Bits() throws IOException {
+        int[] counts = new int[SYMBOLS];
+        counts[0] = 1;
+        counts[1] = 1;
+        for (int i = 2; i < SYMBOLS; i++) counts[i] = counts[i - 1] + counts[i - 2];
+
+        AdaptiveHuffmanCoder encoder = new AdaptiveHuffmanCoder(24);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (BitWriter writer = new BitWriter(Channels.newChannel(out))) {
+            for (int i = 0; i < SYMBOLS; i++) {
+                for (int j = 0; j < counts[i]; j++) encoder.encode(i, writer);
+            }
+            assertTrue(encoder.codeLength(0) > 32, "longest code is " + encoder.codeLength(0) + " bits");
+            assertTrue(encoder.getMaxCodeLength() < 45);
+            encoder.encode(0, writer);
+        }
+
+        AdaptiveHuffmanCoder decoder = new AdaptiveHuffmanCoder(24);
+        try (BitReader reader = new BitReader(Channels.newChannel(new ByteArrayInputStream(out.toByteArray())))) {
+            for (int i = 0; i < SYMBOLS; i++) {
+                for (int j = 0; j < counts[i]; j++) {
+                    int value = decoder.decode(reader);
+                    if (value != i) assertEquals(i, value);
+                }
+            }
+            assertEquals(0, decoder.decode(reader));
+        }
+    }
+}
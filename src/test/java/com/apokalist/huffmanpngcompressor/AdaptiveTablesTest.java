@@ -0,0 +1,51 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Several code tables are chosen for images whose colors change from band to band, and still decode
+ */
+class AdaptiveTablesTest {
+    @Test
+    void tables() throws IOException {
+        int multiTable = 0;
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            Compressor compressor = RoundTripTest.assertRoundTrip(RoundTripTest.image(kind),
+                    new CompressionOptions().setBandRows(8).setMaxTables(4).setWorkers(2));
+            if (compressor.getTableCount() > 1) multiTable++;
+        }
+        assertTrue(multiTable > 0, "no image chose several tables");
+    }
+
+    @Test
+    void disjointHalvesGetATableEach() {
+        /// Top bands use colors 0 to 15, bottom bands 16 to 31: 4 bits each with their own table, 5 with a shared one
+        ColorHistogram[] bands = new ColorHistogram[8];
+        ColorHistogram all = new ColorHistogram();
+        for (int b = 0; b < bands.length; b++) {
+            bands[b] = new ColorHistogram();
+            int first = b < bands.length / 2 ? 0 : 16;
+            for (int color = first; color < first + 16; color++) bands[b].add(color, 1000);
+            all.merge(bands[b]);
+        }
+        CanonicalCode global = new CanonicalCode(all.colors(), TwoQueueCodeBuilder.buildLengths(all.counts()));
+
+        AdaptiveTables tables = AdaptiveTables.build(bands, global, 4, CanonicalCode.MAX_LENGTH);
+        assertEquals(2, tables.getTableCount());
+        byte[] bandTables = tables.getBandTables();
+        for (int b = 0; b < bands.length; b++) {
+            assertEquals(b < bands.length / 2 ? bandTables[0] : bandTables[bands.length - 1], bandTables[b]);
+        }
+        assertTrue(bandTables[0] != bandTables[bands.length - 1]);
+        assertEquals(bands.length * 16 * 1000 * 4L, tables.getPayloadBits());
+
+        AdaptiveTables single = AdaptiveTables.build(bands, global, 1, CanonicalCode.MAX_LENGTH);
+        assertEquals(1, single.getTableCount());
+        assertTrue(tables.getTotalBits() < single.getTotalBits());
+    }
+}
@@ -0,0 +1,38 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Alpha is kept packed into the colors or coded on its own, and dropped on request
+ */
+class AlphaModeTest {
+    @Test
+    void packedAlpha() throws IOException {
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            DecodedImage image = SyntheticImages.withAlpha(RoundTripTest.image(kind));
+            Compressor compressor = RoundTripTest.assertRoundTrip(image, new CompressionOptions().setAlphaMode(AlphaMode.PACKED));
+            assertEquals(AlphaMode.PACKED, compressor.getAlphaMode());
+        }
+    }
+
+    @Test
+    void separateAlpha() throws IOException {
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            DecodedImage image = SyntheticImages.withAlpha(RoundTripTest.image(kind));
+            Compressor compressor = RoundTripTest.assertRoundTrip(image,
+                    new CompressionOptions().setAlphaMode(AlphaMode.SEPARATE).setBandRows(32));
+            assertTrue(compressor.getAlphaCode().size() > 1);
+        }
+    }
+
+    @Test
+    void ignoredAlphaDecodesOpaque() throws IOException {
+        DecodedImage image = SyntheticImages.withAlpha(RoundTripTest.image(SyntheticImages.Kind.PALETTE));
+        RoundTripTest.assertRoundTrip(image, new CompressionOptions().setAlphaMode(AlphaMode.IGNORE));
+    }
+}
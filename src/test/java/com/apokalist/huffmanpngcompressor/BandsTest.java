@@ -0,0 +1,92 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Banded containers: the same bytes whichever writer they go to, and every band decodable on its own
+ */
+class BandsTest {
+    private static final int WIDTH = 300;
+    private static final int HEIGHT = 250;
+
+    @TempDir
+    Path dir;
+
+    /// Every coding mode that splits the payload into bands
+    private static CompressionOptions[] bandedModes() {
+        return new CompressionOptions[]{
+                new CompressionOptions().setBandRows(16),
+                new CompressionOptions().setBandRows(7).setMaxTables(4),
+                new CompressionOptions().setBandRows(16).setAlphaMode(AlphaMode.SEPARATE),
+                new CompressionOptions().setBandRows(16).setPredictors(Predictor.values()),
+                new CompressionOptions().setBandRows(16).setRunLength(true)};
+    }
+
+    @Test
+    void bands() throws IOException {
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            Compressor compressor = RoundTripTest.assertRoundTrip(SyntheticImages.generate(kind, WIDTH, HEIGHT),
+                    new CompressionOptions().setBandRows(16).setWorkers(4));
+            assertEquals(16, compressor.getBandRows());
+        }
+    }
+
+    @Test
+    void sameBytesEveryWriter() throws IOException {
+        DecodedImage image = SyntheticImages.withAlpha(SyntheticImages.generate(SyntheticImages.Kind.SCREENSHOT, WIDTH, HEIGHT));
+        CompressionOptions[] modes = bandedModes();
+        for (int i = 0; i < modes.length; i++) {
+            for (int workers : new int[]{1, 3}) {
+                Compressor compressor = new Compressor(image, modes[i].setWorkers(workers));
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                compressor.encode(out);
+                byte[] streamed = out.toByteArray();
+
+                Path file = dir.resolve("mode" + i + HuffmanFormat.EXTENSION);
+                compressor.encode(file);
+                assertArrayEquals(streamed, Files.readAllBytes(file), "mode " + i + " mapped");
+
+                try (Arena arena = Arena.ofConfined()) {
+                    MemorySegment target = arena.allocate(compressor.getContainerSize());
+                    compressor.encode(target);
+                    assertArrayEquals(streamed, target.toArray(ValueLayout.JAVA_BYTE), "mode " + i + " segment");
+                }
+            }
+        }
+    }
+
+    @Test
+    void regions() throws IOException {
+        DecodedImage image = SyntheticImages.withAlpha(SyntheticImages.generate(SyntheticImages.Kind.NOISE, WIDTH, HEIGHT));
+        CompressionOptions[] modes = bandedModes();
+        for (int i = 0; i < modes.length; i++) {
+            Path file = dir.resolve("mode" + i + HuffmanFormat.EXTENSION);
+            new Compressor(image, modes[i].setWorkers(2)).encode(file);
+            try (ContainerReader reader = new ContainerReader(file, 2)) {
+                assertTrue(reader.getHeader().isBanded());
+                for (int[] rows : new int[][]{{0, 1}, {20, 70}, {HEIGHT - 3, HEIGHT}}) {
+                    DecodedImage region = reader.decodeRegion(rows[0], rows[1]);
+                    assertEquals(rows[1] - rows[0], region.getHeight());
+                    for (int y = rows[0]; y < rows[1]; y++) {
+                        for (int x = 0; x < WIDTH; x++) {
+                            assertEquals(image.getPixel(x, y), region.getPixel(x, y - rows[0]), "mode " + i);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Every file comes out of the pipeline, compressed or with the error that stopped it
+ */
+class BatchPipelineTest {
+    private static final int WIDTH = 120;
+    private static final int HEIGHT = 90;
+
+    @TempDir
+    Path dir;
+
+    private List<Path> writeImages() throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            Path file = dir.resolve(kind.name().toLowerCase() + ".png");
+            Files.write(file, TestPngs.rgb(SyntheticImages.generate(kind, WIDTH, HEIGHT)));
+            files.add(file);
+        }
+        return files;
+    }
+
+    private Path output(Path file) {
+        return dir.resolve(file.getFileName() + HuffmanFormat.EXTENSION);
+    }
+
+    @Test
+    void compressesEveryFile() throws Exception {
+        List<Path> files = writeImages();
+        Path broken = dir.resolve("broken.png");
+        Files.writeString(broken, "not a png");
+        files.add(1, broken);
+
+        for (boolean pooled : new boolean[]{false, true}) {
+            BatchPipeline pipeline = new BatchPipeline(new CompressionOptions(), 2, 2, 2, this::output);
+            try (SegmentPool segments = pooled ? new SegmentPool(4) : null) {
+                pipeline.setSegmentPool(segments);
+                List<BatchPipeline.Job> jobs = pipeline.run(files);
+                assertEquals(files.size(), jobs.size());
+                for (BatchPipeline.Job job : jobs) {
+                    if (job.getFile().equals(broken)) {
+                        assertTrue(job.getError() instanceof IOException);
+                        assertFalse(Files.exists(output(broken)));
+                        continue;
+                    }
+                    assertNull(job.getError());
+                    assertNotNull(job.getCompressor());
+                    DecodedImage decoded = new HuffmanDecoder().decode(output(job.getFile()));
+                    assertTrue(decoded.matches(new PngStreamReader(job.getFile()), false), job.getFile().toString());
+                }
+                assertEquals(1, pipeline.getStageMetrics().get(1).getFailed());
+            }
+        }
+    }
+
+    @Test
+    void errorsDoNotStallTheRun() throws Exception {
+        List<Path> files = writeImages();
+        Path failing = files.get(2);
+        /// An Error rather than an Exception, thrown by the write stage
+        Function<Path, Path> outputFor = file -> {
+            if (file.equals(failing)) throw new AssertionError("no output for " + file);
+            return output(file);
+        };
+        BatchPipeline pipeline = new BatchPipeline(new CompressionOptions(), 2, 1, 1, outputFor);
+        List<List<BatchPipeline.Job>> result = new ArrayList<>();
+        Thread runner = new Thread(() -> {
+            try {
+                result.add(pipeline.run(files));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        runner.setDaemon(true);
+        runner.start();
+        runner.join(60_000);
+        assertFalse(runner.isAlive(), "run() did not return");
+
+        for (BatchPipeline.Job job : result.get(0)) {
+            if (job.getFile().equals(failing)) assertTrue(job.getError() instanceof AssertionError);
+            else assertNull(job.getError());
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The palette front end keeps every mapped color inside the palette, and nearest is exact
+ */
+class ColorQuantizerTest {
+    @Test
+    void quantized() throws IOException {
+        for (boolean dither : new boolean[]{false, true}) {
+            DecodedImage image = SyntheticImages.withAlpha(RoundTripTest.image(SyntheticImages.Kind.NOISE));
+            Compressor compressor = new Compressor(image,
+                    new CompressionOptions().setPaletteSize(64).setDither(dither));
+            assertTrue(compressor.getColorFrequency().size() <= 64);
+            assertTrue(Double.isFinite(compressor.getPsnr()));
+            assertTrue(compressor.verifyRoundTrip());
+        }
+    }
+
+    @Test
+    void nearestIsExact() {
+        ColorHistogram histogram = new ColorHistogram();
+        for (int pixel : RoundTripTest.image(SyntheticImages.Kind.NOISE).getPixels()) histogram.add(pixel & 0xFFFFFF);
+        ColorQuantizer quantizer = ColorQuantizer.medianCut(histogram, 64);
+        int[] palette = quantizer.getPalette();
+        assertTrue(palette.length <= 64);
+        assertEquals(histogram.getTotalCount(), quantizer.remap(histogram).getTotalCount());
+
+        Random random = new Random(3);
+        for (int i = 0; i < 2000; i++) {
+            int symbol = random.nextInt() & 0xFFFFFF;
+            int best = Integer.MAX_VALUE;
+            for (int entry : palette) best = Math.min(best, distance(symbol, entry));
+            assertEquals(best, distance(symbol, quantizer.nearest(symbol)), Integer.toHexString(symbol));
+        }
+    }
+
+    @Test
+    void fewColorsAreKept() {
+        ColorHistogram histogram = new ColorHistogram();
+        for (int color : new int[]{0x000000, 0xFF0000, 0x00FF00, 0x123456}) histogram.add(color, 100);
+        ColorQuantizer quantizer = ColorQuantizer.medianCut(histogram, 16);
+        assertEquals(4, quantizer.size());
+        assertEquals(0, quantizer.squaredError(histogram));
+        assertEquals(0x123456, quantizer.map(0x123456));
+        assertEquals(Double.POSITIVE_INFINITY, ColorQuantizer.psnr(0, 400, 3));
+    }
+
+    private static int distance(int a, int b) {
+        int dr = ((a >>> 16) & 0xFF) - ((b >>> 16) & 0xFF);
+        int dg = ((a >>> 8) & 0xFF) - ((b >>> 8) & 0xFF);
+        int db = (a & 0xFF) - (b & 0xFF);
+        return dr * dr + dg * dg + db * db;
+    }
+}
@@ -0,0 +1,110 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Repeated images are served from memory or disk and encode to the same container
+ */
+class CompressionCacheTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void repeatedImageHitsTheCache() throws IOException {
+        DecodedImage image = RoundTripTest.image(SyntheticImages.Kind.SCREENSHOT);
+        CompressionCache cache = new CompressionCache(CompressionCache.DEFAULT_MEMORY_BYTES, dir);
+        CompressionOptions options = new CompressionOptions().setCache(cache).setMaxCodeLength(12);
+
+        Compressor first = new Compressor(image, options);
+        Compressor second = new Compressor(image, options);
+        assertTrue(!first.isCacheHit() && second.isCacheHit());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getMemoryHits());
+        assertArrayEquals(encode(first), encode(second));
+
+        /// A new process finds the entry on disk
+        CompressionCache restarted = new CompressionCache(CompressionCache.DEFAULT_MEMORY_BYTES, dir);
+        Compressor third = new Compressor(image, new CompressionOptions().setCache(restarted).setMaxCodeLength(12));
+        assertTrue(third.isCacheHit());
+        assertEquals(1, restarted.getDiskHits());
+        assertArrayEquals(encode(first), encode(third));
+    }
+
+    @Test
+    void keyCoversContentAndOptions() throws IOException {
+        long flat = ContentHash.of(RoundTripTest.image(SyntheticImages.Kind.FLAT));
+        assertEquals(flat, ContentHash.of(RoundTripTest.image(SyntheticImages.Kind.FLAT)));
+        assertTrue(flat != ContentHash.of(RoundTripTest.image(SyntheticImages.Kind.GRADIENT)));
+
+        String key = CompressionCache.key(flat, new CompressionOptions());
+        assertEquals(key, CompressionCache.key(flat, new CompressionOptions().setWorkers(4)));
+        assertTrue(!key.equals(CompressionCache.key(flat, new CompressionOptions().setMaxCodeLength(12))));
+        assertTrue(!key.equals(CompressionCache.key(flat, new CompressionOptions().setAlphaMode(AlphaMode.SEPARATE))));
+        assertTrue(!key.equals(CompressionCache.key(flat, new CompressionOptions().setPaletteSize(64))));
+    }
+
+    @Test
+    void leastRecentlyUsedIsEvicted() {
+        /// Room for two single-color entries
+        CompressionCache cache = new CompressionCache(2 * entry(0).memoryBytes());
+        cache.put("a", entry(1));
+        cache.put("b", entry(2));
+        cache.get("a");
+        cache.put("c", entry(3));
+        assertEquals(1, cache.getEvictions());
+        assertNull(cache.get("b"));
+        assertEquals(1, cache.get("a").histogram().get(1));
+        assertEquals(1, cache.get("c").histogram().get(3));
+    }
+
+    @Test
+    void corruptFileIsAMiss() throws IOException {
+        CompressionCache cache = new CompressionCache(0, dir);
+        cache.put("k", entry(7));
+        Path file = dir.resolve("k" + CompressionCache.EXTENSION);
+        Files.write(file, new byte[]{1, 2, 3});
+        assertNull(cache.get("k"));
+        assertEquals(1, cache.getDiskErrors());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    void hashIsStreamed() {
+        /// XXH64 of no input with seed 0
+        assertEquals(0xEF46DB3751D8E999L, new ContentHash().digest());
+
+        int[] values = new Random(5).ints(100).toArray();
+        ContentHash whole = new ContentHash();
+        whole.update(values, 0, values.length);
+        for (int split : new int[]{1, 7, 8, 9, 63}) {
+            ContentHash parts = new ContentHash();
+            parts.update(values, 0, split);
+            parts.update(values, split, values.length - split);
+            assertEquals(whole.digest(), parts.digest());
+        }
+    }
+
+    private static CompressionCache.Entry entry(int color) {
+        ColorHistogram histogram = new ColorHistogram();
+        histogram.add(color);
+        return new CompressionCache.Entry(histogram, new CanonicalCode(new int[]{color}, new int[]{1}), 1);
+    }
+
+    private static byte[] encode(Compressor compressor) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compressor.encode(out);
+        return out.toByteArray();
+    }
+}
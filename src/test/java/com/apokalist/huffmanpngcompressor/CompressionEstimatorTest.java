@@ -0,0 +1,53 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A full sample reproduces the real code, smaller samples land near it
+ */
+class CompressionEstimatorTest {
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 200;
+
+    @Test
+    void fullSampleIsExact() throws IOException {
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            DecodedImage image = SyntheticImages.generate(kind, WIDTH, HEIGHT);
+            /// The estimator builds its lengths like the linear builder, ties included
+            Compressor compressor = new Compressor(image, new CompressionOptions().setLinearTreeBuilder(true));
+            CompressionEstimator.Estimate estimate = CompressionEstimator.estimate(image, 1, AlphaMode.PACKED, 1);
+
+            assertEquals((long) WIDTH * HEIGHT, estimate.getSampledPixels());
+            assertEquals(compressor.getColorFrequency().size(), estimate.getEstimatedColors(), kind.name());
+            assertEquals(0.0, estimate.getMarginBitsPerPixel());
+            assertEquals(compressor.getOptimalPayloadBits(), estimate.getPayloadBits(), kind.name());
+            assertEquals(HuffmanFormat.headerBits(compressor.getCanonicalCode()), estimate.getHeaderBits(), kind.name());
+        }
+    }
+
+    @Test
+    void headerFollowsTheFormat() {
+        CanonicalCode code = new Compressor(SyntheticImages.generate(SyntheticImages.Kind.PALETTE, WIDTH, HEIGHT),
+                new CompressionOptions()).getCanonicalCode();
+        assertEquals(HuffmanFormat.headerBits(code), HuffmanFormat.headerBits(code.size(), code.getMaxLength(), 24));
+    }
+
+    @Test
+    void sampleStaysNearTheImage() throws IOException {
+        DecodedImage image = SyntheticImages.generate(SyntheticImages.Kind.PALETTE, WIDTH, HEIGHT);
+        Compressor compressor = new Compressor(image, new CompressionOptions());
+        CompressionEstimator.Estimate estimate = CompressionEstimator.estimate(image, 0.1, AlphaMode.PACKED, 7);
+
+        assertTrue(estimate.getSampledPixels() < (long) WIDTH * HEIGHT / 5);
+        assertTrue(estimate.getSampledColors() <= estimate.getEstimatedColors());
+        assertTrue(estimate.getColorsLow() <= estimate.getEstimatedColors());
+        assertTrue(estimate.getEstimatedColors() <= estimate.getColorsHigh());
+        double real = (double) compressor.getOptimalPayloadBits() / ((long) WIDTH * HEIGHT);
+        assertTrue(Math.abs(estimate.getBitsPerPixel() - real) < 0.5, estimate.getBitsPerPixel() + " vs " + real);
+    }
+}
@@ -0,0 +1,105 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Uploads over a real socket: containers come back decodable, and bad or oversized uploads get their status codes
+ */
+class CompressionServerTest {
+    /**
+     * Starts a server on a free loopback port
+     */
+    private static CompressionServer start(long maxInFlightPixels, int maxBodyBytes) throws IOException {
+        CompressionServer server = new CompressionServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+                new CompressionOptions().setBandRows(16), maxInFlightPixels, maxBodyBytes);
+        server.start();
+        return server;
+    }
+
+    @Test
+    void compressAndStats() throws IOException {
+        CompressionServer server = start(1 << 20, 1 << 20);
+        try {
+            DecodedImage image = RoundTripTest.image(SyntheticImages.Kind.SCREENSHOT);
+            byte[] png = TestPngs.rgb(image);
+
+            HttpURLConnection compress = post(server, "/compress", png);
+            assertEquals(200, compress.getResponseCode());
+            assertEquals(Integer.toString(image.getWidth()), compress.getHeaderField("X-Image-Width"));
+            byte[] container = read(compress.getInputStream());
+            assertEquals(container.length, compress.getContentLengthLong());
+            assertTrue(new HuffmanDecoder().decode(new ByteArrayInputStream(container)).matches(image, false));
+
+            HttpURLConnection stats = post(server, "/stats", png);
+            assertEquals(200, stats.getResponseCode());
+            assertTrue(stats.getContentType().startsWith("application/json"));
+            assertTrue(new String(read(stats.getInputStream()), StandardCharsets.UTF_8).contains("\"width\": " + image.getWidth()));
+
+            String metrics = new String(read(open(server, "/metrics").getInputStream()), StandardCharsets.UTF_8);
+            assertTrue(metrics.contains("\"completed\": 2"), metrics);
+            assertTrue(metrics.contains("\"pixels\": " + 2L * image.getWidth() * image.getHeight()), metrics);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void badRequests() throws IOException {
+        CompressionServer server = start(1 << 20, 1 << 16);
+        try {
+            assertEquals(405, open(server, "/compress").getResponseCode());
+            assertEquals(400, post(server, "/compress", "not a png".getBytes(StandardCharsets.US_ASCII)).getResponseCode());
+            assertEquals(413, post(server, "/compress", new byte[(1 << 16) + 1]).getResponseCode());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void imageAboveThePixelLimit() throws IOException {
+        CompressionServer server = start(1000, 1 << 20);
+        try {
+            byte[] png = TestPngs.rgb(SyntheticImages.generate(SyntheticImages.Kind.FLAT, 40, 30));
+            assertEquals(413, post(server, "/compress", png).getResponseCode());
+            assertTrue(new String(read(open(server, "/metrics").getInputStream()), StandardCharsets.UTF_8).contains("\"tooLarge\": 1"));
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static HttpURLConnection open(CompressionServer server, String path) throws IOException {
+        InetSocketAddress address = server.getAddress();
+        URI uri = URI.create("http://" + address.getHostString() + ":" + address.getPort() + path);
+        return (HttpURLConnection) uri.toURL().openConnection();
+    }
+
+    private static HttpURLConnection post(CompressionServer server, String path, byte[] body) throws IOException {
+        HttpURLConnection connection = open(server, path);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(body.length);
+        try (OutputStream out = connection.getOutputStream()) {
+            out.write(body);
+        }
+        return connection;
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+}
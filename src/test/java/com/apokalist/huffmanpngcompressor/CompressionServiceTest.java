@@ -0,0 +1,48 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The UI streams every PNG it can and reports the files it cannot read
+ */
+class CompressionServiceTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void streamsNonInterlacedPngs() throws IOException {
+        Path file = dir.resolve("gradient.png");
+        Files.write(file, TestPngs.rgb(SyntheticImages.generate(SyntheticImages.Kind.GRADIENT, 40, 30)));
+        assertFalse(PngStreamReader.isInterlaced(file));
+        assertTrue(CompressionService.openSource(file.toFile()) instanceof PngStreamReader);
+    }
+
+    @Test
+    void detectsInterlacedPngs() throws IOException {
+        Path file = dir.resolve("interlaced.png");
+        Files.write(file, TestPngs.png(1, 1, 8, PngStreamReader.COLOR_GRAY, 1, new byte[]{0, 0}));
+        assertTrue(PngStreamReader.isInterlaced(file));
+    }
+
+    @Test
+    void brokenFilesFail() throws IOException {
+        Path text = dir.resolve("text.png");
+        Files.writeString(text, "not a png");
+        assertThrows(IOException.class, () -> CompressionService.openSource(text.toFile()));
+
+        Path truncated = dir.resolve("truncated.png");
+        byte[] png = TestPngs.rgb(SyntheticImages.generate(SyntheticImages.Kind.GRADIENT, 40, 30));
+        Files.write(truncated, Arrays.copyOf(png, 20));
+        assertThrows(IOException.class, () -> CompressionService.openSource(truncated.toFile()));
+    }
+}
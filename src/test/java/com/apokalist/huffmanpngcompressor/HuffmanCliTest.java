@@ -0,0 +1,126 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Option parsing and whole runs of the command line compressor
+ */
+class HuffmanCliTest {
+    private static final int WIDTH = 400;
+    private static final int HEIGHT = 120;
+
+    @TempDir
+    Path dir;
+
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream err = new ByteArrayOutputStream();
+
+    /// One PNG per synthetic image in an input folder
+    private Path inputs() throws IOException {
+        Path input = Files.createDirectories(dir.resolve("in"));
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            Files.write(input.resolve(kind.name().toLowerCase() + ".png"),
+                    TestPngs.rgb(SyntheticImages.generate(kind, WIDTH, HEIGHT)));
+        }
+        return input;
+    }
+
+    private int run(String... args) throws IOException {
+        HuffmanCli cli = new HuffmanCli();
+        assertTrue(cli.parse(args));
+        return cli.run(new PrintStream(out, true, StandardCharsets.UTF_8), new PrintStream(err, true, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Every PNG of the input folder has a container in the output folder that decodes to its pixels
+     */
+    private void assertCompressed(Path input, Path output) throws IOException {
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            String name = kind.name().toLowerCase();
+            DecodedImage decoded = new HuffmanDecoder().decode(output.resolve(name + HuffmanFormat.EXTENSION));
+            assertTrue(decoded.matches(new PngStreamReader(input.resolve(name + ".png")), false), name);
+        }
+    }
+
+    @Test
+    void badOptions() {
+        assertFalse(new HuffmanCli().parse(new String[]{"--help"}));
+        assertThrows(IllegalArgumentException.class, () -> new HuffmanCli().parse(new String[0]));
+        assertThrows(IllegalArgumentException.class, () -> new HuffmanCli().parse(new String[]{"--bogus", "a.png"}));
+        assertThrows(IllegalArgumentException.class, () -> new HuffmanCli().parse(new String[]{"-j", "0", "a.png"}));
+        assertThrows(IllegalArgumentException.class, () -> new HuffmanCli().parse(new String[]{"-a", "opaque", "a.png"}));
+        assertThrows(IllegalArgumentException.class, () -> new HuffmanCli().parse(new String[]{"a.png", "-o"}));
+        assertThrows(IllegalArgumentException.class,
+                () -> new HuffmanCli().parse(new String[]{"--adaptive", "-b", "16", "a.png"}));
+        assertThrows(IllegalArgumentException.class,
+                () -> new HuffmanCli().parse(new String[]{"--runs", "-a", "separate", "a.png"}));
+    }
+
+    @Test
+    void compressesAFolder() throws IOException {
+        Path input = inputs();
+        Path output = dir.resolve("out");
+        assertEquals(0, run("-o", output.toString(), "-j", "2", "-b", "16", "-t", "4", input.toString()));
+        assertCompressed(input, output);
+        assertTrue(out.toString(StandardCharsets.UTF_8).contains("gradient.png"));
+    }
+
+    @Test
+    void everyRunMode() throws IOException {
+        Path input = inputs();
+        String[][] modes = {{"--pipeline"}, {"--pipeline", "--off-heap"}, {"--off-heap"}, {"--adaptive"},
+                {"-p", "auto", "-r"}, {"--linear", "-l", "20", "-w", "2"}};
+        for (int i = 0; i < modes.length; i++) {
+            Path output = dir.resolve("out" + i);
+            String[] args = new String[modes[i].length + 3];
+            System.arraycopy(modes[i], 0, args, 0, modes[i].length);
+            args[modes[i].length] = "-o";
+            args[modes[i].length + 1] = output.toString();
+            args[modes[i].length + 2] = input.toString();
+            assertEquals(0, run(args), String.join(" ", modes[i]));
+            assertCompressed(input, output);
+        }
+    }
+
+    @Test
+    void failedFilesSetTheExitCode() throws IOException {
+        Path input = inputs();
+        Files.writeString(input.resolve("broken.png"), "not a png");
+        Path output = dir.resolve("out");
+        assertEquals(1, run("-o", output.toString(), input.toString()));
+        assertTrue(err.toString(StandardCharsets.UTF_8).contains("broken.png"));
+        assertCompressed(input, output);
+    }
+
+    @Test
+    void dryRunAndEstimateWriteNothing() throws IOException {
+        Path input = inputs();
+        Path output = dir.resolve("out");
+        assertEquals(0, run("-n", "-o", output.toString(), input.toString()));
+        assertEquals(0, run("-e", "0.25", "-o", output.toString(), input.toString()));
+        assertFalse(Files.exists(output));
+    }
+
+    @Test
+    void globsAndFiles() throws IOException {
+        Path input = inputs();
+        List<Path> files = HuffmanCli.expandInputs(List.of(input.resolve("*.png").toString(),
+                input.resolve("flat.png").toString()));
+        assertEquals(SyntheticImages.Kind.values().length, files.size());
+        assertThrows(IOException.class, () -> HuffmanCli.expandInputs(List.of(dir.resolve("missing.png").toString())));
+    }
+}
@@ -0,0 +1,41 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * The streamed parallel count agrees with the sequential one
+ */
+class ImageAnalyzerTest {
+    /// Narrow and tall, so the source spans many more bands than there are band buffers
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 20000;
+
+    @Test
+    void parallelMatchesSequential() throws IOException {
+        ImageAnalyzer analyzer = new ImageAnalyzer(AlphaMode.IGNORE);
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            DecodedImage image = SyntheticImages.generate(kind, WIDTH, HEIGHT);
+            ColorHistogram expected = analyzer.analyzeColors(image);
+            for (int workers : new int[]{2, 3, 8}) {
+                assertSameCounts(expected, analyzer.analyzeColors(image, workers));
+            }
+        }
+    }
+
+    @Test
+    void singleRow() throws IOException {
+        DecodedImage image = SyntheticImages.generate(SyntheticImages.Kind.NOISE, 300, 1);
+        ImageAnalyzer analyzer = new ImageAnalyzer(AlphaMode.IGNORE);
+        assertSameCounts(analyzer.analyzeColors(image), analyzer.analyzeColors(image, 4));
+    }
+
+    private static void assertSameCounts(ColorHistogram expected, ColorHistogram actual) {
+        assertEquals(expected.getTotalCount(), actual.getTotalCount());
+        assertEquals(expected.size(), actual.size());
+        expected.forEach((color, count) -> assertEquals(count, actual.get(color), ColorHistogram.toHex(color)));
+    }
+}
@@ -0,0 +1,98 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Code lengths of trees deeper than the limit: Fibonacci frequencies give the deepest tree per symbol
+ */
+class LengthLimitedCodeBuilderTest {
+
+    private static int[] fibonacci(int n) {
+        int[] frequencies = new int[n];
+        frequencies[0] = 1;
+        frequencies[1] = 1;
+        for (int i = 2; i < n; i++) frequencies[i] = frequencies[i - 1] + frequencies[i - 2];
+        return frequencies;
+    }
+
+    /**
+     * Kraft sum of a complete code is exactly 1, in units of 2^-32
+     */
+    private static void assertComplete(CanonicalCode code, int maxLength) {
+        long kraft = 0;
+        for (int i = 0; i < code.size(); i++) {
+            assertTrue(code.getLength(i) <= maxLength, "code of " + code.getLength(i) + " bits");
+            kraft += 1L << (CanonicalCode.MAX_LENGTH - code.getLength(i));
+        }
+        assertEquals(1L << CanonicalCode.MAX_LENGTH, kraft);
+    }
+
+    private static CanonicalCode code(int[] frequencies, int maxLength) {
+        int[] colors = new int[frequencies.length];
+        for (int i = 0; i < colors.length; i++) colors[i] = i;
+        return new CanonicalCode(colors, LengthLimitedCodeBuilder.buildLengths(frequencies, maxLength));
+    }
+
+    @Test
+    void limitsOfEveryLengthUpToTheCodecLimit() {
+        int[] frequencies = fibonacci(40);
+        for (int maxLength = 6; maxLength <= CanonicalCode.MAX_LENGTH; maxLength++) {
+            assertComplete(code(frequencies, maxLength), maxLength);
+        }
+    }
+
+    @Test
+    void deepTreeWithDefaultOptions() {
+        int[] frequencies = fibonacci(40);
+        ColorHistogram histogram = new ColorHistogram();
+        int[] pixels = new int[frequencies.length];
+        for (int i = 0; i < frequencies.length; i++) {
+            histogram.add(i, frequencies[i]);
+            pixels[i] = AlphaMode.toArgb(i);
+        }
+        DecodedImage source = new DecodedImage(frequencies.length, 1, pixels);
+        for (CompressionOptions options : new CompressionOptions[]{new CompressionOptions(),
+                new CompressionOptions().setLinearTreeBuilder(true),
+                new CompressionOptions().setMaxCodeLength(CanonicalCode.MAX_LENGTH)}) {
+            Compressor compressor = new Compressor(source, histogram, options);
+            assertComplete(compressor.getCanonicalCode(), CanonicalCode.MAX_LENGTH);
+            assertTrue(compressor.getLengthLimitCost() > 0);
+        }
+    }
+
+    @Test
+    void limitedCodeRoundTrips() throws IOException {
+        int[] frequencies = fibonacci(25);
+        int total = 0;
+        for (int frequency : frequencies) total += frequency;
+        int[] pixels = new int[total];
+        for (int color = 0, p = 0; color < frequencies.length; color++) {
+            for (int i = 0; i < frequencies[color]; i++) pixels[p++] = 0xFF000000 | color * 0x010101;
+        }
+        DecodedImage image = new DecodedImage(total, 1, pixels);
+        Compressor compressor = new Compressor(image, new CompressionOptions().setMaxCodeLength(12));
+        assertEquals(12, compressor.getCanonicalCode().getMaxLength());
+        assertTrue(compressor.verifyRoundTrip());
+    }
+
+    @Test
+    void syntheticImagesRoundTrip() throws IOException {
+        int limited = 0;
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            DecodedImage image = SyntheticImages.generate(kind, 480, 160);
+            Compressor unlimited = new Compressor(image, new CompressionOptions());
+            /// One bit above the shortest limit the colors fit in
+            int colors = unlimited.getColorFrequency().size();
+            int maxLength = Math.max(1, 33 - Integer.numberOfLeadingZeros(Math.max(1, colors - 1)));
+            Compressor compressor = RoundTripTest.assertRoundTrip(image, new CompressionOptions().setMaxCodeLength(maxLength));
+            assertTrue(compressor.getCanonicalCode().getMaxLength() <= maxLength);
+            if (unlimited.getCanonicalCode().getMaxLength() > maxLength) limited++;
+        }
+        assertTrue(limited > 0, "no code was limited");
+    }
+}
@@ -0,0 +1,83 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Containers written through a mapped file read back the same as streamed ones
+ */
+class MappedFileTest {
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 160;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void mappedFile() throws IOException {
+        DecodedImage image = SyntheticImages.withAlpha(SyntheticImages.generate(SyntheticImages.Kind.SCREENSHOT, WIDTH, HEIGHT));
+        CompressionOptions[] modes = {
+                new CompressionOptions(),
+                new CompressionOptions().setBandRows(16).setMaxTables(4),
+                new CompressionOptions().setBandRows(16).setAlphaMode(AlphaMode.SEPARATE),
+                new CompressionOptions().setBandRows(16).setPredictors(Predictor.values()),
+                new CompressionOptions().setBandRows(16).setRunLength(true)};
+        for (int i = 0; i < modes.length; i++) {
+            Compressor compressor = new Compressor(image, modes[i].setWorkers(2));
+            Path file = dir.resolve("mode" + i + HuffmanFormat.EXTENSION);
+            assertEquals(compressor.getContainerSize(), compressor.encode(file));
+            assertEquals(compressor.getContainerSize(), Files.size(file));
+            assertTrue(new HuffmanDecoder().decode(file).matches(image, true), "mode " + i);
+            try (ContainerReader reader = new ContainerReader(file, 2)) {
+                assertTrue(reader.decode().matches(image, true), "mode " + i);
+                if (reader.getHeader().isBanded()) {
+                    DecodedImage region = reader.decodeRegion(20, 70);
+                    assertEquals(50, region.getHeight());
+                    for (int y = 0; y < 50; y++) {
+                        for (int x = 0; x < WIDTH; x++) assertEquals(image.getPixel(x, y + 20), region.getPixel(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    void smallWindowsMatchTheStreamedBits() throws IOException {
+        Random random = new Random(7);
+        int[] codes = new int[5000];
+        int[] lengths = new int[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            lengths[i] = 1 + random.nextInt(31);
+            codes[i] = random.nextInt() >>> (32 - lengths[i]);
+        }
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        try (BitWriter writer = new BitWriter(Channels.newChannel(expected))) {
+            for (int i = 0; i < codes.length; i++) writer.writeBits(codes[i], lengths[i]);
+        }
+
+        /// A few bytes in front of the region, which the writer must leave alone
+        int offset = 5;
+        Path file = dir.resolve("windows.bin");
+        try (MappedBitWriter writer = new MappedBitWriter(FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE), offset, expected.size(), 24)) {
+            for (int i = 0; i < codes.length; i++) writer.writeBits(codes[i], lengths[i]);
+        }
+        byte[] actual = Files.readAllBytes(file);
+        assertEquals(offset + expected.size(), actual.length);
+        assertArrayEquals(expected.toByteArray(), Arrays.copyOfRange(actual, offset, actual.length));
+    }
+}
@@ -0,0 +1,66 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Rasters, dense histograms and containers in native memory behave like their heap versions
+ */
+class NativeMemoryTest {
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 160;
+
+    @Test
+    void containerInSegment() throws IOException {
+        DecodedImage image = SyntheticImages.generate(SyntheticImages.Kind.PALETTE, WIDTH, HEIGHT);
+        Compressor compressor = new Compressor(image, new CompressionOptions().setBandRows(16));
+        try (Arena arena = Arena.ofConfined()) {
+            MemorySegment target = arena.allocate(compressor.getContainerSize());
+            long written = compressor.encode(target);
+            assertEquals(compressor.getContainerSize(), written);
+            byte[] bytes = target.asSlice(0, written).toArray(ValueLayout.JAVA_BYTE);
+            assertTrue(new HuffmanDecoder().decode(new ByteArrayInputStream(bytes)).matches(image));
+        }
+    }
+
+    @Test
+    void denseHistogramInSegment() throws IOException {
+        /// Transparent symbols go to the table next to the dense one
+        DecodedImage image = SyntheticImages.withAlpha(SyntheticImages.generate(SyntheticImages.Kind.NOISE, WIDTH, HEIGHT));
+        ImageAnalyzer analyzer = new ImageAnalyzer(AlphaMode.PACKED);
+        ColorHistogram heap = analyzer.analyzeColors(image, new ColorHistogram());
+        try (SegmentPool pool = new SegmentPool(1)) {
+            for (int round = 0; round < 2; round++) {
+                try (SegmentPool.Block table = pool.take(SegmentPool.Kind.HISTOGRAM, ColorHistogram.DENSE_BYTES)) {
+                    ColorHistogram dense = analyzer.analyzeColors(image, new ColorHistogram(table.segment()));
+                    assertTrue(dense.isDense());
+                    assertEquals(heap.getTotalCount(), dense.getTotalCount());
+                    assertEquals(heap.size(), dense.size());
+                    heap.forEach((color, count) -> assertEquals(count, dense.get(color), ColorHistogram.toHex(color)));
+                }
+            }
+            /// The second round counts into the zeroed table of the first
+            assertEquals(1, pool.getReused());
+        }
+    }
+
+    @Test
+    void rasterInSegment() throws IOException {
+        DecodedImage image = SyntheticImages.withAlpha(SyntheticImages.generate(SyntheticImages.Kind.SCREENSHOT, WIDTH, HEIGHT));
+        try (Arena arena = Arena.ofConfined()) {
+            SegmentRaster raster = SegmentRaster.read(image, arena.allocate(SegmentRaster.bytes(image)));
+            assertEquals(image.getBitsPerPixel(), raster.getBitsPerPixel());
+            assertTrue(image.matches(raster, true));
+            Compressor compressor = new Compressor(raster, new CompressionOptions().setBandRows(32).setWorkers(2));
+            assertTrue(compressor.verifyRoundTrip());
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package com.apokalist.huffmanpngcompressor;
+
+import javafx.scene.image.WritableImage;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Counting a JavaFX image in bands gives the sequential histogram
+ */
+class ParallelHistogramTaskTest {
+    @Test
+    void bandsMatchSequential() {
+        ImageAnalyzer analyzer = new ImageAnalyzer();
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            WritableImage image = SyntheticImages.generate(kind, 400, 300).toFxImage();
+            ColorHistogram expected = analyzer.analyzeColors(image);
+            for (int workers : new int[]{2, 5}) {
+                ColorHistogram parallel = analyzer.analyzeColors(image, workers);
+                assertFalse(parallel.isDense());
+                assertSameCounts(expected, parallel);
+            }
+        }
+    }
+
+    @Test
+    void largeImagesMergeIntoTheDenseTable() {
+        /// Just above the dense threshold, the bands themselves stay sparse
+        WritableImage image = SyntheticImages.generate(SyntheticImages.Kind.NOISE, 2100, 2000).toFxImage();
+        ImageAnalyzer analyzer = new ImageAnalyzer();
+        ColorHistogram parallel = analyzer.analyzeColors(image, 4);
+        assertTrue(parallel.isDense());
+        assertSameCounts(analyzer.analyzeColors(image), parallel);
+    }
+
+    private static void assertSameCounts(ColorHistogram expected, ColorHistogram actual) {
+        assertEquals(expected.getTotalCount(), actual.getTotalCount());
+        assertEquals(expected.size(), actual.size());
+        expected.forEach((color, count) -> assertEquals(count, actual.get(color), ColorHistogram.toHex(color)));
+    }
+}
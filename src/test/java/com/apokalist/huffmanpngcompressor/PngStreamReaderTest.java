@@ -0,0 +1,51 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.zip.CRC32;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Streamed PNG decoding, whole files checked to the last CRC
+ */
+class PngStreamReaderTest {
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+
+    @Test
+    void rgb8() throws IOException {
+        DecodedImage image = SyntheticImages.generate(SyntheticImages.Kind.NOISE, WIDTH, HEIGHT);
+        PngStreamReader png = new PngStreamReader(TestPngs.rgb(image), "noise.png");
+        assertTrue(image.matches(png, false), "pixels differ");
+    }
+
+    @Test
+    void corruptTailIsRejected() throws IOException {
+        byte[] file = TestPngs.rgb(SyntheticImages.generate(SyntheticImages.Kind.GRADIENT, WIDTH, HEIGHT));
+        int iend = TestPngs.chunkData(file, "IEND") - 8;
+
+        /// The IDAT CRC, read only once the last row is inflated
+        byte[] badCrc = file.clone();
+        badCrc[iend - 1] ^= 1;
+        assertThrows(IOException.class, () -> DecodedImage.readFully(new PngStreamReader(badCrc, "crc.png")));
+
+        /// The zlib Adler-32 after the last deflate block, with the chunk CRC fixed up to match
+        byte[] badAdler = file.clone();
+        badAdler[iend - 5] ^= 1;
+        fixCrc(badAdler, TestPngs.chunkData(badAdler, "IDAT"), iend - 4);
+        assertThrows(IOException.class, () -> DecodedImage.readFully(new PngStreamReader(badAdler, "adler.png")));
+    }
+
+    /**
+     * Rewrites the CRC of the chunk whose data runs from {@code data} to {@code crc}
+     */
+    private static void fixCrc(byte[] file, int data, int crc) {
+        CRC32 checksum = new CRC32();
+        checksum.update(file, data - 4, crc - data + 4);
+        int value = (int) checksum.getValue();
+        for (int i = 0; i < 4; i++) file[crc + i] = (byte) (value >>> (24 - 8 * i));
+    }
+}
@@ -0,0 +1,40 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Residual coding is picked for smooth images and decodes back to the same pixels
+ */
+class PredictiveCoderTest {
+    @Test
+    void residuals() throws IOException {
+        boolean predicted = false;
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            Compressor compressor = RoundTripTest.assertRoundTrip(RoundTripTest.image(kind),
+                    new CompressionOptions().setPredictors(Predictor.values()).setBandRows(32).setWorkers(2));
+            predicted |= compressor.isPredicted();
+        }
+        assertTrue(predicted, "no image chose residual coding");
+        assertTrue(RoundTripTest.assertRoundTrip(RoundTripTest.image(SyntheticImages.Kind.GRADIENT),
+                new CompressionOptions().setPredictors(Predictor.MED)).isPredicted());
+    }
+
+    @Test
+    void predictors() {
+        assertEquals(10, Predictor.LEFT.predict(10, 20, 15));
+        assertEquals(20, Predictor.UP.predict(10, 20, 15));
+        /// Paeth: closest of a, b, c to a + b - c, ties going to a then b
+        assertEquals(15, Predictor.PAETH.predict(10, 20, 15));
+        assertEquals(20, Predictor.PAETH.predict(10, 20, 5));
+        assertEquals(10, Predictor.PAETH.predict(10, 10, 10));
+        /// MED: an edge above or below both neighbours picks one of them, a + b - c otherwise
+        assertEquals(10, Predictor.MED.predict(10, 20, 25));
+        assertEquals(20, Predictor.MED.predict(10, 20, 5));
+        assertEquals(15, Predictor.MED.predict(10, 20, 15));
+    }
+}
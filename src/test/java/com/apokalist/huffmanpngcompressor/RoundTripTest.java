@@ -0,0 +1,48 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The synthetic images encode with one code table and decode back to the same pixels;
+ * the round trip helpers here are shared by the tests of every other coding mode
+ */
+class RoundTripTest {
+    private static final int WIDTH = 480;
+    private static final int HEIGHT = 160;
+
+    /**
+     * The given kind of synthetic image at the size every round trip uses
+     */
+    static DecodedImage image(SyntheticImages.Kind kind) {
+        return SyntheticImages.generate(kind, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Encodes through a stream and compares the decoded pixels, alpha included when it is kept
+     */
+    static Compressor assertRoundTrip(DecodedImage image, CompressionOptions options) throws IOException {
+        Compressor compressor = new Compressor(image, options);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long written = compressor.encode(out);
+        assertEquals(compressor.getContainerSize(), written);
+        assertEquals(written, out.size());
+        DecodedImage decoded = new HuffmanDecoder().decode(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(decoded.matches(image, options.getAlphaMode() != AlphaMode.IGNORE), "pixels differ");
+        return compressor;
+    }
+
+    @Test
+    void plain() throws IOException {
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            Compressor compressor = assertRoundTrip(image(kind), new CompressionOptions());
+            assertEquals(1, compressor.getTableCount());
+        }
+    }
+}
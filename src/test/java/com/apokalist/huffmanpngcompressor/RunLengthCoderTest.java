@@ -0,0 +1,42 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Run coding is picked for flat images and decodes back to the same pixels, whatever the run lengths
+ */
+class RunLengthCoderTest {
+    @Test
+    void runs() throws IOException {
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            Compressor compressor = RoundTripTest.assertRoundTrip(RoundTripTest.image(kind), new CompressionOptions().setRunLength(true));
+            if (kind == SyntheticImages.Kind.FLAT || kind == SyntheticImages.Kind.SCREENSHOT) assertTrue(compressor.isRunLength());
+        }
+        DecodedImage screenshot = SyntheticImages.withAlpha(RoundTripTest.image(SyntheticImages.Kind.SCREENSHOT));
+        assertTrue(RoundTripTest.assertRoundTrip(screenshot, new CompressionOptions().setRunLength(true).setBandRows(16))
+                .isRunLength());
+    }
+
+    @Test
+    void buckets() {
+        assertEquals(0, RunLengthCoder.bucket(1));
+        assertEquals(1, RunLengthCoder.bucket(2));
+        assertEquals(1, RunLengthCoder.bucket(3));
+        assertEquals(16, RunLengthCoder.bucket(1 << 16));
+        assertEquals(RunLengthCoder.BUCKETS - 1, RunLengthCoder.bucket(Integer.MAX_VALUE));
+    }
+
+    @Test
+    void longRuns() throws IOException {
+        /// Whole rows of one color, far longer than any code length
+        DecodedImage image = SyntheticImages.generate(SyntheticImages.Kind.FLAT, 100_000, 3);
+        Compressor compressor = RoundTripTest.assertRoundTrip(image, new CompressionOptions().setRunLength(true));
+        assertTrue(compressor.isRunLength());
+        assertTrue(compressor.getPayloadBits() < 3 * 64, "payload of " + compressor.getPayloadBits() + " bits");
+    }
+}
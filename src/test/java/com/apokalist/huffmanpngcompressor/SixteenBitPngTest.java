@@ -0,0 +1,90 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * 16-bit PNGs decode to their high bytes and are measured against that 8-bit decoding
+ */
+class SixteenBitPngTest {
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 23;
+
+    @TempDir
+    Path dir;
+
+    /// 16-bit sample of channel c at (x, y), its low byte never matches its high byte
+    private static int sample(int x, int y, int c) {
+        return (x * 1777 + y * 709 + c * 9001) & 0xFFFF;
+    }
+
+    /**
+     * Writes an unfiltered PNG with 16-bit samples
+     */
+    private Path write16(int colorType, int channels) throws IOException {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        for (int y = 0; y < HEIGHT; y++) {
+            raw.write(0);
+            for (int x = 0; x < WIDTH; x++) {
+                for (int c = 0; c < channels; c++) {
+                    raw.write(sample(x, y, c) >>> 8);
+                    raw.write(sample(x, y, c));
+                }
+            }
+        }
+        Path file = dir.resolve("type" + colorType + ".png");
+        Files.write(file, TestPngs.png(WIDTH, HEIGHT, 16, colorType, raw.toByteArray()));
+        return file;
+    }
+
+    private static int high(int x, int y, int c) {
+        return sample(x, y, c) >>> 8;
+    }
+
+    @Test
+    void rgba16KeepsHighBytes() throws IOException {
+        Path file = write16(PngStreamReader.COLOR_RGBA, 4);
+        PngStreamReader png = new PngStreamReader(file);
+        assertEquals(16, png.getBitDepth());
+        assertEquals(32, png.getBitsPerPixel());
+        DecodedImage image = DecodedImage.readFully(png);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int expected = high(x, y, 3) << 24 | high(x, y, 0) << 16 | high(x, y, 1) << 8 | high(x, y, 2);
+                assertEquals(expected, image.getPixel(x, y));
+            }
+        }
+    }
+
+    @Test
+    void rgb16AndGray16() throws IOException {
+        PngStreamReader rgb = new PngStreamReader(write16(PngStreamReader.COLOR_RGB, 3));
+        assertEquals(24, rgb.getBitsPerPixel());
+        DecodedImage image = DecodedImage.readFully(rgb);
+        assertEquals(0xFF000000 | high(5, 7, 0) << 16 | high(5, 7, 1) << 8 | high(5, 7, 2), image.getPixel(5, 7));
+
+        PngStreamReader gray = new PngStreamReader(write16(PngStreamReader.COLOR_GRAY, 1));
+        assertEquals(8, gray.getBitsPerPixel());
+        int value = high(5, 7, 0);
+        assertEquals(0xFF000000 | value << 16 | value << 8 | value, DecodedImage.readFully(gray).getPixel(5, 7));
+    }
+
+    @Test
+    void ratioIsMeasuredAgainstTheDecodedDepth() throws IOException {
+        Path file = write16(PngStreamReader.COLOR_RGBA, 4);
+        for (AlphaMode alphaMode : new AlphaMode[]{AlphaMode.PACKED, AlphaMode.SEPARATE}) {
+            Compressor compressor = new Compressor(new PngStreamReader(file),
+                    new CompressionOptions().setAlphaMode(alphaMode));
+            assertEquals((long) WIDTH * HEIGHT * 32, compressor.getOriginalSize());
+            assertTrue(compressor.verifyRoundTrip());
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.util.Random;
+
+/**
+ * Reproducible test images covering the color statistics the compressor meets in practice.
+ * Shared by the tests and, through the test jar, the benchmarks.
+ */
+public final class SyntheticImages {
+
+    public enum Kind {
+        /// A single color, the smallest possible histogram
+        FLAT,
+        /// Smooth two-axis gradient, tens of thousands of evenly used colors
+        GRADIENT,
+        /// Gradient with per-channel gaussian noise, close to a photo: hundreds of thousands of colors
+        NOISE,
+        /// 256 colors used with a skewed distribution, like an indexed PNG
+        PALETTE,
+        /// Flat panels with lines of anti-aliased glyph strokes, like a UI screenshot: long runs, a few dozen colors
+        SCREENSHOT
+    }
+
+    private SyntheticImages() {
+    }
+
+    /**
+     * @param resolution WIDTHxHEIGHT, e.g. 1920x1080
+     */
+    public static DecodedImage generate(Kind kind, String resolution) {
+        int x = resolution.indexOf('x');
+        return generate(kind, Integer.parseInt(resolution.substring(0, x)), Integer.parseInt(resolution.substring(x + 1)));
+    }
+
+    /**
+     * Same kind and size always give the same pixels
+     */
+    public static DecodedImage generate(Kind kind, int width, int height) {
+        Random random = new Random(42);
+        int[] pixels = new int[width * height];
+        int[] palette = new int[256];
+        for (int i = 0; i < palette.length; i++) palette[i] = random.nextInt(1 << 24);
+
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = x * 255 / Math.max(1, width - 1);
+                int g = y * 255 / Math.max(1, height - 1);
+                int b = (r + g) >> 1;
+                int rgb = switch (kind) {
+                    case FLAT -> 0x3F7FBF;
+                    case GRADIENT -> r << 16 | g << 8 | b;
+                    case NOISE -> clamp(r + noise(random)) << 16 | clamp(g + noise(random)) << 8 | clamp(b + noise(random));
+                    /// Squaring skews the pick towards the first palette entries
+                    case PALETTE -> palette[(int) (Math.pow(random.nextDouble(), 2) * palette.length)];
+                    case SCREENSHOT -> screenshot(x, y, width);
+                };
+                pixels[y * width + x] = 0xFF000000 | rgb;
+            }
+        }
+        return new DecodedImage(width, height, pixels);
+    }
+
+    /**
+     * Same pixels with a transparency ramp from the left edge and a fully transparent
+     * square in the middle, 32 bits per pixel as an RGBA PNG
+     */
+    public static DecodedImage withAlpha(DecodedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getPixels().clone();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int alpha = Math.min(255, x * 4);
+                if (Math.abs(x - width / 2) < width / 8 && Math.abs(y - height / 2) < height / 8) alpha = 0;
+                pixels[y * width + x] = alpha << 24 | pixels[y * width + x] & 0xFFFFFF;
+            }
+        }
+        return new DecodedImage(width, height, pixels, 32);
+    }
+
+    /**
+     * Title bar, side bar and a page of text lines, 16 pixel rows per line; narrow images are all side bar
+     */
+    private static int screenshot(int x, int y, int width) {
+        if (y < 32) return x > width - 96 && (x / 32) % 2 == 0 ? 0xE04040 : 0x2C2C2A;
+        if (x < 240) return (y - 32) / 40 == 2 ? 0x3F7FBF : 0xF0F0F0;
+        int line = (y - 32) / 16;
+        int row = (y - 32) % 16;
+        /// Lines of varying length, glyphs 8 pixels wide with 2 pixel gaps and a word gap every 6 glyphs
+        int end = 280 + (line * 7919 % Math.max(1, width - 320));
+        if (row < 3 || row > 12 || x < 260 || x > end) return 0xFFFFFF;
+        int glyph = (x - 260) / 10;
+        int column = (x - 260) % 10;
+        if (glyph % 6 == 5 || column > 7) return 0xFFFFFF;
+        /// Strokes of every glyph from its hash, their edges in one of two grays
+        int bits = (glyph * 31 + line * 17) * 0x9E3779B1;
+        boolean stroke = (bits >>> (column * 3 + row % 3)) % 3 == 0;
+        if (stroke) return 0x202020;
+        return column == 0 || column == 7 ? 0xB0B0B0 : row == 3 || row == 12 ? 0xD8D8D8 : 0xFFFFFF;
+    }
+
+    private static int noise(Random random) {
+        return (int) Math.round(random.nextGaussian() * 8);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
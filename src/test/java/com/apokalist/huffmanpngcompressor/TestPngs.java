@@ -0,0 +1,93 @@
+package com.apokalist.huffmanpngcompressor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes small non-interlaced PNGs with java.util.zip, so the reader is tested against files it did not write
+ */
+final class TestPngs {
+    private TestPngs() {
+    }
+
+    /**
+     * @param rows scanlines with their filter byte, exactly as they go into the zlib stream
+     * @return the whole PNG file
+     */
+    static byte[] png(int width, int height, int bitDepth, int colorType, byte[] rows) {
+        return png(width, height, bitDepth, colorType, 0, rows);
+    }
+
+    /**
+     * @param interlace interlace method stored in IHDR, the rows are written as given either way
+     */
+    static byte[] png(int width, int height, int bitDepth, int colorType, int interlace, byte[] rows) {
+        try {
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream ihdr = new DataOutputStream(header);
+            ihdr.writeInt(width);
+            ihdr.writeInt(height);
+            ihdr.write(new byte[]{(byte) bitDepth, (byte) colorType, 0, 0, (byte) interlace});
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            try (DeflaterOutputStream deflater = new DeflaterOutputStream(compressed)) {
+                deflater.write(rows);
+            }
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeLong(0x89504E470D0A1A0AL);
+            chunk(out, "IHDR", header.toByteArray());
+            chunk(out, "IDAT", compressed.toByteArray());
+            chunk(out, "IEND", new byte[0]);
+            return file.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An unfiltered 8-bit RGB PNG of the given pixels, alpha is dropped
+     */
+    static byte[] rgb(DecodedImage image) {
+        ByteArrayOutputStream rows = new ByteArrayOutputStream();
+        for (int y = 0; y < image.getHeight(); y++) {
+            rows.write(0);
+            for (int x = 0; x < image.getWidth(); x++) {
+                int pixel = image.getPixel(x, y);
+                rows.write(pixel >>> 16);
+                rows.write(pixel >>> 8);
+                rows.write(pixel);
+            }
+        }
+        return png(image.getWidth(), image.getHeight(), 8, PngStreamReader.COLOR_RGB, rows.toByteArray());
+    }
+
+    /**
+     * @return offset of the first byte of the named chunk's data
+     */
+    static int chunkData(byte[] png, String type) {
+        int offset = 8;
+        while (offset + 8 <= png.length) {
+            int length = (png[offset] & 0xFF) << 24 | (png[offset + 1] & 0xFF) << 16 | (png[offset + 2] & 0xFF) << 8 | (png[offset + 3] & 0xFF);
+            if (new String(png, offset + 4, 4, StandardCharsets.US_ASCII).equals(type)) return offset + 8;
+            offset += 12 + length;
+        }
+        throw new IllegalArgumentException("No " + type + " chunk");
+    }
+
+    private static void chunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] name = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(name);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(name);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
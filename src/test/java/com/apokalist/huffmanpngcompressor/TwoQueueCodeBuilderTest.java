@@ -0,0 +1,61 @@
+package com.apokalist.huffmanpngcompressor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.SplittableRandom;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The linear-time builder gives codes exactly as short as the heap-built Huffman tree
+ */
+class TwoQueueCodeBuilderTest {
+
+    private static long cost(int[] frequencies, int[] lengths) {
+        long bits = 0;
+        for (int i = 0; i < frequencies.length; i++) bits += (long) frequencies[i] * lengths[i];
+        return bits;
+    }
+
+    @Test
+    void sameCostAsTheHuffmanTree() throws IOException {
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            ColorHistogram histogram = new ImageAnalyzer().analyzeColors(SyntheticImages.generate(kind, 400, 300));
+            HuffmanTree tree = new HuffmanTree(histogram);
+            int[] frequencies = new int[tree.getColors().length];
+            for (int i = 0; i < frequencies.length; i++) frequencies[i] = histogram.get(tree.getColors()[i]);
+            assertEquals(cost(frequencies, tree.getCodeLengths()),
+                    cost(frequencies, TwoQueueCodeBuilder.buildLengths(frequencies)), kind.name());
+        }
+    }
+
+    @Test
+    void randomFrequenciesGiveCompleteCodes() {
+        SplittableRandom random = new SplittableRandom(3);
+        for (int n = 2; n < 600; n += 37) {
+            int[] frequencies = new int[n];
+            /// Spread over several radix digits, so more than one sorting pass runs
+            for (int i = 0; i < n; i++) frequencies[i] = 1 + random.nextInt(1 << random.nextInt(1, 28));
+            int[] lengths = TwoQueueCodeBuilder.buildLengths(frequencies);
+            double kraft = 0;
+            for (int length : lengths) kraft += Math.pow(2, -length);
+            assertEquals(1.0, kraft, 1e-9);
+
+            int[] order = TwoQueueCodeBuilder.radixSort(frequencies);
+            for (int i = 1; i < n; i++) assertTrue(frequencies[order[i - 1]] <= frequencies[order[i]]);
+        }
+        /// A single symbol still takes one bit
+        assertArrayEquals(new int[]{1}, TwoQueueCodeBuilder.buildLengths(new int[]{5}));
+    }
+
+    @Test
+    void roundTrip() throws IOException {
+        for (SyntheticImages.Kind kind : SyntheticImages.Kind.values()) {
+            RoundTripTest.assertRoundTrip(SyntheticImages.generate(kind, 480, 160),
+                    new CompressionOptions().setLinearTreeBuilder(true).setWorkers(4));
+        }
+    }
+}